@@ -39,6 +39,12 @@ public class CameraActivity extends Activity implements TextureView.SurfaceTextu
     private boolean mPendingRecordingStart = false;
     private TextureView mPreviewView;
     private int mPreviousRotation = Surface.ROTATION_0;
+    private Sensor mRotationSensor;
+    private SensorManager mSensorManager;
+    private boolean mSensorsRegistered = false;
+    // Reused for every rotation change
+    private final Matrix mSurfaceTransform = new Matrix();
+    private final RectF mViewRect = new RectF();
 
     private final ServiceConnection mCaptureServiceConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName className, IBinder service) {
@@ -85,14 +91,15 @@ public class CameraActivity extends Activity implements TextureView.SurfaceTextu
             }
         });
 
-        SensorManager sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
-        Sensor rotationSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
-        sensorManager.registerListener(this, rotationSensor, SensorManager.SENSOR_DELAY_UI);
+        mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+        mRotationSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        setSensorsRegistered(true);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        setSensorsRegistered(false);
         unbindTimeLapseCaptureService();
     }
 
@@ -137,7 +144,6 @@ public class CameraActivity extends Activity implements TextureView.SurfaceTextu
 
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture texture, int width, int height) {
-        texture.setDefaultBufferSize(1920, 1080);
         setSurfaceTransform(width, height);
         openCamera();
     }
@@ -178,7 +184,7 @@ public class CameraActivity extends Activity implements TextureView.SurfaceTextu
 
     private void openCameraL() {
         if (mCaptureService != null) {
-            mCaptureService.openCamera(new Surface(mPreviewView.getSurfaceTexture()), new TimeLapseCapture.SimpleCallback() {
+            mCaptureService.openCamera(mPreviewView.getSurfaceTexture(), new TimeLapseCapture.SimpleCallback() {
                 @Override
                 public void onEvent() {
                     mCameraReady = true;
@@ -191,19 +197,21 @@ public class CameraActivity extends Activity implements TextureView.SurfaceTextu
 
     private void setSurfaceTransform(int width, int height) {
         int rotation = getWindowManager().getDefaultDisplay().getRotation();
-        Matrix matrix = new Matrix();
-        RectF viewRect = new RectF(0, 0, width, height);
-        float centerX = viewRect.centerX();
-        float centerY = viewRect.centerY();
+        Matrix matrix = mSurfaceTransform;
+        matrix.reset();
+        mViewRect.set(0, 0, width, height);
+        float centerX = mViewRect.centerX();
+        float centerY = mViewRect.centerY();
         if (rotation == Surface.ROTATION_90 || rotation == Surface.ROTATION_270) {
             matrix.postRotate(90 * (rotation - 2), centerX, centerY);
             matrix.postScale(
                     width / (float) height,
-                    (height / (float) width) * (width / 1920.0f),
+                    (height / (float) width) * (width / (float) TimeLapseCapture.PREVIEW_WIDTH),
                     centerX, centerY);
         } else {
             matrix.postRotate(90 * rotation, centerX, centerY);
-            matrix.postScale(height / 1920.0f, 1.0f, centerX, centerY);
+            matrix.postScale(height / (float) TimeLapseCapture.PREVIEW_WIDTH, 1.0f,
+                    centerX, centerY);
         }
         mPreviewView.setTransform(matrix);
     }
@@ -212,26 +220,48 @@ public class CameraActivity extends Activity implements TextureView.SurfaceTextu
         if (mCameraReady) {
             if (mCurrentlyRecording && !mPendingRecordingStop) {
                 mPendingRecordingStop = true;
-                mCaptureService.stopRecording(new TimeLapseCapture.SimpleCallback() {
+                mCaptureService.stopRecording(new TimeLapseCapture.IsRecordingCallback() {
                     @Override
-                    public void onEvent() {
+                    public void onReply(boolean currentlyRecording) {
                         mPendingRecordingStop = false;
-                        mCurrentlyRecording = false;
+                        onRecordingChanged(currentlyRecording);
                     }
                 });
             } else if (!mCurrentlyRecording && !mPendingRecordingStart){
                 mPendingRecordingStart = true;
-                mCaptureService.startRecording(new TimeLapseCapture.SimpleCallback() {
+                mCaptureService.startRecording(new TimeLapseCapture.IsRecordingCallback() {
                     @Override
-                    public void onEvent() {
+                    public void onReply(boolean currentlyRecording) {
                         mPendingRecordingStart = false;
-                        mCurrentlyRecording = true;
+                        onRecordingChanged(currentlyRecording);
                     }
                 });
             }
         }
     }
 
+    /**
+     * Follows what the capture reports rather than what was asked for, a start can fail.
+     */
+    private void onRecordingChanged(boolean recording) {
+        mCurrentlyRecording = recording;
+        // Rotation is ignored while recording, so there's no need to listen
+        setSensorsRegistered(!recording);
+    }
+
+    private void setSensorsRegistered(boolean registered) {
+        if (registered == mSensorsRegistered || mRotationSensor == null) {
+            return;
+        }
+
+        if (registered) {
+            mSensorManager.registerListener(this, mRotationSensor, SensorManager.SENSOR_DELAY_UI);
+        } else {
+            mSensorManager.unregisterListener(this);
+        }
+        mSensorsRegistered = registered;
+    }
+
     private void unbindTimeLapseCaptureService() {
         if (mCaptureServiceBound) {
             // Detach our existing connection.
@@ -0,0 +1,105 @@
+package com.dylankpowers.timelapse;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps the probed {@link CameraInfo} in memory for the life of the service and on disk
+ * across restarts. The disk copy is tagged with the build fingerprint so an OS update, which
+ * can change camera capabilities, throws it away.
+ */
+class CameraInfoCache {
+    private static final String TAG = "CameraInfoCache";
+
+    private CameraInfo mCameraInfo;
+    private final File mFile;
+    private final String mFingerprint;
+    private boolean mLoaded = false;
+
+    CameraInfoCache(File file, String fingerprint) {
+        mFile = file;
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * Returns the cached info, reading it from disk the first time. Null if nothing valid is
+     * cached. Does disk I/O, so keep it off the UI thread.
+     */
+    synchronized CameraInfo get() {
+        if (!mLoaded) {
+            mLoaded = true;
+            mCameraInfo = load();
+        }
+        return mCameraInfo;
+    }
+
+    synchronized void invalidate() {
+        mCameraInfo = null;
+        mLoaded = true;
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Unable to delete " + mFile);
+        }
+    }
+
+    private CameraInfo load() {
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (!mFingerprint.equals(in.readUTF())) {
+                Log.d(TAG, "Build changed, probing the camera again.");
+                return null;
+            }
+            return CameraInfo.read(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the camera info cache.", e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    synchronized void put(CameraInfo cameraInfo) {
+        mCameraInfo = cameraInfo;
+        mLoaded = true;
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeUTF(mFingerprint);
+            cameraInfo.write(out);
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(mFile)) {
+                Log.w(TAG, "Unable to replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the camera info cache.", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing useful to do about it
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.dylankpowers.timelapse;
+
+import android.os.SystemClock;
+
+/**
+ * The clocks the capture pipeline reads, so it can be run against a virtual one.
+ */
+interface Clock {
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+    };
+
+    /**
+     * Wall clock time, only for labelling recordings.
+     */
+    long currentTimeMillis();
+
+    long elapsedRealtime();
+
+    /**
+     * The time base of {@link Scheduler#postAtTime(Runnable, long)}.
+     */
+    long uptimeMillis();
+}
@@ -0,0 +1,188 @@
+package com.dylankpowers.timelapse;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Wakes the device up for each shot of a long interval capture so the camera can stay
+ * closed and the CPU asleep in between. Shots are scheduled against the start time like
+ * {@link IntervalCaptureScheduler}, but the alarm goes off early by however long the camera
+ * recently took to open and settle, so the frame is taken close to its slot.
+ *
+ * A partial wake lock is held from the alarm until {@link #onShotTaken(long)} or
+ * {@link #onShotFailed()}.
+ *
+ * While the device dozes, alarms allowed while idle go off at most about once every nine
+ * minutes per app, so they're only used for intervals of
+ * {@link #MIN_IDLE_ALARM_INTERVAL_MS} or more. Shorter intervals are woken with alarm clock
+ * alarms, which go off on time but bring the device out of Doze and show the alarm icon.
+ */
+class DutyCycleScheduler {
+    private static final String TAG = "DutyCycleScheduler";
+    private static final String ACTION_WAKE = "com.dylankpowers.timelapse.DUTY_CYCLE_WAKE";
+    private static final long MIN_IDLE_ALARM_INTERVAL_MS = 15 * 60 * 1000;
+    // Used until a few real warm ups have been measured
+    private static final long INITIAL_WARM_UP_MS = 2000;
+    private static final long WAKE_MARGIN_MS = 500;
+    private static final long WAKE_LOCK_TIMEOUT_MS = 30 * 1000;
+    private static final int WARM_UP_HISTORY = 8;
+
+    private final AlarmManager mAlarmManager;
+    private final Context mContext;
+    private final Handler mHandler;
+    private final PendingIntent mShowIntent;
+    private long mIntervalMs;
+    private boolean mRunning = false;
+    private long mShotCount;
+    private TimeLapseCapture.SimpleCallback mShotCallback;
+    private long mStartTime;
+    private final PowerManager.WakeLock mWakeLock;
+    private final PendingIntent mWakeIntent;
+    private final long[] mWarmUpsMs = new long[WARM_UP_HISTORY];
+    private int mWarmUpCount = 0;
+
+    private final BroadcastReceiver mWakeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // The alarm only keeps the device awake until this returns
+            wake();
+        }
+    };
+
+    DutyCycleScheduler(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+        mWakeIntent = PendingIntent.getBroadcast(context, 0,
+                new Intent(ACTION_WAKE).setPackage(context.getPackageName()),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        // Where the system sends the user who taps the alarm clock icon
+        mShowIntent = PendingIntent.getActivity(context, 0,
+                new Intent(context, CameraActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Time the current shot is due, on the {@link SystemClock#elapsedRealtime()} clock.
+     */
+    long getShotTimeMs() {
+        return mStartTime + mShotCount * mIntervalMs;
+    }
+
+    /**
+     * How far ahead of a shot the camera is woken up.
+     */
+    long getWakeLeadMs() {
+        if (mWarmUpCount == 0) {
+            return INITIAL_WARM_UP_MS + WAKE_MARGIN_MS;
+        }
+
+        // Better to wait on a warm camera than to miss the slot
+        long slowest = 0;
+        for (int i = 0; i < Math.min(mWarmUpCount, WARM_UP_HISTORY); i++) {
+            slowest = Math.max(slowest, mWarmUpsMs[i]);
+        }
+        return slowest + WAKE_MARGIN_MS;
+    }
+
+    /**
+     * The shot couldn't be taken. Goes back to sleep until the next one.
+     */
+    void onShotFailed() {
+        scheduleNextShot();
+    }
+
+    /**
+     * @param warmUpMs how long it took from waking up until the camera was ready
+     */
+    void onShotTaken(long warmUpMs) {
+        mWarmUpsMs[mWarmUpCount % WARM_UP_HISTORY] = warmUpMs;
+        mWarmUpCount++;
+        scheduleNextShot();
+    }
+
+    private void scheduleNextShot() {
+        if (!mRunning) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        mShotCount++;
+        if (getShotTimeMs() < now) {
+            Log.d(TAG, "Shot " + mShotCount + " is already overdue, skipping ahead.");
+            mShotCount = (now - mStartTime) / mIntervalMs + 1;
+        }
+
+        setAlarm(Math.max(now, getShotTimeMs() - getWakeLeadMs()));
+        mWakeLock.release();
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setAlarm(long triggerAtMs) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M &&
+                mIntervalMs >= MIN_IDLE_ALARM_INTERVAL_MS) {
+            // Plain exact alarms are held back while the device dozes
+            mAlarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    triggerAtMs, mWakeIntent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // Idle alarms would be throttled to one every nine minutes or so, alarm clocks
+            // aren't. They only take wall clock times.
+            long wallTimeMs = System.currentTimeMillis() +
+                    (triggerAtMs - SystemClock.elapsedRealtime());
+            mAlarmManager.setAlarmClock(new AlarmManager.AlarmClockInfo(wallTimeMs, mShowIntent),
+                    mWakeIntent);
+        } else {
+            mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAtMs, mWakeIntent);
+        }
+    }
+
+    /**
+     * Takes the first shot right away.
+     */
+    void start(long intervalMs, TimeLapseCapture.SimpleCallback shotCallback) {
+        mIntervalMs = intervalMs;
+        mShotCallback = shotCallback;
+        mShotCount = 0;
+        mStartTime = SystemClock.elapsedRealtime();
+        mRunning = true;
+        mContext.registerReceiver(mWakeReceiver, new IntentFilter(ACTION_WAKE), null, mHandler);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                wake();
+            }
+        });
+    }
+
+    void stop() {
+        if (!mRunning) {
+            return;
+        }
+
+        mRunning = false;
+        mAlarmManager.cancel(mWakeIntent);
+        mContext.unregisterReceiver(mWakeReceiver);
+        mWakeLock.release();
+    }
+
+    private void wake() {
+        if (!mRunning) {
+            return;
+        }
+
+        mWakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+        mShotCallback.onEvent();
+    }
+}
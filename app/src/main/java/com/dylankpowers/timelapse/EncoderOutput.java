@@ -0,0 +1,180 @@
+package com.dylankpowers.timelapse;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An extra recording fed from the same frames as the main one, with its own interval,
+ * resolution and bitrate. Frames are taken at most once per interval of sensor time and
+ * scaled to the output's size if it differs from the camera's.
+ *
+ * Like {@link VideoEncoder}, everything here runs on the encode stage once started.
+ */
+class EncoderOutput implements SegmentTracker.Callback {
+    private static final String TAG = "EncoderOutput";
+
+    private final String mBasePath;
+    private final int[] mChromaColumns;
+    private final int[] mChromaRows;
+    private final VideoEncoder mEncoder;
+    private final int mHeight;
+    private final VideoIndexer mIndexer;
+    private final long mIntervalNs;
+    private final int[] mLumaColumns;
+    private final int[] mLumaRows;
+    private long mNextFrameNs = -1;
+    private final File mOutput;
+    private final FramePool.Frame mScaled;
+    private final int mWidth;
+
+    /**
+     * @param outputPath where the first segment goes, later ones get a suffix
+     */
+    EncoderOutput(CaptureSettings.ExtraOutput spec, int sourceWidth, int sourceHeight,
+                  int bitRate, int orientationHint, String outputPath,
+                  CaptureSettings settings, VideoIndexer indexer) {
+        mWidth = spec.getWidth();
+        mHeight = spec.getHeight();
+        mIntervalNs = spec.getIntervalMs() * 1000000L;
+        mIndexer = indexer;
+        mBasePath = RecordingNames.basePath(outputPath);
+        mOutput = new File(outputPath);
+        mEncoder = new VideoEncoder(mWidth, mHeight, bitRate, orientationHint, outputPath, settings);
+        mEncoder.setSegmentLimits(settings.getSegmentMaxDurationMs(),
+                settings.getSegmentMaxBytes(), this);
+
+        if (mWidth == sourceWidth && mHeight == sourceHeight) {
+            mScaled = null;
+            mLumaColumns = mLumaRows = mChromaColumns = mChromaRows = null;
+        } else {
+            mScaled = FramePool.allocate(mWidth, mHeight);
+            mLumaColumns = sampleTable(sourceWidth, mWidth);
+            mLumaRows = sampleTable(sourceHeight, mHeight);
+            mChromaColumns = sampleTable(sourceWidth / 2, mWidth / 2);
+            mChromaRows = sampleTable(sourceHeight / 2, mHeight / 2);
+        }
+    }
+
+    /**
+     * For each destination pixel, the source pixel it's sampled from.
+     */
+    private static int[] sampleTable(int sourceSize, int size) {
+        int[] table = new int[size];
+        for (int i = 0; i < size; i++) {
+            table[i] = (int) ((long) i * sourceSize / size);
+        }
+        return table;
+    }
+
+    private static void scalePlane(ByteBuffer src, int srcRowStride, ByteBuffer dst,
+                                   int dstRowStride, int[] columns, int[] rows) {
+        for (int y = 0; y < rows.length; y++) {
+            int srcOffset = rows[y] * srcRowStride;
+            int dstOffset = y * dstRowStride;
+            for (int x = 0; x < columns.length; x++) {
+                dst.put(dstOffset + x, src.get(srcOffset + columns[x]));
+            }
+        }
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    long getWrittenBytes() {
+        return mEncoder.getWrittenBytes();
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public String nextSegmentPath(int segmentIndex) {
+        return RecordingNames.segment(mBasePath, segmentIndex);
+    }
+
+    @Override
+    public void onSegmentStarted(String path, byte[] sps, byte[] pps) { }
+
+    @Override
+    public void onSegmentFinished(String path, long frameCount) {
+        Log.d(TAG, "Segment finished: " + path);
+        mIndexer.index(path, mWidth, mHeight);
+    }
+
+    /**
+     * Encodes the frame if this output is due one. The caller keeps its reference.
+     */
+    void offer(FramePool.Frame frame) {
+        long timestampNs = frame.getTimestampNs();
+        if (mNextFrameNs >= 0 && timestampNs < mNextFrameNs) {
+            return;
+        }
+
+        // Against the previous slot so the interval doesn't drift, unless we've fallen behind
+        mNextFrameNs = mNextFrameNs < 0 ? timestampNs + mIntervalNs : mNextFrameNs + mIntervalNs;
+        if (mNextFrameNs <= timestampNs) {
+            mNextFrameNs = timestampNs + mIntervalNs;
+        }
+
+        if (mScaled == null) {
+            mEncoder.encodeFrame(frame);
+            return;
+        }
+
+        scalePlane(frame.planes[0], frame.getRowStride(0), mScaled.planes[0],
+                mScaled.getRowStride(0), mLumaColumns, mLumaRows);
+        for (int i = 1; i < 3; i++) {
+            scalePlane(frame.planes[i], frame.getRowStride(i), mScaled.planes[i],
+                    mScaled.getRowStride(i), mChromaColumns, mChromaRows);
+        }
+        mEncoder.encodeFrame(mScaled);
+    }
+
+    void prepare() throws IOException {
+        mEncoder.prepare(false);
+    }
+
+    void release() {
+        mEncoder.release();
+    }
+
+    void start() {
+        mEncoder.start();
+    }
+
+    /**
+     * The file {@link #start()} created, if nothing was ever written to it.
+     */
+    private void deleteIfEmpty() {
+        if (mOutput.exists() && mOutput.length() == 0 && !mOutput.delete()) {
+            Log.w(TAG, "Unable to delete " + mOutput);
+        }
+    }
+
+    /**
+     * An output that was never due a frame is discarded along with its empty file, rather
+     * than treated as an error. Other failures are logged, not thrown, so they don't keep
+     * the outputs after this one from finishing.
+     */
+    void stop() {
+        if (mEncoder.getFrameCount() == 0) {
+            Log.d(TAG, "Nothing was recorded at " + mWidth + "x" + mHeight);
+            mEncoder.release();
+            deleteIfEmpty();
+            return;
+        }
+
+        try {
+            mEncoder.stop();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to finish the " + mWidth + "x" + mHeight + " output", e);
+            // The encoder may have failed before anything reached the file
+            deleteIfEmpty();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.dylankpowers.timelapse;
+
+import android.os.Handler;
+
+/**
+ * Schedules work on a handler's thread, against {@link Clock#SYSTEM}.
+ */
+class HandlerScheduler implements Scheduler {
+    private final Handler mHandler;
+
+    HandlerScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public boolean post(Runnable task) {
+        return mHandler.post(task);
+    }
+
+    @Override
+    public boolean postAtTime(Runnable task, long uptimeMillis) {
+        return mHandler.postAtTime(task, uptimeMillis);
+    }
+
+    @Override
+    public boolean postDelayed(Runnable task, long delayMillis) {
+        return mHandler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+}
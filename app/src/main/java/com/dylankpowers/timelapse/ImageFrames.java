@@ -0,0 +1,19 @@
+package com.dylankpowers.timelapse;
+
+import android.media.Image;
+
+/**
+ * Copies YUV 4:2:0 images from the camera or a decoder into pool frames.
+ */
+final class ImageFrames {
+    private ImageFrames() { }
+
+    static void copy(Image image, FramePool.Frame frame) {
+        Image.Plane[] planes = image.getPlanes();
+        for (int i = 0; i < planes.length; i++) {
+            frame.fillPlane(i, planes[i].getBuffer(), planes[i].getRowStride(),
+                    planes[i].getPixelStride());
+        }
+        frame.setTimestampNs(image.getTimestamp());
+    }
+}
@@ -0,0 +1,82 @@
+package com.dylankpowers.timelapse;
+
+/**
+ * Fires a callback on a fixed interval. Shots are scheduled against the start time rather
+ * than the previous shot so the interval doesn't drift over long captures, and shots that
+ * were missed entirely (e.g. the handler was busy) are skipped rather than bunched up.
+ */
+class IntervalCaptureScheduler {
+    private final Clock mClock;
+    private final Scheduler mScheduler;
+    private long mIntervalMs;
+    private final TimeLapseCapture.SimpleCallback mShotCallback;
+    private boolean mRunning = false;
+    private long mShotCount;
+    private long mStartTime;
+
+    private final Runnable mShot = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) {
+                return;
+            }
+
+            mShotCallback.onEvent();
+            scheduleNextShot();
+        }
+    };
+
+    IntervalCaptureScheduler(Scheduler scheduler, Clock clock, long intervalMs,
+                             TimeLapseCapture.SimpleCallback shotCallback) {
+        mScheduler = scheduler;
+        mClock = clock;
+        mIntervalMs = intervalMs;
+        mShotCallback = shotCallback;
+    }
+
+    long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    /**
+     * Changes the interval from the last shot on, which becomes the new start time.
+     */
+    void setIntervalMs(long intervalMs) {
+        if (mShotCount == 0) {
+            // The first shot hasn't gone off yet, nothing to rebase on
+            mIntervalMs = intervalMs;
+            return;
+        }
+
+        mStartTime += (mShotCount - 1) * mIntervalMs;
+        mShotCount = 1;
+        mIntervalMs = intervalMs;
+        if (mRunning) {
+            mScheduler.removeCallbacks(mShot);
+            mScheduler.postAtTime(mShot, mStartTime + mIntervalMs);
+        }
+    }
+
+    private void scheduleNextShot() {
+        long now = mClock.uptimeMillis();
+        mShotCount++;
+        long nextShot = mStartTime + mShotCount * mIntervalMs;
+        if (nextShot < now) {
+            mShotCount = (now - mStartTime) / mIntervalMs + 1;
+            nextShot = mStartTime + mShotCount * mIntervalMs;
+        }
+        mScheduler.postAtTime(mShot, nextShot);
+    }
+
+    void start() {
+        mRunning = true;
+        mShotCount = 0;
+        mStartTime = mClock.uptimeMillis();
+        mScheduler.post(mShot);
+    }
+
+    void stop() {
+        mRunning = false;
+        mScheduler.removeCallbacks(mShot);
+    }
+}
@@ -0,0 +1,151 @@
+package com.dylankpowers.timelapse;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Adds finished recordings to the MediaStore on the I/O stage so the camera thread never
+ * waits on the media database. Requests queue up in a bounded queue and everything that's
+ * pending when the worker wakes up goes in as one batch.
+ *
+ * The I/O stage is shared with the journal and index writes of a recording in progress, so
+ * a failed batch is never waited on and retried. It goes straight in one row at a time
+ * instead, which also keeps a single bad row from holding back the rest.
+ */
+class MediaStoreIndexer implements VideoIndexer {
+    private static final String TAG = "MediaStoreIndexer";
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int MAX_BATCH_SIZE = 16;
+    private static final Uri MEDIA_TABLE = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
+    private static final String SELECT_BY_PATH = MediaStore.MediaColumns.DATA + " = ?";
+
+    private final ArrayList<ContentValues> mBatch = new ArrayList<ContentValues>(MAX_BATCH_SIZE);
+    private final ContentResolver mContentResolver;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+    private final PipelineStage mIoStage;
+    private final ArrayList<ContentProviderOperation> mOperations =
+            new ArrayList<ContentProviderOperation>(MAX_BATCH_SIZE);
+    private final BlockingQueue<ContentValues> mPending =
+            new ArrayBlockingQueue<ContentValues>(QUEUE_CAPACITY);
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            while (mPending.drainTo(mBatch, MAX_BATCH_SIZE) > 0) {
+                try {
+                    insertBatch();
+                } finally {
+                    mBatch.clear();
+                }
+            }
+        }
+    };
+
+    MediaStoreIndexer(ContentResolver contentResolver, PipelineStage ioStage) {
+        mContentResolver = contentResolver;
+        mIoStage = ioStage;
+    }
+
+    /**
+     * Queues a video for indexing.
+     */
+    @Override
+    public void index(String filepath, int width, int height) {
+        ContentValues values = new ContentValues(5);
+        values.put(MediaStore.MediaColumns.HEIGHT, height);
+        values.put(MediaStore.MediaColumns.WIDTH, width);
+        values.put(MediaStore.Video.Media.RESOLUTION, width + "x" + height);
+        values.put(MediaStore.MediaColumns.DATA, filepath);
+        values.put(MediaStore.Video.Media.MIME_TYPE, "video/mp4");
+
+        if (!mPending.offer(values)) {
+            Log.w(TAG, "Index queue full, " + filepath + " won't be added to the MediaStore.");
+            return;
+        }
+
+        // If the stage is full the row stays pending and goes in with the next one
+        if (mDrainScheduled.compareAndSet(false, true) && !mIoStage.offer(mDrain)) {
+            mDrainScheduled.set(false);
+        }
+    }
+
+    private void insertBatch() {
+        mOperations.clear();
+        for (ContentValues values : mBatch) {
+            mOperations.add(ContentProviderOperation.newInsert(MEDIA_TABLE)
+                    .withValues(values).build());
+        }
+
+        ContentProviderResult[] results;
+        try {
+            results = mContentResolver.applyBatch(MediaStore.AUTHORITY, mOperations);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Batch insert failed, adding rows one at a time.", e);
+            insertEach();
+            return;
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "Batch insert failed, adding rows one at a time.", e);
+            insertEach();
+            return;
+        } catch (RuntimeException e) {
+            // The media provider reports a bad row or a database error this way too
+            Log.w(TAG, "Batch insert failed, adding rows one at a time.", e);
+            insertEach();
+            return;
+        } finally {
+            mOperations.clear();
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].uri == null) {
+                updateExisting(mBatch.get(i));
+            }
+        }
+    }
+
+    /**
+     * Inserts the batch row by row, so a row the provider won't take only loses itself.
+     */
+    private void insertEach() {
+        for (ContentValues values : mBatch) {
+            try {
+                if (mContentResolver.insert(MEDIA_TABLE, values) == null) {
+                    updateExisting(values);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to index " + values.getAsString(MediaStore.MediaColumns.DATA), e);
+            }
+        }
+    }
+
+    /**
+     * Writes out anything still pending. Must be called once nothing else will be indexed,
+     * before the I/O stage shuts down.
+     */
+    void flush() {
+        mIoStage.put(mDrain);
+    }
+
+    private void updateExisting(ContentValues values) {
+        // The file was indexed before, e.g. by the media scanner
+        try {
+            mContentResolver.update(MEDIA_TABLE, values, SELECT_BY_PATH,
+                    new String[]{values.getAsString(MediaStore.MediaColumns.DATA)});
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to update " + values.getAsString(MediaStore.MediaColumns.DATA), e);
+        }
+    }
+}
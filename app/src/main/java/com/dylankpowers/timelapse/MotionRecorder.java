@@ -0,0 +1,316 @@
+package com.dylankpowers.timelapse;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records gyroscope and rotation vector samples at sensor rate, together with the timestamp
+ * of every encoded frame, into a binary sidecar next to the recording so the video can be
+ * stabilised afterwards.
+ *
+ * Samples go into preallocated primitive rings, one per producer thread, and are merged in
+ * time order onto disk by the I/O stage. Nothing is allocated per sample or per frame.
+ *
+ * The sidecar is little endian: a header of magic "TLMO", format version, camera-to-sensor
+ * clock offset in ns and record size, then fixed size records of type, timestamp in ns and
+ * four floats. Frame records leave the floats zero, gyroscope records leave the last one
+ * zero. All timestamps are on the sensor clock.
+ */
+class MotionRecorder implements SensorEventListener {
+    private static final String TAG = "MotionRecorder";
+    static final int FORMAT_VERSION = 1;
+    static final int MAGIC = 0x4f4d4c54; // "TLMO" read little endian
+    static final int RECORD_SIZE = 4 + 8 + 4 * 4;
+    static final int TYPE_FRAME = 0;
+    static final int TYPE_GYROSCOPE = 1;
+    static final int TYPE_ROTATION_VECTOR = 2;
+
+    private static final int FRAME_RING_SIZE = 1024;
+    private static final int SAMPLE_RING_SIZE = 8192;
+    private static final int WRITE_BUFFER_RECORDS = 2048;
+
+    private FileChannel mChannel;
+    private long mClockOffsetNs;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+    private final Ring mFrames = new Ring(FRAME_RING_SIZE);
+    private final PipelineStage mIoStage;
+    private volatile boolean mRecording = false;
+    private final Ring mSamples = new Ring(SAMPLE_RING_SIZE);
+    private final SensorManager mSensorManager;
+    private HandlerThread mSensorThread;
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(RECORD_SIZE * WRITE_BUFFER_RECORDS)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            drain();
+        }
+    };
+
+    MotionRecorder(SensorManager sensorManager, PipelineStage ioStage) {
+        mSensorManager = sensorManager;
+        mIoStage = ioStage;
+    }
+
+    static String sidecarPath(String recordingPath) {
+        return RecordingNames.basePath(recordingPath) + ".motion";
+    }
+
+    /**
+     * Runs on the I/O stage. Writes out everything in the rings, oldest first.
+     */
+    private void drain() {
+        if (mChannel == null) {
+            mFrames.clear();
+            mSamples.clear();
+            return;
+        }
+
+        try {
+            while (!mFrames.isEmpty() || !mSamples.isEmpty()) {
+                mWriteBuffer.clear();
+                while (mWriteBuffer.remaining() >= RECORD_SIZE) {
+                    Ring next;
+                    if (mFrames.isEmpty()) {
+                        next = mSamples;
+                    } else if (mSamples.isEmpty()) {
+                        next = mFrames;
+                    } else {
+                        next = mFrames.peekTimestamp() <= mSamples.peekTimestamp() ? mFrames : mSamples;
+                    }
+
+                    if (next.isEmpty()) {
+                        break;
+                    }
+                    next.pollInto(mWriteBuffer);
+                }
+                mWriteBuffer.flip();
+                while (mWriteBuffer.hasRemaining()) {
+                    mChannel.write(mWriteBuffer);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write motion samples, stopping the motion track.", e);
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() {
+        if (mChannel == null) {
+            return;
+        }
+
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to close the motion track: " + e.getMessage());
+        }
+        mChannel = null;
+    }
+
+    long getDroppedSampleCount() {
+        return mFrames.getDroppedCount() + mSamples.getDroppedCount();
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) { }
+
+    /**
+     * Notes when a frame that made it into the recording was exposed. Only one thread may
+     * call this during a recording.
+     *
+     * @param sensorTimestampNs the frame's {@code SENSOR_TIMESTAMP}
+     */
+    void onFrame(long sensorTimestampNs) {
+        if (!mRecording) {
+            return;
+        }
+        mFrames.add(TYPE_FRAME, sensorTimestampNs + mClockOffsetNs, 0, 0, 0, 0);
+        scheduleDrainIfNeeded(mFrames);
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        float[] values = event.values;
+        if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
+            mSamples.add(TYPE_GYROSCOPE, event.timestamp, values[0], values[1], values[2], 0);
+        } else {
+            mSamples.add(TYPE_ROTATION_VECTOR, event.timestamp,
+                    values[0], values[1], values[2], values.length > 3 ? values[3] : 0);
+        }
+        scheduleDrainIfNeeded(mSamples);
+    }
+
+    private void scheduleDrainIfNeeded(Ring ring) {
+        if (ring.size() >= ring.capacity() / 4 && mDrainScheduled.compareAndSet(false, true) &&
+                !mIoStage.offer(mDrain)) {
+            mDrainScheduled.set(false);
+        }
+    }
+
+    /**
+     * Starts listening to the sensors. The sidecar is opened on the I/O stage, samples
+     * collect in the rings until then.
+     *
+     * @param cameraTimestampsRealtime whether the camera's timestamps share a clock with the
+     *                                 sensors, otherwise they're taken to be monotonic
+     */
+    void start(final String sidecarPath, boolean cameraTimestampsRealtime) {
+        mClockOffsetNs = cameraTimestampsRealtime ? 0 :
+                SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+        final long clockOffsetNs = mClockOffsetNs;
+        mIoStage.put(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mChannel = new FileOutputStream(new File(sidecarPath)).getChannel();
+                    mWriteBuffer.clear();
+                    mWriteBuffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(clockOffsetNs)
+                            .putInt(RECORD_SIZE);
+                    mWriteBuffer.flip();
+                    while (mWriteBuffer.hasRemaining()) {
+                        mChannel.write(mWriteBuffer);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to create " + sidecarPath, e);
+                    closeChannel();
+                }
+            }
+        });
+
+        mSensorThread = new HandlerThread("TimeLapseSensors");
+        mSensorThread.start();
+        Handler sensorHandler = new Handler(mSensorThread.getLooper());
+        Sensor gyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        Sensor rotation = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        if (gyroscope != null) {
+            mSensorManager.registerListener(this, gyroscope, SensorManager.SENSOR_DELAY_FASTEST,
+                    sensorHandler);
+        }
+        if (rotation != null) {
+            mSensorManager.registerListener(this, rotation, SensorManager.SENSOR_DELAY_FASTEST,
+                    sensorHandler);
+        }
+        mRecording = true;
+    }
+
+    /**
+     * Stops listening. Whatever's left is written and the sidecar closed on the I/O stage.
+     */
+    void stop() {
+        if (!mRecording) {
+            return;
+        }
+
+        mRecording = false;
+        mSensorManager.unregisterListener(this);
+        mSensorThread.quitSafely();
+        try {
+            mSensorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mSensorThread = null;
+
+        if (getDroppedSampleCount() > 0) {
+            Log.w(TAG, getDroppedSampleCount() + " motion samples dropped, the I/O stage fell behind.");
+        }
+        mIoStage.put(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+                closeChannel();
+            }
+        });
+    }
+
+    /**
+     * Single producer, single consumer ring of fixed size records in parallel arrays.
+     */
+    private static class Ring {
+        private final int mCapacity;
+        private final AtomicLong mDropped = new AtomicLong();
+        private volatile long mHead = 0;
+        private volatile long mTail = 0;
+        private final long[] mTimestamps;
+        private final int[] mTypes;
+        private final float[] mValues;
+
+        Ring(int capacity) {
+            mCapacity = capacity;
+            mTimestamps = new long[capacity];
+            mTypes = new int[capacity];
+            mValues = new float[capacity * 4];
+        }
+
+        void add(int type, long timestampNs, float v0, float v1, float v2, float v3) {
+            long head = mHead;
+            if (head - mTail >= mCapacity) {
+                mDropped.incrementAndGet();
+                return;
+            }
+
+            int slot = (int) (head % mCapacity);
+            mTypes[slot] = type;
+            mTimestamps[slot] = timestampNs;
+            mValues[slot * 4] = v0;
+            mValues[slot * 4 + 1] = v1;
+            mValues[slot * 4 + 2] = v2;
+            mValues[slot * 4 + 3] = v3;
+            mHead = head + 1;
+        }
+
+        int capacity() {
+            return mCapacity;
+        }
+
+        /**
+         * Consumer side only.
+         */
+        void clear() {
+            mTail = mHead;
+        }
+
+        long getDroppedCount() {
+            return mDropped.get();
+        }
+
+        boolean isEmpty() {
+            return mHead == mTail;
+        }
+
+        long peekTimestamp() {
+            return mTimestamps[(int) (mTail % mCapacity)];
+        }
+
+        void pollInto(ByteBuffer out) {
+            long tail = mTail;
+            int slot = (int) (tail % mCapacity);
+            out.putInt(mTypes[slot]).putLong(mTimestamps[slot])
+                    .putFloat(mValues[slot * 4]).putFloat(mValues[slot * 4 + 1])
+                    .putFloat(mValues[slot * 4 + 2]).putFloat(mValues[slot * 4 + 3]);
+            mTail = tail + 1;
+        }
+
+        int size() {
+            return (int) (mHead - mTail);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.dylankpowers.timelapse;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.util.Log;
+
+/**
+ * Steps a recording down its {@link ThrottleLadder} while the device is under strain, and
+ * back up once it isn't. Every so often the handler looks at the battery's temperature,
+ * level and charging state, and at the share of frames lost since the last look. Any one
+ * of them out of bounds takes the recording a level down, all of them comfortably back in
+ * bounds takes it a level up.
+ *
+ * Steps down come a minute apart, long enough for the last one to show. Steps up wait much
+ * longer and need some margin below the limits, so the recording doesn't flap at the edge.
+ * Every decision is logged with what it was based on.
+ */
+class PowerGovernor {
+    private static final String TAG = "PowerGovernor";
+
+    private static final long SAMPLE_INTERVAL_MS = 15 * 1000;
+    private static final long STEP_DOWN_COOLDOWN_MS = 60 * 1000;
+    private static final long STEP_UP_COOLDOWN_MS = 5 * 60 * 1000;
+    // How far inside the limits everything has to be to step back up
+    private static final int TEMPERATURE_MARGIN_C = 3;
+    private static final int BATTERY_MARGIN_PERCENT = 5;
+    private static final double MAX_LOSS_RATE = 0.05;
+    private static final double CALM_LOSS_RATE = 0.01;
+    // Fewer captures than this since the last look aren't enough to judge losses by
+    private static final long MIN_CAPTURES = 10;
+
+    private Actions mActions;
+    private final Clock mClock;
+    private long mLastCaptures;
+    private long mLastChangeMs;
+    private long mLastLostFrames;
+    private volatile int mLevel = 0;
+    private int mLevelCount;
+    private volatile double mLossRate = 0;
+    private int mLowBatteryPercent;
+    private int mMaxTemperatureC;
+    private final PowerProbe mProbe;
+    private final PowerState mState = new PowerState();
+    private volatile boolean mStateValid = false;
+    private final Scheduler mScheduler;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+            mScheduler.postDelayed(this, SAMPLE_INTERVAL_MS);
+        }
+    };
+
+    PowerGovernor(Scheduler scheduler, Clock clock, PowerProbe probe) {
+        mScheduler = scheduler;
+        mClock = clock;
+        mProbe = probe;
+    }
+
+    /**
+     * @return why the device is under strain, or null if it isn't
+     */
+    private String findStrain(boolean haveLossRate) {
+        if (mStateValid && mState.temperatureC >= mMaxTemperatureC) {
+            return "battery at " + mState.temperatureC + "C";
+        }
+        if (mStateValid && !mState.charging && mState.levelPercent <= mLowBatteryPercent) {
+            return "battery at " + mState.levelPercent + "% and not charging";
+        }
+        if (haveLossRate && mLossRate > MAX_LOSS_RATE) {
+            return Math.round(mLossRate * 100) + "% of frames lost";
+        }
+        return null;
+    }
+
+    int getLevel() {
+        return mLevel;
+    }
+
+    private boolean isCalm(boolean haveLossRate) {
+        boolean cool = !mStateValid ||
+                mState.temperatureC <= mMaxTemperatureC - TEMPERATURE_MARGIN_C;
+        boolean powered = !mStateValid || mState.charging ||
+                mState.levelPercent > mLowBatteryPercent + BATTERY_MARGIN_PERCENT;
+        // Without enough captures to go by, losses don't hold a step up back
+        boolean steady = !haveLossRate || mLossRate < CALM_LOSS_RATE;
+        return cool && powered && steady;
+    }
+
+    /**
+     * Runs on the handler.
+     */
+    private void sample() {
+        mStateValid = mProbe.read(mState);
+
+        boolean haveLossRate = false;
+        long captures = mActions.getCaptures() - mLastCaptures;
+        long lostFrames = mActions.getLostFrames() - mLastLostFrames;
+        if (captures >= MIN_CAPTURES) {
+            mLossRate = Math.min(1, (double) lostFrames / captures);
+            haveLossRate = true;
+            mLastCaptures += captures;
+            mLastLostFrames += lostFrames;
+        }
+
+        long now = mClock.elapsedRealtime();
+        String strain = findStrain(haveLossRate);
+        if (strain != null) {
+            if (mLevel + 1 >= mLevelCount) {
+                Log.d(TAG, "Already at the lowest level with " + strain);
+            } else if (now - mLastChangeMs >= STEP_DOWN_COOLDOWN_MS) {
+                setLevel(mLevel + 1, now, "stepping down, " + strain);
+            }
+        } else if (mLevel > 0 && isCalm(haveLossRate) &&
+                now - mLastChangeMs >= STEP_UP_COOLDOWN_MS) {
+            setLevel(mLevel - 1, now, "stepping up, " + this);
+        }
+    }
+
+    private void setLevel(int level, long now, String reason) {
+        Log.i(TAG, "Level " + mLevel + " -> " + level + " of " + (mLevelCount - 1) + ": " +
+                reason);
+        mLevel = level;
+        mLastChangeMs = now;
+        mActions.setLevel(level);
+    }
+
+    /**
+     * Starts governing a recording. Must be called on the handler.
+     *
+     * @param levelCount how many levels the recording's ladder has
+     * @param level the level it starts at, kept from before when it was restarted at a
+     *              new size
+     */
+    void start(int levelCount, int level, CaptureSettings settings, Actions actions) {
+        mActions = actions;
+        mLevelCount = levelCount;
+        mLevel = level;
+        mMaxTemperatureC = settings.getThrottleMaxTemperatureC();
+        mLowBatteryPercent = settings.getThrottleLowBatteryPercent();
+        mLastCaptures = actions.getCaptures();
+        mLastLostFrames = actions.getLostFrames();
+        mLossRate = 0;
+        mLastChangeMs = mClock.elapsedRealtime();
+        mScheduler.postDelayed(mTick, SAMPLE_INTERVAL_MS);
+    }
+
+    /**
+     * Must be called on the handler.
+     */
+    void stop() {
+        mScheduler.removeCallbacks(mTick);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("power level=").append(mLevel);
+        if (mStateValid) {
+            builder.append(" battery=").append(mState.temperatureC).append("C ")
+                    .append(mState.levelPercent).append('%')
+                    .append(mState.charging ? " charging" : "");
+        }
+        return builder.append(" lost=").append(Math.round(mLossRate * 1000) / 10.0)
+                .append('%').toString();
+    }
+
+    /**
+     * What the governor can do to a recording. Called on the handler.
+     */
+    interface Actions {
+        /**
+         * Captures so far in the recording.
+         */
+        long getCaptures();
+
+        /**
+         * Frames so far that never made it into the recording.
+         */
+        long getLostFrames();
+
+        void setLevel(int level);
+    }
+
+    /**
+     * Reads the device's power state.
+     */
+    interface PowerProbe {
+        /**
+         * @return false if the state couldn't be read
+         */
+        boolean read(PowerState state);
+    }
+
+    static class PowerState {
+        boolean charging;
+        int levelPercent;
+        int temperatureC;
+    }
+
+    /**
+     * Reads the battery from the last {@link Intent#ACTION_BATTERY_CHANGED} broadcast, which
+     * is sticky, so nothing has to stay registered for it.
+     */
+    static class BatteryProbe implements PowerProbe {
+        private final Context mContext;
+        private final IntentFilter mFilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+
+        BatteryProbe(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        public boolean read(PowerState state) {
+            Intent battery = mContext.registerReceiver(null, mFilter);
+            if (battery == null) {
+                return false;
+            }
+
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            // In tenths of a degree
+            int temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE,
+                    Integer.MIN_VALUE);
+            if (level < 0 || scale <= 0 || temperature == Integer.MIN_VALUE) {
+                return false;
+            }
+            state.levelPercent = level * 100 / scale;
+            state.temperatureC = temperature / 10;
+            state.charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            return true;
+        }
+    }
+}
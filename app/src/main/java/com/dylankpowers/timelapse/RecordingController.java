@@ -0,0 +1,662 @@
+package com.dylankpowers.timelapse;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Takes a capture from one recording to the next. Start and stop requests are queued and
+ * acted on one transition at a time, every recording is started and finished in the same
+ * order whatever camera and encoder it uses, and while one runs the storage monitor and
+ * power governor act on it through here. The camera and the encoder are behind
+ * {@link Camera} and {@link Output}, so the simulation runs this same code against fakes.
+ *
+ * Runs on the camera's thread, apart from {@link #startRecording} and {@link #stopRecording}
+ * which can be called from anywhere.
+ */
+class RecordingController {
+    private static final String TAG = "RecordingController";
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPENING = 1;
+    static final int STATE_PREVIEW = 2;
+    static final int STATE_STARTING = 3;
+    static final int STATE_RECORDING = 4;
+    static final int STATE_STOPPING = 5;
+
+    private static final int COMMAND_START = 0;
+    private static final int COMMAND_STOP = 1;
+
+    // Storage is never saved by going below this fraction of the requested bitrate
+    static final int MIN_BITRATE_DIVISOR = 4;
+
+    private static final TimeLapseCapture.IsRecordingCallback IGNORE_REPLY =
+            new TimeLapseCapture.IsRecordingCallback() {
+                @Override
+                public void onReply(boolean currentlyRecording) { }
+            };
+
+    // The bitrate asked for, less whatever storage has taken off
+    private int mBitRate;
+    private final Camera mCamera;
+    private final Scheduler mCameraScheduler;
+    private final Clock mClock;
+    private final ConcurrentLinkedQueue<Command> mCommands = new ConcurrentLinkedQueue<Command>();
+    private final PipelineStage mEncodeStage;
+    private final ArrayList<Command> mInFlightCommands = new ArrayList<Command>();
+    // The capture interval as storage has stretched it, before any throttling
+    private long mIntervalMs;
+    private IntervalCaptureScheduler mIntervalScheduler;
+    private final PipelineStage mIoStage;
+    private final CaptureMetrics mMetrics;
+    private volatile Output mOutput;
+    private final PowerGovernor mPowerGovernor;
+    // Where the recording is being written, which storage may have moved off mStorageDir
+    private File mRecordingDir;
+    private final RecordingSession mRecordingSession;
+    // When the recording was started, not counting restarts at another size
+    private long mRecordingStartMs;
+    // Set on the camera's thread while a restart at another size is starting
+    private boolean mResuming = false;
+    private final CaptureSettings mSettings;
+    private volatile int mState = STATE_CLOSED;
+    private final File mStorageDir;
+    private final StorageMonitor mStorageMonitor;
+    private ThrottleLadder mThrottleLadder;
+    private int mThrottleLevel = 0;
+    // Set while the recording is being restarted at another size, so it keeps its level
+    private volatile boolean mThrottleRestart = false;
+
+    private final Runnable mPrepareStorageDir = new Runnable() {
+        @Override
+        public void run() {
+            prepareStorageDir();
+        }
+    };
+
+    private final Runnable mProcessCommands = new Runnable() {
+        @Override
+        public void run() {
+            processCommands();
+        }
+    };
+
+    private final TimeLapseCapture.SimpleCallback mShot = new TimeLapseCapture.SimpleCallback() {
+        @Override
+        public void onEvent() {
+            mCamera.takeShot();
+        }
+    };
+
+    private final StorageMonitor.Actions mStorageActions = new StorageMonitor.Actions() {
+        @Override
+        public long getBytesWritten() {
+            Output output = mOutput;
+            return output != null ? output.getWrittenBytes() : 0;
+        }
+
+        @Override
+        public boolean lowerBitRate() {
+            Output output = mOutput;
+            int bitRate = mBitRate * 3 / 4;
+            if (mState != STATE_RECORDING || output == null || !output.isAdjustable() ||
+                    bitRate < mCamera.getVideoBitRate() / MIN_BITRATE_DIVISOR) {
+                return false;
+            }
+
+            mBitRate = bitRate;
+            applyBitRate(output);
+            return true;
+        }
+
+        @Override
+        public boolean moveTo(File dir) {
+            Output output = mOutput;
+            if (mState != STATE_RECORDING || output == null || !output.isAdjustable()) {
+                return false;
+            }
+
+            mRecordingDir = dir;
+            mRecordingSession.setSegmentDir(dir.getAbsolutePath());
+            output.requestRollOver();
+            return true;
+        }
+
+        @Override
+        public void stopForFullStorage() {
+            if (mState == STATE_RECORDING) {
+                stopRecording(IGNORE_REPLY, mCameraScheduler);
+            }
+        }
+
+        @Override
+        public boolean stretchInterval() {
+            if (mState != STATE_RECORDING || mIntervalScheduler == null) {
+                return false;
+            }
+
+            long intervalMs = mIntervalMs * 3 / 2;
+            if (intervalMs > CaptureSettings.MAX_CAPTURE_INTERVAL_MS) {
+                return false;
+            }
+            mIntervalMs = intervalMs;
+            mIntervalScheduler.setIntervalMs(getCaptureIntervalMs());
+            return true;
+        }
+    };
+
+    private final PowerGovernor.Actions mPowerActions = new PowerGovernor.Actions() {
+        @Override
+        public long getCaptures() {
+            return mMetrics.getCaptures();
+        }
+
+        @Override
+        public long getLostFrames() {
+            return mMetrics.getLostFrames();
+        }
+
+        @Override
+        public void setLevel(int level) {
+            ThrottleLadder ladder = mThrottleLadder;
+            Output output = mOutput;
+            if (mState != STATE_RECORDING || ladder == null) {
+                return;
+            }
+
+            int previousLevel = mThrottleLevel;
+            mThrottleLevel = level;
+            if (ladder.isResize(previousLevel, level)) {
+                Log.i(TAG, "Restarting the recording at " + ladder.getWidth(level) + "x" +
+                        ladder.getHeight(level));
+                restartRecording();
+                return;
+            }
+            if (output != null && output.isAdjustable()) {
+                applyBitRate(output);
+            }
+            if (mIntervalScheduler != null) {
+                mIntervalScheduler.setIntervalMs(getCaptureIntervalMs());
+            }
+        }
+    };
+
+    /**
+     * @param cameraScheduler runs work on the camera's thread
+     * @param storageDir where recordings start out
+     */
+    RecordingController(Clock clock, Scheduler cameraScheduler, PipelineStage encodeStage,
+                        PipelineStage ioStage, CaptureSettings settings, CaptureMetrics metrics,
+                        RecordingSession recordingSession, StorageMonitor storageMonitor,
+                        PowerGovernor powerGovernor, File storageDir, Camera camera) {
+        mClock = clock;
+        mCameraScheduler = cameraScheduler;
+        mEncodeStage = encodeStage;
+        mIoStage = ioStage;
+        mSettings = settings;
+        mMetrics = metrics;
+        mRecordingSession = recordingSession;
+        mStorageMonitor = storageMonitor;
+        mPowerGovernor = powerGovernor;
+        mStorageDir = storageDir;
+        mCamera = camera;
+    }
+
+    private void applyBitRate(final Output output) {
+        final int bitRate = getEncodeBitRate();
+        mRecordingSession.setBitRate(bitRate);
+        mEncodeStage.put(new Runnable() {
+            @Override
+            public void run() {
+                output.setBitRate(bitRate);
+            }
+        });
+    }
+
+    /**
+     * Tells the callers where the capture ended up, which isn't where they asked to be if
+     * the transition failed or a later command overrode theirs.
+     */
+    private void completeInFlightCommands() {
+        final boolean recording = mState == STATE_RECORDING;
+        for (Command command : mInFlightCommands) {
+            final TimeLapseCapture.IsRecordingCallback callback = command.mCallback;
+            command.mCallbackScheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onReply(recording);
+                }
+            });
+        }
+        mInFlightCommands.clear();
+    }
+
+    private void enqueueCommand(int type, TimeLapseCapture.IsRecordingCallback callback,
+                                Scheduler callbackScheduler) {
+        mCommands.add(new Command(type, callback, callbackScheduler));
+        mCameraScheduler.post(mProcessCommands);
+    }
+
+    /**
+     * Fails every command, queued or in flight, for when the camera is gone and none of
+     * them can be acted on.
+     */
+    private void failCommands() {
+        Command command;
+        while ((command = mCommands.poll()) != null) {
+            mInFlightCommands.add(command);
+        }
+        completeInFlightCommands();
+    }
+
+    /**
+     * Finishes the recording once the camera has stopped capturing into it: the output is
+     * stopped behind whatever frames are still queued for it, then the session is closed.
+     *
+     * @throws RuntimeException if nothing was recorded, with everything finished anyway
+     */
+    private void finishRecording() {
+        stopShots();
+        mStorageMonitor.stop();
+        mPowerGovernor.stop();
+        final Output output = mOutput;
+        mOutput = null;
+        try {
+            mEncodeStage.runAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    output.stop();
+                }
+            });
+        } finally {
+            mCamera.releaseCapture();
+            // Only finishes the file if the output couldn't, not knowing how much it wrote
+            mRecordingSession.stop(-1);
+            // Encoders set up from here on, like a persistent session's, run unthrottled
+            mThrottleLadder = null;
+            // The next recording shouldn't have to wait on the card for its directory
+            mIoStage.offer(mPrepareStorageDir);
+        }
+    }
+
+    /**
+     * The interval between shots, whichever of storage and throttling stretched it more.
+     */
+    long getCaptureIntervalMs() {
+        long throttledMs = mThrottleLadder != null ?
+                mThrottleLadder.getIntervalMs(mThrottleLevel) : 0;
+        return Math.max(mIntervalMs, throttledMs);
+    }
+
+    /**
+     * The bitrate to encode at: the throttle level's, less whatever storage has taken off.
+     */
+    private int getEncodeBitRate() {
+        int fullBitRate = mCamera.getVideoBitRate();
+        return (int) ((long) getThrottledBitRate() * mBitRate / fullBitRate);
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * The steps the recording can be throttled through, or null if it isn't throttled.
+     */
+    ThrottleLadder getThrottleLadder() {
+        return mThrottleLadder;
+    }
+
+    /**
+     * The bitrate of the throttle level the recording is at, before any storage savings.
+     */
+    int getThrottledBitRate() {
+        return mThrottleLadder != null ? mThrottleLadder.getBitRate(mThrottleLevel) :
+                mCamera.getVideoBitRate();
+    }
+
+    int getThrottleLevel() {
+        return mThrottleLevel;
+    }
+
+    /**
+     * Whether frames the camera delivers belong in a recording.
+     */
+    boolean isEncoding() {
+        return mState == STATE_RECORDING || mState == STATE_STOPPING;
+    }
+
+    /**
+     * The camera is being opened, commands wait until its preview is running.
+     */
+    void onOpening() {
+        setState(STATE_OPENING);
+    }
+
+    /**
+     * Called by the camera once the preview is running, after it's opened or once a
+     * recording has stopped. Picks up whatever commands came in meanwhile.
+     */
+    void onPreviewRunning() {
+        setState(STATE_PREVIEW);
+        completeInFlightCommands();
+        processCommands();
+    }
+
+    /**
+     * Gives up on a recording that didn't get going, then brings the preview back, which is
+     * when the callers hear it failed. Called by the camera if starting fails after
+     * {@link Camera#startCapture(String)} has returned.
+     */
+    void onStartFailed(Exception cause) {
+        Log.e(TAG, "Unable to start recording.", cause);
+        mOutput = null;
+        stopShots();
+        mCamera.releaseCapture();
+        mThrottleLadder = null;
+        mResuming = false;
+        mCamera.resumePreview();
+    }
+
+    /**
+     * Called by the camera once frames are flowing into the recording it was asked to start.
+     *
+     * @param entry what the session journal should say about it, the encoder's parameter
+     *              sets are added once it has produced them
+     */
+    void onRecordingStarted(SessionJournal.Entry entry) {
+        Log.d(TAG, "Recording started.");
+        mMetrics.reset();
+        // A restart at another size keeps what storage has saved so far
+        if (!mResuming) {
+            mRecordingStartMs = mClock.elapsedRealtime();
+            mBitRate = mCamera.getVideoBitRate();
+            mIntervalMs = mSettings.getCaptureIntervalMs();
+        }
+        mResuming = false;
+        long targetDurationMs = mSettings.getTargetDurationMs();
+        if (targetDurationMs > 0) {
+            // Only what's left of the recording has to fit, even after a restart
+            targetDurationMs = Math.max(1,
+                    targetDurationMs - (mClock.elapsedRealtime() - mRecordingStartMs));
+        }
+        mStorageMonitor.start(mRecordingDir, targetDurationMs, mSettings.getSegmentMaxBytes(),
+                mStorageActions);
+        if (mThrottleLadder != null) {
+            Log.d(TAG, "Throttle levels: " + mThrottleLadder);
+            mPowerGovernor.start(mThrottleLadder.getLevelCount(), mThrottleLevel, mSettings,
+                    mPowerActions);
+        }
+        mRecordingSession.start(entry, mRecordingDir.getAbsolutePath(), getEncodeBitRate());
+
+        // Duty cycled shots are timed by their own scheduler
+        if (mSettings.getCaptureMode() == CaptureSettings.CAPTURE_MODE_INTERVAL &&
+                !mSettings.isDutyCycled()) {
+            mIntervalScheduler = new IntervalCaptureScheduler(mCameraScheduler, mClock,
+                    getCaptureIntervalMs(), mShot);
+            mIntervalScheduler.start();
+        }
+
+        setState(STATE_RECORDING);
+        completeInFlightCommands();
+        processCommands();
+    }
+
+    private void prepareStorageDir() {
+        if (!mStorageDir.exists()) {
+            mStorageDir.mkdir();
+        } else if (mStorageDir.isFile()) {
+            mStorageDir.delete();
+            mStorageDir.mkdir();
+        }
+    }
+
+    /**
+     * Makes sure the storage directory is there, on the I/O stage, so the first recording
+     * doesn't have to wait on the card for it.
+     */
+    void prepareStorage() {
+        mIoStage.offer(mPrepareStorageDir);
+    }
+
+    /**
+     * Everything queued since the last transition is collapsed into the last command, since
+     * that's where the callers want to end up, and all of their callbacks are told where the
+     * capture ended up once it settles.
+     */
+    private synchronized void processCommands() {
+        if (mState != STATE_PREVIEW && mState != STATE_RECORDING) {
+            // Picked up again once the current transition settles
+            return;
+        }
+
+        Command command;
+        int target = -1;
+        while ((command = mCommands.poll()) != null) {
+            target = command.mType;
+            mInFlightCommands.add(command);
+        }
+
+        if (target == COMMAND_START && mState == STATE_PREVIEW) {
+            setState(STATE_STARTING);
+            mResuming = mThrottleRestart;
+            mThrottleRestart = false;
+            if (!mResuming) {
+                mThrottleLevel = 0;
+                mRecordingDir = mStorageDir;
+            }
+            try {
+                mThrottleLadder = mCamera.newThrottleLadder();
+                mCamera.startCapture(new File(mRecordingDir, RecordingNames.recording(
+                        newCalendar())).getAbsolutePath());
+            } catch (RuntimeException e) {
+                onStartFailed(e);
+            }
+        } else if (target == COMMAND_STOP && mState == STATE_RECORDING) {
+            setState(STATE_STOPPING);
+            stopShots();
+            mCamera.stopCapture();
+            try {
+                finishRecording();
+            } catch (RuntimeException e) {
+                Log.d(TAG, "Nothing was recorded");
+            }
+            Log.d(TAG, "Recording stopped.");
+            mCamera.resumePreview();
+        } else {
+            // Already where the callers want to be
+            completeInFlightCommands();
+        }
+    }
+
+    private GregorianCalendar newCalendar() {
+        GregorianCalendar calendar = new GregorianCalendar();
+        calendar.setTimeInMillis(mClock.currentTimeMillis());
+        return calendar;
+    }
+
+    /**
+     * Stops the recording and starts a new one, for a new video size. The new one carries
+     * on where the old one left off: in the same directory, with the same time left to fill
+     * and whatever storage had saved. It's a new file with its own chain in the recordings
+     * index though, since segments of different sizes can't be exported as one.
+     */
+    private void restartRecording() {
+        mThrottleRestart = true;
+        enqueueCommand(COMMAND_STOP, new TimeLapseCapture.IsRecordingCallback() {
+            @Override
+            public void onReply(boolean currentlyRecording) {
+                if (mThrottleRestart && !currentlyRecording) {
+                    enqueueCommand(COMMAND_START, IGNORE_REPLY, mCameraScheduler);
+                }
+            }
+        }, mCameraScheduler);
+    }
+
+    private void setState(int state) {
+        Log.d(TAG, "State " + mState + " -> " + state);
+        mState = state;
+    }
+
+    /**
+     * Runs the output's {@link Output#start()} on the encode stage and makes it the
+     * recording's. Called by the camera while starting, at whatever point the output has to
+     * be running by.
+     */
+    void startOutput(final Output output) {
+        mEncodeStage.runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                output.start();
+            }
+        });
+        mOutput = output;
+    }
+
+    /**
+     * Can be called in any state, the request is queued until the camera can act on it.
+     * The callback is posted to its scheduler once it has been acted on, with whether the
+     * capture is recording then.
+     */
+    void startRecording(TimeLapseCapture.IsRecordingCallback callback,
+                        Scheduler callbackScheduler) {
+        enqueueCommand(COMMAND_START, callback, callbackScheduler);
+    }
+
+    /**
+     * Like {@link #startRecording}, the callback is told whether the capture is still
+     * recording once the stop has been acted on.
+     */
+    void stopRecording(TimeLapseCapture.IsRecordingCallback callback,
+                       Scheduler callbackScheduler) {
+        // Calls off a restart at another size that's under way
+        mThrottleRestart = false;
+        enqueueCommand(COMMAND_STOP, callback, callbackScheduler);
+    }
+
+    private void stopShots() {
+        if (mIntervalScheduler != null) {
+            mIntervalScheduler.stop();
+            mIntervalScheduler = null;
+        }
+    }
+
+    /**
+     * Where the capture ends up when the camera is lost or closed. A recording under way is
+     * finished as far as it can be, whatever was set up for one is released, and every
+     * command fails. The camera has to have stopped capturing already.
+     */
+    void tearDown() {
+        // A stop has always finished the recording by the time anything else can run, it's
+        // only waiting on the preview
+        if (mState == STATE_RECORDING) {
+            try {
+                finishRecording();
+            } catch (RuntimeException e) {
+                Log.d(TAG, "Nothing was recorded");
+            }
+        }
+        mOutput = null;
+        stopShots();
+        mCamera.releaseCapture();
+        mThrottleLadder = null;
+        mThrottleRestart = false;
+        mResuming = false;
+        setState(STATE_CLOSED);
+        failCommands();
+    }
+
+    /**
+     * The camera side of a recording. Everything is called on the camera's thread.
+     */
+    interface Camera {
+        /**
+         * The bitrate of a recording at the camera's full video size, before any throttling.
+         */
+        int getVideoBitRate();
+
+        /**
+         * The steps the recording about to start can be throttled through, or null if it
+         * isn't throttled.
+         */
+        ThrottleLadder newThrottleLadder();
+
+        /**
+         * Sets up a recording at the current throttle level, hands its output to
+         * {@link #startOutput(Output)} and calls {@link #onRecordingStarted} once frames are
+         * flowing into it, possibly before returning.
+         *
+         * @throws RuntimeException if the recording can't be started
+         */
+        void startCapture(String path);
+
+        /**
+         * Stops capturing into the recording. Frames already captured are still encoded.
+         */
+        void stopCapture();
+
+        /**
+         * Releases whatever {@link #startCapture(String)} set up, once the recording is
+         * finished or given up on. Called even if it never got that far.
+         */
+        void releaseCapture();
+
+        /**
+         * Brings the preview back once a recording is finished, calling
+         * {@link #onPreviewRunning()} once it's up.
+         */
+        void resumePreview();
+
+        /**
+         * Takes one shot of an interval capture.
+         */
+        void takeShot();
+    }
+
+    /**
+     * Where a recording's frames go. Started, stopped and retuned on the encode stage.
+     */
+    interface Output {
+        /**
+         * Bytes written so far, across every file. Safe to call from any thread.
+         */
+        long getWrittenBytes();
+
+        /**
+         * Whether the bitrate can be changed and the output split while it runs.
+         */
+        boolean isAdjustable();
+
+        /**
+         * Starts a new file at the next key frame. Safe to call from any thread.
+         */
+        void requestRollOver();
+
+        void setBitRate(int bitRate);
+
+        void start();
+
+        /**
+         * Finishes the recording, after whatever frames are still queued for it.
+         *
+         * @throws RuntimeException if nothing was recorded
+         */
+        void stop();
+    }
+
+    private static class Command {
+        final TimeLapseCapture.IsRecordingCallback mCallback;
+        final Scheduler mCallbackScheduler;
+        final int mType;
+
+        Command(int type, TimeLapseCapture.IsRecordingCallback callback,
+                Scheduler callbackScheduler) {
+            mType = type;
+            mCallback = callback;
+            mCallbackScheduler = callbackScheduler;
+        }
+    }
+}
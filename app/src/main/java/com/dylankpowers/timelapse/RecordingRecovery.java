@@ -0,0 +1,91 @@
+package com.dylankpowers.timelapse;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Picks up after a recording the process died in the middle of. The session journal says
+ * which file was being written and how, the file is made playable if it needs to be, and
+ * then it's finished in the recordings index and added to the MediaStore like any other.
+ *
+ * Runs on the I/O stage, before anything new can be recorded.
+ */
+class RecordingRecovery implements Runnable {
+    private static final String TAG = "RecordingRecovery";
+
+    private final VideoIndexer mIndexer;
+    private final SessionJournal mJournal;
+    private final RecordingsIndex mRecordingsIndex;
+
+    RecordingRecovery(SessionJournal journal, RecordingsIndex recordingsIndex,
+                      VideoIndexer indexer) {
+        mJournal = journal;
+        mRecordingsIndex = recordingsIndex;
+        mIndexer = indexer;
+    }
+
+    /**
+     * @return frames in the recovered file, -1 if unknown, or 0 if nothing could be saved
+     */
+    private long recover(SessionJournal.Entry entry, File file) throws IOException {
+        if (entry.fragmented) {
+            // Playable up to the last complete fragment as it is
+            return -1;
+        }
+
+        if (entry.sps == null || entry.pps == null) {
+            Log.w(TAG, "No parameter sets for " + file + ", it can't be repaired.");
+            return 0;
+        }
+        if (entry.bFrames) {
+            // The repair times samples in the order they're stored, which would play these
+            // out of order. The file is left as it is for a tool that can reorder them.
+            Log.w(TAG, file + " was recorded with B-frames, it can't be repaired.");
+            return 0;
+        }
+
+        int samples = Mp4Repair.repair(file, entry.width, entry.height, entry.rotation,
+                entry.frameRate, entry.sps, entry.pps);
+        if (samples < 0) {
+            Log.i(TAG, file + " was finished after all.");
+            return -1;
+        }
+        return samples;
+    }
+
+    @Override
+    public void run() {
+        SessionJournal.Entry entry = mJournal.read();
+        if (entry == null) {
+            return;
+        }
+
+        File file = new File(entry.path);
+        Log.i(TAG, "Recovering interrupted recording " + file);
+        try {
+            long frameCount = 0;
+            try {
+                if (file.exists()) {
+                    frameCount = recover(entry, file);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to repair " + file, e);
+            } catch (RuntimeException e) {
+                // A file mangled in some way the repair didn't expect
+                Log.e(TAG, "Unable to repair " + file, e);
+            }
+
+            int record = mRecordingsIndex.findRecording(entry.path);
+            mRecordingsIndex.finish(record,
+                    file.exists() ? file.lastModified() : entry.startTimeMs, frameCount);
+            if (frameCount != 0) {
+                mIndexer.index(entry.path, entry.width, entry.height);
+            }
+        } finally {
+            // Tried once, a file that can't be saved shouldn't hold up every start
+            mJournal.clear();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.dylankpowers.timelapse;
+
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * The bookkeeping of a recording, apart from the camera and the encoder: naming its
+ * segments, keeping the recordings index and the session journal up to date, and announcing
+ * each finished file. Index and journal updates go through the I/O stage in order, so each
+ * one sees the record the previous one left.
+ *
+ * One recording at a time, started and stopped from the same thread. The segment callbacks
+ * come from the encode stage.
+ */
+class RecordingSession implements SegmentTracker.Callback {
+    private static final String TAG = "RecordingSession";
+
+    private volatile int mBitRate;
+    private final Clock mClock;
+    private volatile int mHeight;
+    private final VideoIndexer mIndexer;
+    // Records of the file being written and the last one finished, only touched on the I/O stage
+    private int mIndexPrevious = -1;
+    private int mIndexRecord = -1;
+    private final PipelineStage mIoStage;
+    private final SessionJournal mJournal;
+    // What the journal says about the recording, before any file specifics
+    private volatile SessionJournal.Entry mJournalEntry;
+    private volatile String mPath;
+    private final RecordingsIndex mRecordingsIndex;
+    private volatile String mSegmentDir;
+    private volatile int mWidth;
+
+    RecordingSession(Clock clock, PipelineStage ioStage, VideoIndexer indexer,
+                     RecordingsIndex recordingsIndex, SessionJournal journal) {
+        mClock = clock;
+        mIoStage = ioStage;
+        mIndexer = indexer;
+        mRecordingsIndex = recordingsIndex;
+        mJournal = journal;
+    }
+
+    /**
+     * Adds a record for a new file to the recordings index.
+     *
+     * @param continuesSession whether it's the next segment of the file being written
+     */
+    private void fileStarted(final String path, final boolean continuesSession) {
+        final long startTimeMs = mClock.currentTimeMillis();
+        final int width = mWidth;
+        final int height = mHeight;
+        final int bitRate = mBitRate;
+        mIoStage.put(new Runnable() {
+            @Override
+            public void run() {
+                mIndexRecord = mRecordingsIndex.append(path, startTimeMs, width, height,
+                        bitRate, continuesSession ? mIndexPrevious : -1);
+            }
+        });
+    }
+
+    /**
+     * Does nothing if the file's record has already been finished.
+     */
+    private void fileFinished(final long frameCount) {
+        final long stopTimeMs = mClock.currentTimeMillis();
+        mIoStage.put(new Runnable() {
+            @Override
+            public void run() {
+                if (mIndexRecord >= 0) {
+                    mRecordingsIndex.finish(mIndexRecord, stopTimeMs, frameCount);
+                    mIndexPrevious = mIndexRecord;
+                    mIndexRecord = -1;
+                }
+            }
+        });
+    }
+
+    @Override
+    public String nextSegmentPath(int segmentIndex) {
+        // Follows the recording if it's moved to another volume
+        String name = new File(mPath).getName();
+        String path = RecordingNames.segment(mSegmentDir + "/" + RecordingNames.basePath(name),
+                segmentIndex);
+        fileStarted(path, true);
+        return path;
+    }
+
+    @Override
+    public void onSegmentFinished(String path, long frameCount) {
+        Log.d(TAG, "Segment finished: " + path);
+        fileFinished(frameCount);
+        mIndexer.index(path, mWidth, mHeight);
+    }
+
+    @Override
+    public void onSegmentStarted(String path, byte[] sps, byte[] pps) {
+        SessionJournal.Entry entry = mJournalEntry;
+        if (entry != null) {
+            writeJournal(entry.withFile(path, mClock.currentTimeMillis(), sps, pps));
+        }
+    }
+
+    /**
+     * Files started from now on are recorded with this bitrate.
+     */
+    void setBitRate(int bitRate) {
+        mBitRate = bitRate;
+    }
+
+    /**
+     * Where segments started from now on go.
+     */
+    void setSegmentDir(String dir) {
+        mSegmentDir = dir;
+    }
+
+    /**
+     * @param entry the recording's first file and how it's encoded, the parameter sets are
+     *              added once the encoder has produced them
+     * @param segmentDir where later segments go
+     */
+    void start(SessionJournal.Entry entry, String segmentDir, int bitRate) {
+        mJournalEntry = entry;
+        mPath = entry.path;
+        mWidth = entry.width;
+        mHeight = entry.height;
+        mSegmentDir = segmentDir;
+        mBitRate = bitRate;
+        fileStarted(entry.path, false);
+        writeJournal(entry);
+    }
+
+    /**
+     * Finishes the file being written, if the encoder hasn't already, and clears the journal.
+     *
+     * @param frameCount frames in that file, or -1 if unknown
+     */
+    void stop(long frameCount) {
+        fileFinished(frameCount);
+        mJournalEntry = null;
+        mIoStage.put(new Runnable() {
+            @Override
+            public void run() {
+                mJournal.clear();
+            }
+        });
+    }
+
+    private void writeJournal(final SessionJournal.Entry entry) {
+        mIoStage.put(new Runnable() {
+            @Override
+            public void run() {
+                mJournal.write(entry);
+            }
+        });
+    }
+}
@@ -0,0 +1,335 @@
+package com.dylankpowers.timelapse;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * The app's own list of every file it has recorded, so past sessions can be listed without
+ * going through the MediaStore. It's a memory mapped file of fixed width records that's only
+ * ever appended to, apart from a record being finished when its file is.
+ *
+ * The header's record count only moves once a record is complete, so after a crash the index
+ * opens to exactly the records that were written. A record the process died in the middle
+ * of recording stays {@link #STATUS_RECORDING}.
+ *
+ * A record is in two parts, each with its own checksum: what's known when the file starts,
+ * written once, and the status with what's only known when it's finished. A finish torn by
+ * a crash only fails the second checksum, so the record reads back as still recording and
+ * gets repaired like any other, rather than being lost.
+ *
+ * Segments of one session are separate records, each linked to the one before it.
+ */
+class RecordingsIndex {
+    private static final String TAG = "RecordingsIndex";
+    static final int FORMAT_VERSION = 2;
+    static final int MAGIC = 0x58494c54; // "TLIX" read little endian
+
+    static final int STATUS_RECORDING = 1;
+    static final int STATUS_FINISHED = 2;
+
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 256;
+    static final int MAX_PATH_BYTES = 192;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Header layout
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORD_SIZE = 8;
+    private static final int HEADER_COUNT = 12;
+
+    // Record layout, the part written when the record is appended
+    private static final int PREVIOUS = 0;
+    private static final int WIDTH = 4;
+    private static final int START_TIME = 8;
+    private static final int HEIGHT = 16;
+    private static final int BIT_RATE = 20;
+    private static final int SEGMENT_INDEX = 24;
+    private static final int PATH_LENGTH = 28;
+    private static final int PATH = 30;
+    private static final int FIXED_CHECKSUM = 224;
+    // and the part written again when it's finished
+    static final int FINISH = 228;
+    private static final int STATUS = FINISH;
+    private static final int STOP_TIME = 232;
+    private static final int FRAME_COUNT = 240;
+    private static final int FINISH_CHECKSUM = 248;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private MappedByteBuffer mBuffer;
+    private int mCapacity;
+    private FileChannel mChannel;
+    private final CRC32 mChecksum = new CRC32();
+    private int mCount;
+    // Records that failed their checksum when the index was opened
+    private final BitSet mDamaged = new BitSet();
+    private final File mFile;
+    // Second view of the mapping for bulk reads, which need a position
+    private ByteBuffer mReadView;
+    private final byte[] mRecordBytes = new byte[FIXED_CHECKSUM];
+
+    RecordingsIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Adds a record for a file that's just started.
+     *
+     * @param previous the record of the segment before this one, or -1 for a new session
+     * @return the new record's position, or -1 if the index can't be written
+     */
+    synchronized int append(String path, long startTimeMs, int width, int height,
+                            int bitRate, int previous) {
+        if (!ensureOpen()) {
+            return -1;
+        }
+
+        try {
+            if (mCount == mCapacity) {
+                map(mCapacity * 2);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to grow " + mFile, e);
+            return -1;
+        }
+
+        byte[] pathBytes = path.getBytes(UTF_8);
+        if (pathBytes.length > MAX_PATH_BYTES) {
+            Log.w(TAG, "Path too long for the index: " + path);
+            return -1;
+        }
+
+        int index = mCount;
+        int offset = recordOffset(index);
+        mBuffer.putInt(offset + PREVIOUS, previous);
+        mBuffer.putLong(offset + START_TIME, startTimeMs);
+        mBuffer.putInt(offset + WIDTH, width);
+        mBuffer.putInt(offset + HEIGHT, height);
+        mBuffer.putInt(offset + BIT_RATE, bitRate);
+        mBuffer.putInt(offset + SEGMENT_INDEX,
+                previous >= 0 && previous < mCount ? segmentIndex(previous) + 1 : 0);
+        mBuffer.putShort(offset + PATH_LENGTH, (short) pathBytes.length);
+        for (int i = 0; i < MAX_PATH_BYTES; i++) {
+            mBuffer.put(offset + PATH + i, i < pathBytes.length ? pathBytes[i] : 0);
+        }
+        mBuffer.putInt(offset + FIXED_CHECKSUM, checksum(offset, FIXED_CHECKSUM));
+        putFinish(offset, STATUS_RECORDING, 0, 0);
+
+        // Only counted once it's all there
+        mCount = index + 1;
+        mBuffer.putInt(HEADER_COUNT, mCount);
+        mBuffer.force();
+        return index;
+    }
+
+    /**
+     * CRC32 of the first {@code length} bytes at {@code offset}.
+     */
+    private int checksum(int offset, int length) {
+        mReadView.position(offset);
+        mReadView.get(mRecordBytes, 0, length);
+        mChecksum.reset();
+        mChecksum.update(mRecordBytes, 0, length);
+        return (int) mChecksum.getValue();
+    }
+
+    synchronized void close() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Log.d(TAG, "Unable to close " + mFile + ": " + e.getMessage());
+            }
+            mChannel = null;
+            mBuffer = null;
+            mReadView = null;
+        }
+    }
+
+    /**
+     * Maps the file the first time it's needed. A file that isn't an index is started over.
+     */
+    private boolean ensureOpen() {
+        if (mBuffer != null) {
+            return true;
+        }
+
+        try {
+            mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+            long size = mChannel.size();
+            map((int) Math.max(INITIAL_CAPACITY, (size - HEADER_SIZE) / RECORD_SIZE));
+            if (mBuffer.getInt(HEADER_MAGIC) != MAGIC ||
+                    mBuffer.getInt(HEADER_VERSION) != FORMAT_VERSION ||
+                    mBuffer.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+                if (size > 0) {
+                    Log.w(TAG, "Not a recordings index, starting a new one: " + mFile);
+                }
+                mBuffer.putInt(HEADER_MAGIC, MAGIC);
+                mBuffer.putInt(HEADER_VERSION, FORMAT_VERSION);
+                mBuffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+                mBuffer.putInt(HEADER_COUNT, 0);
+                mBuffer.force();
+            }
+            mCount = Math.max(0, Math.min(mBuffer.getInt(HEADER_COUNT), mCapacity));
+
+            // Checked once here so reads don't have to
+            mDamaged.clear();
+            boolean rewritten = false;
+            for (int i = 0; i < mCount; i++) {
+                int offset = recordOffset(i);
+                if (mBuffer.getInt(offset + FIXED_CHECKSUM) != checksum(offset, FIXED_CHECKSUM)) {
+                    Log.w(TAG, "Record " + i + " of " + mFile + " is damaged.");
+                    mDamaged.set(i);
+                } else if (mBuffer.getInt(offset + FINISH_CHECKSUM) !=
+                        checksum(offset + FINISH, FINISH_CHECKSUM - FINISH)) {
+                    Log.w(TAG, "Record " + i + " of " + mFile + " was cut off finishing.");
+                    putFinish(offset, STATUS_RECORDING, 0, 0);
+                    rewritten = true;
+                }
+            }
+            if (rewritten) {
+                mBuffer.force();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open " + mFile, e);
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Marks a record's file as complete.
+     *
+     * @param frameCount frames in the file, or -1 if the encoder doesn't say
+     */
+    synchronized void finish(int index, long stopTimeMs, long frameCount) {
+        if (!ensureOpen() || index < 0 || index >= mCount || mDamaged.get(index)) {
+            return;
+        }
+
+        putFinish(recordOffset(index), STATUS_FINISHED, stopTimeMs, frameCount);
+        mBuffer.force();
+    }
+
+    private void putFinish(int offset, int status, long stopTimeMs, long frameCount) {
+        mBuffer.putInt(offset + STATUS, status);
+        mBuffer.putLong(offset + STOP_TIME, stopTimeMs);
+        mBuffer.putLong(offset + FRAME_COUNT, frameCount);
+        mBuffer.putInt(offset + FINISH_CHECKSUM,
+                checksum(offset + FINISH, FINISH_CHECKSUM - FINISH));
+    }
+
+    private void map(int capacity) throws IOException {
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mReadView = mBuffer.duplicate();
+        mCapacity = capacity;
+    }
+
+    /**
+     * Copies a record into {@code entry}, nothing is allocated until the path is asked for.
+     *
+     * @return false if there's no such record or it was damaged
+     */
+    synchronized boolean read(int index, Entry entry) {
+        if (!ensureOpen() || index < 0 || index >= mCount || mDamaged.get(index)) {
+            return false;
+        }
+
+        int offset = recordOffset(index);
+        entry.index = index;
+        entry.status = mBuffer.getInt(offset + STATUS);
+        entry.previous = mBuffer.getInt(offset + PREVIOUS);
+        entry.startTimeMs = mBuffer.getLong(offset + START_TIME);
+        entry.stopTimeMs = mBuffer.getLong(offset + STOP_TIME);
+        entry.frameCount = mBuffer.getLong(offset + FRAME_COUNT);
+        entry.width = mBuffer.getInt(offset + WIDTH);
+        entry.height = mBuffer.getInt(offset + HEIGHT);
+        entry.bitRate = mBuffer.getInt(offset + BIT_RATE);
+        entry.segmentIndex = mBuffer.getInt(offset + SEGMENT_INDEX);
+        entry.mPathLength = Math.min(mBuffer.getShort(offset + PATH_LENGTH), MAX_PATH_BYTES);
+        mReadView.position(offset + PATH);
+        mReadView.get(entry.mPathBytes, 0, entry.mPathLength);
+        entry.mPath = null;
+        return true;
+    }
+
+    private static int recordOffset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    private int segmentIndex(int index) {
+        return mBuffer.getInt(recordOffset(index) + SEGMENT_INDEX);
+    }
+
+    /**
+     * @return the newest record of {@code path} that's still marked as recording, or -1
+     */
+    synchronized int findRecording(String path) {
+        if (!ensureOpen()) {
+            return -1;
+        }
+
+        byte[] pathBytes = path.getBytes(UTF_8);
+        for (int index = mCount - 1; index >= 0; index--) {
+            int offset = recordOffset(index);
+            if (mDamaged.get(index) || mBuffer.getInt(offset + STATUS) != STATUS_RECORDING ||
+                    mBuffer.getShort(offset + PATH_LENGTH) != pathBytes.length) {
+                continue;
+            }
+
+            boolean matches = true;
+            for (int i = 0; i < pathBytes.length && matches; i++) {
+                matches = mBuffer.get(offset + PATH + i) == pathBytes[i];
+            }
+            if (matches) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    synchronized int size() {
+        return ensureOpen() ? mCount : 0;
+    }
+
+    /**
+     * One record, meant to be reused across reads.
+     */
+    static class Entry {
+        int bitRate;
+        long frameCount;
+        int height;
+        int index;
+        int previous;
+        int segmentIndex;
+        long startTimeMs;
+        int status;
+        long stopTimeMs;
+        int width;
+
+        private String mPath;
+        private final byte[] mPathBytes = new byte[MAX_PATH_BYTES];
+        private int mPathLength;
+
+        String getPath() {
+            if (mPath == null) {
+                mPath = new String(mPathBytes, 0, mPathLength, UTF_8);
+            }
+            return mPath;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.dylankpowers.timelapse;
+
+/**
+ * Keeps count of what a recording has written and decides when it's time to roll over to
+ * the next file, either because a segment limit was reached or because someone asked. The
+ * writer only rolls over at a key frame, so it asks {@link #isLimitReached()} before each
+ * sample and reports every file it starts and finishes.
+ *
+ * Not thread safe, apart from {@link #getWrittenBytes()} and {@link #requestRollOver()}.
+ */
+class SegmentTracker {
+    private Callback mCallback;
+    private final Clock mClock;
+    private long mMaxBytes = 0;
+    private long mMaxDurationMs = 0;
+    private volatile boolean mRollOverRequested = false;
+    private long mSegmentBytes = 0;
+    private long mSegmentFrames = 0;
+    private int mSegmentIndex = 0;
+    private long mSegmentStartTimeMs;
+    private volatile long mWrittenBytes = 0;
+
+    SegmentTracker(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Bytes written so far, across every segment. Safe to read from any thread.
+     */
+    long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * Whether the output is split at all, without a callback there's nowhere to go next.
+     */
+    boolean isSegmenting() {
+        return mCallback != null;
+    }
+
+    boolean isLimitReached() {
+        if (mCallback == null) {
+            return false;
+        }
+        if (mRollOverRequested) {
+            return true;
+        }
+        if (mMaxBytes > 0 && mSegmentBytes >= mMaxBytes) {
+            return true;
+        }
+        return mMaxDurationMs > 0 &&
+                mClock.elapsedRealtime() - mSegmentStartTimeMs >= mMaxDurationMs;
+    }
+
+    /**
+     * @return where the next segment goes
+     */
+    String nextSegment() {
+        mSegmentIndex++;
+        return mCallback.nextSegmentPath(mSegmentIndex);
+    }
+
+    void onSampleWritten(int size) {
+        mSegmentBytes += size;
+        mWrittenBytes += size;
+        mSegmentFrames++;
+    }
+
+    void onSegmentFinished(String path) {
+        if (mCallback != null) {
+            mCallback.onSegmentFinished(path, mSegmentFrames);
+        }
+    }
+
+    /**
+     * @param sps the encoder's sequence parameter set, without a start code
+     * @param pps the encoder's picture parameter set, without a start code
+     */
+    void onSegmentStarted(String path, byte[] sps, byte[] pps) {
+        mSegmentBytes = 0;
+        mSegmentFrames = 0;
+        mSegmentStartTimeMs = mClock.elapsedRealtime();
+        mRollOverRequested = false;
+        if (mCallback != null) {
+            mCallback.onSegmentStarted(path, sps, pps);
+        }
+    }
+
+    /**
+     * Starts a new segment at the next key frame, as if a limit had been reached. Safe to
+     * call from any thread, only has an effect with a callback set.
+     */
+    void requestRollOver() {
+        mRollOverRequested = true;
+    }
+
+    /**
+     * Splits the output into several files. Either limit may be 0 to disable it. The callback
+     * is told about every finished file, including the last one when the recording stops.
+     */
+    void setLimits(long maxDurationMs, long maxBytes, Callback callback) {
+        mMaxDurationMs = maxDurationMs;
+        mMaxBytes = maxBytes;
+        mCallback = callback;
+    }
+
+    interface Callback {
+        String nextSegmentPath(int segmentIndex);
+        void onSegmentFinished(String path, long frameCount);
+
+        /**
+         * The first sample is about to be written.
+         *
+         * @param sps the encoder's sequence parameter set, without a start code
+         * @param pps the encoder's picture parameter set, without a start code
+         */
+        void onSegmentStarted(String path, byte[] sps, byte[] pps);
+    }
+}
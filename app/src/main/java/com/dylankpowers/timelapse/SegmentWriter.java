@@ -0,0 +1,216 @@
+package com.dylankpowers.timelapse;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes an encoder's samples to MP4, split into segments. Once a limit is reached the output
+ * rolls over to a new file at the next key frame, so no frames are lost and every segment
+ * starts decodable. Every segment starts its own timeline at zero.
+ *
+ * With fragmented output the samples are streamed through a {@link FragmentedMp4Writer},
+ * otherwise they go through MediaMuxer.
+ *
+ * Not thread safe, apart from {@link #getWrittenBytes()} and {@link #requestRollOver()}.
+ */
+class SegmentWriter {
+    private static final String TAG = "SegmentWriter";
+
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private MediaFormat mFormat;
+    private final boolean mFragmented;
+    private final int mFragmentMaxFrames;
+    private FragmentedMp4Writer mFragmentWriter;
+    private final int mFrameRate;
+    private final int mHeight;
+    private boolean mKeyFrameWanted = false;
+    private MediaMuxer mMuxer;
+    private final int mOrientationHint;
+    private String mPath;
+    private ByteBuffer mPps;
+    private long mSegmentStartTimeUs = -1;
+    private final SegmentTracker mSegments;
+    private ByteBuffer mSps;
+    private boolean mStarted = false;
+    private int mTrackIndex = -1;
+    private final int mWidth;
+
+    SegmentWriter(Clock clock, int width, int height, int orientationHint, int frameRate,
+                  boolean fragmented, int fragmentMaxFrames) {
+        mSegments = new SegmentTracker(clock);
+        mWidth = width;
+        mHeight = height;
+        mOrientationHint = orientationHint;
+        mFrameRate = frameRate;
+        mFragmented = fragmented;
+        mFragmentMaxFrames = fragmentMaxFrames;
+    }
+
+    /**
+     * Finishes the file being written. Nothing can be written afterwards.
+     */
+    void finish() throws IOException {
+        mStarted = false;
+        if (mFragmented) {
+            try {
+                mFragmentWriter.close();
+            } finally {
+                mFragmentWriter = null;
+            }
+        } else {
+            try {
+                mMuxer.stop();
+            } finally {
+                mMuxer.release();
+                mMuxer = null;
+            }
+        }
+        mSegments.onSegmentFinished(mPath);
+    }
+
+    String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Bytes written so far, across every segment. Safe to read from any thread.
+     */
+    long getWrittenBytes() {
+        return mSegments.getWrittenBytes();
+    }
+
+    boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Creates the first file. Nothing is written to it until {@link #start}.
+     */
+    void open(String path) throws IOException {
+        mPath = path;
+        openFile();
+    }
+
+    private void openFile() throws IOException {
+        if (mFragmented) {
+            mFragmentWriter = new FragmentedMp4Writer(new File(mPath), mWidth, mHeight,
+                    mOrientationHint, mFrameRate, mFragmentMaxFrames);
+        } else {
+            mMuxer = new MediaMuxer(mPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mMuxer.setOrientationHint(mOrientationHint);
+        }
+    }
+
+    /**
+     * Gives up on the file being written without finishing it, if it hasn't been already.
+     */
+    void release() {
+        mStarted = false;
+        if (mMuxer != null) {
+            mMuxer.release();
+            mMuxer = null;
+        }
+
+        if (mFragmentWriter != null) {
+            try {
+                mFragmentWriter.close();
+            } catch (IOException e) {
+                Log.d(TAG, "Unable to close " + mPath + ": " + e.getMessage());
+            }
+            mFragmentWriter = null;
+        }
+    }
+
+    /**
+     * Starts a new segment at the next key frame, as if a limit had been reached. Safe to
+     * call from any thread, only has an effect with a segment callback set.
+     */
+    void requestRollOver() {
+        mSegments.requestRollOver();
+    }
+
+    private void rollOver() throws IOException {
+        finish();
+        mPath = mSegments.nextSegment();
+        openFile();
+        startFile();
+    }
+
+    /**
+     * Splits the output into several files. Either limit may be 0 to disable it. The callback
+     * is told about every finished file, including the last one.
+     */
+    void setLimits(long maxDurationMs, long maxBytes, SegmentTracker.Callback callback) {
+        mSegments.setLimits(maxDurationMs, maxBytes, callback);
+    }
+
+    /**
+     * Starts the file opened by {@link #open(String)}. Every later segment starts the same way.
+     *
+     * @param format what the encoder produces, only used by MediaMuxer
+     * @param sps the encoder's sequence parameter set, with or without a start code
+     * @param pps the encoder's picture parameter set, with or without a start code
+     */
+    void start(MediaFormat format, ByteBuffer sps, ByteBuffer pps) throws IOException {
+        mFormat = format;
+        mSps = sps;
+        mPps = pps;
+        startFile();
+    }
+
+    private void startFile() throws IOException {
+        if (mFragmented) {
+            mFragmentWriter.writeHeader(mSps.duplicate(), mPps.duplicate());
+        } else {
+            mTrackIndex = mMuxer.addTrack(mFormat);
+            mMuxer.start();
+        }
+        mStarted = true;
+        mSegmentStartTimeUs = -1;
+        mKeyFrameWanted = false;
+        mSegments.onSegmentStarted(mPath, Mp4Boxes.stripStartCode(mSps),
+                Mp4Boxes.stripStartCode(mPps));
+    }
+
+    /**
+     * Writes the sample between the buffer's position and limit, first moving on to the next
+     * segment if a limit has been reached and it's a key frame.
+     *
+     * @return true when a limit has been reached but the sample isn't a key frame, once per
+     *         segment, so the encoder can be asked for one
+     */
+    boolean writeSample(ByteBuffer data, long presentationTimeUs, boolean keyFrame)
+            throws IOException {
+        boolean wantKeyFrame = false;
+        if (mSegments.isLimitReached()) {
+            if (keyFrame) {
+                rollOver();
+            } else if (!mKeyFrameWanted) {
+                mKeyFrameWanted = true;
+                wantKeyFrame = true;
+            }
+        }
+
+        if (mSegmentStartTimeUs < 0) {
+            mSegmentStartTimeUs = presentationTimeUs;
+        }
+        long timeUs = Math.max(0, presentationTimeUs - mSegmentStartTimeUs);
+
+        int size = data.remaining();
+        if (mFragmented) {
+            mFragmentWriter.writeSample(data, timeUs, keyFrame);
+        } else {
+            mBufferInfo.set(data.position(), size, timeUs,
+                    keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            mMuxer.writeSampleData(mTrackIndex, data, mBufferInfo);
+        }
+        mSegments.onSampleWritten(size);
+        return wantKeyFrame;
+    }
+}
@@ -0,0 +1,182 @@
+package com.dylankpowers.timelapse;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Write-ahead note of the file being recorded and how it's encoded, so a recording the
+ * process died in the middle of can be found and repaired when the service next starts.
+ * It's rewritten whenever a file is started and deleted once the recording stops cleanly.
+ *
+ * Only used from the I/O stage.
+ */
+class SessionJournal {
+    private static final String TAG = "SessionJournal";
+    private static final int FORMAT_VERSION = 2;
+    // Parameter sets are tiny, anything bigger means the journal is damaged
+    private static final int MAX_PARAMETER_SET_BYTES = 1024;
+
+    private final File mFile;
+
+    SessionJournal(File file) {
+        mFile = file;
+    }
+
+    void clear() {
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Unable to delete " + mFile);
+        }
+    }
+
+    /**
+     * @return the journaled file, or null if the last recording stopped cleanly
+     */
+    Entry read() {
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            return Entry.read(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the session journal.", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing useful to do about it
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal in one step, so it's never seen half written.
+     */
+    void write(Entry entry) {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(tempFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            entry.write(out);
+            out.flush();
+            stream.getFD().sync();
+            out.close();
+            stream = null;
+            if (!tempFile.renameTo(mFile)) {
+                Log.w(TAG, "Unable to replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the session journal.", e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Nothing useful to do about it
+                }
+            }
+        }
+    }
+
+    /**
+     * One file being recorded. The parameter sets are null until the encoder has produced
+     * them, and for MediaRecorder, which never says.
+     */
+    static class Entry {
+        // Whether frames may be stored out of display order
+        final boolean bFrames;
+        final boolean fragmented;
+        final int frameRate;
+        final int height;
+        final String path;
+        // Both without start codes
+        final byte[] pps;
+        final int rotation;
+        final byte[] sps;
+        final long startTimeMs;
+        final int width;
+
+        Entry(String path, long startTimeMs, int width, int height, int frameRate,
+              int rotation, boolean fragmented, boolean bFrames, byte[] sps, byte[] pps) {
+            this.path = path;
+            this.startTimeMs = startTimeMs;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.rotation = rotation;
+            this.fragmented = fragmented;
+            this.bFrames = bFrames;
+            this.sps = sps;
+            this.pps = pps;
+        }
+
+        private static byte[] readBytes(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            if (length > MAX_PARAMETER_SET_BYTES) {
+                throw new IOException("Corrupt session journal");
+            }
+
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown session journal format");
+            }
+
+            return new Entry(in.readUTF(), in.readLong(), in.readInt(), in.readInt(),
+                    in.readInt(), in.readInt(), in.readBoolean(), in.readBoolean(), readBytes(in),
+                    readBytes(in));
+        }
+
+        /**
+         * The same recording carried on in another file, with the encoder's parameter sets.
+         */
+        Entry withFile(String path, long startTimeMs, byte[] sps, byte[] pps) {
+            return new Entry(path, startTimeMs, width, height, frameRate, rotation, fragmented,
+                    bFrames, sps, pps);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(path);
+            out.writeLong(startTimeMs);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(frameRate);
+            out.writeInt(rotation);
+            out.writeBoolean(fragmented);
+            out.writeBoolean(bFrames);
+            writeBytes(out, sps);
+            writeBytes(out, pps);
+        }
+
+        private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+            if (bytes == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
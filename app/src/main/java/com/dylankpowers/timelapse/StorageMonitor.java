@@ -0,0 +1,388 @@
+package com.dylankpowers.timelapse;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Watches the volume a recording goes to. Every few seconds the I/O stage samples free space
+ * and how fast the recording is actually being written, and projects how long it'll be until
+ * the volume is full. When that's sooner than the recording is meant to run, the capture is
+ * asked to save space: by moving to a roomier volume if there is one, otherwise by lowering
+ * the bitrate, and once that's as low as it goes by stretching the capture interval.
+ *
+ * While recording, a reserve file about the size of a segment is kept on the volume. It's
+ * given up when space runs out, so the file being written can always be finished, and the
+ * recording is stopped cleanly instead of being cut off by a full card. Where the file system
+ * can't preallocate, only a few megabytes are actually written out for it.
+ *
+ * The handler never waits on the I/O stage. Work for it is offered, and whatever doesn't fit
+ * is held back in order and offered again shortly.
+ */
+class StorageMonitor {
+    private static final String TAG = "StorageMonitor";
+    static final String RESERVE_FILENAME = ".reserve";
+
+    private static final long SAMPLE_INTERVAL_MS = 10 * 1000;
+    // Reserve used when segments have no size limit
+    private static final long DEFAULT_RESERVE_BYTES = 32 * 1024 * 1024;
+    // Free space, not counting the reserve, below which the recording is stopped
+    private static final long MIN_FREE_BYTES = 16 * 1024 * 1024;
+    // Long enough for an adjustment to show up in the write rate before making another
+    private static final long ADJUSTMENT_COOLDOWN_MS = 60 * 1000;
+    // The projection has to beat the time left by this much to count as enough
+    private static final double HEADROOM = 1.1;
+    private static final double RATE_SMOOTHING = 0.3;
+    private static final int ZERO_FILL_CHUNK = 256 * 1024;
+    // Most of the reserve that's written out by hand when it can't be preallocated
+    private static final long MAX_ZERO_FILL_BYTES = 8 * 1024 * 1024;
+    private static final long HANDOFF_RETRY_MS = 100;
+
+    private Actions mActions;
+    private volatile double mBytesPerSecond = -1;
+    private final Clock mClock;
+    private File mDir;
+    private volatile long mFreeBytes = -1;
+    // Work the I/O stage had no room for, oldest first. Only touched on the handler.
+    private final ArrayDeque<Runnable> mHandoffs = new ArrayDeque<Runnable>();
+    private final Scheduler mScheduler;
+    private final PipelineStage mIoStage;
+    private long mLastAdjustmentMs;
+    private long mLastBytes;
+    private long mLastSampleMs;
+    private File mReserve;
+    private long mReserveBytes;
+    private volatile boolean mRunning = false;
+    private final SpaceProbe mSpace;
+    private long mStartMs;
+    private long mTargetDurationMs;
+    private volatile long mTimeToFullMs = -1;
+    private final File[] mVolumes;
+
+    private final Runnable mSample = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+        }
+    };
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            // A sample that doesn't fit is just skipped, there'll be another
+            mIoStage.offer(mSample);
+            mScheduler.postDelayed(this, SAMPLE_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable mRetryHandoffs = new Runnable() {
+        @Override
+        public void run() {
+            handOff(null);
+        }
+    };
+
+    private final Runnable mStopForFullStorage = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "Out of space on " + mDir + ", stopping the recording.");
+            mActions.stopForFullStorage();
+        }
+    };
+
+    /**
+     * @param volumes directories on other volumes the recording may move to, best first
+     */
+    StorageMonitor(Scheduler scheduler, Clock clock, SpaceProbe space, PipelineStage ioStage,
+                   File[] volumes) {
+        mScheduler = scheduler;
+        mClock = clock;
+        mSpace = space;
+        mIoStage = ioStage;
+        mVolumes = volumes;
+    }
+
+    /**
+     * Runs on the handler. Tries each way of saving space in turn.
+     */
+    private void adjust(File volume) {
+        if (!mRunning) {
+            return;
+        }
+
+        if (volume != null && mActions.moveTo(volume)) {
+            Log.i(TAG, "Moving the recording to " + volume);
+            final File dir = volume;
+            handOff(new Runnable() {
+                @Override
+                public void run() {
+                    releaseReserve();
+                    mDir = dir;
+                    mLastBytes = mActions.getBytesWritten();
+                    createReserve();
+                }
+            });
+        } else if (mActions.lowerBitRate()) {
+            Log.i(TAG, "Lowered the bitrate to fit the recording in the space left.");
+        } else if (mActions.stretchInterval()) {
+            Log.i(TAG, "Stretched the capture interval to fit the recording in the space left.");
+        } else {
+            Log.w(TAG, "Nothing left to save space with, the recording will stop when " +
+                    mDir + " is full.");
+        }
+    }
+
+    /**
+     * Runs on the I/O stage. Space that can't be reserved is only logged, the recording
+     * still goes ahead.
+     */
+    private void createReserve() {
+        if (mSpace.getUsableSpace(mDir) < mReserveBytes + MIN_FREE_BYTES) {
+            Log.w(TAG, "Not enough space on " + mDir + " to reserve for the last segment.");
+            return;
+        }
+
+        File reserve = new File(mDir, RESERVE_FILENAME);
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(reserve, "rw");
+            try {
+                Os.posix_fallocate(file.getFD(), 0, mReserveBytes);
+            } catch (ErrnoException e) {
+                // Not every file system can preallocate. Writing a whole segment's worth
+                // would hold up the I/O stage for too long, so less is held back.
+                mReserveBytes = Math.min(mReserveBytes, MAX_ZERO_FILL_BYTES);
+                zeroFill(file.getChannel(), mReserveBytes);
+            }
+            mReserve = reserve;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to reserve space on " + mDir + ": " + e.getMessage());
+            reserve.delete();
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Unable to close the reserve: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Of the other volumes, the one with the most room, provided it's enough for the rest of
+     * the recording.
+     */
+    private File findRoomierVolume(long remainingMs) {
+        File best = null;
+        long bestFreeBytes = mFreeBytes;
+        for (File volume : mVolumes) {
+            if (volume.equals(mDir) || (!volume.isDirectory() && !volume.mkdirs())) {
+                continue;
+            }
+
+            long freeBytes = mSpace.getUsableSpace(volume) - mReserveBytes - MIN_FREE_BYTES;
+            if (freeBytes > bestFreeBytes &&
+                    freeBytes / mBytesPerSecond * 1000 >= remainingMs * HEADROOM) {
+                best = volume;
+                bestFreeBytes = freeBytes;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Passes work to the I/O stage without waiting, behind anything still held back.
+     * Runs on the handler.
+     *
+     * @param task the work to add, or null to only retry what's held back
+     */
+    private void handOff(Runnable task) {
+        if (task != null) {
+            mHandoffs.add(task);
+        }
+        while (!mHandoffs.isEmpty() && mIoStage.offer(mHandoffs.peek())) {
+            mHandoffs.poll();
+        }
+        mScheduler.removeCallbacks(mRetryHandoffs);
+        if (!mHandoffs.isEmpty()) {
+            mScheduler.postDelayed(mRetryHandoffs, HANDOFF_RETRY_MS);
+        }
+    }
+
+    private void releaseReserve() {
+        if (mReserve != null) {
+            if (!mReserve.delete()) {
+                Log.w(TAG, "Unable to delete " + mReserve);
+            }
+            mReserve = null;
+        }
+    }
+
+    /**
+     * Runs on the I/O stage.
+     */
+    private void sample() {
+        if (!mRunning) {
+            return;
+        }
+
+        long now = mClock.elapsedRealtime();
+        long freeBytes = mSpace.getUsableSpace(mDir);
+        long writtenBytes = mActions.getBytesWritten();
+        if (now > mLastSampleMs && writtenBytes >= mLastBytes) {
+            double rate = (writtenBytes - mLastBytes) * 1000.0 / (now - mLastSampleMs);
+            mBytesPerSecond = mBytesPerSecond < 0 ? rate :
+                    mBytesPerSecond + RATE_SMOOTHING * (rate - mBytesPerSecond);
+        }
+        mLastBytes = writtenBytes;
+        mLastSampleMs = now;
+        mFreeBytes = freeBytes;
+
+        if (freeBytes < MIN_FREE_BYTES) {
+            // Give the space back so the file in progress can be finished
+            releaseReserve();
+            mRunning = false;
+            mScheduler.post(mStopForFullStorage);
+            return;
+        }
+
+        if (mBytesPerSecond <= 0) {
+            mTimeToFullMs = -1;
+            return;
+        }
+        mTimeToFullMs = (long) ((freeBytes - MIN_FREE_BYTES) / mBytesPerSecond * 1000);
+
+        if (mTargetDurationMs <= 0 || now - mLastAdjustmentMs < ADJUSTMENT_COOLDOWN_MS) {
+            return;
+        }
+
+        long remainingMs = mTargetDurationMs - (now - mStartMs);
+        if (remainingMs <= 0 || mTimeToFullMs >= remainingMs * HEADROOM) {
+            return;
+        }
+
+        mLastAdjustmentMs = now;
+        final File volume = findRoomierVolume(remainingMs);
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                adjust(volume);
+            }
+        });
+    }
+
+    /**
+     * Starts watching a recording. Must be called on the handler.
+     *
+     * @param targetDurationMs how long the recording is meant to run, or 0 to only guard
+     *                         against running out of space
+     * @param reserveBytes space to hold back for finishing the last file, or 0 for a default
+     */
+    void start(final File dir, long targetDurationMs, long reserveBytes, Actions actions) {
+        mActions = actions;
+        mTargetDurationMs = targetDurationMs;
+        final long reserve = reserveBytes > 0 ? reserveBytes : DEFAULT_RESERVE_BYTES;
+        handOff(new Runnable() {
+            @Override
+            public void run() {
+                mDir = dir;
+                mReserveBytes = reserve;
+                mStartMs = mLastSampleMs = mLastAdjustmentMs = mClock.elapsedRealtime();
+                mLastBytes = 0;
+                mBytesPerSecond = -1;
+                mTimeToFullMs = -1;
+                mFreeBytes = mSpace.getUsableSpace(dir);
+                createReserve();
+                mRunning = true;
+            }
+        });
+        mScheduler.postDelayed(mTick, SAMPLE_INTERVAL_MS);
+    }
+
+    /**
+     * Stops watching and gives back the reserve. Must be called on the handler.
+     */
+    void stop() {
+        mScheduler.removeCallbacks(mTick);
+        mScheduler.removeCallbacks(mStopForFullStorage);
+        mRunning = false;
+        handOff(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+                releaseReserve();
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        long timeToFullMs = mTimeToFullMs;
+        return String.format("storage free=%dMB rate=%dKB/s full in %s",
+                mFreeBytes / (1024 * 1024), (long) Math.max(0, mBytesPerSecond) / 1024,
+                timeToFullMs < 0 ? "-" : (timeToFullMs / 60000) + "min");
+    }
+
+    private static void zeroFill(FileChannel channel, long bytes) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(ZERO_FILL_CHUNK);
+        long written = 0;
+        while (written < bytes) {
+            zeros.clear();
+            zeros.limit((int) Math.min(ZERO_FILL_CHUNK, bytes - written));
+            written += channel.write(zeros, written);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * How much room a directory's volume has left.
+     */
+    interface SpaceProbe {
+        SpaceProbe FILE_SYSTEM = new SpaceProbe() {
+            @Override
+            public long getUsableSpace(File dir) {
+                return dir.getUsableSpace();
+            }
+        };
+
+        long getUsableSpace(File dir);
+    }
+
+    /**
+     * What the capture can do to save space. Everything but {@link #getBytesWritten()} is
+     * called on the handler.
+     */
+    interface Actions {
+        /**
+         * Everything written for the current recording so far. Called on the I/O stage.
+         */
+        long getBytesWritten();
+
+        /**
+         * @return false if the bitrate is already as low as it goes
+         */
+        boolean lowerBitRate();
+
+        /**
+         * Continues the recording in another directory from the next key frame.
+         *
+         * @return false if the recording can't move
+         */
+        boolean moveTo(File dir);
+
+        void stopForFullStorage();
+
+        /**
+         * @return false if the interval can't get any longer
+         */
+        boolean stretchInterval();
+    }
+}
@@ -1,70 +1,147 @@
 package com.dylankpowers.timelapse;
 
-import android.content.ContentResolver;
-import android.content.ContentValues;
-import android.database.Cursor;
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.CamcorderProfile;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaCodec;
 import android.media.MediaRecorder;
-import android.net.Uri;
+import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
-import android.provider.MediaStore;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.util.Range;
+import android.util.Size;
 import android.view.Display;
 import android.view.Surface;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TimeLapseCapture {
     private static final String TAG = "TimeLapseCapture";
     private static final String STORAGE_DIR =
             Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM)
                 .getAbsolutePath() + "/TimeLapse";
-    private static final int VIDEO_FPS = 60;
 
-    private Handler mBackgroundHandler;
+    public static final int STATE_CLOSED = RecordingController.STATE_CLOSED;
+    public static final int STATE_OPENING = RecordingController.STATE_OPENING;
+    public static final int STATE_PREVIEW = RecordingController.STATE_PREVIEW;
+    public static final int STATE_STARTING = RecordingController.STATE_STARTING;
+    public static final int STATE_RECORDING = RecordingController.STATE_RECORDING;
+    public static final int STATE_STOPPING = RecordingController.STATE_STOPPING;
+
+    // Size of the preview's buffers outside of recording
+    static final int PREVIEW_WIDTH = 1920;
+    static final int PREVIEW_HEIGHT = 1080;
+    // Smallest a reduced preview goes while recording
+    private static final int RECORDING_PREVIEW_MIN_HEIGHT = 360;
+
+    private static final int FRAME_POOL_SIZE = 4;
+    private static final int INTERVAL_MAX_IMAGES = 2;
+
+    // Longest a duty cycled shot waits for AE and AF before taking the frame anyway
+    private static final long CONVERGE_TIMEOUT_MS = 3000;
+    // Longest a duty cycled shot may keep the camera open before it's given up on
+    private static final long SHOT_TIMEOUT_MS = 10 * 1000;
+
     private CameraDevice mCamera;
+    private Handler mCameraHandler;
+    private final Scheduler mCameraScheduler;
     private CameraManager mCameraManager;
-    private CameraCharacteristics mCameraCharacteristics;
+    private CameraInfo mCameraInfo;
+    private final CameraInfoCache mCameraInfoCache;
     private SimpleCallback mCameraReadyCallback;
     private Handler mCameraReadyCallbackHandler;
     private CameraCaptureSession mCaptureSession;
-    private boolean mCreatingCaptureSession = false;
-    private ContentResolver mContentResolver;
-    private boolean mCurrentlyRecording = false;
+    // Set while a duty cycled recording has the camera closed, so it's reopened afterwards
+    private boolean mCameraClosedForRecording = false;
+    private final RecordingController mController;
     private Display mDefaultDisplay;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+    private long mDutyCycleFrameTimestampNs;
+    private final DutyCycleScheduler mDutyCycleScheduler;
+    private boolean mDutyCycleShotDue;
+    private long mDutyCycleWakeTimeMs;
+    private long mDutyCycleWarmUpMs;
+    private boolean mDutyCycling = false;
+    private volatile VideoEncoder mEncoder;
+    private volatile EncoderOutput[] mExtraOutputs = new EncoderOutput[0];
+    private final PipelineStage mEncodeStage;
+    private FramePool mFramePool;
+    private volatile FrameStacker mFrameStacker;
+    // Always has room, it's as big as the pool
+    private final BlockingQueue<FramePool.Frame> mFramesToEncode =
+            new ArrayBlockingQueue<FramePool.Frame>(FRAME_POOL_SIZE);
+    private final CaptureMetrics mMetrics = new CaptureMetrics();
+    private final VideoIndexer mIndexer;
+    private final MotionRecorder mMotionRecorder;
+    private volatile MotionFilter mMotionFilter;
+    private ImageReader mIntervalImageReader;
+    private List<CaptureRequest> mIntervalBurst;
+    private CaptureRequest mIntervalRequest;
+    private boolean mPersistentSession = false;
+    private Surface mPersistentSurface;
+    // The recording's repeating request plus the preview, sent now and then to refresh it
+    private CaptureRequest mPreviewRefreshRequest;
     private Surface mPreviewSurface;
+    private SurfaceTexture mPreviewTexture;
+    private final RecordingSession mRecordingSession;
     private String mRecordingSessionFilepath;
-    private CamcorderProfile mRecordingSessionProfile;
+    private Surface mRecordingSurface;
+    private final CaptureSettings mSettings;
     private MediaRecorder mVideo;
-    private SimpleCallback mVideoRecorderStarted;
-    private Handler mVideoRecorderStartedHandler;
-    private SimpleCallback mVideoRecorderStopped;
-    private Handler mVideoRecorderStoppedHandler;
 
 
+    /**
+     * Camera callbacks run on the camera handler, the encoder is only touched from the encode
+     * stage, and storage housekeeping goes through the I/O stage, so neither a slow encoder
+     * nor a slow card can hold up the camera.
+     */
     public TimeLapseCapture(CameraManager cameraManager,
-                            Handler backgroundHandler,
-                            Display defaultDisplay, ContentResolver contentResolver) {
+                            Handler cameraHandler, PipelineStage encodeStage, PipelineStage ioStage,
+                            Display defaultDisplay, VideoIndexer indexer,
+                            CaptureSettings settings, CameraInfoCache cameraInfoCache,
+                            DutyCycleScheduler dutyCycleScheduler, MotionRecorder motionRecorder,
+                            StorageMonitor storageMonitor, PowerGovernor powerGovernor,
+                            RecordingsIndex recordingsIndex, SessionJournal journal) {
         mCameraManager = cameraManager;
-        mBackgroundHandler = backgroundHandler;
+        mRecordingSession = new RecordingSession(Clock.SYSTEM, ioStage, indexer,
+                recordingsIndex, journal);
+        mMotionRecorder = motionRecorder;
+        mDutyCycleScheduler = dutyCycleScheduler;
+        mCameraInfoCache = cameraInfoCache;
+        mCameraHandler = cameraHandler;
+        mCameraScheduler = new HandlerScheduler(cameraHandler);
+        mEncodeStage = encodeStage;
         mDefaultDisplay = defaultDisplay;
-        mContentResolver = contentResolver;
+        mIndexer = indexer;
+        mSettings = settings;
+        mController = new RecordingController(Clock.SYSTEM, mCameraScheduler, encodeStage,
+                ioStage, settings, mMetrics, mRecordingSession, storageMonitor, powerGovernor,
+                new File(STORAGE_DIR), mRecordingCamera);
     }
 
     private final CameraDevice.StateCallback
@@ -72,15 +149,18 @@ public class TimeLapseCapture {
         @Override
         public void onOpened(@NonNull CameraDevice camera) {
             mCamera = camera;
-            final SimpleCallback callback = mCameraReadyCallback;
-            mCameraReadyCallbackHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    callback.onEvent();
-                }
-            });
-            mCameraReadyCallback = null;
-            mCameraReadyCallbackHandler = null;
+            // Nobody's waiting when the preview comes back after a duty cycled recording
+            if (mCameraReadyCallback != null) {
+                final SimpleCallback callback = mCameraReadyCallback;
+                mCameraReadyCallbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onEvent();
+                    }
+                });
+                mCameraReadyCallback = null;
+                mCameraReadyCallbackHandler = null;
+            }
 
             createPreviewCaptureSession();
         }
@@ -89,19 +169,26 @@ public class TimeLapseCapture {
         public void onDisconnected(@NonNull CameraDevice camera) {
             Log.d(TAG, "Camera Disconnected");
             camera.close();
-            mCamera = null;
+            tearDown();
         }
 
         @Override
         public void onError(@NonNull CameraDevice camera, int error) {
             Log.d(TAG, "Camera Error: " + error);
             camera.close();
-            mCamera = null;
+            tearDown();
         }
     };
 
     private CameraCaptureSession.CaptureCallback
             mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                     @NonNull CaptureRequest request,
+                                     long timestamp, long frameNumber) {
+            mMetrics.onCaptureStarted(frameNumber, SystemClock.elapsedRealtimeNanos());
+        }
+
         @Override
         public void onCaptureProgressed(@NonNull CameraCaptureSession session,
                                         @NonNull CaptureRequest request,
@@ -110,67 +197,380 @@ public class TimeLapseCapture {
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                        @NonNull CaptureRequest request,
-                                       @NonNull TotalCaptureResult result) { }
+                                       @NonNull TotalCaptureResult result) {
+            Long sensorTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            mMetrics.onCaptureCompleted(result.getFrameNumber(),
+                    sensorTimestamp != null ? sensorTimestamp : 0,
+                    SystemClock.elapsedRealtimeNanos());
+
+            // Everything captured while recording through a surface ends up in the video
+            if (mController.isEncoding() && mIntervalImageReader == null &&
+                    sensorTimestamp != null) {
+                mMotionRecorder.onFrame(sensorTimestamp);
+            }
+
+            VideoEncoder encoder = mEncoder;
+            if (mController.isEncoding() && encoder != null && mIntervalImageReader == null) {
+                encoder.onFrameRendered();
+                scheduleDrain();
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            mMetrics.onCaptureFailed(failure.getFrameNumber(), failure.wasImageCaptured());
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session,
+                                             int sequenceId) {
+            mMetrics.onSequenceAborted();
+        }
+
+        // Added in API 24, so it can't be marked as an override against the SDK we build with
+        public void onCaptureBufferLost(@NonNull CameraCaptureSession session,
+                                        @NonNull CaptureRequest request,
+                                        @NonNull Surface target, long frameNumber) {
+            mMetrics.onBufferLost();
+        }
     };
 
-    public synchronized void close() {
-        mBackgroundHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (mVideo != null) {
-                    if (mCurrentlyRecording) {
-                        stopRecordingSync();
-                        mCurrentlyRecording = false;
-                    }
+    private final Runnable mDrainEncoder = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            VideoEncoder encoder = mEncoder;
+            encodePendingFrames(encoder);
+            if (encoder != null) {
+                encoder.drain();
+                mMetrics.onEncoderQueueDepth(encoder.getPendingFrameCount());
+            }
+        }
+    };
+
+    private final ImageReader.OnImageAvailableListener
+            mIntervalImageListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (image == null) {
+                return;
+            }
+
+            // While duty cycling the camera streams to let AE and AF settle, only one frame is kept
+            boolean dutyCycleShot = mDutyCycling;
+            if (dutyCycleShot && (mDutyCycleFrameTimestampNs == 0 ||
+                    image.getTimestamp() != mDutyCycleFrameTimestampNs)) {
+                image.close();
+                return;
+            }
+
+            FramePool.Frame frame = mEncoder != null ? mFramePool.acquire() : null;
+            if (frame == null) {
+                image.close();
+                mMetrics.onFrameDropped();
+                if (dutyCycleShot) {
+                    finishDutyCycleShot(false);
+                }
+                return;
+            }
+
+            // The camera gets its buffer back right away, however far behind the encoder is
+            try {
+                ImageFrames.copy(image, frame);
+            } finally {
+                image.close();
+            }
+            mFramesToEncode.offer(frame);
+            scheduleDrain();
+
+            if (dutyCycleShot) {
+                finishDutyCycleShot(true);
+            }
+        }
+    };
+
+    private final SimpleCallback mDutyCycleShot = new SimpleCallback() {
+        @Override
+        public void onEvent() {
+            mDutyCycleWakeTimeMs = SystemClock.elapsedRealtime();
+            mDutyCycleWarmUpMs = -1;
+            mDutyCycleShotDue = false;
+            mDutyCycleFrameTimestampNs = 0;
+            mCameraHandler.postDelayed(mDutyCycleTimeout, SHOT_TIMEOUT_MS);
+            try {
+                mCameraManager.openCamera(mCameraInfo.cameraId, mDutyCycleCameraCallback,
+                        mCameraHandler);
+            } catch (CameraAccessException e) {
+                Log.d(TAG, "Unable to open the camera for a shot: " + e.getMessage());
+                finishDutyCycleShot(false);
+            } catch (SecurityException e) {
+                Log.d(TAG, "Unable to open the camera for a shot: " + e.getMessage());
+                finishDutyCycleShot(false);
+            }
+        }
+    };
+
+    private final Runnable mDutyCycleTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "Shot timed out.");
+            finishDutyCycleShot(false);
+        }
+    };
+
+    private final CameraDevice.StateCallback
+            mDutyCycleCameraCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(@NonNull CameraDevice camera) {
+            if (!mDutyCycling) {
+                camera.close();
+                return;
+            }
+
+            mCamera = camera;
+            try {
+                mCamera.createCaptureSession(Arrays.asList(mRecordingSurface),
+                        new CameraCaptureSession.StateCallback() {
+                            @Override
+                            public void onConfigured(@NonNull CameraCaptureSession session) {
+                                startDutyCycleStream(session);
+                            }
+
+                            @Override
+                            public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                                Log.d(TAG, "Shot capture session configure failed.");
+                                finishDutyCycleShot(false);
+                            }
+                        }, mCameraHandler);
+            } catch (CameraAccessException e) {
+                Log.d(TAG, "Unable to configure the camera for a shot: " + e.getMessage());
+                finishDutyCycleShot(false);
+            }
+        }
+
+        @Override
+        public void onDisconnected(@NonNull CameraDevice camera) {
+            Log.d(TAG, "Camera disconnected during a shot");
+            camera.close();
+            finishDutyCycleShot(false);
+        }
+
+        @Override
+        public void onError(@NonNull CameraDevice camera, int error) {
+            Log.d(TAG, "Camera error during a shot: " + error);
+            camera.close();
+            finishDutyCycleShot(false);
+        }
+    };
+
+    private final CameraCaptureSession.CaptureCallback
+            mDutyCycleCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                     @NonNull CaptureRequest request,
+                                     long timestamp, long frameNumber) {
+            // The first frame exposed once the shot is due is the one that's kept
+            if (mDutyCycleShotDue && mDutyCycleFrameTimestampNs == 0) {
+                mDutyCycleFrameTimestampNs = timestamp;
+            }
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            long now = SystemClock.elapsedRealtime();
+            if (mDutyCycleWarmUpMs < 0 && (isConverged(result) ||
+                    now - mDutyCycleWakeTimeMs >= CONVERGE_TIMEOUT_MS)) {
+                mDutyCycleWarmUpMs = now - mDutyCycleWakeTimeMs;
+            }
+            if (mDutyCycleWarmUpMs >= 0 && now >= mDutyCycleScheduler.getShotTimeMs()) {
+                mDutyCycleShotDue = true;
+            }
+        }
+    };
+
+    private final Runnable mPreviewRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (mPreviewRefreshRequest == null || mCaptureSession == null) {
+                return;
+            }
+
+            try {
+                mCaptureSession.capture(mPreviewRefreshRequest, mCaptureCallback, mCameraHandler);
+            } catch (CameraAccessException e) {
+                Log.d(TAG, "Preview refresh failed: " + e.getMessage());
+            }
+            mCameraScheduler.postDelayed(this, mSettings.getRecordingPreviewIntervalMs());
+        }
+    };
+
+    private final RecordingController.Camera
+            mRecordingCamera = new RecordingController.Camera() {
+        @Override
+        public int getVideoBitRate() {
+            return TimeLapseCapture.this.getVideoBitRate(mSettings.getOutputFrameRate());
+        }
+
+        @Override
+        public ThrottleLadder newThrottleLadder() {
+            return TimeLapseCapture.this.newThrottleLadder();
+        }
+
+        @Override
+        public void startCapture(String path) {
+            mRecordingSessionFilepath = path;
+            if (mSettings.isDutyCycled()) {
+                startDutyCycledRecording();
+            } else if (mPersistentSession) {
+                startPersistentRecording();
+            } else {
+                createRecordingCaptureSession();
+            }
+        }
+
+        @Override
+        public void stopCapture() {
+            stopPreviewRefresh();
+            if (mDutyCycling) {
+                endDutyCycle();
+            } else if (mPersistentSession) {
+                setRepeatingRequest(CameraDevice.TEMPLATE_PREVIEW);
+            } else if (mCaptureSession != null) {
+                try {
+                    mCaptureSession.stopRepeating();
+                } catch (CameraAccessException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void releaseCapture() {
+            if (mVideo != null) {
+                mVideo.release();
+                mVideo = null;
+            }
+            releaseEncoder();
+            mMotionRecorder.stop();
+        }
+
+        @Override
+        public void resumePreview() {
+            if (mCameraClosedForRecording) {
+                // The preview comes back through the same path as opening the camera
+                mCameraClosedForRecording = false;
+                try {
+                    mCameraManager.openCamera(mCameraInfo.cameraId, mCameraStateCallback,
+                            mCameraHandler);
+                } catch (CameraAccessException e) {
+                    Log.e(TAG, "Unable to reopen the camera.", e);
+                    tearDown();
+                } catch (SecurityException e) {
+                    Log.e(TAG, "Unable to reopen the camera.", e);
+                    tearDown();
+                }
+            } else if (mPersistentSession) {
+                // Get the next recording's encoder configured while nobody is waiting on it
+                armPersistentEncoder();
+                mController.onPreviewRunning();
+            } else {
+                createPreviewCaptureSession();
+            }
+        }
 
-                    mVideo.release();
-                    mVideo = null;
+        @Override
+        public void takeShot() {
+            if (mFramePool.getFreeCount() == 0) {
+                // The encoder still has every slot, skip the shot rather than pile up
+                mMetrics.onFrameDropped();
+                return;
+            }
+
+            try {
+                if (mIntervalBurst != null) {
+                    mCaptureSession.captureBurst(mIntervalBurst, mCaptureCallback, mCameraHandler);
+                } else {
+                    mCaptureSession.capture(mIntervalRequest, mCaptureCallback, mCameraHandler);
                 }
+            } catch (CameraAccessException e) {
+                Log.d(TAG, "Interval capture failed: " + e.getMessage());
+            }
+        }
+    };
 
+    public synchronized void close() {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                tearDown();
             }
         });
 
-        // The capture session and camera should be closed synchronously
-        mCamera.close();
+        // The capture session and camera should be closed synchronously. Between duty
+        // cycled shots there's no camera to close.
+        if (mCamera != null) {
+            mCamera.close();
+        }
         mCaptureSession = null;
         mCamera = null;
     }
 
     private synchronized void createRecordingCaptureSession() {
-        if (mCreatingCaptureSession) {
-            throw new RuntimeException("Capture session already being created");
-        }
-
         if (mCamera != null) {
-            setupVideoRecorder();
+            final boolean intervalMode =
+                    mSettings.getCaptureMode() == CaptureSettings.CAPTURE_MODE_INTERVAL;
+            // Motion filtering and extra outputs need the frames, so continuous captures stream
+            // through the reader at the capture rate instead of rendering straight into an encoder
+            if (intervalMode || needsFrames()) {
+                setupIntervalRecorder();
+            } else if (mSettings.getEncoder() == CaptureSettings.ENCODER_MEDIA_CODEC) {
+                setupCodecRecorder();
+            } else {
+                setupVideoRecorder();
+            }
+
+            sizePreviewBuffer(true);
             try {
                 mCamera.createCaptureSession(
-                        Arrays.asList(mPreviewSurface, mVideo.getSurface()),
+                        Arrays.asList(mPreviewSurface, mRecordingSurface),
                         new CameraCaptureSession.StateCallback() {
                             @Override
                             public void onConfigured(@NonNull CameraCaptureSession session) {
-                                onCaptureSessionConfigured(session, CameraDevice.TEMPLATE_RECORD);
-
-                                mVideo.start();
-                                mCurrentlyRecording = true;
-                                Log.d(TAG, "Video recorder started.");
-                                final SimpleCallback callback = mVideoRecorderStarted;
-                                mVideoRecorderStartedHandler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        callback.onEvent();
+                                try {
+                                    if (intervalMode) {
+                                        onCaptureSessionConfigured(session,
+                                                CameraDevice.TEMPLATE_PREVIEW);
+                                        buildIntervalRequests();
+                                        mController.startOutput(new CodecOutput());
+                                    } else if (mEncoder != null) {
+                                        mController.startOutput(new CodecOutput());
+                                        onCaptureSessionConfigured(session,
+                                                CameraDevice.TEMPLATE_RECORD);
+                                    } else {
+                                        onCaptureSessionConfigured(session,
+                                                CameraDevice.TEMPLATE_RECORD);
+                                        mController.startOutput(new MediaRecorderOutput(
+                                                mVideo, mRecordingSessionFilepath));
                                     }
-                                });
-                                mVideoRecorderStarted = null;
-                                mVideoRecorderStartedHandler = null;
+                                } catch (RuntimeException e) {
+                                    mController.onStartFailed(e);
+                                    return;
+                                }
+
+                                onRecordingStarted();
                             }
 
                             @Override
                             public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-                                Log.d(TAG, "Camera capture session configure failed.");
+                                mController.onStartFailed(new IllegalStateException(
+                                        "Camera recording session configure failed."));
                             }
                         }, null);
-                mCreatingCaptureSession = true;
             } catch (CameraAccessException e) {
                 throw new RuntimeException("Can't access the camera.", e);
             }
@@ -179,34 +579,33 @@ public class TimeLapseCapture {
 
     private synchronized void createPreviewCaptureSession() {
         if (mCamera != null) {
+            List<Surface> surfaces = Arrays.asList(mPreviewSurface);
+            if (canUsePersistentSession()) {
+                mPersistentSession = true;
+                armPersistentEncoder();
+                surfaces = Arrays.asList(mPreviewSurface, mPersistentSurface);
+            }
+            sizePreviewBuffer(false);
+
             try {
                 mCamera.createCaptureSession(
-                        Arrays.asList(mPreviewSurface),
+                        surfaces,
                         new CameraCaptureSession.StateCallback() {
                             @Override
                             public void onConfigured(@NonNull CameraCaptureSession session) {
                                 onCaptureSessionConfigured(session, CameraDevice.TEMPLATE_PREVIEW);
-
-                                if (mVideoRecorderStopped != null) {
-                                    final SimpleCallback callback = mVideoRecorderStopped;
-                                    mVideoRecorderStoppedHandler.post(new Runnable() {                                        @Override
-                                        public void run() {
-                                            callback.onEvent();
-                                        }
-                                    });
-                                    mVideoRecorderStopped = null;
-                                    mVideoRecorderStoppedHandler = null;
-                                }
+                                mController.onPreviewRunning();
                             }
 
                             @Override
                             public void onConfigureFailed(@NonNull CameraCaptureSession session) {
                                 Log.d(TAG, "Camera capture session configure failed.");
+                                tearDown();
                             }
                         }, null);
-                mCreatingCaptureSession = true;
             } catch (CameraAccessException e) {
-                throw new RuntimeException("Can't access the camera.", e);
+                Log.e(TAG, "Can't access the camera for the preview.", e);
+                tearDown();
             }
         }
     }
@@ -236,24 +635,170 @@ public class TimeLapseCapture {
         throw new RuntimeException("The rear camera was not found");
     }
 
-    private static String generateFilename() {
-        String filename = "TimeLapse_";
-        Calendar date = new GregorianCalendar();
-        filename += date.get(Calendar.YEAR);
-        filename += String.format("%02d", date.get(Calendar.MONTH) + 1);
-        filename += String.format("%02d", date.get(Calendar.DAY_OF_MONTH));
-        filename += "_";
-        filename += String.format("%02d", date.get(Calendar.HOUR_OF_DAY));
-        filename += String.format("%02d", date.get(Calendar.MINUTE));
-        filename += String.format("%02d", date.get(Calendar.SECOND));
-        filename += ".mp4";
-        return filename;
+    private CameraInfo probeCameraInfo() {
+        String cameraId = findRearCameraId();
+        CameraCharacteristics characteristics;
+        try {
+            characteristics = mCameraManager.getCameraCharacteristics(cameraId);
+        } catch (CameraAccessException e) {
+            throw new RuntimeException("Unable to access the camera.", e);
+        }
+
+        Range<Integer>[] ranges = characteristics.get(
+                CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        int[] fpsRanges = new int[ranges == null ? 0 : ranges.length * 2];
+        for (int i = 0; i < fpsRanges.length / 2; i++) {
+            fpsRanges[i * 2] = ranges[i].getLower();
+            fpsRanges[i * 2 + 1] = ranges[i].getUpper();
+        }
+
+        StreamConfigurationMap streamConfigs = characteristics.get(
+                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size[] previews = streamConfigs.getOutputSizes(SurfaceTexture.class);
+        int[] previewSizes = new int[previews == null ? 0 : previews.length * 2];
+        for (int i = 0; i < previewSizes.length / 2; i++) {
+            previewSizes[i * 2] = previews[i].getWidth();
+            previewSizes[i * 2 + 1] = previews[i].getHeight();
+        }
+
+        Size[] sizes = streamConfigs.getOutputSizes(MediaRecorder.class);
+        int[] videoSizes = new int[sizes == null ? 0 : sizes.length * 2];
+        for (int i = 0; i < videoSizes.length / 2; i++) {
+            videoSizes[i * 2] = sizes[i].getWidth();
+            videoSizes[i * 2 + 1] = sizes[i].getHeight();
+        }
+
+        // Without a source the timestamps are monotonic, the key itself is new in M
+        boolean timestampRealtime = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Integer timestampSource = characteristics.get(
+                    CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            timestampRealtime = timestampSource != null && timestampSource ==
+                    CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        }
+
+        CamcorderProfile profile = CamcorderProfile.get(CamcorderProfile.QUALITY_1080P);
+        return new CameraInfo(cameraId,
+                characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION), timestampRealtime,
+                fpsRanges, previewSizes, videoSizes, profile.videoFrameWidth,
+                profile.videoFrameHeight, profile.videoBitRate, profile.videoFrameRate);
+    }
+
+    private void endDutyCycle() {
+        mDutyCycling = false;
+        mDutyCycleScheduler.stop();
+        mCameraHandler.removeCallbacks(mDutyCycleTimeout);
+        if (mCamera != null) {
+            mCamera.close();
+            mCamera = null;
+            mCaptureSession = null;
+        }
+    }
+
+    private void finishDutyCycleShot(boolean taken) {
+        if (!mDutyCycling) {
+            return;
+        }
+
+        mCameraHandler.removeCallbacks(mDutyCycleTimeout);
+        if (mCamera != null) {
+            mCamera.close();
+            mCamera = null;
+            mCaptureSession = null;
+        }
+        mDutyCycleShotDue = false;
+        mDutyCycleFrameTimestampNs = 0;
+
+        if (taken) {
+            Log.d(TAG, "Shot taken, camera was ready after " + mDutyCycleWarmUpMs + "ms");
+            mDutyCycleScheduler.onShotTaken(mDutyCycleWarmUpMs);
+        } else {
+            mDutyCycleScheduler.onShotFailed();
+        }
+    }
+
+    private static boolean isConverged(CaptureResult result) {
+        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        boolean aeConverged = aeState == null ||
+                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED ||
+                aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED ||
+                aeState == CaptureResult.CONTROL_AE_STATE_LOCKED;
+
+        Integer afMode = result.get(CaptureResult.CONTROL_AF_MODE);
+        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+        boolean afConverged = afMode == null || afState == null ||
+                afMode == CaptureResult.CONTROL_AF_MODE_OFF ||
+                afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED ||
+                afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_UNFOCUSED ||
+                afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED ||
+                afState == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED;
+        return aeConverged && afConverged;
+    }
+
+    private void startDutyCycleStream(CameraCaptureSession session) {
+        if (!mDutyCycling) {
+            return;
+        }
+
+        mCaptureSession = session;
+        try {
+            CaptureRequest.Builder requestBuilder =
+                    mCamera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            requestBuilder.addTarget(mRecordingSurface);
+            session.setRepeatingRequest(requestBuilder.build(), mDutyCycleCaptureCallback,
+                    mCameraHandler);
+        } catch (CameraAccessException e) {
+            Log.d(TAG, "Unable to start streaming for a shot: " + e.getMessage());
+            finishDutyCycleShot(false);
+        }
+    }
+
+    /**
+     * Closes the camera and lets the scheduler reopen it for each shot, with the encoder
+     * left running in between so every shot lands in the same recording.
+     */
+    private void startDutyCycledRecording() {
+        setupIntervalRecorder();
+        mController.startOutput(new CodecOutput());
+
+        mCamera.close();
+        mCamera = null;
+        mCaptureSession = null;
+        mCameraClosedForRecording = true;
+        mDutyCycling = true;
+        mDutyCycleScheduler.start(mSettings.getCaptureIntervalMs(), mDutyCycleShot);
+        onRecordingStarted();
     }
 
     private synchronized void onCaptureSessionConfigured(
             CameraCaptureSession session, int sessionTemplateType) {
         Log.d(TAG, "configured");
         mCaptureSession = session;
+        setRepeatingRequest(sessionTemplateType);
+    }
+
+    private void onRecordingStarted() {
+        if (mSettings.isMotionTrackEnabled()) {
+            mMotionRecorder.start(MotionRecorder.sidecarPath(mRecordingSessionFilepath),
+                    mCameraInfo.timestampRealtime);
+        }
+        // The encoder's parameter sets are added once it has produced them
+        mController.onRecordingStarted(new SessionJournal.Entry(mRecordingSessionFilepath,
+                System.currentTimeMillis(), getVideoWidth(), getVideoHeight(),
+                mSettings.getOutputFrameRate(), getVideoOrientation(),
+                mEncoder != null && mSettings.isFragmentedOutput(),
+                mEncoder != null && mSettings.areBFramesEnabled(), null, null));
+    }
+
+    public CaptureMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public int getState() {
+        return mController.getState();
+    }
+
+    private synchronized void setRepeatingRequest(int sessionTemplateType) {
         CaptureRequest.Builder previewRequestBuilder;
         try {
             previewRequestBuilder = mCamera.createCaptureRequest(sessionTemplateType);
@@ -262,34 +807,96 @@ public class TimeLapseCapture {
             return;
         }
 
-        previewRequestBuilder.addTarget(mPreviewSurface);
-        if (sessionTemplateType == CameraDevice.TEMPLATE_RECORD) {
-            previewRequestBuilder.addTarget(mVideo.getSurface());
+        stopPreviewRefresh();
+        long previewIntervalMs = mSettings.getRecordingPreviewIntervalMs();
+        boolean recording =
+                sessionTemplateType == CameraDevice.TEMPLATE_RECORD && mRecordingSurface != null;
+        if (recording) {
+            previewRequestBuilder.addTarget(mRecordingSurface);
+            if (mEncoder != null) {
+                Range<Integer> fpsRange = findFpsRange(mSettings.getCaptureRate());
+                if (fpsRange != null) {
+                    previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+                }
+            }
+        }
+
+        CaptureRequest request;
+        if (recording && previewIntervalMs > 0) {
+            request = previewRequestBuilder.build();
+            previewRequestBuilder.addTarget(mPreviewSurface);
+            mPreviewRefreshRequest = previewRequestBuilder.build();
+        } else {
+            previewRequestBuilder.addTarget(mPreviewSurface);
+            if (mIntervalImageReader != null && previewIntervalMs > 0) {
+                // Between interval shots the preview only keeps AE and AF settled
+                Range<Integer> fpsRange = findSlowestFpsRange();
+                if (fpsRange != null) {
+                    previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+                }
+            }
+            request = previewRequestBuilder.build();
         }
 
         try {
-            session.setRepeatingRequest(
-                    previewRequestBuilder.build(),
-                    mCaptureCallback, mBackgroundHandler);
+            mCaptureSession.setRepeatingRequest(request, mCaptureCallback, mCameraHandler);
             Log.d(TAG, "Set repeating request");
         } catch (CameraAccessException e) {
             throw new RuntimeException("Can't access the camera", e);
         }
-        mCreatingCaptureSession = false;
+        if (mPreviewRefreshRequest != null) {
+            mCameraScheduler.postDelayed(mPreviewRefresh, 0);
+        }
+    }
+
+    /**
+     * Sizes the preview's buffers for the capture session about to be built, smaller while
+     * recording unless the preview is kept in full.
+     */
+    private void sizePreviewBuffer(boolean recording) {
+        int[] size = { PREVIEW_WIDTH, PREVIEW_HEIGHT };
+        if (recording &&
+                mSettings.getRecordingPreview() != CaptureSettings.RECORDING_PREVIEW_FULL) {
+            size = mCameraInfo.findPreviewSize(PREVIEW_WIDTH, PREVIEW_HEIGHT,
+                    RECORDING_PREVIEW_MIN_HEIGHT);
+        }
+        mPreviewTexture.setDefaultBufferSize(size[0], size[1]);
+    }
+
+    private void stopPreviewRefresh() {
+        mCameraScheduler.removeCallbacks(mPreviewRefresh);
+        mPreviewRefreshRequest = null;
     }
 
-    public void open(Surface previewSurface, SimpleCallback callback) {
-        mPreviewSurface = previewSurface;
+    public void open(SurfaceTexture previewTexture, SimpleCallback callback) {
+        mPreviewTexture = previewTexture;
+        mPreviewTexture.setDefaultBufferSize(PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        mPreviewSurface = new Surface(previewTexture);
         mCameraReadyCallback = callback;
         mCameraReadyCallbackHandler = new Handler(Looper.myLooper());
 
-        mBackgroundHandler.post(new Runnable() {
+        mController.prepareStorage();
+        mCameraHandler.post(new Runnable() {
             @Override
             public void run() {
-                String rearCameraId = findRearCameraId();
+                mController.onOpening();
+                CameraInfo cameraInfo = mCameraInfoCache.get();
+                if (cameraInfo == null) {
+                    cameraInfo = probeCameraInfo();
+                    mCameraInfoCache.put(cameraInfo);
+                }
+
                 try {
-                    mCameraCharacteristics = mCameraManager.getCameraCharacteristics(rearCameraId);
-                    mCameraManager.openCamera(rearCameraId, mCameraStateCallback, mBackgroundHandler);
+                    try {
+                        mCameraInfo = cameraInfo;
+                        mCameraManager.openCamera(cameraInfo.cameraId, mCameraStateCallback, mCameraHandler);
+                    } catch (IllegalArgumentException e) {
+                        Log.d(TAG, "Cached camera " + cameraInfo.cameraId + " is gone, probing again.");
+                        mCameraInfoCache.invalidate();
+                        mCameraInfo = probeCameraInfo();
+                        mCameraInfoCache.put(mCameraInfo);
+                        mCameraManager.openCamera(mCameraInfo.cameraId, mCameraStateCallback, mCameraHandler);
+                    }
                 } catch (CameraAccessException e) {
                     throw new RuntimeException("Unable to access the camera.", e);
                 } catch (SecurityException e) {
@@ -300,115 +907,461 @@ public class TimeLapseCapture {
         });
     }
 
-    public void startRecording(SimpleCallback callback) {
-        mVideoRecorderStarted = callback;
-        mVideoRecorderStartedHandler = new Handler(Looper.myLooper());
+    /**
+     * Can be called in any state, the request is queued until the camera can act on it.
+     * The callback is posted to the calling thread once it has been acted on, with whether
+     * the capture is recording then. That's false if the recording failed to start.
+     */
+    public void startRecording(IsRecordingCallback callback) {
+        mController.startRecording(callback, new HandlerScheduler(new Handler(Looper.myLooper())));
+    }
 
-        if (mCreatingCaptureSession) {
-            throw new RuntimeException("Invalid recording state.");
-        }
+    /**
+     * Like {@link #startRecording(IsRecordingCallback)}, the callback is told whether the
+     * capture is still recording once the stop has been acted on.
+     */
+    public void stopRecording(IsRecordingCallback callback) {
+        mController.stopRecording(callback, new HandlerScheduler(new Handler(Looper.myLooper())));
+    }
 
-        mBackgroundHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                createRecordingCaptureSession();
-            }
-        });
+    @TargetApi(Build.VERSION_CODES.M)
+    private void armPersistentEncoder() {
+        if (mPersistentSurface == null) {
+            mPersistentSurface = MediaCodec.createPersistentInputSurface();
+        }
+        setupCodecRecorder();
     }
 
-    public void stopRecording(final SimpleCallback callback) {
-        mVideoRecorderStopped = callback;
-        mVideoRecorderStoppedHandler = new Handler(Looper.myLooper());
+    private boolean canUsePersistentSession() {
+        if (!mSettings.isPersistentSession()) {
+            return false;
+        }
 
-        if (mCreatingCaptureSession) {
-            throw new RuntimeException("Invalid stopping state.");
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Log.d(TAG, "Persistent sessions need Android M, rebuilding sessions instead.");
+            return false;
         }
+        return mSettings.getCaptureMode() == CaptureSettings.CAPTURE_MODE_CONTINUOUS &&
+                mSettings.getEncoder() == CaptureSettings.ENCODER_MEDIA_CODEC && !needsFrames() &&
+                !mSettings.isThrottleEnabled();
+    }
 
-        mBackgroundHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    mCaptureSession.stopRepeating();
-                } catch (CameraAccessException e) {
-                    e.printStackTrace();
+    private boolean needsFrames() {
+        return mSettings.isMotionFilterEnabled() || mSettings.hasExtraOutputs() || isStacking();
+    }
+
+    private boolean isStacking() {
+        return mSettings.getStackFrames() > 1 && !mSettings.isDutyCycled();
+    }
+
+    private synchronized void startPersistentRecording() {
+        mEncoder.setOutputPath(mRecordingSessionFilepath);
+        mController.startOutput(new CodecOutput());
+        mRecordingSurface = mPersistentSurface;
+        setRepeatingRequest(CameraDevice.TEMPLATE_RECORD);
+        onRecordingStarted();
+    }
+
+    private void releaseEncoder() {
+        final VideoEncoder encoder = mEncoder;
+        final EncoderOutput[] extraOutputs = mExtraOutputs;
+        final FrameStacker stacker = mFrameStacker;
+        if (encoder != null) {
+            // Behind whatever frames are still queued for it
+            mEncodeStage.runAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    // Hands any leftover frames back to the pool
+                    encodePendingFrames(null);
+                    encoder.release();
+                    if (stacker != null) {
+                        stacker.release();
+                    }
+                    for (EncoderOutput output : extraOutputs) {
+                        output.release();
+                    }
                 }
+            });
+            mEncoder = null;
+            mExtraOutputs = new EncoderOutput[0];
+            mFrameStacker = null;
+        }
 
-                try {
-                    stopRecordingSync();
-                } catch (RuntimeException e) {
-                    Log.d(TAG, "Nothing was recorded");
+        if (mIntervalImageReader != null) {
+            mIntervalImageReader.close();
+            mIntervalImageReader = null;
+        }
+        mIntervalBurst = null;
+        mIntervalRequest = null;
+        mRecordingSurface = null;
+    }
+
+    private synchronized void buildIntervalRequests() {
+        CaptureRequest.Builder intervalRequestBuilder;
+        try {
+            intervalRequestBuilder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+        } catch (CameraAccessException e) {
+            throw new RuntimeException("Can't access the camera", e);
+        }
+        intervalRequestBuilder.addTarget(mPreviewSurface);
+        intervalRequestBuilder.addTarget(mRecordingSurface);
+        mIntervalRequest = intervalRequestBuilder.build();
+        // Every shot is a burst of frames to stack
+        mIntervalBurst = mFrameStacker != null ?
+                Collections.nCopies(mFrameStacker.getFrames(), mIntervalRequest) : null;
+    }
+
+    /**
+     * Runs on the encode stage. Frames for an encoder that's already gone are just dropped.
+     */
+    private void encodePendingFrames(VideoEncoder encoder) {
+        FramePool.Frame frame;
+        while ((frame = mFramesToEncode.poll()) != null) {
+            try {
+                if (encoder == null) {
+                    continue;
                 }
 
-                mCurrentlyRecording = false;
-                Log.d(TAG, "Video recorder stopped.");
+                FrameStacker stacker = mFrameStacker;
+                FramePool.Frame stacked = stacker != null ? stacker.add(frame) : frame;
+                if (stacked != null) {
+                    encodeFrame(encoder, stacked);
+                }
+            } finally {
+                frame.release();
+            }
+        }
+    }
 
-                createPreviewCaptureSession();
+    /**
+     * Runs on the encode stage, after any stacking.
+     */
+    private void encodeFrame(VideoEncoder encoder, FramePool.Frame frame) {
+        MotionFilter motionFilter = mMotionFilter;
+        if (motionFilter == null || motionFilter.shouldKeep(frame.planes[0],
+                frame.width, frame.height, frame.getRowStride(0))) {
+            encoder.encodeFrame(frame);
+            mMotionRecorder.onFrame(frame.getTimestampNs());
+            for (EncoderOutput output : mExtraOutputs) {
+                output.offer(frame);
             }
-        });
+        } else {
+            mMetrics.onFrameSkipped();
+        }
     }
 
-    private void stopRecordingSync() {
-        mVideo.stop();
-        ContentValues values = new ContentValues(5);
-        values.put(MediaStore.MediaColumns.HEIGHT, mRecordingSessionProfile.videoFrameHeight);
-        values.put(MediaStore.MediaColumns.WIDTH, mRecordingSessionProfile.videoFrameWidth);
-        values.put(MediaStore.Video.Media.RESOLUTION,
-                mRecordingSessionProfile.videoFrameWidth + "x" + mRecordingSessionProfile.videoFrameHeight);
-        values.put(MediaStore.MediaColumns.DATA, mRecordingSessionFilepath);
-        values.put(MediaStore.Video.Media.MIME_TYPE, "video/mp4");
+    /**
+     * One drain picks up everything that's ready, so there's never a need to queue two. If
+     * the stage is full the work is picked up by the next one.
+     */
+    private void scheduleDrain() {
+        if (mDrainScheduled.compareAndSet(false, true) && !mEncodeStage.offer(mDrainEncoder)) {
+            mDrainScheduled.set(false);
+        }
+    }
 
-        Uri mediaTable = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
-        Uri contentUri = mContentResolver.insert(mediaTable, values);
-        if (contentUri == null) {
-            String query = MediaStore.MediaColumns.DATA + " = '" + mRecordingSessionFilepath + "'";
-            mContentResolver.update(mediaTable, values, query, null);
-            Cursor result = mContentResolver.query(mediaTable, new String[]{"_id"}, query, null, null);
-            result.moveToFirst();
-            String id = result.getString(0);
-            result.close();
+    /**
+     * Where the capture ends up when the camera is lost or closed. A recording under way is
+     * finished as far as it can be, everything set up for one is released, the camera is
+     * closed, and every command fails. Runs on the camera handler.
+     */
+    private void tearDown() {
+        if (mDutyCycling) {
+            endDutyCycle();
+        }
+        stopPreviewRefresh();
+        mController.tearDown();
+        if (mPersistentSurface != null) {
+            mPersistentSurface.release();
+            mPersistentSurface = null;
+        }
+        mPersistentSession = false;
+        mCameraClosedForRecording = false;
 
-            contentUri = mediaTable.buildUpon().appendPath(id).build();
+        if (mCamera != null) {
+            mCamera.close();
+            mCamera = null;
         }
+        mCaptureSession = null;
+    }
 
-        mContentResolver.update(contentUri, values, null, null);
+    private void addToMediaStore(String filepath) {
+        mIndexer.index(filepath, getVideoWidth(), getVideoHeight());
     }
 
-    private void setupVideoRecorder() {
-        mVideo = new MediaRecorder();
-        mVideo.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-        mVideo.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-        mVideo.setCaptureRate(15);
+    private Range<Integer> findFpsRange(int fps) {
+        return mCameraInfo.hasFixedFpsRange(fps) ? Range.create(fps, fps) : null;
+    }
+
+    private Range<Integer> findSlowestFpsRange() {
+        int[] range = mCameraInfo.findSlowestFpsRange();
+        return range != null ? Range.create(range[0], range[1]) : null;
+    }
 
-        int videoOrientation = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION) - 90;
-        int deviceRotation = mDefaultDisplay.getRotation();
-        if (deviceRotation == Surface.ROTATION_270) {
-            videoOrientation = (videoOrientation + 180) % 360;
+    private int getVideoOrientation() {
+        return VideoMath.videoOrientation(mCameraInfo.sensorOrientation,
+                mDefaultDisplay.getRotation() == Surface.ROTATION_270);
+    }
+
+    private int getVideoBitRate(int frameRate) {
+        if (mSettings.getVideoBitRate() > 0) {
+            return mSettings.getVideoBitRate();
         }
+        int bitRate = VideoMath.scaleBitRate(mCameraInfo.videoBitRate,
+                mCameraInfo.videoFrameRate, frameRate);
+        return isStacking() ?
+                VideoMath.scaleBitRateForStack(bitRate, mSettings.getStackFrames()) : bitRate;
+    }
 
-        mRecordingSessionProfile = CamcorderProfile.get(CamcorderProfile.QUALITY_1080P);
-        mVideo.setOrientationHint(videoOrientation);
-        mVideo.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-        double log2FrameRateRatio = Math.log10(VIDEO_FPS / mRecordingSessionProfile.videoFrameRate) / Math.log10(2);
-        double bitrateChangeRatio = Math.pow(1.5, log2FrameRateRatio);
-        mVideo.setVideoEncodingBitRate((int) (mRecordingSessionProfile.videoBitRate * bitrateChangeRatio));
-        mVideo.setVideoFrameRate(VIDEO_FPS);
-        mVideo.setVideoSize(mRecordingSessionProfile.videoFrameWidth, mRecordingSessionProfile.videoFrameHeight);
+    private int getVideoHeight() {
+        ThrottleLadder ladder = mController.getThrottleLadder();
+        return ladder != null ? ladder.getHeight(mController.getThrottleLevel()) :
+                mCameraInfo.videoHeight;
+    }
+
+    private int getVideoWidth() {
+        ThrottleLadder ladder = mController.getThrottleLadder();
+        return ladder != null ? ladder.getWidth(mController.getThrottleLevel()) :
+                mCameraInfo.videoWidth;
+    }
+
+    /**
+     * The steps the recording about to start can be throttled through, or null if it isn't
+     * throttled.
+     */
+    private ThrottleLadder newThrottleLadder() {
+        if (!mSettings.isThrottleEnabled()) {
+            return null;
+        }
 
-        mRecordingSessionFilepath = STORAGE_DIR + "/" + generateFilename();
-        File storageDir = new File(STORAGE_DIR);
-        if (!storageDir.exists()) {
-            storageDir.mkdir();
-        } else if (storageDir.isFile()) {
-            storageDir.delete();
-            storageDir.mkdir();
+        int bitRate = getVideoBitRate(mSettings.getOutputFrameRate());
+        int minBitRate = mSettings.getThrottleMinBitRate() > 0 ?
+                Math.min(bitRate, mSettings.getThrottleMinBitRate()) :
+                bitRate / RecordingController.MIN_BITRATE_DIVISOR;
+        boolean intervalMode = mSettings.getCaptureMode() == CaptureSettings.CAPTURE_MODE_INTERVAL;
+        if (!intervalMode && !needsFrames() &&
+                mSettings.getEncoder() == CaptureSettings.ENCODER_MEDIA_RECORDER) {
+            // MediaRecorder can't change its bitrate once it's going
+            minBitRate = bitRate;
         }
 
+        // Duty cycled shots are timed by their own scheduler
+        long intervalMs = intervalMode && !mSettings.isDutyCycled() ?
+                mSettings.getCaptureIntervalMs() : 0;
+        long maxIntervalMs = mSettings.getThrottleMaxCaptureIntervalMs() > 0 ?
+                mSettings.getThrottleMaxCaptureIntervalMs() :
+                Math.min(intervalMs * 4, CaptureSettings.MAX_CAPTURE_INTERVAL_MS);
+        return new ThrottleLadder(bitRate, minBitRate, intervalMs, maxIntervalMs,
+                mCameraInfo.videoWidth, mCameraInfo.videoHeight, mCameraInfo.videoSizes,
+                mSettings.getThrottleMinVideoHeight());
+    }
+
+    private void setupCodecRecorder() {
+        mEncoder = new VideoEncoder(getVideoWidth(), getVideoHeight(), mController.getThrottledBitRate(),
+                getVideoOrientation(), mRecordingSessionFilepath, mSettings);
+        try {
+            mEncoder.prepare(true);
+        } catch (IOException e) {
+            releaseEncoder();
+            throw new RuntimeException("Unable to prepare the video encoder.", e);
+        }
+        mEncoder.setSegmentLimits(mSettings.getSegmentMaxDurationMs(),
+                mSettings.getSegmentMaxBytes(), mRecordingSession);
+        mEncoder.setInputFrameIntervalUs(1000000L / mSettings.getCaptureRate());
+        if (mPersistentSession) {
+            mEncoder.usePersistentInputSurface(mPersistentSurface);
+        } else {
+            mRecordingSurface = mEncoder.createInputSurface();
+        }
+    }
+
+    /**
+     * Longest time between frames of one stack. An interval shot's burst comes well within
+     * half an interval, a continuous capture's frames never stop coming.
+     */
+    private long getStackGapNs() {
+        if (mSettings.getCaptureMode() == CaptureSettings.CAPTURE_MODE_INTERVAL) {
+            return mSettings.getCaptureIntervalMs() * 1000000L / 2;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private void setupIntervalRecorder() {
+        int width = getVideoWidth();
+        int height = getVideoHeight();
+
+        // Images are copied out and closed straight away, so the reader never holds many
+        mIntervalImageReader = ImageReader.newInstance(width, height,
+                ImageFormat.YUV_420_888, INTERVAL_MAX_IMAGES);
+        if (mFramePool == null || !mFramePool.matches(width, height)) {
+            mFramePool = new FramePool(FRAME_POOL_SIZE, width, height);
+        }
+        setupExtraOutputs(width, height);
+        mMotionFilter = mSettings.isMotionFilterEnabled() ?
+                new MotionFilter(mSettings.getMotionThreshold(), mSettings.getMotionMaxGapFrames()) :
+                null;
+        // Stacking runs on the encode stage, which hands each pass's bands out to a core apiece
+        mFrameStacker = isStacking() ? new FrameStacker(width, height, mSettings.getStackFrames(),
+                getStackGapNs(), Runtime.getRuntime().availableProcessors()) : null;
+        mIntervalImageReader.setOnImageAvailableListener(mIntervalImageListener, mCameraHandler);
+        mRecordingSurface = mIntervalImageReader.getSurface();
+        mEncoder = new VideoEncoder(width, height, mController.getThrottledBitRate(), getVideoOrientation(),
+                mRecordingSessionFilepath, mSettings);
+        try {
+            mEncoder.prepare(false);
+        } catch (IOException e) {
+            releaseEncoder();
+            throw new RuntimeException("Unable to prepare the interval encoder.", e);
+        }
+        mEncoder.setSegmentLimits(mSettings.getSegmentMaxDurationMs(),
+                mSettings.getSegmentMaxBytes(), mRecordingSession);
+    }
+
+    private void setupExtraOutputs(int width, int height) {
+        List<CaptureSettings.ExtraOutput> specs = mSettings.getExtraOutputs();
+        EncoderOutput[] outputs = new EncoderOutput[specs.size()];
+        String basePath = RecordingNames.basePath(mRecordingSessionFilepath);
+        int mainBitRate = mController.getThrottledBitRate();
+        for (int i = 0; i < outputs.length; i++) {
+            CaptureSettings.ExtraOutput spec = specs.get(i);
+            int bitRate = spec.getBitRate() > 0 ? spec.getBitRate() :
+                    VideoMath.scaleBitRateToSize(mainBitRate, spec.getWidth(), spec.getHeight(),
+                            width, height);
+            String path = RecordingNames.extraOutput(basePath, i + 1, spec.getWidth(),
+                    spec.getHeight());
+            outputs[i] = new EncoderOutput(spec, width, height, bitRate, getVideoOrientation(),
+                    path, mSettings, mIndexer);
+            try {
+                outputs[i].prepare();
+            } catch (IOException e) {
+                for (int j = 0; j <= i; j++) {
+                    outputs[j].release();
+                }
+                throw new RuntimeException("Unable to prepare output " + (i + 1) + ".", e);
+            }
+        }
+        mExtraOutputs = outputs;
+    }
+
+    private void setupVideoRecorder() {
+        if (mSettings.isSegmentingEnabled()) {
+            Log.d(TAG, "MediaRecorder can't segment, recording to a single file.");
+        }
+        if (mSettings.isFragmentedOutput()) {
+            Log.d(TAG, "MediaRecorder can't write fragmented files, using a regular MP4.");
+        }
+
+        mVideo = new MediaRecorder();
+        mVideo.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        mVideo.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+        mVideo.setCaptureRate(mSettings.getCaptureRate());
+
+        mVideo.setOrientationHint(getVideoOrientation());
+        mVideo.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
+        mVideo.setVideoEncodingBitRate(mController.getThrottledBitRate());
+        mVideo.setVideoFrameRate(mSettings.getOutputFrameRate());
+        mVideo.setVideoSize(getVideoWidth(), getVideoHeight());
         mVideo.setOutputFile(mRecordingSessionFilepath);
         try {
             mVideo.prepare();
         } catch (IOException e) {
             throw new RuntimeException("Unable to prepare the video recorder.", e);
         }
+        mRecordingSurface = mVideo.getSurface();
+    }
+
+    /**
+     * A recording encoded by {@link VideoEncoder}, along with any extra outputs and stacking.
+     */
+    private class CodecOutput implements RecordingController.Output {
+        private final VideoEncoder mCodec = mEncoder;
+        private final EncoderOutput[] mOutputs = mExtraOutputs;
+        private final FrameStacker mStacker = mFrameStacker;
+
+        @Override
+        public long getWrittenBytes() {
+            return mCodec.getWrittenBytes();
+        }
+
+        @Override
+        public boolean isAdjustable() {
+            return true;
+        }
+
+        @Override
+        public void requestRollOver() {
+            mCodec.requestRollOver();
+        }
+
+        @Override
+        public void setBitRate(int bitRate) {
+            mCodec.setBitRate(bitRate);
+        }
+
+        @Override
+        public void start() {
+            mCodec.start();
+            for (EncoderOutput output : mOutputs) {
+                output.start();
+            }
+        }
+
+        @Override
+        public void stop() {
+            encodePendingFrames(mCodec);
+            // A burst cut short by the stop still makes a frame
+            FramePool.Frame stacked = mStacker != null ? mStacker.flush() : null;
+            if (stacked != null) {
+                encodeFrame(mCodec, stacked);
+            }
+            try {
+                mCodec.stop();
+            } finally {
+                for (EncoderOutput output : mOutputs) {
+                    output.stop();
+                }
+            }
+        }
+    }
+
+    /**
+     * A recording made by MediaRecorder, which can't be retuned or split once it's going.
+     */
+    private class MediaRecorderOutput implements RecordingController.Output {
+        private final String mPath;
+        private final MediaRecorder mRecorder;
+
+        MediaRecorderOutput(MediaRecorder recorder, String path) {
+            mRecorder = recorder;
+            mPath = path;
+        }
+
+        @Override
+        public long getWrittenBytes() {
+            return new File(mPath).length();
+        }
+
+        @Override
+        public boolean isAdjustable() {
+            return false;
+        }
+
+        @Override
+        public void requestRollOver() { }
+
+        @Override
+        public void setBitRate(int bitRate) { }
+
+        @Override
+        public void start() {
+            mRecorder.start();
+        }
+
+        @Override
+        public void stop() {
+            mRecorder.stop();
+            addToMediaStore(mPath);
+        }
     }
 
     public interface SimpleCallback {
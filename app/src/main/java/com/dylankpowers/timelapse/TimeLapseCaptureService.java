@@ -3,28 +3,232 @@ package com.dylankpowers.timelapse;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.SurfaceTexture;
+import android.hardware.SensorManager;
 import android.hardware.camera2.CameraManager;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Display;
-import android.view.Surface;
 import android.view.WindowManager;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 
 public class TimeLapseCaptureService extends Service {
     private static final String TAG = "TimeLapseCaptureService";
+    private static final long METRICS_LOG_INTERVAL_MS = 60 * 1000;
+    private static final String CAMERA_INFO_CACHE_FILE = "camera_info.bin";
+    private static final String RECORDINGS_INDEX_FILE = "recordings.idx";
+    private static final String SESSION_JOURNAL_FILE = "session.journal";
+    private static final int ENCODE_QUEUE_CAPACITY = 2;
+    private static final int EXPORT_QUEUE_CAPACITY = 4;
+    private static final int IO_QUEUE_CAPACITY = 16;
 
-    private HandlerThread mBackgroundThread;
     private final IBinder mBinder = new ServiceBinder();
+    private Handler mCameraHandler;
+    private CameraInfoCache mCameraInfoCache;
+    private HandlerThread mCameraThread;
     private TimeLapseCapture mCapture;
+    private DutyCycleScheduler mDutyCycleScheduler;
+    private PipelineStage mEncodeStage;
+    private PipelineStage mExportStage;
+    private MediaStoreIndexer mIndexer;
+    private PipelineStage mIoStage;
+    private PowerGovernor mPowerGovernor;
+    private RecordingsIndex mRecordingsIndex;
+    private volatile ExportJob mRunningExport;
+    private final CaptureSettings mSettings = new CaptureSettings();
+    private StorageMonitor mStorageMonitor;
+
+    private final Runnable mLogMetrics = new Runnable() {
+        @Override
+        public void run() {
+            if (mCapture.getState() == TimeLapseCapture.STATE_RECORDING) {
+                Log.i(TAG, "Capture metrics: " + getMetricsSnapshot());
+                Log.i(TAG, "Stages: " + mEncodeStage + ", " + mIoStage);
+                Log.i(TAG, "Storage: " + mStorageMonitor);
+                if (mSettings.isThrottleEnabled()) {
+                    Log.i(TAG, "Power: " + mPowerGovernor);
+                }
+            }
+            mCameraHandler.postDelayed(this, METRICS_LOG_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Stops the export or transcode in progress, which then reports that it failed. Anything
+     * queued behind it still runs.
+     */
+    public void cancelExport() {
+        ExportJob running = mRunningExport;
+        if (running != null) {
+            running.cancel();
+        }
+    }
 
     public void closeCamera() {
         mCapture.close();
     }
 
+    /**
+     * Joins a segmented recording into {@code output} without re-encoding it, on a stage of
+     * its own so a long export never holds up the I/O of a recording in progress. The
+     * segments are found by following the recordings index back from {@code lastRecord},
+     * which has to be finished. A damaged link in the chain fails the export rather than
+     * leaving out the segments before it.
+     */
+    public void exportRecording(final int lastRecord, final File output,
+                                ExportCallback callback) {
+        submitExport(new ExportJob(callback) {
+            @Override
+            boolean export() {
+                try {
+                    RecordingsIndex.Entry entry = new RecordingsIndex.Entry();
+                    List<File> segments = findSegments(lastRecord, entry);
+                    int samples = SegmentExporter.export(segments, output);
+                    Log.i(TAG, "Exported " + samples + " frames from " + segments.size() +
+                            " segments to " + output);
+                    mIndexer.index(output.getPath(), entry.width, entry.height);
+                    return true;
+                } catch (IOException e) {
+                    // Includes the channel closing under an interrupt from onDestroy
+                    Log.e(TAG, "Unable to export recording " + lastRecord, e);
+                } catch (RuntimeException e) {
+                    // A malformed segment mustn't take the export stage down with it
+                    Log.e(TAG, "Unable to export recording " + lastRecord, e);
+                }
+                deleteFailedExport(output);
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Queues an export without ever waiting for room, failing it straight away if the
+     * export stage is already full.
+     */
+    private void submitExport(ExportJob job) {
+        if (!mExportStage.offer(job)) {
+            Log.w(TAG, "Export queue full, dropping export.");
+            job.report(false);
+        }
+    }
+
+    private static void deleteFailedExport(File output) {
+        if (output.exists() && !output.delete()) {
+            Log.w(TAG, "Unable to delete " + output);
+        }
+    }
+
+    /**
+     * Follows a recording's segments back from its last record.
+     *
+     * @param entry left holding the last record
+     * @return the segments' files, first segment first
+     * @throws IOException if the last record is still being recorded, or a record in the
+     *         chain is missing or damaged
+     */
+    private List<File> findSegments(int lastRecord, RecordingsIndex.Entry entry)
+            throws IOException {
+        if (!mRecordingsIndex.read(lastRecord, entry)) {
+            throw new IOException("No record " + lastRecord + " in the recordings index");
+        }
+        if (entry.status == RecordingsIndex.STATUS_RECORDING) {
+            throw new IOException("Record " + lastRecord + " is still recording");
+        }
+
+        ArrayList<File> segments = new ArrayList<File>();
+        segments.add(new File(entry.getPath()));
+        RecordingsIndex.Entry previous = new RecordingsIndex.Entry();
+        for (int record = entry.previous, next = lastRecord; record >= 0;
+             next = record, record = previous.previous) {
+            // Segments are always indexed after the one before them, anything else is a loop
+            if (record >= next || !mRecordingsIndex.read(record, previous)) {
+                throw new IOException("Broken link from record " + next + " to " + record);
+            }
+            segments.add(new File(previous.getPath()));
+        }
+        Collections.reverse(segments);
+        return segments;
+    }
+
+    /**
+     * Speeds up a video recorded in real time into a time-lapse at {@code output}, with the
+     * current output settings. Shares the export stage, so transcodes and exports run one
+     * at a time.
+     *
+     * @param speedUp how many times faster than real time the output plays
+     * @param bitRate bits per second of output video
+     */
+    public void transcodeVideo(final File source, final File output, final int speedUp,
+                               final int bitRate, final ExportCallback callback) {
+        final CaptureSettings settings = new CaptureSettings();
+        settings.setOutputFrameRate(mSettings.getOutputFrameRate());
+        settings.setKeyFrameIntervalSeconds(mSettings.getKeyFrameIntervalSeconds());
+        settings.setBitRateMode(mSettings.getBitRateMode());
+        settings.setBFramesEnabled(mSettings.areBFramesEnabled());
+        submitExport(new ExportJob(callback) {
+            private final TimeLapseTranscoder mTranscoder =
+                    new TimeLapseTranscoder(source, output, speedUp, bitRate, settings);
+
+            @Override
+            void cancel() {
+                mTranscoder.cancel();
+            }
+
+            @Override
+            boolean export() {
+                try {
+                    int frames = mTranscoder.transcode();
+                    Log.i(TAG, "Transcoded " + source + " into " + frames + " frames at " +
+                            output);
+                    mIndexer.index(output.getPath(), mTranscoder.getWidth(),
+                            mTranscoder.getHeight());
+                    return true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to transcode " + source, e);
+                } catch (RuntimeException e) {
+                    // Codecs fail with unchecked exceptions of their own
+                    Log.e(TAG, "Unable to transcode " + source, e);
+                }
+                deleteFailedExport(output);
+                return false;
+            }
+        });
+    }
+
+    public CaptureMetrics.Snapshot getMetricsSnapshot() {
+        return mCapture.getMetrics().snapshot();
+    }
+
+    /**
+     * Queue depths of the encode and I/O stages, for spotting which one is falling behind.
+     */
+    public String getStageStats() {
+        return mEncodeStage + ", " + mIoStage;
+    }
+
+    /**
+     * Every file recorded so far, readable from any thread.
+     */
+    RecordingsIndex getRecordingsIndex() {
+        return mRecordingsIndex;
+    }
+
+    public CaptureSettings getSettings() {
+        return mSettings;
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -36,6 +240,55 @@ public class TimeLapseCaptureService extends Service {
         return START_STICKY;
     }
 
+    public interface ExportCallback {
+        void onExported(boolean success);
+    }
+
+    /**
+     * An export or transcode, which reports back on the thread that asked for it.
+     */
+    private abstract class ExportJob implements Runnable {
+        private final ExportCallback mCallback;
+        private final Handler mCallbackHandler = new Handler(Looper.myLooper());
+
+        ExportJob(ExportCallback callback) {
+            mCallback = callback;
+        }
+
+        /**
+         * Runs on the export stage.
+         *
+         * @return whether the output was written
+         */
+        abstract boolean export();
+
+        /**
+         * Asks a running export to stop early, from any thread. Exports that only do I/O
+         * are stopped by the export stage's interrupt instead.
+         */
+        void cancel() {
+        }
+
+        void report(final boolean success) {
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onExported(success);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            mRunningExport = this;
+            try {
+                report(export());
+            } finally {
+                mRunningExport = null;
+            }
+        }
+    }
+
     public class ServiceBinder extends Binder {
         TimeLapseCaptureService getService() {
             return TimeLapseCaptureService.this;
@@ -47,35 +300,82 @@ public class TimeLapseCaptureService extends Service {
         Log.d(TAG, "Created");
         CameraManager cMan = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
         Display defaultDisplay = ((WindowManager) getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
-        mBackgroundThread = new HandlerThread("TimeLapseCaptureBackground");
-        mBackgroundThread.start();
-        Handler backgroundHandler = new Handler(mBackgroundThread.getLooper());
-        mCapture = new TimeLapseCapture(cMan, backgroundHandler,
-                defaultDisplay, getContentResolver());
+        mCameraThread = new HandlerThread("TimeLapseCamera");
+        mCameraThread.start();
+        mCameraHandler = new Handler(mCameraThread.getLooper());
+        mEncodeStage = new PipelineStage("TimeLapseEncode", ENCODE_QUEUE_CAPACITY);
+        mIoStage = new PipelineStage("TimeLapseIO", IO_QUEUE_CAPACITY);
+        mExportStage = new PipelineStage("TimeLapseExport", EXPORT_QUEUE_CAPACITY);
+        mIndexer = new MediaStoreIndexer(getContentResolver(), mIoStage);
+        mCameraInfoCache = new CameraInfoCache(
+                new File(getFilesDir(), CAMERA_INFO_CACHE_FILE), Build.FINGERPRINT);
+        mDutyCycleScheduler = new DutyCycleScheduler(this, mCameraHandler);
+        MotionRecorder motionRecorder = new MotionRecorder(
+                (SensorManager) getSystemService(Context.SENSOR_SERVICE), mIoStage);
+        mRecordingsIndex = new RecordingsIndex(new File(getFilesDir(), RECORDINGS_INDEX_FILE));
+        SessionJournal journal = new SessionJournal(new File(getFilesDir(), SESSION_JOURNAL_FILE));
+        // Queued first, so it's done before anything new is journaled
+        mIoStage.put(new RecordingRecovery(journal, mRecordingsIndex, mIndexer));
+        mStorageMonitor = new StorageMonitor(new HandlerScheduler(mCameraHandler), Clock.SYSTEM,
+                StorageMonitor.SpaceProbe.FILE_SYSTEM, mIoStage, findSecondaryVolumes());
+        mPowerGovernor = new PowerGovernor(new HandlerScheduler(mCameraHandler), Clock.SYSTEM,
+                new PowerGovernor.BatteryProbe(this));
+        mCapture = new TimeLapseCapture(cMan, mCameraHandler, mEncodeStage, mIoStage,
+                defaultDisplay, mIndexer, mSettings, mCameraInfoCache, mDutyCycleScheduler,
+                motionRecorder, mStorageMonitor, mPowerGovernor, mRecordingsIndex, journal);
+        mCameraHandler.postDelayed(mLogMetrics, METRICS_LOG_INTERVAL_MS);
     }
 
     @Override
     public void onDestroy() {
         Log.d(TAG, "Destroyed");
-        mBackgroundThread.quitSafely();
+        mCameraHandler.removeCallbacks(mLogMetrics);
+        mCameraThread.quitSafely();
         try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
+            mCameraThread.join();
+            mCameraThread = null;
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+
+        // Upstream first, so everything the encoder finishes still gets indexed
+        mEncodeStage.shutdown();
+        // Exports can run for minutes, so they're called off rather than waited on
+        cancelExport();
+        for (Runnable dropped : mExportStage.shutdownNow()) {
+            ((ExportJob) dropped).report(false);
+        }
+        mIndexer.flush();
+        mIoStage.shutdown();
+        mRecordingsIndex.close();
+    }
+
+    /**
+     * App directories on removable volumes, somewhere to go when the primary one fills up.
+     * The first entry is always the primary volume, where recordings start out anyway.
+     */
+    private File[] findSecondaryVolumes() {
+        File[] dirs = getExternalFilesDirs(Environment.DIRECTORY_MOVIES);
+        ArrayList<File> volumes = new ArrayList<File>();
+        for (int i = 1; i < dirs.length; i++) {
+            // Null for volumes that aren't mounted
+            if (dirs[i] != null) {
+                volumes.add(dirs[i]);
+            }
+        }
+        return volumes.toArray(new File[volumes.size()]);
     }
 
-    public void openCamera(final Surface previewSurface,
+    public void openCamera(final SurfaceTexture previewTexture,
                            final TimeLapseCapture.SimpleCallback callback) {
-        mCapture.open(previewSurface, callback);
+        mCapture.open(previewTexture, callback);
     }
 
-    public void startRecording(TimeLapseCapture.SimpleCallback callback) {
+    public void startRecording(TimeLapseCapture.IsRecordingCallback callback) {
         mCapture.startRecording(callback);
     }
 
-    public void stopRecording(TimeLapseCapture.SimpleCallback callback) {
+    public void stopRecording(TimeLapseCapture.IsRecordingCallback callback) {
         mCapture.stopRecording(callback);
     }
 }
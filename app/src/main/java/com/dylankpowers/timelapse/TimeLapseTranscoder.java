@@ -0,0 +1,504 @@
+package com.dylankpowers.timelapse;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes a time-lapse out of a video that was recorded in real time. Only the source frames
+ * the time-lapse shows are decoded, going by a {@link TranscodePlan}: with dense enough key
+ * frames each output frame is a single key frame seeked to directly, otherwise decoding
+ * seeks over every group of pictures it doesn't need.
+ *
+ * Several decoders, each with its own extractor and stage, work through the source at
+ * once while the calling thread encodes what they produce, in order, through a
+ * {@link VideoEncoder}. Every decoder hands frames over through a small pool, so one that
+ * gets ahead of the encoder waits instead of buffering the whole video.
+ *
+ * {@link #transcode()} blocks until it's done, run it on a stage of its own. A transcoder
+ * only transcodes once.
+ */
+class TimeLapseTranscoder {
+    private static final String TAG = "TimeLapseTranscoder";
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+    // Frames a decoder may hold for the encoder, a 1080p frame is 3MB
+    private static final int MAX_DECODER_BUFFER_BYTES = 32 * 1024 * 1024;
+    private static final int MAX_DECODERS = 2;
+    private static final long POLL_INTERVAL_MS = 100;
+    private static final String ROTATION = "rotation-degrees";
+    private static final int SYNC_PROBES = 4;
+
+    private final int mBitRate;
+    private volatile boolean mCancelled = false;
+    private int mHeight;
+    private final File mOutput;
+    private final CaptureSettings mSettings;
+    private final File mSource;
+    private final int mSpeedUp;
+    private int mWidth;
+
+    /**
+     * @param speedUp how many times faster than real time the output plays
+     * @param settings output frame rate, key frame interval, bitrate mode and file layout
+     */
+    TimeLapseTranscoder(File source, File output, int speedUp, int bitRate,
+                        CaptureSettings settings) {
+        mSource = source;
+        mOutput = output;
+        mSpeedUp = speedUp;
+        mBitRate = bitRate;
+        mSettings = settings;
+    }
+
+    /**
+     * Stops a transcode in progress from any thread, {@link #transcode()} then fails.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Creates as many decoders as the codec allows, at least one.
+     *
+     * @return how many were created
+     */
+    private int createDecoders(Decoder[] decoders, int poolSize, int width, int height)
+            throws IOException {
+        for (int i = 0; i < decoders.length; i++) {
+            try {
+                decoders[i] = new Decoder(i, poolSize, width, height);
+            } catch (IOException e) {
+                if (i == 0) {
+                    throw e;
+                }
+                return i;
+            } catch (RuntimeException e) {
+                // Codecs refuse another instance with a CodecException
+                if (i == 0) {
+                    throw e;
+                }
+                return i;
+            }
+        }
+        return decoders.length;
+    }
+
+    /**
+     * Height of the output, once {@link #transcode()} has returned.
+     */
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Width of the output, once {@link #transcode()} has returned.
+     */
+    int getWidth() {
+        return mWidth;
+    }
+
+    private static int findVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private MediaExtractor openSource() throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(mSource.getPath());
+        } catch (IOException e) {
+            extractor.release();
+            throw e;
+        }
+
+        int track = findVideoTrack(extractor);
+        if (track < 0) {
+            extractor.release();
+            throw new IOException(mSource + " has no video track.");
+        }
+        extractor.selectTrack(track);
+        return extractor;
+    }
+
+    /**
+     * Longest gap between key frames at a few points through the source, found by seeking
+     * alone so nothing has to be decoded.
+     *
+     * @return the gap, or 0 if it couldn't be told
+     */
+    private static long probeSyncIntervalUs(MediaExtractor extractor, long durationUs) {
+        long longestUs = 0;
+        for (int i = 1; i <= SYNC_PROBES; i++) {
+            long timeUs = durationUs * i / (SYNC_PROBES + 1);
+            extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            long previousUs = extractor.getSampleTime();
+            if (previousUs < 0) {
+                continue;
+            }
+            extractor.seekTo(previousUs + 1, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            long nextUs = extractor.getSampleTime();
+            if (nextUs > previousUs) {
+                longestUs = Math.max(longestUs, nextUs - previousUs);
+            }
+        }
+        return longestUs;
+    }
+
+    /**
+     * @return frames written to the output
+     */
+    int transcode() throws IOException {
+        MediaExtractor probe = openSource();
+        MediaFormat format = probe.getTrackFormat(findVideoTrack(probe));
+        long durationUs;
+        long syncIntervalUs;
+        try {
+            durationUs = format.containsKey(MediaFormat.KEY_DURATION) ?
+                    format.getLong(MediaFormat.KEY_DURATION) : 0;
+            syncIntervalUs = probeSyncIntervalUs(probe, durationUs);
+        } finally {
+            probe.release();
+        }
+
+        // Frames are copied whole, so the output keeps the source's even dimensions
+        int width = format.getInteger(MediaFormat.KEY_WIDTH) & ~1;
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT) & ~1;
+        int rotation = format.containsKey(ROTATION) ? format.getInteger(ROTATION) : 0;
+        mWidth = width;
+        mHeight = height;
+
+        int frameBytes = width * height * 3 / 2;
+        int maxChunkFrames = Math.max(1, MAX_DECODER_BUFFER_BYTES / frameBytes - 1);
+        TranscodePlan plan = new TranscodePlan(durationUs, mSpeedUp,
+                mSettings.getOutputFrameRate(), syncIntervalUs, MAX_DECODERS, maxChunkFrames);
+        if (plan.getFrameCount() == 0) {
+            throw new IOException(mSource + " has no duration to speed up.");
+        }
+        // A lone decoder only has to stay a frame ahead of the encoder
+        int poolSize = (plan.getDecoderCount() > 1 ? plan.getChunkFrames() : 2) + 1;
+
+        Decoder[] decoders = new Decoder[plan.getDecoderCount()];
+        VideoEncoder encoder = null;
+        try {
+            int created = createDecoders(decoders, poolSize, width, height);
+            if (created < decoders.length) {
+                Log.w(TAG, "Only " + created + " decoders could be created.");
+                plan = new TranscodePlan(durationUs, mSpeedUp, mSettings.getOutputFrameRate(),
+                        syncIntervalUs, created, maxChunkFrames);
+            }
+            Log.i(TAG, "Transcoding " + mSource + ": " + plan.getFrameCount() + " frames, " +
+                    "key frames " + syncIntervalUs + "us apart, " + plan.getDecoderCount() +
+                    " decoders" + (plan.isKeyFramesOnly() ? " on key frames only" : ""));
+
+            encoder = new VideoEncoder(width, height, mBitRate, rotation, mOutput.getPath(),
+                    mSettings);
+            encoder.prepare(false);
+            encoder.setBlockingInput(true);
+            encoder.start();
+            for (int i = 0; i < plan.getDecoderCount(); i++) {
+                decoders[i].start(plan);
+            }
+
+            int frames = 0;
+            for (int frame = 0; frame < plan.getFrameCount(); frame++) {
+                FramePool.Frame decoded = decoders[plan.getDecoderFor(frame)].take();
+                if (decoded == null) {
+                    // The source ended before its stated duration
+                    break;
+                }
+                try {
+                    encoder.encodeFrame(decoded);
+                } finally {
+                    decoded.release();
+                }
+                frames++;
+            }
+            encoder.stop();
+            encoder = null;
+            return frames;
+        } finally {
+            // Unblocks decoders still waiting for the encoder
+            mCancelled = true;
+            for (Decoder decoder : decoders) {
+                if (decoder != null) {
+                    decoder.release();
+                }
+            }
+            if (encoder != null) {
+                encoder.release();
+            }
+        }
+    }
+
+    /**
+     * One decoder working through its share of the plan on a stage of its own.
+     */
+    private class Decoder implements Runnable {
+        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        private MediaCodec mCodec;
+        private final MediaExtractor mExtractor;
+        private volatile Throwable mFailure;
+        private final BlockingQueue<FramePool.Frame> mFrames;
+        private final int mIndex;
+        private boolean mEndQueued = false;
+        private boolean mInputDone = false;
+        private long mLastSampleTimeUs = -1;
+        private TranscodePlan mPlan;
+        private final FramePool mPool;
+        private PipelineStage mStage;
+
+        // Goes in the queue after the last frame, or when decoding fails
+        private final FramePool.Frame mEnd = FramePool.allocate(2, 2);
+
+        Decoder(int index, int poolSize, int width, int height) throws IOException {
+            mIndex = index;
+            mPool = new FramePool(poolSize, width, height);
+            // Room for every frame in the pool and the end marker, so putting never waits
+            mFrames = new ArrayBlockingQueue<FramePool.Frame>(poolSize + 1);
+
+            mExtractor = openSource();
+            MediaFormat format = mExtractor.getTrackFormat(findVideoTrack(mExtractor));
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            try {
+                mCodec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+                mCodec.configure(format, null, null, 0);
+                mCodec.start();
+            } catch (IOException e) {
+                release();
+                throw e;
+            } catch (RuntimeException e) {
+                release();
+                throw e;
+            }
+        }
+
+        /**
+         * Hands the decoded frame over, once the pool has room for it.
+         *
+         * @return false if the transcode was called off while waiting
+         */
+        private boolean deliver(int outputIndex) throws InterruptedException {
+            FramePool.Frame frame = null;
+            while (frame == null) {
+                if (mCancelled) {
+                    mCodec.releaseOutputBuffer(outputIndex, false);
+                    return false;
+                }
+                frame = mPool.acquire(POLL_INTERVAL_MS);
+            }
+
+            Image image = mCodec.getOutputImage(outputIndex);
+            if (image == null) {
+                frame.release();
+                throw new IllegalStateException("The decoder doesn't support flexible YUV output.");
+            }
+            try {
+                ImageFrames.copy(image, frame);
+            } finally {
+                image.close();
+                mCodec.releaseOutputBuffer(outputIndex, false);
+            }
+            mFrames.add(frame);
+            return true;
+        }
+
+        /**
+         * Feeds the decoder the next sample, or the end of the stream.
+         *
+         * @param single whether to end the stream right after this sample
+         */
+        private void feed(boolean single) {
+            if (mEndQueued) {
+                return;
+            }
+            int inputIndex = mCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+            if (inputIndex < 0) {
+                return;
+            }
+
+            ByteBuffer input = mCodec.getInputBuffer(inputIndex);
+            int size = mInputDone ? -1 : mExtractor.readSampleData(input, 0);
+            if (size < 0) {
+                mCodec.queueInputBuffer(inputIndex, 0, 0, 0,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mInputDone = true;
+                mEndQueued = true;
+                return;
+            }
+
+            mLastSampleTimeUs = mExtractor.getSampleTime();
+            mCodec.queueInputBuffer(inputIndex, 0, size, mLastSampleTimeUs, 0);
+            mInputDone = single || !mExtractor.advance();
+        }
+
+        /**
+         * Decodes on until a frame at or past {@code targetUs} comes out.
+         *
+         * @return false if the source ran out first
+         */
+        private boolean decodeTo(long targetUs) throws InterruptedException {
+            if (mPlan.shouldSeek(mLastSampleTimeUs, targetUs)) {
+                mExtractor.seekTo(targetUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                if (mExtractor.getSampleTime() > mLastSampleTimeUs) {
+                    flush();
+                } else {
+                    // No key frame to skip to after all, carry on from where decoding is
+                    mExtractor.seekTo(mLastSampleTimeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    while (mExtractor.getSampleTime() >= 0 &&
+                            mExtractor.getSampleTime() <= mLastSampleTimeUs) {
+                        mExtractor.advance();
+                    }
+                }
+            }
+
+            while (!mCancelled) {
+                feed(false);
+                int outputIndex = mCodec.dequeueOutputBuffer(mBufferInfo, DEQUEUE_TIMEOUT_US);
+                if (outputIndex < 0) {
+                    continue;
+                }
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    mCodec.releaseOutputBuffer(outputIndex, false);
+                    return false;
+                }
+                if (mBufferInfo.presentationTimeUs >= targetUs) {
+                    return deliver(outputIndex);
+                }
+                mCodec.releaseOutputBuffer(outputIndex, false);
+            }
+            return false;
+        }
+
+        /**
+         * Decodes the key frame nearest {@code targetUs} and nothing else.
+         *
+         * @return false if there's no key frame there
+         */
+        private boolean decodeKeyFrame(long targetUs) throws InterruptedException {
+            mExtractor.seekTo(targetUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            boolean delivered = false;
+            try {
+                while (!mCancelled) {
+                    // One sample then the end of the stream, so the decoder lets it out
+                    feed(true);
+                    int outputIndex = mCodec.dequeueOutputBuffer(mBufferInfo,
+                            DEQUEUE_TIMEOUT_US);
+                    if (outputIndex < 0) {
+                        continue;
+                    }
+                    boolean endOfStream =
+                            (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                    if (!delivered && mBufferInfo.size > 0) {
+                        delivered = deliver(outputIndex);
+                    } else {
+                        mCodec.releaseOutputBuffer(outputIndex, false);
+                    }
+                    if (endOfStream) {
+                        break;
+                    }
+                }
+            } finally {
+                // A decoder that has seen the end of the stream only takes input after a flush
+                flush();
+            }
+            return delivered;
+        }
+
+        /**
+         * Drops everything in the decoder, for input from somewhere else in the source.
+         */
+        private void flush() {
+            mCodec.flush();
+            mInputDone = false;
+            mEndQueued = false;
+        }
+
+        void release() {
+            if (mStage != null) {
+                mStage.shutdown();
+                mStage = null;
+            }
+            if (mCodec != null) {
+                mCodec.release();
+                mCodec = null;
+            }
+            mExtractor.release();
+
+            FramePool.Frame frame;
+            while ((frame = mFrames.poll()) != null) {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int frame = mPlan.getNextFrame(mIndex, -1); frame >= 0 && !mCancelled;
+                     frame = mPlan.getNextFrame(mIndex, frame)) {
+                    long targetUs = mPlan.getSourceTimeUs(frame);
+                    boolean decoded = mPlan.isKeyFramesOnly() ?
+                            decodeKeyFrame(targetUs) : decodeTo(targetUs);
+                    if (!decoded) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                mFailure = e;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Decoder " + mIndex + " failed.", e);
+                mFailure = e;
+            } finally {
+                mFrames.add(mEnd);
+            }
+        }
+
+        void start(TranscodePlan plan) {
+            mPlan = plan;
+            mStage = new PipelineStage("TranscodeDecode" + mIndex, 1);
+            mStage.put(this);
+        }
+
+        /**
+         * @return the decoder's next frame, or null once it's run out
+         */
+        FramePool.Frame take() throws IOException {
+            while (true) {
+                if (mCancelled) {
+                    throw new IOException("Transcoding " + mSource + " was cancelled.");
+                }
+
+                FramePool.Frame frame;
+                try {
+                    frame = mFrames.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted transcoding " + mSource, e);
+                }
+                if (frame == mEnd) {
+                    if (mFailure != null) {
+                        throw new IOException("Unable to decode " + mSource, mFailure);
+                    }
+                    return null;
+                }
+                if (frame != null) {
+                    return frame;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package com.dylankpowers.timelapse;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * H.264 encoder that writes to an MP4 file. Frames are either copied in one at a time with
+ * {@link #encodeFrame(FramePool.Frame)}, in which case each frame takes the next slot on the output
+ * timeline, or rendered straight into {@link #createInputSurface()}, in which case the
+ * camera timestamps are compressed by the capture-to-output ratio.
+ *
+ * The output is written by a {@link SegmentWriter}, which splits it into segments when limits
+ * are set and, with fragmented output, keeps the file playable if the process dies mid
+ * recording.
+ *
+ * Not thread safe: once started, everything but {@link #onFrameRendered()},
+ * {@link #getPendingFrameCount()}, {@link #getWrittenBytes()} and {@link #requestRollOver()}
+ * has to be called from the same thread.
+ */
+class VideoEncoder {
+    private static final String TAG = "VideoEncoder";
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    private final boolean mBFramesEnabled;
+    private final int mBitRate;
+    private final int mBitRateMode;
+    private boolean mBlockingInput = false;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private MediaCodec mCodec;
+    private volatile long mEncodedFrames = 0;
+    private long mFirstInputTimeUs = -1;
+    private long mFrameCount = 0;
+    private final int mFrameRate;
+    private final int mHeight;
+    private long mInputFrameDurationUs = 0;
+    private Surface mInputSurface;
+    private boolean mInputSurfaceOwned = false;
+    private final int mKeyFrameIntervalSeconds;
+    private String mOutputPath;
+    private volatile long mSubmittedFrames = 0;
+    private final int mWidth;
+    private final SegmentWriter mWriter;
+
+    VideoEncoder(int width, int height, int bitRate, int orientationHint,
+                 String outputPath, CaptureSettings settings) {
+        mWidth = width;
+        mHeight = height;
+        mBitRate = bitRate;
+        mOutputPath = outputPath;
+        mFrameRate = settings.getOutputFrameRate();
+        mBitRateMode = settings.getBitRateMode();
+        mKeyFrameIntervalSeconds = settings.getKeyFrameIntervalSeconds();
+        mBFramesEnabled = settings.areBFramesEnabled();
+        mWriter = new SegmentWriter(Clock.SYSTEM, width, height, orientationHint, mFrameRate,
+                settings.isFragmentedOutput(), settings.getFragmentMaxFrames());
+    }
+
+    /**
+     * Pulls whatever the encoder has finished without blocking. Only needed when frames
+     * are rendered into the input surface. Does nothing once the encoder is released, so
+     * a drain that was queued behind {@link #stop()} is harmless.
+     */
+    void drain() {
+        if (mCodec != null) {
+            drain(false);
+        }
+    }
+
+    private void drain(boolean endOfStream) {
+        while (true) {
+            int outputIndex = mCodec.dequeueOutputBuffer(mBufferInfo,
+                    endOfStream ? DEQUEUE_TIMEOUT_US : 0);
+            if (outputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+            } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (mWriter.isStarted()) {
+                    throw new RuntimeException("Encoder output format changed twice.");
+                }
+                startWriter(mCodec.getOutputFormat());
+            } else if (outputIndex >= 0) {
+                ByteBuffer encodedData = mCodec.getOutputBuffer(outputIndex);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // The codec config is passed to the muxer through the output format
+                    mBufferInfo.size = 0;
+                }
+
+                if (mBufferInfo.size != 0 && mWriter.isStarted()) {
+                    if (mInputSurface != null) {
+                        mBufferInfo.presentationTimeUs = toOutputTimeUs(mBufferInfo.presentationTimeUs);
+                    }
+                    writeSample(encodedData);
+                }
+                mCodec.releaseOutputBuffer(outputIndex, false);
+
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void startWriter(MediaFormat format) {
+        try {
+            mWriter.start(format, format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write the header of " + mWriter.getPath(), e);
+        }
+    }
+
+    private void writeSample(ByteBuffer encodedData) {
+        encodedData.position(mBufferInfo.offset);
+        encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+        boolean wantKeyFrame;
+        try {
+            wantKeyFrame = mWriter.writeSample(encodedData, mBufferInfo.presentationTimeUs,
+                    (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write to " + mWriter.getPath(), e);
+        }
+        if (wantKeyFrame) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            mCodec.setParameters(params);
+        }
+        mEncodedFrames++;
+    }
+
+    void encodeFrame(FramePool.Frame frame) {
+        if (mCodec == null) {
+            Log.d(TAG, "Encoder already released, dropping frame.");
+            return;
+        }
+
+        int inputIndex = mCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+        while (inputIndex < 0 && mBlockingInput) {
+            drain(false);
+            inputIndex = mCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+        }
+        if (inputIndex < 0) {
+            Log.d(TAG, "Encoder input not available, dropping frame.");
+            drain(false);
+            return;
+        }
+
+        Image input = mCodec.getInputImage(inputIndex);
+        if (input == null) {
+            throw new RuntimeException("The encoder doesn't support flexible YUV input.");
+        }
+
+        Image.Plane[] dstPlanes = input.getPlanes();
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer src = frame.planes[i];
+            src.clear();
+            FramePool.copyPlane(src, frame.getRowStride(i), 1,
+                    dstPlanes[i].getBuffer(), dstPlanes[i].getRowStride(),
+                    dstPlanes[i].getPixelStride(),
+                    i == 0 ? mWidth : mWidth / 2, i == 0 ? mHeight : mHeight / 2);
+        }
+
+        long presentationTimeUs = mFrameCount * 1000000L / mFrameRate;
+        mCodec.queueInputBuffer(inputIndex, 0, mWidth * mHeight * 3 / 2, presentationTimeUs, 0);
+        mFrameCount++;
+        mSubmittedFrames++;
+        drain(false);
+    }
+
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Bytes of encoded video written so far, across every segment. Safe to read from any
+     * thread.
+     */
+    long getWrittenBytes() {
+        return mWriter.getWrittenBytes();
+    }
+
+    /**
+     * Frames handed to the encoder that haven't come out the other end yet.
+     */
+    int getPendingFrameCount() {
+        return (int) Math.max(0, mSubmittedFrames - mEncodedFrames);
+    }
+
+    /**
+     * Counts a frame the camera rendered into the input surface, which the encoder
+     * can't see until it's encoded.
+     */
+    void onFrameRendered() {
+        mSubmittedFrames++;
+    }
+
+    /**
+     * Must be called after {@link #prepare(boolean)} with surface input and before
+     * {@link #start()}.
+     */
+    Surface createInputSurface() {
+        mInputSurface = mCodec.createInputSurface();
+        mInputSurfaceOwned = true;
+        return mInputSurface;
+    }
+
+    private MediaFormat createFormat(boolean surfaceInput, boolean withProfile,
+                                     MediaCodecInfo.CodecCapabilities codecCapabilities) {
+        MediaCodecInfo.EncoderCapabilities capabilities =
+                codecCapabilities.getEncoderCapabilities();
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, surfaceInput ?
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface :
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mKeyFrameIntervalSeconds);
+        if (capabilities.isBitrateModeSupported(mBitRateMode)) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitRateMode);
+        } else {
+            Log.d(TAG, "Bitrate mode " + mBitRateMode + " not supported, using the encoder default.");
+        }
+
+        if (withProfile) {
+            // Baseline can't carry B-frames, it's the only way to rule them out on these APIs
+            int profile = mBFramesEnabled ? MediaCodecInfo.CodecProfileLevel.AVCProfileHigh :
+                    MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+            int level = VideoMath.avcLevel(mWidth, mHeight, mFrameRate, mBitRate,
+                    mBFramesEnabled);
+            // The level constants go up in powers of two
+            if (level > 0 && level <= maxLevel(codecCapabilities, profile)) {
+                // Encoders ignore a profile without a level
+                format.setInteger(MediaFormat.KEY_PROFILE, profile);
+                format.setInteger(MediaFormat.KEY_LEVEL, level);
+            } else {
+                Log.d(TAG, "Encoder doesn't list profile " + profile + " at level " + level +
+                        ", using its default.");
+            }
+        }
+        return format;
+    }
+
+    /**
+     * @return the highest level the codec lists for {@code profile}, or 0 if it doesn't
+     *         list the profile at all
+     */
+    private static int maxLevel(MediaCodecInfo.CodecCapabilities capabilities, int profile) {
+        int level = 0;
+        for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+            if (profileLevel.profile == profile) {
+                level = Math.max(level, profileLevel.level);
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Renders into a surface that outlives this encoder, so the camera session it's part
+     * of doesn't have to be rebuilt for every recording. Must be called after
+     * {@link #prepare(boolean)} with surface input and before {@link #start()}.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    void usePersistentInputSurface(Surface surface) {
+        mCodec.setInputSurface(surface);
+        mInputSurface = surface;
+        mInputSurfaceOwned = false;
+    }
+
+    void prepare(boolean surfaceInput) throws IOException {
+        mCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        MediaCodecInfo.CodecCapabilities capabilities = mCodec.getCodecInfo()
+                .getCapabilitiesForType(MIME_TYPE);
+        try {
+            mCodec.configure(createFormat(surfaceInput, true, capabilities),
+                    null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (IllegalArgumentException e) {
+            configureWithoutProfile(surfaceInput, capabilities, e);
+        } catch (IllegalStateException e) {
+            // Includes MediaCodec.CodecException
+            configureWithoutProfile(surfaceInput, capabilities, e);
+        }
+    }
+
+    /**
+     * Falls back to the encoder's default profile after it turned the requested one down.
+     */
+    private void configureWithoutProfile(boolean surfaceInput,
+                                         MediaCodecInfo.CodecCapabilities capabilities,
+                                         RuntimeException rejection) {
+        Log.d(TAG, "Encoder rejected the requested profile, using its default: " +
+                rejection.getMessage());
+        mCodec.reset();
+        mCodec.configure(createFormat(surfaceInput, false, capabilities),
+                null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    void release() {
+        if (mInputSurface != null && mInputSurfaceOwned) {
+            mInputSurface.release();
+        }
+        mInputSurface = null;
+
+        if (mCodec != null) {
+            mCodec.release();
+            mCodec = null;
+        }
+        mWriter.release();
+    }
+
+    /**
+     * Starts a new segment at the next key frame, as if a limit had been reached. Safe to
+     * call from any thread, only has an effect with a segment callback set.
+     */
+    void requestRollOver() {
+        mWriter.requestRollOver();
+    }
+
+    /**
+     * Makes {@link #encodeFrame(FramePool.Frame)} wait for the encoder rather than drop the
+     * frame, for offline work where nothing is lost by waiting.
+     */
+    void setBlockingInput(boolean blockingInput) {
+        mBlockingInput = blockingInput;
+    }
+
+    /**
+     * Changes the bitrate of a running encoder, it takes effect within a few frames.
+     */
+    void setBitRate(int bitRate) {
+        if (mCodec == null) {
+            return;
+        }
+
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        mCodec.setParameters(params);
+    }
+
+    /**
+     * Splits the output into several files. Either limit may be 0 to disable it. The callback
+     * is told about every finished file, including the last one when the encoder stops.
+     */
+    void setSegmentLimits(long maxDurationMs, long maxBytes, SegmentTracker.Callback callback) {
+        mWriter.setLimits(maxDurationMs, maxBytes, callback);
+    }
+
+    /**
+     * Sets how far apart frames rendered into the input surface are expected to be
+     * captured. Their timestamps are rescaled so each one lasts a single output frame.
+     */
+    void setInputFrameIntervalUs(long inputFrameDurationUs) {
+        mInputFrameDurationUs = inputFrameDurationUs;
+    }
+
+    /**
+     * Only takes effect if called before {@link #start()}.
+     */
+    void setOutputPath(String outputPath) {
+        mOutputPath = outputPath;
+    }
+
+    /**
+     * The output file is only created here, so an encoder can be prepared well before it's
+     * needed.
+     */
+    void start() {
+        try {
+            mWriter.open(mOutputPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open " + mOutputPath, e);
+        }
+        mCodec.start();
+    }
+
+    void stop() {
+        if (mInputSurface != null) {
+            mCodec.signalEndOfInputStream();
+        } else {
+            int inputIndex = mCodec.dequeueInputBuffer(-1);
+            mCodec.queueInputBuffer(inputIndex, 0, 0, mFrameCount * 1000000L / mFrameRate,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        }
+        drain(true);
+        mCodec.stop();
+
+        if (!mWriter.isStarted()) {
+            release();
+            throw new RuntimeException("Nothing was encoded.");
+        }
+        try {
+            mWriter.finish();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to finish " + mWriter.getPath(), e);
+        } finally {
+            release();
+        }
+    }
+
+    private long toOutputTimeUs(long inputTimeUs) {
+        if (mFirstInputTimeUs < 0) {
+            mFirstInputTimeUs = inputTimeUs;
+        }
+
+        long elapsedUs = inputTimeUs - mFirstInputTimeUs;
+        if (mInputFrameDurationUs <= 0) {
+            return elapsedUs;
+        }
+        return elapsedUs * (1000000L / mFrameRate) / mInputFrameDurationUs;
+    }
+}
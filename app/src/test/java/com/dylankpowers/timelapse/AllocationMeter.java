@@ -0,0 +1,89 @@
+package com.dylankpowers.timelapse;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Heap and allocation figures for a simulation. Allocation is counted per thread by the
+ * JVM, so it's read on each stage's own thread, and a stage's total is kept when it's shut
+ * down. Only HotSpot style JVMs count allocation per thread, elsewhere those figures are -1.
+ */
+class AllocationMeter {
+    private final MemoryMXBean mMemory = ManagementFactory.getMemoryMXBean();
+    private long mRetiredBytes = 0;
+    private final com.sun.management.ThreadMXBean mThreads;
+
+    AllocationMeter() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            mThreads = (com.sun.management.ThreadMXBean) threads;
+            mThreads.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            mThreads = null;
+        }
+    }
+
+    /**
+     * @return bytes allocated so far on the calling thread, or -1 if it can't be told
+     */
+    long currentThreadBytes() {
+        return mThreads != null ?
+                mThreads.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    /**
+     * Bytes allocated so far on the calling thread, as the simulation drives the scheduler.
+     */
+    long getDriverBytes() {
+        return currentThreadBytes();
+    }
+
+    /**
+     * Bytes allocated so far on the stages, and on every stage retired before them.
+     */
+    long getStageBytes(PipelineStage... stages) {
+        if (mThreads == null) {
+            return -1;
+        }
+
+        long total = mRetiredBytes;
+        for (PipelineStage stage : stages) {
+            total += readStage(stage);
+        }
+        return total;
+    }
+
+    /**
+     * Heap in use once everything unreachable has been collected.
+     */
+    long getLiveHeapBytes() {
+        long used = Long.MAX_VALUE;
+        // A single request isn't always a full collection
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            used = Math.min(used, mMemory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    private long readStage(PipelineStage stage) {
+        final long[] bytes = new long[1];
+        stage.runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                bytes[0] = currentThreadBytes();
+            }
+        });
+        return bytes[0];
+    }
+
+    /**
+     * Keeps what the stage allocated, call it just before the stage is shut down.
+     */
+    void retire(PipelineStage stage) {
+        if (mThreads != null) {
+            mRetiredBytes += readStage(stage);
+        }
+    }
+}
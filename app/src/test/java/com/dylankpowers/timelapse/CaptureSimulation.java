@@ -0,0 +1,501 @@
+package com.dylankpowers.timelapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An interval capture driven by the same {@link RecordingController} as
+ * {@link TimeLapseCapture}, from the shot scheduler through the frame pool and encode stage to
+ * the recordings index, journal and storage monitor, with the camera, encoder, MediaStore and
+ * volumes faked and time virtual. Everything but the fakes is the real pipeline code, so a
+ * day of capture runs in seconds and can be checked for leaks.
+ *
+ * Only the calling thread drives it. After every scheduled task the stages are run dry, so
+ * a simulation plays out the same way each time.
+ */
+class CaptureSimulation {
+    private static final int FRAME_POOL_SIZE = 4;
+    private static final String RECORDINGS_INDEX_FILE = "recordings.idx";
+    private static final String SESSION_JOURNAL_FILE = "session.journal";
+    private static final int STAGE_CAPACITY = 16;
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() { }
+    };
+
+    private static final PowerGovernor.PowerProbe NO_POWER_STATE = new PowerGovernor.PowerProbe() {
+        @Override
+        public boolean read(PowerGovernor.PowerState state) {
+            return false;
+        }
+    };
+
+    private final int mBaseBitRate;
+    private final FakeCamera mCamera;
+    private final VirtualClock mClock = new VirtualClock();
+    private RecordingController mController;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+    private volatile FakeEncoder mEncoder;
+    private PipelineStage mEncodeStage;
+    private long mEncodedFrames = 0;
+    private final FramePool mFramePool;
+    private final BlockingQueue<FramePool.Frame> mFramesToEncode =
+            new ArrayBlockingQueue<FramePool.Frame>(FRAME_POOL_SIZE);
+    private final int mHeight;
+    private final FakeVideoIndexer mIndexer = new FakeVideoIndexer();
+    // The capture interval the last shot was taken at
+    private long mIntervalMs;
+    private PipelineStage mIoStage;
+    private final AllocationMeter mMeter = new AllocationMeter();
+    // Written on the I/O stage only, read once it's been run dry
+    private volatile long mProbeBytes = 0;
+    private final CaptureMetrics mMetrics = new CaptureMetrics();
+    private final File mPrimaryDir;
+    private final File mPrivateDir;
+    private RecordingSession mRecordingSession;
+    private RecordingsIndex mRecordingsIndex;
+    private final File[] mSecondaryDirs;
+    private final CaptureSettings mSettings;
+    private long mShots = 0;
+    private final long mStartWallNs = System.nanoTime();
+    // Set while the simulation itself is stopping the recording, rather than storage
+    private boolean mStopRequested = false;
+    private final SimulatedVolumes mVolumes;
+    private final int mWidth;
+
+    // Taken once the simulation has warmed up
+    private long mWarmDriverBytes;
+    private long mWarmFrames = -1;
+    private long mWarmHeapBytes;
+    private long mWarmProbeBytes;
+    private long mWarmStageBytes;
+
+    // What the storage monitor had the capture do
+    private volatile int mBitRateCuts = 0;
+    private int mFullStops = 0;
+    private int mIntervalStretches = 0;
+    private int mMoves = 0;
+
+    private final Runnable mDrainEncoder = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            encodePendingFrames(mEncoder);
+        }
+    };
+
+    /**
+     * Listing a simulated volume costs far more than asking a real one for its free space,
+     * so what it allocates is left out of the stages' figures.
+     */
+    private final StorageMonitor.SpaceProbe mSpaceProbe = new StorageMonitor.SpaceProbe() {
+        @Override
+        public long getUsableSpace(File dir) {
+            long before = mMeter.currentThreadBytes();
+            long freeBytes = mVolumes.getUsableSpace(dir);
+            mProbeBytes += mMeter.currentThreadBytes() - before;
+            return freeBytes;
+        }
+    };
+
+    private final RecordingController.Camera mSimCamera = new RecordingController.Camera() {
+        @Override
+        public int getVideoBitRate() {
+            return mBaseBitRate;
+        }
+
+        @Override
+        public ThrottleLadder newThrottleLadder() {
+            return null;
+        }
+
+        @Override
+        public void startCapture(String path) {
+            FakeEncoder encoder = new FakeEncoder(mClock, mWidth, mHeight,
+                    mController.getThrottledBitRate(), path, mSettings, mRecordingSession);
+            mController.startOutput(new SimOutput(encoder));
+            mEncoder = encoder;
+            mIntervalMs = 0;
+            mController.onRecordingStarted(new SessionJournal.Entry(path,
+                    mClock.currentTimeMillis(), mWidth, mHeight, mSettings.getOutputFrameRate(), 0,
+                    true, mSettings.areBFramesEnabled(), null, null));
+        }
+
+        @Override
+        public void stopCapture() {
+            if (!mStopRequested) {
+                mFullStops++;
+            }
+        }
+
+        @Override
+        public void releaseCapture() {
+            FakeEncoder encoder = mEncoder;
+            mEncoder = null;
+            if (encoder != null) {
+                mEncodedFrames += encoder.getFrameCount();
+            }
+        }
+
+        @Override
+        public void resumePreview() {
+            mController.onPreviewRunning();
+        }
+
+        @Override
+        public void takeShot() {
+            mShots++;
+            long intervalMs = mController.getCaptureIntervalMs();
+            if (mIntervalMs > 0 && intervalMs > mIntervalMs) {
+                mIntervalStretches++;
+            }
+            mIntervalMs = intervalMs;
+
+            if (mFramePool.getFreeCount() == 0) {
+                mMetrics.onFrameDropped();
+                return;
+            }
+
+            FramePool.Frame frame = mFramePool.acquire();
+            if (!mCamera.capture(frame)) {
+                frame.release();
+                mMetrics.onCaptureFailed(mShots, false);
+                return;
+            }
+            mFramesToEncode.offer(frame);
+            if (mDrainScheduled.compareAndSet(false, true) && !mEncodeStage.offer(mDrainEncoder)) {
+                mDrainScheduled.set(false);
+            }
+        }
+    };
+
+    /**
+     * @param primaryDir where recordings start out
+     * @param secondaryDirs where they may move to when the primary volume fills up
+     * @param privateDir where the recordings index and session journal are kept
+     */
+    CaptureSimulation(CaptureSettings settings, int width, int height, int bitRate,
+                      File primaryDir, File[] secondaryDirs, File privateDir,
+                      SimulatedVolumes volumes, long seed) {
+        mSettings = settings;
+        mWidth = width;
+        mHeight = height;
+        mBaseBitRate = bitRate;
+        mPrimaryDir = primaryDir;
+        mSecondaryDirs = secondaryDirs;
+        mPrivateDir = privateDir;
+        mVolumes = volumes;
+        mCamera = new FakeCamera(seed);
+        mFramePool = new FramePool(FRAME_POOL_SIZE, width, height);
+        boot();
+    }
+
+    /**
+     * Brings the process up: new stages, the index and journal read back from disk, and
+     * recovery of whatever the last process was recording when it died.
+     */
+    private void boot() {
+        mEncodeStage = new PipelineStage("SimEncode", STAGE_CAPACITY);
+        mIoStage = new PipelineStage("SimIO", STAGE_CAPACITY);
+        mRecordingsIndex = new RecordingsIndex(new File(mPrivateDir, RECORDINGS_INDEX_FILE));
+        SessionJournal journal = new SessionJournal(new File(mPrivateDir, SESSION_JOURNAL_FILE));
+        mIoStage.put(new RecordingRecovery(journal, mRecordingsIndex, mIndexer));
+        mRecordingSession = new RecordingSession(mClock, mIoStage, mIndexer, mRecordingsIndex,
+                journal);
+        mController = new RecordingController(mClock, mClock, mEncodeStage, mIoStage, mSettings,
+                mMetrics, mRecordingSession,
+                new StorageMonitor(mClock, mClock, mSpaceProbe, mIoStage, mSecondaryDirs),
+                new PowerGovernor(mClock, mClock, NO_POWER_STATE), mPrimaryDir, mSimCamera);
+        // The camera opens straight into its preview
+        mController.onOpening();
+        mController.onPreviewRunning();
+        quiesce();
+    }
+
+    /**
+     * Kills the process mid recording, nothing gets to finish, then boots a new one.
+     */
+    void crash() {
+        mClock.cancelAll();
+        FakeEncoder encoder = mEncoder;
+        mEncoder = null;
+        mEncodeStage.runAndWait(NOTHING);
+        if (encoder != null) {
+            encoder.abandon();
+            mEncodedFrames += encoder.getFrameCount();
+        }
+        encodePendingFrames(null);
+        shutdownStages();
+        mRecordingsIndex.close();
+        boot();
+    }
+
+    /**
+     * Runs on the encode stage. Frames for an encoder that's already gone are just dropped.
+     */
+    private void encodePendingFrames(FakeEncoder encoder) {
+        FramePool.Frame frame;
+        while ((frame = mFramesToEncode.poll()) != null) {
+            try {
+                if (encoder != null) {
+                    encoder.encodeFrame(frame);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to encode a frame.", e);
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    FakeCamera getCamera() {
+        return mCamera;
+    }
+
+    FakeVideoIndexer getIndexer() {
+        return mIndexer;
+    }
+
+    CaptureMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    RecordingsIndex getRecordingsIndex() {
+        return mRecordingsIndex;
+    }
+
+    File getSessionJournalFile() {
+        return new File(mPrivateDir, SESSION_JOURNAL_FILE);
+    }
+
+    boolean isRecording() {
+        return mController.getState() == RecordingController.STATE_RECORDING;
+    }
+
+    /**
+     * Takes the baseline the report's per frame figures are measured from, once whatever is
+     * allocated up front has been.
+     */
+    void markWarm() {
+        mWarmFrames = getFrameCount();
+        mWarmHeapBytes = mMeter.getLiveHeapBytes();
+        mWarmDriverBytes = mMeter.getDriverBytes();
+        mWarmStageBytes = mMeter.getStageBytes(mEncodeStage, mIoStage);
+        mWarmProbeBytes = mProbeBytes;
+    }
+
+    private long getFrameCount() {
+        FakeEncoder encoder = mEncoder;
+        long frames = mEncodedFrames;
+        if (encoder != null) {
+            final long[] current = new long[1];
+            final FakeEncoder running = encoder;
+            mEncodeStage.runAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    current[0] = running.getFrameCount();
+                }
+            });
+            frames += current[0];
+        }
+        return frames;
+    }
+
+    private void quiesce() {
+        // The encode stage hands work to the I/O stage, never the other way round
+        mEncodeStage.runAndWait(NOTHING);
+        mIoStage.runAndWait(NOTHING);
+    }
+
+    Report report() {
+        Report report = new Report();
+        report.simulatedMs = mClock.elapsedRealtime();
+        report.shots = mShots;
+        report.frames = getFrameCount();
+        report.captureFailures = mCamera.getFailedCount();
+        report.dropped = mMetrics.snapshot().droppedFrames;
+        report.indexedFiles = mIndexer.getIndexedPaths().size();
+        report.moves = mMoves;
+        report.bitRateCuts = mBitRateCuts;
+        report.intervalStretches = mIntervalStretches;
+        report.fullStops = mFullStops;
+        report.wallMs = (System.nanoTime() - mStartWallNs) / 1000000;
+
+        long frames = report.frames - mWarmFrames;
+        if (mWarmFrames >= 0 && frames > 0) {
+            report.measuredFrames = frames;
+            report.heapGrowthPerFrame =
+                    (double) (mMeter.getLiveHeapBytes() - mWarmHeapBytes) / frames;
+            report.driverBytesPerFrame =
+                    (double) (mMeter.getDriverBytes() - mWarmDriverBytes) / frames;
+            if (mWarmStageBytes >= 0) {
+                long stageBytes = mMeter.getStageBytes(mEncodeStage, mIoStage) -
+                        mWarmStageBytes - (mProbeBytes - mWarmProbeBytes);
+                report.stageBytesPerFrame = (double) stageBytes / frames;
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Sends a command the way the app does and runs the capture until it has been acted on.
+     *
+     * @return whether the capture is recording once it has
+     */
+    private boolean runCommand(boolean start) {
+        final boolean[] reply = new boolean[2];
+        TimeLapseCapture.IsRecordingCallback callback = new TimeLapseCapture.IsRecordingCallback() {
+            @Override
+            public void onReply(boolean currentlyRecording) {
+                reply[0] = true;
+                reply[1] = currentlyRecording;
+            }
+        };
+        if (start) {
+            mController.startRecording(callback, mClock);
+        } else {
+            mController.stopRecording(callback, mClock);
+        }
+        runUntil(mClock.elapsedRealtime());
+        if (!reply[0]) {
+            throw new IllegalStateException("The command was never acted on.");
+        }
+        return reply[1];
+    }
+
+    /**
+     * Runs everything scheduled up to {@code timeMs} of simulated time.
+     */
+    void runUntil(long timeMs) {
+        while (mClock.runNext(timeMs)) {
+            quiesce();
+        }
+        quiesce();
+    }
+
+    /**
+     * Stops the stages for good. Nothing can be run afterwards.
+     */
+    void shutdown() {
+        if (isRecording()) {
+            stopRecording();
+        }
+        shutdownStages();
+        mRecordingsIndex.close();
+    }
+
+    private void shutdownStages() {
+        mMeter.retire(mEncodeStage);
+        mMeter.retire(mIoStage);
+        mEncodeStage.shutdown();
+        mIoStage.shutdown();
+    }
+
+    void startRecording() {
+        if (!runCommand(true)) {
+            throw new IllegalStateException("The recording didn't start.");
+        }
+    }
+
+    void stopRecording() {
+        mStopRequested = true;
+        try {
+            if (runCommand(false)) {
+                throw new IllegalStateException("The recording didn't stop.");
+            }
+        } finally {
+            mStopRequested = false;
+        }
+    }
+
+    /**
+     * Feeds the fake encoder the way {@link TimeLapseCapture}'s output feeds the real one,
+     * counting what storage has it do.
+     */
+    private class SimOutput implements RecordingController.Output {
+        private final FakeEncoder mOutputEncoder;
+
+        SimOutput(FakeEncoder encoder) {
+            mOutputEncoder = encoder;
+        }
+
+        @Override
+        public long getWrittenBytes() {
+            return mOutputEncoder.getWrittenBytes();
+        }
+
+        @Override
+        public boolean isAdjustable() {
+            return true;
+        }
+
+        @Override
+        public void requestRollOver() {
+            // Only storage moving the recording asks for one
+            mMoves++;
+            mOutputEncoder.requestRollOver();
+        }
+
+        @Override
+        public void setBitRate(int bitRate) {
+            mBitRateCuts++;
+            mOutputEncoder.setBitRate(bitRate);
+        }
+
+        @Override
+        public void start() {
+            try {
+                mOutputEncoder.start();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to start the encoder.", e);
+            }
+        }
+
+        @Override
+        public void stop() {
+            // Frames already queued are encoded before the last file is finished
+            encodePendingFrames(mOutputEncoder);
+            try {
+                mOutputEncoder.stop();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to finish the recording.", e);
+            }
+        }
+    }
+
+    static class Report {
+        int bitRateCuts;
+        long captureFailures;
+        long dropped;
+        long frames;
+        int fullStops;
+        int indexedFiles;
+        int intervalStretches;
+        long measuredFrames;
+        int moves;
+        long shots;
+        long simulatedMs;
+        long wallMs;
+
+        // Over the frames after the simulation warmed up
+        double driverBytesPerFrame = -1;
+        double heapGrowthPerFrame;
+        double stageBytesPerFrame = -1;
+
+        @Override
+        public String toString() {
+            return String.format("%.1fh simulated in %dms: %d shots, %d frames, %d failed, " +
+                            "%d dropped, %d files indexed, %d moves, %d bitrate cuts, " +
+                            "%d interval stretches, %d full stops; per frame over the last %d: " +
+                            "heap growth %.1fB, allocated %.0fB on the stages and %.0fB " +
+                            "driving them",
+                    simulatedMs / 3600000.0, wallMs, shots, frames, captureFailures, dropped,
+                    indexedFiles, moves, bitRateCuts, intervalStretches, fullStops,
+                    measuredFrames, heapGrowthPerFrame, stageBytesPerFrame, driverBytesPerFrame);
+        }
+    }
+}
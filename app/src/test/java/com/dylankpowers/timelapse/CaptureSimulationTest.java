@@ -0,0 +1,128 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs simulated days of interval capture and checks that every file ends up finished and
+ * indexed, and that nothing grows with the number of frames captured.
+ */
+public class CaptureSimulationTest {
+    private static final long HOUR_MS = 60 * 60 * 1000;
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int BIT_RATE = 480000;
+
+    // A day at one shot every 10s is 8640 frames, the budgets are per frame
+    private static final double MAX_HEAP_GROWTH_PER_FRAME = 64;
+    private static final double MAX_STAGE_BYTES_PER_FRAME = 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static CaptureSettings intervalSettings() {
+        CaptureSettings settings = new CaptureSettings();
+        settings.setCaptureMode(CaptureSettings.CAPTURE_MODE_INTERVAL);
+        settings.setCaptureIntervalMs(10000);
+        settings.setEncoder(CaptureSettings.ENCODER_MEDIA_CODEC);
+        settings.setOutputFrameRate(30);
+        settings.setKeyFrameIntervalSeconds(1);
+        settings.setFragmentedOutput(true);
+        settings.setFragmentMaxFrames(30);
+        settings.setSegmentMaxDurationMs(HOUR_MS);
+        settings.setSegmentMaxBytes(4 * 1024 * 1024);
+        return settings;
+    }
+
+    private static void assertAllFinished(CaptureSimulation simulation) {
+        RecordingsIndex index = simulation.getRecordingsIndex();
+        Set<String> indexed = new HashSet<String>(simulation.getIndexer().getIndexedPaths());
+        RecordingsIndex.Entry entry = new RecordingsIndex.Entry();
+        assertTrue("Nothing was recorded", index.size() > 0);
+        for (int i = 0; i < index.size(); i++) {
+            assertTrue("Record " + i + " is damaged", index.read(i, entry));
+            assertEquals(entry.getPath() + " was never finished",
+                    RecordingsIndex.STATUS_FINISHED, entry.status);
+            if (entry.frameCount != 0) {
+                assertTrue(entry.getPath() + " is missing", new File(entry.getPath()).isFile());
+                assertTrue(entry.getPath() + " was never indexed",
+                        indexed.contains(entry.getPath()));
+            }
+        }
+        assertFalse("The session journal was left behind",
+                simulation.getSessionJournalFile().exists());
+    }
+
+    @Test
+    public void dayWithStopsCrashAndFullVolume() throws IOException {
+        CaptureSettings settings = intervalSettings();
+        settings.setTargetDurationMs(8 * HOUR_MS);
+
+        File primary = mFolder.newFolder("primary");
+        File secondary = mFolder.newFolder("secondary");
+        SimulatedVolumes volumes = new SimulatedVolumes();
+        volumes.add(primary, 28L * 1024 * 1024);
+        volumes.add(secondary, 1024L * 1024 * 1024);
+
+        CaptureSimulation simulation = new CaptureSimulation(settings, WIDTH, HEIGHT, BIT_RATE,
+                primary, new File[] { secondary }, mFolder.newFolder("private"), volumes, 1);
+        simulation.getCamera().setFailureRate(0.02);
+
+        simulation.startRecording();
+        simulation.runUntil(HOUR_MS);
+        simulation.markWarm();
+        simulation.runUntil(8 * HOUR_MS);
+        simulation.stopRecording();
+        simulation.startRecording();
+        simulation.runUntil(16 * HOUR_MS);
+        simulation.stopRecording();
+        simulation.startRecording();
+        simulation.runUntil(20 * HOUR_MS);
+        simulation.crash();
+        simulation.startRecording();
+        simulation.runUntil(24 * HOUR_MS);
+        if (simulation.isRecording()) {
+            simulation.stopRecording();
+        }
+
+        CaptureSimulation.Report report = simulation.report();
+        assertAllFinished(simulation);
+        simulation.shutdown();
+
+        assertTrue("Too few shots: " + report, report.shots >= 8000);
+        assertTrue("Recording never left the primary volume: " + report, report.moves >= 1);
+        assertTrue("Heap grew too much: " + report,
+                report.heapGrowthPerFrame < MAX_HEAP_GROWTH_PER_FRAME);
+        if (report.stageBytesPerFrame >= 0) {
+            assertTrue("Too much allocated on the stages: " + report,
+                    report.stageBytesPerFrame < MAX_STAGE_BYTES_PER_FRAME);
+        }
+    }
+
+    @Test
+    public void fullVolumeStopsCleanly() throws IOException {
+        File primary = mFolder.newFolder("primary");
+        SimulatedVolumes volumes = new SimulatedVolumes();
+        volumes.add(primary, 24L * 1024 * 1024);
+
+        CaptureSimulation simulation = new CaptureSimulation(intervalSettings(), WIDTH, HEIGHT,
+                BIT_RATE, primary, new File[0], mFolder.newFolder("private"), volumes, 2);
+        simulation.startRecording();
+        simulation.runUntil(24 * HOUR_MS);
+
+        CaptureSimulation.Report report = simulation.report();
+        assertFalse("Recording ran past a full volume: " + report, simulation.isRecording());
+        assertEquals("Full stops: " + report, 1, report.fullStops);
+        assertTrue("Stopped with space to spare: " + report, report.frames > 1000);
+        assertAllFinished(simulation);
+        simulation.shutdown();
+    }
+}
@@ -0,0 +1,51 @@
+package com.dylankpowers.timelapse;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Stands in for the camera and its image reader: fills a frame with a moving pattern, or
+ * fails the capture as often as it's told to. Failures are drawn from a fixed seed, so a
+ * simulation fails the same shots every time it runs.
+ */
+class FakeCamera {
+    private long mCaptured = 0;
+    private double mFailureRate = 0;
+    private long mFailed = 0;
+    private final Random mRandom;
+
+    FakeCamera(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * @return false if the capture failed and the frame wasn't filled
+     */
+    boolean capture(FramePool.Frame frame) {
+        if (mFailureRate > 0 && mRandom.nextDouble() < mFailureRate) {
+            mFailed++;
+            return false;
+        }
+
+        // Only a stripe changes, enough to tell frames apart without costing a full fill
+        ByteBuffer luma = frame.planes[0];
+        int row = (int) (mCaptured % frame.height);
+        for (int x = 0; x < frame.width; x++) {
+            luma.put(row * frame.width + x, (byte) mCaptured);
+        }
+        mCaptured++;
+        return true;
+    }
+
+    long getCapturedCount() {
+        return mCaptured;
+    }
+
+    long getFailedCount() {
+        return mFailed;
+    }
+
+    void setFailureRate(double failureRate) {
+        mFailureRate = failureRate;
+    }
+}
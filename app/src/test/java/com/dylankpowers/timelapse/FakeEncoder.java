@@ -0,0 +1,102 @@
+package com.dylankpowers.timelapse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stands in for {@link VideoEncoder} on the encode stage. Each frame becomes a made up H.264
+ * sample about as big as the bitrate allows, with a key frame as often as the settings ask,
+ * or sooner when the output wants one to roll over at. Samples go through the same
+ * {@link SegmentWriter} as the real thing.
+ */
+class FakeEncoder {
+    // Key frames cost about this many times an ordinary one
+    private static final int KEY_FRAME_WEIGHT = 3;
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1E, (byte) 0xDA};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    private volatile int mBitRate;
+    private long mFrameCount = 0;
+    private final int mFrameRate;
+    private final int mKeyFrameInterval;
+    private boolean mKeyFrameRequested = false;
+    private long mLastKeyFrame = 0;
+    private final String mOutputPath;
+    private ByteBuffer mSample = ByteBuffer.allocate(64 * 1024);
+    private SegmentWriter mWriter;
+
+    FakeEncoder(Clock clock, int width, int height, int bitRate, String outputPath,
+                CaptureSettings settings, SegmentTracker.Callback callback) {
+        mBitRate = bitRate;
+        mOutputPath = outputPath;
+        mFrameRate = settings.getOutputFrameRate();
+        mKeyFrameInterval = Math.max(1, settings.getKeyFrameIntervalSeconds() * mFrameRate);
+        mWriter = new SegmentWriter(clock, width, height, 0, mFrameRate, true,
+                settings.getFragmentMaxFrames());
+        mWriter.setLimits(settings.getSegmentMaxDurationMs(), settings.getSegmentMaxBytes(),
+                callback);
+    }
+
+    /**
+     * Leaves the file as a crash would, without the fragment in progress.
+     */
+    void abandon() {
+        mWriter = null;
+    }
+
+    void encodeFrame(FramePool.Frame frame) throws IOException {
+        boolean keyFrame = mFrameCount == 0 || mKeyFrameRequested ||
+                mFrameCount - mLastKeyFrame >= mKeyFrameInterval;
+        if (keyFrame) {
+            mLastKeyFrame = mFrameCount;
+            mKeyFrameRequested = false;
+        }
+
+        int size = (int) Math.max(16, (long) mBitRate / 8 / mFrameRate);
+        if (keyFrame) {
+            size *= KEY_FRAME_WEIGHT;
+        }
+        if (mSample.capacity() < size) {
+            mSample = ByteBuffer.allocate(size);
+        }
+        mSample.clear();
+        mSample.putInt(1);
+        mSample.put((byte) (keyFrame ? 0x65 : 0x41));
+        mSample.put((byte) 0x88);
+        // Something of the frame, so nothing downstream can assume the payload is blank
+        mSample.put(frame.planes[0].get((int) (mFrameCount % frame.planes[0].capacity())));
+        mSample.position(size);
+        mSample.flip();
+
+        if (mWriter.writeSample(mSample, mFrameCount * 1000000L / mFrameRate, keyFrame)) {
+            mKeyFrameRequested = true;
+        }
+        mFrameCount++;
+    }
+
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    long getWrittenBytes() {
+        SegmentWriter writer = mWriter;
+        return writer != null ? writer.getWrittenBytes() : 0;
+    }
+
+    void requestRollOver() {
+        mWriter.requestRollOver();
+    }
+
+    void setBitRate(int bitRate) {
+        mBitRate = bitRate;
+    }
+
+    void start() throws IOException {
+        mWriter.open(mOutputPath);
+        mWriter.start(null, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+    }
+
+    void stop() throws IOException {
+        mWriter.finish();
+    }
+}
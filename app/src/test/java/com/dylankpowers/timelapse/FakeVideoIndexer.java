@@ -0,0 +1,20 @@
+package com.dylankpowers.timelapse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stands in for the MediaStore, remembering every path it was asked to index.
+ */
+class FakeVideoIndexer implements VideoIndexer {
+    private final ArrayList<String> mPaths = new ArrayList<String>();
+
+    synchronized List<String> getIndexedPaths() {
+        return new ArrayList<String>(mPaths);
+    }
+
+    @Override
+    public synchronized void index(String filepath, int width, int height) {
+        mPaths.add(filepath);
+    }
+}
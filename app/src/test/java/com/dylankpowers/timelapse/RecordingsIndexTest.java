@@ -0,0 +1,135 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reopens indexes the way the app finds them after a crash, with records cut off part way
+ * through being written.
+ */
+public class RecordingsIndexTest {
+    private static final String PATH = "/sdcard/Movies/TimeLapse_20160305_070809.mp4";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void overwrite(File file, int record, int position, int value)
+            throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(RecordingsIndex.HEADER_SIZE +
+                    (long) record * RecordingsIndex.RECORD_SIZE + position);
+            randomAccessFile.write(value);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        File file = mFolder.newFile();
+        RecordingsIndex index = new RecordingsIndex(file);
+        int first = index.append(PATH, 1000, 1920, 1080, 8000000, -1);
+        int second = index.append(RecordingNames.segment(RecordingNames.basePath(PATH), 1),
+                2000, 1920, 1080, 6000000, first);
+        index.finish(first, 1500, 450);
+        index.close();
+
+        index = new RecordingsIndex(file);
+        RecordingsIndex.Entry entry = new RecordingsIndex.Entry();
+        assertTrue(index.read(first, entry));
+        assertEquals(PATH, entry.getPath());
+        assertEquals(RecordingsIndex.STATUS_FINISHED, entry.status);
+        assertEquals(1500, entry.stopTimeMs);
+        assertEquals(450, entry.frameCount);
+        assertEquals(-1, entry.previous);
+
+        assertTrue(index.read(second, entry));
+        assertEquals(RecordingsIndex.STATUS_RECORDING, entry.status);
+        assertEquals(first, entry.previous);
+        assertEquals(1, entry.segmentIndex);
+        assertEquals(6000000, entry.bitRate);
+        index.close();
+    }
+
+    @Test
+    public void tornFinishReadsAsStillRecording() throws IOException {
+        File file = mFolder.newFile();
+        RecordingsIndex index = new RecordingsIndex(file);
+        int record = index.append(PATH, 1000, 1920, 1080, 8000000, -1);
+        index.finish(record, 1500, 450);
+        index.close();
+        // The stop time made it to disk, the finish checksum didn't
+        overwrite(file, record, RecordingsIndex.FINISH + 4, 0x7f);
+
+        index = new RecordingsIndex(file);
+        RecordingsIndex.Entry entry = new RecordingsIndex.Entry();
+        assertTrue(index.read(record, entry));
+        assertEquals(RecordingsIndex.STATUS_RECORDING, entry.status);
+        assertEquals(0, entry.frameCount);
+        assertEquals(PATH, entry.getPath());
+        assertEquals(record, index.findRecording(PATH));
+
+        // Recovery can finish it again
+        index.finish(record, 1600, 480);
+        index.close();
+        index = new RecordingsIndex(file);
+        assertTrue(index.read(record, entry));
+        assertEquals(RecordingsIndex.STATUS_FINISHED, entry.status);
+        assertEquals(480, entry.frameCount);
+        index.close();
+    }
+
+    @Test
+    public void damagedRecordIsLeftOut() throws IOException {
+        File file = mFolder.newFile();
+        RecordingsIndex index = new RecordingsIndex(file);
+        int damaged = index.append(PATH, 1000, 1920, 1080, 8000000, -1);
+        int intact = index.append(PATH, 2000, 1920, 1080, 8000000, -1);
+        index.close();
+        overwrite(file, damaged, 40, 'x');
+
+        index = new RecordingsIndex(file);
+        RecordingsIndex.Entry entry = new RecordingsIndex.Entry();
+        assertFalse(index.read(damaged, entry));
+        index.finish(damaged, 1500, 450);
+        assertFalse("Finishing doesn't make it whole", index.read(damaged, entry));
+        assertTrue(index.read(intact, entry));
+        assertEquals(intact, index.findRecording(PATH));
+        index.close();
+    }
+
+    @Test
+    public void listingThousandsOfRecordsTakesUnderAMillisecond() throws IOException {
+        File file = mFolder.newFile();
+        RecordingsIndex index = new RecordingsIndex(file);
+        int records = 3000;
+        for (int i = 0; i < records; i++) {
+            index.append(PATH, i, 1920, 1080, 8000000, i - 1);
+        }
+
+        // Best of several passes, so the JIT and the page cache are warm
+        RecordingsIndex.Entry entry = new RecordingsIndex.Entry();
+        long bestNs = Long.MAX_VALUE;
+        for (int pass = 0; pass < 50; pass++) {
+            long startNs = System.nanoTime();
+            int read = 0;
+            for (int i = 0; i < index.size(); i++) {
+                if (index.read(i, entry)) {
+                    read++;
+                }
+            }
+            bestNs = Math.min(bestNs, System.nanoTime() - startNs);
+            assertEquals(records, read);
+        }
+        index.close();
+        assertTrue("Listing took " + bestNs + "ns", bestNs < 1000000);
+    }
+}
@@ -0,0 +1,33 @@
+package com.dylankpowers.timelapse;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Gives each directory a volume of its own, much smaller than the disk the simulation is
+ * really writing to. Free space is the capacity less what the files in it take up.
+ */
+class SimulatedVolumes implements StorageMonitor.SpaceProbe {
+    private final HashMap<File, Long> mCapacities = new HashMap<File, Long>();
+
+    synchronized void add(File dir, long capacityBytes) {
+        mCapacities.put(dir.getAbsoluteFile(), capacityBytes);
+    }
+
+    @Override
+    public synchronized long getUsableSpace(File dir) {
+        Long capacity = mCapacities.get(dir.getAbsoluteFile());
+        if (capacity == null) {
+            return 0;
+        }
+
+        long used = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                used += file.length();
+            }
+        }
+        return Math.max(0, capacity - used);
+    }
+}
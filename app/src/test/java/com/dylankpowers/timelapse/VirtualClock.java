@@ -0,0 +1,114 @@
+package com.dylankpowers.timelapse;
+
+import java.util.PriorityQueue;
+
+/**
+ * A clock that only moves when the simulation says so, and the scheduler that runs against
+ * it. Tasks due at the same time run in the order they were posted. Anything may post from
+ * any thread, the tasks themselves only run on the thread calling {@link #runNext(long)}.
+ */
+class VirtualClock implements Clock, Scheduler {
+    // Wall clock time the simulation starts at, 2016-01-01
+    private static final long EPOCH_MS = 1451606400000L;
+
+    private long mNowMs = 0;
+    private long mSequence = 0;
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<Task>();
+
+    /**
+     * Drops every pending task, as if the process they belonged to died.
+     */
+    synchronized void cancelAll() {
+        mTasks.clear();
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return EPOCH_MS + mNowMs;
+    }
+
+    @Override
+    public synchronized long elapsedRealtime() {
+        return mNowMs;
+    }
+
+    @Override
+    public synchronized long uptimeMillis() {
+        return mNowMs;
+    }
+
+    @Override
+    public boolean post(Runnable task) {
+        return postAtTime(task, uptimeMillis());
+    }
+
+    @Override
+    public synchronized boolean postAtTime(Runnable task, long uptimeMillis) {
+        mTasks.add(new Task(task, Math.max(uptimeMillis, mNowMs), mSequence++));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean postDelayed(Runnable task, long delayMillis) {
+        return postAtTime(task, mNowMs + delayMillis);
+    }
+
+    @Override
+    public synchronized void removeCallbacks(Runnable task) {
+        while (mTasks.remove(new Task(task, 0, 0))) {
+            // Every posting of it goes
+        }
+    }
+
+    /**
+     * Moves the clock to the next task due by {@code untilMs} and runs it, or to
+     * {@code untilMs} if there's nothing due before then.
+     *
+     * @return false if there was nothing to run
+     */
+    boolean runNext(long untilMs) {
+        Task task;
+        synchronized (this) {
+            task = mTasks.peek();
+            if (task == null || task.mTimeMs > untilMs) {
+                mNowMs = Math.max(mNowMs, untilMs);
+                return false;
+            }
+            mTasks.poll();
+            mNowMs = task.mTimeMs;
+        }
+        task.mRunnable.run();
+        return true;
+    }
+
+    private static class Task implements Comparable<Task> {
+        final Runnable mRunnable;
+        final long mSequence;
+        final long mTimeMs;
+
+        Task(Runnable runnable, long timeMs, long sequence) {
+            mRunnable = runnable;
+            mTimeMs = timeMs;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mTimeMs != other.mTimeMs) {
+                return mTimeMs < other.mTimeMs ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+
+        // Equal by runnable only, so removeCallbacks can find it
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Task && ((Task) other).mRunnable == mRunnable;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mRunnable);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.dylankpowers.timelapse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares a run's JMH results against the checked in baseline and fails if any benchmark
+ * got slower by more than the tolerance. A single fork's error bars are often wider than
+ * the tolerance, so a slowdown only counts once the two scores' 99.9% intervals no longer
+ * overlap as well, anything less is noise.
+ *
+ * Both files are JMH's CSV output, so a baseline is refreshed by copying a run's results
+ * over it. Scores are times per operation, the baseline only means something on the machine
+ * it was recorded on.
+ *
+ * Usage: BaselineCheck baseline.csv results.csv [tolerance]
+ */
+public class BaselineCheck {
+    private static final double DEFAULT_TOLERANCE = 0.25;
+
+    private BaselineCheck() { }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCheck baseline.csv results.csv [tolerance]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE;
+        Map<String, double[]> baseline = read(new File(args[0]));
+        Map<String, double[]> results = read(new File(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, double[]> result : results.entrySet()) {
+            double score = result.getValue()[0];
+            double[] expected = baseline.get(result.getKey());
+            if (expected == null) {
+                System.out.println(String.format("%-60s %12.3f  (new)", result.getKey(), score));
+                continue;
+            }
+
+            double change = score / expected[0] - 1;
+            double error = result.getValue()[1];
+            boolean regressed = change > tolerance && score - error > expected[0] + expected[1];
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format("%-60s %12.3f +- %-10.3f %+6.1f%%%s",
+                    result.getKey(), score, error, change * 100, regressed ? "  REGRESSED" : ""));
+        }
+
+        if (regressions > 0) {
+            System.err.println(regressions + " benchmark(s) more than " +
+                    Math.round(tolerance * 100) + "% slower than the baseline, " +
+                    "beyond the error of both.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return score and its error keyed by benchmark name and parameters, in file order
+     */
+    private static Map<String, double[]> read(File file) throws IOException {
+        Map<String, double[]> scores = new LinkedHashMap<String, double[]>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            List<String> header = split(reader.readLine());
+            int benchmark = header.indexOf("Benchmark");
+            int score = header.indexOf("Score");
+            int error = header.indexOf("Score Error (99.9%)");
+            if (benchmark < 0 || score < 0 || error < 0) {
+                throw new IOException(file + " isn't a JMH CSV result file.");
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                List<String> fields = split(line);
+                StringBuilder key = new StringBuilder(fields.get(benchmark));
+                for (int i = 0; i < header.size(); i++) {
+                    if (header.get(i).startsWith("Param: ") && !fields.get(i).isEmpty()) {
+                        key.append(' ').append(header.get(i).substring("Param: ".length()))
+                                .append('=').append(fields.get(i));
+                    }
+                }
+                String scoreError = fields.get(error);
+                scores.put(key.toString(), new double[] {
+                        Double.parseDouble(fields.get(score)),
+                        scoreError.equals("NaN") ? 0 : Double.parseDouble(scoreError)});
+            }
+        } finally {
+            reader.close();
+        }
+        return scores;
+    }
+
+    /**
+     * Splits one CSV line, fields may be quoted.
+     */
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,91 @@
+package com.dylankpowers.timelapse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Joining a long segmented recording into one file, the way exporting it from the app does.
+ * The segments are fragmented files of 1.5KB samples, 612MB over 400,000 samples at the
+ * default size, written once in a temporary directory. Each export goes to disk and is
+ * synced, so the score depends on the disk as much as on the code.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ExportBenchmark {
+    private static final int SAMPLE_SIZE = 1526;
+    private static final int SAMPLES_PER_SEGMENT = 10000;
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x38, (byte) 0x80};
+    private static final byte[] SPS = {0x67, 0x64, 0x00, 0x28, (byte) 0xac, 0x2b, 0x40};
+
+    @Param({"40"})
+    public int segments;
+
+    private File mDirectory;
+    private File mOutput;
+    private final List<File> mSegments = new ArrayList<File>();
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("export", "");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("Unable to make " + mDirectory);
+        }
+        mOutput = new File(mDirectory, "export.mp4");
+
+        ByteBuffer sample = ByteBuffer.allocateDirect(4 + SAMPLE_SIZE);
+        sample.putInt(1).put((byte) 0x41).put((byte) 0x88);
+        while (sample.hasRemaining()) {
+            sample.put((byte) 0x5a);
+        }
+        long timeUs = 0;
+        for (int i = 0; i < segments; i++) {
+            File file = new File(mDirectory, "segment_" + i + ".mp4");
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(file, 1920, 1080, 90, 30, 30);
+            writer.writeHeader(ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+            for (int j = 0; j < SAMPLES_PER_SEGMENT; j++) {
+                boolean keyFrame = j % 30 == 0;
+                sample.put(4, (byte) (keyFrame ? 0x65 : 0x41));
+                sample.clear();
+                writer.writeSample(sample, timeUs, keyFrame);
+                timeUs += 33333;
+            }
+            writer.close();
+            mSegments.add(file);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File file : mSegments) {
+            file.delete();
+        }
+        mOutput.delete();
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public int export() throws IOException {
+        return SegmentExporter.export(mSegments, mOutput);
+    }
+}
@@ -0,0 +1,91 @@
+package com.dylankpowers.timelapse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per frame work on the interval path: copying a camera image into the frame pool and the
+ * motion filter's look at it. The source image is laid out like most camera HALs hand it
+ * over, padded rows and chroma interleaved with a pixel stride of 2.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameBenchmark {
+    private static final int ROW_PADDING = 64;
+
+    @Param({"1920x1080", "3840x2160"})
+    public String size;
+
+    private ByteBuffer mChromaU;
+    private ByteBuffer mChromaV;
+    private MotionFilter mFilter;
+    private int mHeight;
+    private ByteBuffer mLuma;
+    private FramePool mPool;
+    private int mRowStride;
+    private int[] mSignature;
+    private int mWidth;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        mWidth = Integer.parseInt(dimensions[0]);
+        mHeight = Integer.parseInt(dimensions[1]);
+        mRowStride = mWidth + ROW_PADDING;
+
+        Random random = new Random(1);
+        byte[] bytes = new byte[mRowStride * mHeight];
+        random.nextBytes(bytes);
+        mLuma = ByteBuffer.allocateDirect(bytes.length);
+        mLuma.put(bytes);
+        // U and V share one buffer a byte apart, as NV21 style layouts do
+        bytes = new byte[mRowStride * mHeight / 2];
+        random.nextBytes(bytes);
+        mChromaU = ByteBuffer.allocateDirect(bytes.length);
+        mChromaU.put(bytes);
+        mChromaU.position(1);
+        mChromaV = mChromaU.slice();
+
+        mPool = new FramePool(2, mWidth, mHeight);
+        mFilter = new MotionFilter(0, 0);
+        mSignature = new int[MotionFilter.SIGNATURE_WIDTH * MotionFilter.SIGNATURE_HEIGHT];
+    }
+
+    @Benchmark
+    public FramePool.Frame fillFrame() {
+        FramePool.Frame frame = mPool.acquire();
+        frame.fillPlane(0, mLuma, mRowStride, 1);
+        frame.fillPlane(1, mChromaU, mRowStride, 2);
+        frame.fillPlane(2, mChromaV, mRowStride, 2);
+        frame.release();
+        return frame;
+    }
+
+    @Benchmark
+    public boolean motionFilter() {
+        return mFilter.shouldKeep(mLuma, mWidth, mHeight, mRowStride);
+    }
+
+    @Benchmark
+    public int[] signature() {
+        MotionFilter.signature(mLuma, mWidth, mHeight, mRowStride, mSignature);
+        return mSignature;
+    }
+}
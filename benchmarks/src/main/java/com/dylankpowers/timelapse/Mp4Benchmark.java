@@ -0,0 +1,106 @@
+package com.dylankpowers.timelapse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MP4 writing as the encoder output sees it: finding the NAL units in a sample, adding
+ * samples to fragments, and the boxes of a movie header. Samples are written to the null
+ * device so the disk doesn't come into it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Mp4Benchmark {
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x38, (byte) 0x80};
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final byte[] SPS = {0x67, 0x64, 0x00, 0x28, (byte) 0xac, 0x2b, 0x40};
+
+    private final ByteBuffer mHeader = ByteBuffer.allocate(4096);
+    private ByteBuffer mSample;
+    private long mTimeUs = 0;
+    private FragmentedMp4Writer mWriter;
+
+    @Setup
+    public void setUp() throws IOException {
+        // Random slice data with a start code every 16KB, for a few slices per frame
+        byte[] bytes = new byte[SAMPLE_SIZE];
+        new Random(1).nextBytes(bytes);
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == 0) {
+                bytes[i] = 1;
+            }
+        }
+        for (int offset = 0; offset < bytes.length; offset += 16 * 1024) {
+            bytes[offset] = 0;
+            bytes[offset + 1] = 0;
+            bytes[offset + 2] = 0;
+            bytes[offset + 3] = 1;
+            bytes[offset + 4] = 0x41;
+        }
+        mSample = ByteBuffer.allocateDirect(SAMPLE_SIZE);
+        mSample.put(bytes).flip();
+
+        mWriter = new FragmentedMp4Writer(new File("/dev/null"), 1920, 1080, 90, 30, 30);
+        mWriter.writeHeader(ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+    }
+
+    @TearDown
+    public void tearDown() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            // The null device can't be synced, the channel is closed regardless
+        }
+    }
+
+    @Benchmark
+    public int findStartCodes() {
+        int count = 0;
+        int end = mSample.limit();
+        int nal = Mp4Boxes.findNalStart(mSample, 0, end);
+        while (nal >= 0) {
+            count++;
+            nal = Mp4Boxes.findNalStart(mSample, nal, end);
+        }
+        return count;
+    }
+
+    @Benchmark
+    public ByteBuffer movieHeader() {
+        ByteBuffer out = mHeader;
+        out.clear();
+        Mp4Boxes.putFileType(out);
+        Mp4Boxes.putMovieHeader(out, 0);
+        Mp4Boxes.putTrackHeader(out, 1920, 1080, 90, 0);
+        Mp4Boxes.putVideoMediaHeaders(out, 0);
+        Mp4Boxes.putSampleDescription(out, 1920, 1080, SPS, PPS);
+        return out;
+    }
+
+    @Benchmark
+    public long writeSample() throws IOException {
+        mTimeUs += 33333;
+        // Key frames once a second start a new fragment
+        mWriter.writeSample(mSample.duplicate(), mTimeUs, mTimeUs % 1000000 < 33333);
+        return mWriter.getWrittenBytes();
+    }
+}
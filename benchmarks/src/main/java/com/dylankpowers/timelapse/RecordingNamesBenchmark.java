@@ -0,0 +1,41 @@
+package com.dylankpowers.timelapse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Naming a recording when it starts, and each segment it rolls over to.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RecordingNamesBenchmark {
+    private final String mBasePath = "/storage/emulated/0/Movies/TimeLapse/TimeLapse_20160101_120000";
+    private final Calendar mDate = new GregorianCalendar(2016, Calendar.JANUARY, 1, 12, 0, 0);
+    private int mSegmentIndex = 0;
+
+    @Benchmark
+    public String recording() {
+        return RecordingNames.recording(mDate);
+    }
+
+    @Benchmark
+    public String segment() {
+        mSegmentIndex = (mSegmentIndex + 1) & 1023;
+        return RecordingNames.segment(mBasePath, mSegmentIndex);
+    }
+}
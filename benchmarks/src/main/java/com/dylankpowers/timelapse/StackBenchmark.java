@@ -0,0 +1,72 @@
+package com.dylankpowers.timelapse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stacking a frame into a running mean of 4, averaged over the adds and the finishing pass
+ * that lets the mean out. Scales with threads only as far as the machine has cores.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StackBenchmark {
+    private static final int STACK_FRAMES = 4;
+
+    @Param({"1920x1080"})
+    public String size;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private FramePool.Frame[] mFrames;
+    private int mNext = 0;
+    private FrameStacker mStacker;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        int width = Integer.parseInt(dimensions[0]);
+        int height = Integer.parseInt(dimensions[1]);
+
+        Random random = new Random(1);
+        mFrames = new FramePool.Frame[STACK_FRAMES];
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = FramePool.allocate(width, height);
+            for (int plane = 0; plane < 3; plane++) {
+                byte[] bytes = new byte[mFrames[i].planes[plane].capacity()];
+                random.nextBytes(bytes);
+                mFrames[i].planes[plane].put(bytes);
+            }
+        }
+        mStacker = new FrameStacker(width, height, STACK_FRAMES, Long.MAX_VALUE, threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStacker.release();
+    }
+
+    @Benchmark
+    public FramePool.Frame stackFrame() {
+        FramePool.Frame frame = mFrames[mNext];
+        mNext = (mNext + 1) % mFrames.length;
+        return mStacker.add(frame);
+    }
+}
@@ -0,0 +1,47 @@
+package com.dylankpowers.timelapse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bitrate and orientation worked out for every encoder that's set up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VideoMathBenchmark {
+    private static final int[] FRAME_RATES = {15, 24, 25, 30, 60, 120};
+    private static final int[] SENSOR_ORIENTATIONS = {0, 90, 180, 270};
+
+    private int mIndex = 0;
+
+    @Benchmark
+    public int scaleBitRate() {
+        mIndex++;
+        return VideoMath.scaleBitRate(17000000, 30, FRAME_RATES[mIndex % FRAME_RATES.length]);
+    }
+
+    @Benchmark
+    public int scaleBitRateToSize() {
+        mIndex++;
+        return VideoMath.scaleBitRateToSize(17000000, 640 + (mIndex & 7), 360, 1920, 1080);
+    }
+
+    @Benchmark
+    public int videoOrientation() {
+        mIndex++;
+        return VideoMath.videoOrientation(SENSOR_ORIENTATIONS[mIndex & 3], (mIndex & 4) != 0);
+    }
+}
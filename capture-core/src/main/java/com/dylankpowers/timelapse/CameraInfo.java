@@ -0,0 +1,133 @@
+package com.dylankpowers.timelapse;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Everything recording needs to know about the rear camera and its encoder profile, kept in
+ * plain fields so it can be cached without going back to the camera service.
+ */
+class CameraInfo {
+    private static final int FORMAT_VERSION = 3;
+
+    final String cameraId;
+    // Flattened [lower, upper] pairs
+    final int[] fpsRanges;
+    // Flattened [width, height] pairs of sizes the camera can stream to a preview
+    final int[] previewSizes;
+    final int sensorOrientation;
+    // Whether capture timestamps are on the elapsedRealtime clock like sensor events
+    final boolean timestampRealtime;
+    final int videoBitRate;
+    final int videoFrameRate;
+    final int videoHeight;
+    // Flattened [width, height] pairs of sizes the camera can stream to an encoder
+    final int[] videoSizes;
+    final int videoWidth;
+
+    CameraInfo(String cameraId, int sensorOrientation, boolean timestampRealtime,
+               int[] fpsRanges, int[] previewSizes, int[] videoSizes,
+               int videoWidth, int videoHeight, int videoBitRate, int videoFrameRate) {
+        this.cameraId = cameraId;
+        this.sensorOrientation = sensorOrientation;
+        this.timestampRealtime = timestampRealtime;
+        this.fpsRanges = fpsRanges;
+        this.previewSizes = previewSizes;
+        this.videoSizes = videoSizes;
+        this.videoWidth = videoWidth;
+        this.videoHeight = videoHeight;
+        this.videoBitRate = videoBitRate;
+        this.videoFrameRate = videoFrameRate;
+    }
+
+    /**
+     * The smallest preview size with the same aspect ratio as {@code width} by
+     * {@code height} that's at least {@code minHeight} tall, or that size itself if the
+     * camera has nothing smaller.
+     */
+    int[] findPreviewSize(int width, int height, int minHeight) {
+        int[] found = { width, height };
+        for (int i = 0; i + 1 < previewSizes.length; i += 2) {
+            int w = previewSizes[i];
+            int h = previewSizes[i + 1];
+            if ((long) w * height == (long) h * width && h >= minHeight && h < found[1]) {
+                found[0] = w;
+                found[1] = h;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the [lower, upper] range with the lowest upper bound, or null if there are none
+     */
+    int[] findSlowestFpsRange() {
+        int[] slowest = null;
+        for (int i = 0; i + 1 < fpsRanges.length; i += 2) {
+            if (slowest == null || fpsRanges[i + 1] < slowest[1] ||
+                    (fpsRanges[i + 1] == slowest[1] && fpsRanges[i] < slowest[0])) {
+                slowest = new int[] { fpsRanges[i], fpsRanges[i + 1] };
+            }
+        }
+        return slowest;
+    }
+
+    boolean hasFixedFpsRange(int fps) {
+        for (int i = 0; i + 1 < fpsRanges.length; i += 2) {
+            if (fpsRanges[i] == fps && fpsRanges[i + 1] == fps) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static CameraInfo read(DataInputStream in) throws IOException {
+        if (in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unknown camera info format");
+        }
+
+        String cameraId = in.readUTF();
+        int sensorOrientation = in.readInt();
+        boolean timestampRealtime = in.readBoolean();
+        int[] fpsRanges = readIntArray(in);
+        int[] previewSizes = readIntArray(in);
+        int[] videoSizes = readIntArray(in);
+        return new CameraInfo(cameraId, sensorOrientation, timestampRealtime, fpsRanges,
+                previewSizes, videoSizes, in.readInt(), in.readInt(), in.readInt(), in.readInt());
+    }
+
+    private static int[] readIntArray(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 4096) {
+            throw new IOException("Corrupt camera info");
+        }
+
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(cameraId);
+        out.writeInt(sensorOrientation);
+        out.writeBoolean(timestampRealtime);
+        writeIntArray(out, fpsRanges);
+        writeIntArray(out, previewSizes);
+        writeIntArray(out, videoSizes);
+        out.writeInt(videoWidth);
+        out.writeInt(videoHeight);
+        out.writeInt(videoBitRate);
+        out.writeInt(videoFrameRate);
+    }
+
+    private static void writeIntArray(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+}
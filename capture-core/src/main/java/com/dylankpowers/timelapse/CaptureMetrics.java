@@ -0,0 +1,164 @@
+package com.dylankpowers.timelapse;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-frame counters and histograms fed from the camera capture callbacks. Everything on the
+ * recording side is preallocated so it can run for every frame without producing garbage;
+ * only {@link #snapshot()} allocates.
+ */
+public class CaptureMetrics {
+    // Captures in flight are tracked by frame number modulo this
+    private static final int IN_FLIGHT_SLOTS = 64;
+
+    private final AtomicLong mAbortedSequences = new AtomicLong();
+    private final Histogram mCaptureLatency = new Histogram();
+    private final long[] mCaptureStartTimesNs = new long[IN_FLIGHT_SLOTS];
+    private final AtomicLong mCompletedCaptures = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private volatile int mEncoderQueueDepth = 0;
+    private final AtomicLong mFailedCaptures = new AtomicLong();
+    private final Histogram mFrameInterval = new Histogram();
+    private long mLastSensorTimestampNs = -1;
+    private final AtomicLong mLostBuffers = new AtomicLong();
+    private final AtomicInteger mMaxEncoderQueueDepth = new AtomicInteger();
+    private final AtomicLong mMissedImageCaptures = new AtomicLong();
+    private final AtomicLong mSkippedFrames = new AtomicLong();
+
+    void onBufferLost() {
+        mLostBuffers.incrementAndGet();
+    }
+
+    void onCaptureCompleted(long frameNumber, long sensorTimestampNs, long nowNs) {
+        mCompletedCaptures.incrementAndGet();
+
+        int slot = (int) (frameNumber % IN_FLIGHT_SLOTS);
+        long startNs = mCaptureStartTimesNs[slot];
+        if (startNs > 0) {
+            mCaptureLatency.record((nowNs - startNs) / 1000);
+            mCaptureStartTimesNs[slot] = 0;
+        }
+
+        if (mLastSensorTimestampNs > 0 && sensorTimestampNs > mLastSensorTimestampNs) {
+            mFrameInterval.record((sensorTimestampNs - mLastSensorTimestampNs) / 1000);
+        }
+        mLastSensorTimestampNs = sensorTimestampNs;
+    }
+
+    void onCaptureFailed(long frameNumber, boolean imageCaptured) {
+        mFailedCaptures.incrementAndGet();
+        if (!imageCaptured) {
+            mMissedImageCaptures.incrementAndGet();
+        }
+        mCaptureStartTimesNs[(int) (frameNumber % IN_FLIGHT_SLOTS)] = 0;
+    }
+
+    /**
+     * A frame reached us but the encoder was too far behind to take it.
+     */
+    void onFrameDropped() {
+        mDroppedFrames.incrementAndGet();
+    }
+
+    /**
+     * A frame was left out on purpose because it looked the same as the last one.
+     */
+    void onFrameSkipped() {
+        mSkippedFrames.incrementAndGet();
+    }
+
+    /**
+     * Captures the camera finished or failed since the last reset.
+     */
+    long getCaptures() {
+        return mCompletedCaptures.get() + mFailedCaptures.get();
+    }
+
+    /**
+     * Frames that never made it to the encoder since the last reset, whether the camera
+     * lost them or the encoder was too far behind to take them.
+     */
+    long getLostFrames() {
+        return mDroppedFrames.get() + mFailedCaptures.get() + mLostBuffers.get();
+    }
+
+    void onCaptureStarted(long frameNumber, long nowNs) {
+        mCaptureStartTimesNs[(int) (frameNumber % IN_FLIGHT_SLOTS)] = nowNs;
+    }
+
+    void onEncoderQueueDepth(int depth) {
+        mEncoderQueueDepth = depth;
+        int max = mMaxEncoderQueueDepth.get();
+        while (depth > max && !mMaxEncoderQueueDepth.compareAndSet(max, depth)) {
+            max = mMaxEncoderQueueDepth.get();
+        }
+    }
+
+    void onSequenceAborted() {
+        mAbortedSequences.incrementAndGet();
+    }
+
+    /**
+     * Starts a fresh measurement window. Must be called from the thread feeding the metrics.
+     */
+    void reset() {
+        mAbortedSequences.set(0);
+        mCaptureLatency.reset();
+        for (int i = 0; i < IN_FLIGHT_SLOTS; i++) {
+            mCaptureStartTimesNs[i] = 0;
+        }
+        mCompletedCaptures.set(0);
+        mDroppedFrames.set(0);
+        mEncoderQueueDepth = 0;
+        mFailedCaptures.set(0);
+        mFrameInterval.reset();
+        mLastSensorTimestampNs = -1;
+        mLostBuffers.set(0);
+        mMaxEncoderQueueDepth.set(0);
+        mMissedImageCaptures.set(0);
+        mSkippedFrames.set(0);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public static class Snapshot {
+        public final long abortedSequences;
+        public final Histogram.Snapshot captureLatency;
+        public final long completedCaptures;
+        public final long droppedFrames;
+        public final int encoderQueueDepth;
+        public final long failedCaptures;
+        public final Histogram.Snapshot frameInterval;
+        public final long lostBuffers;
+        public final int maxEncoderQueueDepth;
+        public final long missedImageCaptures;
+        public final long skippedFrames;
+
+        Snapshot(CaptureMetrics metrics) {
+            abortedSequences = metrics.mAbortedSequences.get();
+            captureLatency = metrics.mCaptureLatency.snapshot();
+            completedCaptures = metrics.mCompletedCaptures.get();
+            droppedFrames = metrics.mDroppedFrames.get();
+            encoderQueueDepth = metrics.mEncoderQueueDepth;
+            failedCaptures = metrics.mFailedCaptures.get();
+            frameInterval = metrics.mFrameInterval.snapshot();
+            lostBuffers = metrics.mLostBuffers.get();
+            maxEncoderQueueDepth = metrics.mMaxEncoderQueueDepth.get();
+            missedImageCaptures = metrics.mMissedImageCaptures.get();
+            skippedFrames = metrics.mSkippedFrames.get();
+        }
+
+        @Override
+        public String toString() {
+            return "completed=" + completedCaptures + " failed=" + failedCaptures +
+                    " (no image " + missedImageCaptures + ") lostBuffers=" + lostBuffers +
+                    " aborted=" + abortedSequences + " dropped=" + droppedFrames +
+                    " skipped=" + skippedFrames +
+                    " encoderQueue=" + encoderQueueDepth + "/" + maxEncoderQueueDepth +
+                    " interval[" + frameInterval + "] latency[" + captureLatency + "]";
+        }
+    }
+}
@@ -0,0 +1,555 @@
+package com.dylankpowers.timelapse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class CaptureSettings {
+    public static final int CAPTURE_MODE_CONTINUOUS = 0;
+    public static final int CAPTURE_MODE_INTERVAL = 1;
+
+    public static final int ENCODER_MEDIA_RECORDER = 0;
+    public static final int ENCODER_MEDIA_CODEC = 1;
+
+    // Same values as MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*
+    public static final int BITRATE_MODE_CQ = 0;
+    public static final int BITRATE_MODE_VBR = 1;
+    public static final int BITRATE_MODE_CBR = 2;
+
+    // What the preview shows while recording
+    public static final int RECORDING_PREVIEW_FULL = 0;
+    public static final int RECORDING_PREVIEW_REDUCED = 1;
+    public static final int RECORDING_PREVIEW_THUMBNAIL = 2;
+
+    // How often a reduced preview is refreshed
+    public static final long REDUCED_PREVIEW_INTERVAL_MS = 200;
+
+    public static final long MIN_CAPTURE_INTERVAL_MS = 100;
+    public static final long MAX_CAPTURE_INTERVAL_MS = 30 * 60 * 1000;
+    public static final long MIN_DUTY_CYCLE_INTERVAL_MS = 30 * 1000;
+    public static final int MAX_STACK_FRAMES = 16;
+    // Two minutes at 30fps, a fragment's sample table is held in memory until it's written
+    public static final int MAX_FRAGMENT_FRAMES = 3600;
+
+    private boolean mBFramesEnabled = false;
+    private int mBitRateMode = BITRATE_MODE_VBR;
+    private long mCaptureIntervalMs = 1000;
+    private int mCaptureMode = CAPTURE_MODE_CONTINUOUS;
+    private int mCaptureRate = 15;
+    private boolean mDutyCycleEnabled = false;
+    private final ArrayList<ExtraOutput> mExtraOutputs = new ArrayList<ExtraOutput>();
+    private int mEncoder = ENCODER_MEDIA_RECORDER;
+    private boolean mFragmentedOutput = false;
+    private int mFragmentMaxFrames = 30;
+    private int mKeyFrameIntervalSeconds = 2;
+    private boolean mMotionFilterEnabled = false;
+    private int mMotionMaxGapFrames = 30;
+    private int mMotionThreshold = 4;
+    private boolean mMotionTrackEnabled = false;
+    private int mOutputFrameRate = 30;
+    private boolean mPersistentSession = false;
+    private int mRecordingPreview = RECORDING_PREVIEW_FULL;
+    private long mRecordingThumbnailIntervalMs = 5000;
+    private long mSegmentMaxBytes = 0;
+    private long mSegmentMaxDurationMs = 0;
+    private int mStackFrames = 1;
+    private long mTargetDurationMs = 0;
+    private boolean mThrottleEnabled = false;
+    private int mThrottleLowBatteryPercent = 20;
+    private long mThrottleMaxCaptureIntervalMs = 0;
+    private int mThrottleMaxTemperatureC = 42;
+    private int mThrottleMinBitRate = 0;
+    private int mThrottleMinVideoHeight = 480;
+    private int mVideoBitRate = 0;
+
+    public boolean areBFramesEnabled() {
+        return mBFramesEnabled;
+    }
+
+    public void setBFramesEnabled(boolean bFramesEnabled) {
+        mBFramesEnabled = bFramesEnabled;
+    }
+
+    public int getBitRateMode() {
+        return mBitRateMode;
+    }
+
+    public void setBitRateMode(int bitRateMode) {
+        if (bitRateMode != BITRATE_MODE_CQ && bitRateMode != BITRATE_MODE_VBR &&
+                bitRateMode != BITRATE_MODE_CBR) {
+            throw new IllegalArgumentException("Unknown bitrate mode: " + bitRateMode);
+        }
+        mBitRateMode = bitRateMode;
+    }
+
+    public long getCaptureIntervalMs() {
+        return mCaptureIntervalMs;
+    }
+
+    public void setCaptureIntervalMs(long captureIntervalMs) {
+        if (captureIntervalMs < MIN_CAPTURE_INTERVAL_MS || captureIntervalMs > MAX_CAPTURE_INTERVAL_MS) {
+            throw new IllegalArgumentException("Capture interval out of range: " + captureIntervalMs);
+        }
+        mCaptureIntervalMs = captureIntervalMs;
+    }
+
+    public int getCaptureMode() {
+        return mCaptureMode;
+    }
+
+    public void setCaptureMode(int captureMode) {
+        if (captureMode != CAPTURE_MODE_CONTINUOUS && captureMode != CAPTURE_MODE_INTERVAL) {
+            throw new IllegalArgumentException("Unknown capture mode: " + captureMode);
+        }
+        mCaptureMode = captureMode;
+    }
+
+    /**
+     * Frames per second pulled from the sensor in continuous mode.
+     */
+    public int getCaptureRate() {
+        return mCaptureRate;
+    }
+
+    public void setCaptureRate(int captureRate) {
+        if (captureRate <= 0) {
+            throw new IllegalArgumentException("Capture rate must be positive");
+        }
+        mCaptureRate = captureRate;
+    }
+
+    /**
+     * Closes the camera and lets the device sleep between shots when the capture interval
+     * is at least {@link #MIN_DUTY_CYCLE_INTERVAL_MS}. The preview goes dark while such a
+     * recording runs. Off by default: below 15 minutes, keeping shots on time through Doze
+     * takes alarm clock alarms, which wake the device fully and show the alarm icon.
+     */
+    public boolean isDutyCycleEnabled() {
+        return mDutyCycleEnabled;
+    }
+
+    public void setDutyCycleEnabled(boolean dutyCycleEnabled) {
+        mDutyCycleEnabled = dutyCycleEnabled;
+    }
+
+    public boolean isDutyCycled() {
+        return mDutyCycleEnabled && mCaptureMode == CAPTURE_MODE_INTERVAL &&
+                mCaptureIntervalMs >= MIN_DUTY_CYCLE_INTERVAL_MS;
+    }
+
+    /**
+     * Records another file from the same frames as the main one. Frames have to pass through
+     * the CPU to be shared, so continuous captures are encoded with MediaCodec from camera
+     * images while there are extra outputs.
+     */
+    public void addExtraOutput(ExtraOutput output) {
+        mExtraOutputs.add(output);
+    }
+
+    public void clearExtraOutputs() {
+        mExtraOutputs.clear();
+    }
+
+    public List<ExtraOutput> getExtraOutputs() {
+        return Collections.unmodifiableList(mExtraOutputs);
+    }
+
+    public boolean hasExtraOutputs() {
+        return !mExtraOutputs.isEmpty();
+    }
+
+    public int getEncoder() {
+        return mEncoder;
+    }
+
+    public void setEncoder(int encoder) {
+        if (encoder != ENCODER_MEDIA_RECORDER && encoder != ENCODER_MEDIA_CODEC) {
+            throw new IllegalArgumentException("Unknown encoder: " + encoder);
+        }
+        mEncoder = encoder;
+    }
+
+    /**
+     * Most frames buffered before a fragment is written out, up to
+     * {@link #MAX_FRAGMENT_FRAMES}. This bounds how much of the recording a crash can cost
+     * when fragmented output is on.
+     */
+    public int getFragmentMaxFrames() {
+        return mFragmentMaxFrames;
+    }
+
+    public void setFragmentMaxFrames(int fragmentMaxFrames) {
+        if (fragmentMaxFrames <= 0) {
+            throw new IllegalArgumentException("Fragments need at least one frame");
+        }
+        if (fragmentMaxFrames > MAX_FRAGMENT_FRAMES) {
+            throw new IllegalArgumentException("Fragment size out of range: " + fragmentMaxFrames);
+        }
+        mFragmentMaxFrames = fragmentMaxFrames;
+    }
+
+    /**
+     * Writes fragmented MP4 files that stay playable if the app dies. Only the MediaCodec
+     * encoder can produce them.
+     */
+    public boolean isFragmentedOutput() {
+        return mFragmentedOutput;
+    }
+
+    public void setFragmentedOutput(boolean fragmentedOutput) {
+        mFragmentedOutput = fragmentedOutput;
+    }
+
+    public int getKeyFrameIntervalSeconds() {
+        return mKeyFrameIntervalSeconds;
+    }
+
+    public void setKeyFrameIntervalSeconds(int keyFrameIntervalSeconds) {
+        if (keyFrameIntervalSeconds <= 0) {
+            throw new IllegalArgumentException("Key frame interval must be positive");
+        }
+        mKeyFrameIntervalSeconds = keyFrameIntervalSeconds;
+    }
+
+    /**
+     * Drops frames that barely differ from the last one kept, which collapses long static
+     * stretches of a scene. Frames have to pass through the CPU for this, so continuous
+     * captures are encoded with MediaCodec from camera images while it's on.
+     */
+    public boolean isMotionFilterEnabled() {
+        return mMotionFilterEnabled;
+    }
+
+    public void setMotionFilterEnabled(boolean motionFilterEnabled) {
+        mMotionFilterEnabled = motionFilterEnabled;
+    }
+
+    /**
+     * Most frames dropped in a row before one is kept anyway, so the output never freezes
+     * for too long.
+     */
+    public int getMotionMaxGapFrames() {
+        return mMotionMaxGapFrames;
+    }
+
+    public void setMotionMaxGapFrames(int motionMaxGapFrames) {
+        if (motionMaxGapFrames < 0) {
+            throw new IllegalArgumentException("Gap can't be negative");
+        }
+        mMotionMaxGapFrames = motionMaxGapFrames;
+    }
+
+    /**
+     * Mean luma difference, out of 255, a frame needs from the last kept one to be kept.
+     */
+    public int getMotionThreshold() {
+        return mMotionThreshold;
+    }
+
+    public void setMotionThreshold(int motionThreshold) {
+        if (motionThreshold < 0 || motionThreshold > 255) {
+            throw new IllegalArgumentException("Motion threshold out of range: " + motionThreshold);
+        }
+        mMotionThreshold = motionThreshold;
+    }
+
+    /**
+     * Records gyroscope and rotation vector samples at sensor rate into a .motion file next
+     * to each recording, along with when each of its frames was exposed.
+     */
+    public boolean isMotionTrackEnabled() {
+        return mMotionTrackEnabled;
+    }
+
+    public void setMotionTrackEnabled(boolean motionTrackEnabled) {
+        mMotionTrackEnabled = motionTrackEnabled;
+    }
+
+    public int getOutputFrameRate() {
+        return mOutputFrameRate;
+    }
+
+    public void setOutputFrameRate(int outputFrameRate) {
+        if (outputFrameRate <= 0) {
+            throw new IllegalArgumentException("Output frame rate must be positive");
+        }
+        mOutputFrameRate = outputFrameRate;
+    }
+
+    /**
+     * Keeps one capture session with the encoder surface configured for as long as the
+     * camera is open, so starting and stopping only swap the repeating request. Needs
+     * Android M and the MediaCodec encoder in continuous mode, and takes effect when the
+     * next preview session is built.
+     */
+    public boolean isPersistentSession() {
+        return mPersistentSession;
+    }
+
+    public void setPersistentSession(boolean persistentSession) {
+        mPersistentSession = persistentSession;
+    }
+
+    /**
+     * How much of the camera the preview gets while recording.
+     * {@link #RECORDING_PREVIEW_FULL} streams it at full size with every frame.
+     * {@link #RECORDING_PREVIEW_REDUCED} streams a smaller size and refreshes it every
+     * {@link #REDUCED_PREVIEW_INTERVAL_MS}, {@link #RECORDING_PREVIEW_THUMBNAIL} streams the
+     * smaller size once every {@link #getRecordingThumbnailIntervalMs()}, leaving the ISP,
+     * GPU and memory bandwidth to the encoder. Interval captures keep the preview running
+     * between shots to hold AE and AF, at the slowest frame rate the camera has. The size
+     * stays full in a persistent session, which isn't rebuilt to record.
+     */
+    public int getRecordingPreview() {
+        return mRecordingPreview;
+    }
+
+    public void setRecordingPreview(int recordingPreview) {
+        if (recordingPreview != RECORDING_PREVIEW_FULL &&
+                recordingPreview != RECORDING_PREVIEW_REDUCED &&
+                recordingPreview != RECORDING_PREVIEW_THUMBNAIL) {
+            throw new IllegalArgumentException("Unknown recording preview: " + recordingPreview);
+        }
+        mRecordingPreview = recordingPreview;
+    }
+
+    /**
+     * How often the preview is refreshed while recording, or 0 for every frame.
+     */
+    public long getRecordingPreviewIntervalMs() {
+        switch (mRecordingPreview) {
+            case RECORDING_PREVIEW_REDUCED:
+                return REDUCED_PREVIEW_INTERVAL_MS;
+            case RECORDING_PREVIEW_THUMBNAIL:
+                return mRecordingThumbnailIntervalMs;
+            default:
+                return 0;
+        }
+    }
+
+    public long getRecordingThumbnailIntervalMs() {
+        return mRecordingThumbnailIntervalMs;
+    }
+
+    public void setRecordingThumbnailIntervalMs(long recordingThumbnailIntervalMs) {
+        if (recordingThumbnailIntervalMs < REDUCED_PREVIEW_INTERVAL_MS) {
+            throw new IllegalArgumentException("Thumbnail interval must be at least " +
+                    REDUCED_PREVIEW_INTERVAL_MS + "ms");
+        }
+        mRecordingThumbnailIntervalMs = recordingThumbnailIntervalMs;
+    }
+
+    /**
+     * Size after which the recording rolls over to a new file, or 0 for no limit. Only the
+     * MediaCodec encoder can segment.
+     */
+    public long getSegmentMaxBytes() {
+        return mSegmentMaxBytes;
+    }
+
+    public void setSegmentMaxBytes(long segmentMaxBytes) {
+        if (segmentMaxBytes < 0) {
+            throw new IllegalArgumentException("Segment size can't be negative");
+        }
+        mSegmentMaxBytes = segmentMaxBytes;
+    }
+
+    /**
+     * Capture time after which the recording rolls over to a new file, or 0 for no limit.
+     * Only the MediaCodec encoder can segment.
+     */
+    public long getSegmentMaxDurationMs() {
+        return mSegmentMaxDurationMs;
+    }
+
+    public void setSegmentMaxDurationMs(long segmentMaxDurationMs) {
+        if (segmentMaxDurationMs < 0) {
+            throw new IllegalArgumentException("Segment duration can't be negative");
+        }
+        mSegmentMaxDurationMs = segmentMaxDurationMs;
+    }
+
+    public boolean isSegmentingEnabled() {
+        return mSegmentMaxBytes > 0 || mSegmentMaxDurationMs > 0;
+    }
+
+    /**
+     * Camera frames averaged into each recorded frame to cut low light noise, 1 for none.
+     * Interval captures take a burst of this many frames for every shot, continuous captures
+     * record one frame for every this many and so speed up by as much. Frames have to pass
+     * through the CPU for this, like motion filtering. Duty cycled recordings keep single
+     * frames.
+     */
+    public int getStackFrames() {
+        return mStackFrames;
+    }
+
+    public void setStackFrames(int stackFrames) {
+        if (stackFrames < 1 || stackFrames > MAX_STACK_FRAMES) {
+            throw new IllegalArgumentException("Stack size out of range: " + stackFrames);
+        }
+        mStackFrames = stackFrames;
+    }
+
+    /**
+     * How long a recording is meant to run, or 0 if it's open ended. With a target, the
+     * bitrate and capture interval are lowered as needed so storage lasts until it's reached.
+     */
+    public long getTargetDurationMs() {
+        return mTargetDurationMs;
+    }
+
+    public void setTargetDurationMs(long targetDurationMs) {
+        if (targetDurationMs < 0) {
+            throw new IllegalArgumentException("Target duration can't be negative");
+        }
+        mTargetDurationMs = targetDurationMs;
+    }
+
+    /**
+     * Steps the recording down when the device runs hot, the battery runs low off the
+     * charger or frames start getting dropped, and back up once that has passed: first the
+     * bitrate, then the capture interval, then the video size, each within the bounds below.
+     * A change of size starts a new file. Persistent sessions are off while this is on, their
+     * encoder is set up before anything is known about the device's state.
+     */
+    public boolean isThrottleEnabled() {
+        return mThrottleEnabled;
+    }
+
+    public void setThrottleEnabled(boolean throttleEnabled) {
+        mThrottleEnabled = throttleEnabled;
+    }
+
+    /**
+     * Battery level, in percent, at or below which the recording is stepped down while it
+     * isn't charging.
+     */
+    public int getThrottleLowBatteryPercent() {
+        return mThrottleLowBatteryPercent;
+    }
+
+    public void setThrottleLowBatteryPercent(int throttleLowBatteryPercent) {
+        if (throttleLowBatteryPercent < 0 || throttleLowBatteryPercent > 100) {
+            throw new IllegalArgumentException("Battery level out of range: " +
+                    throttleLowBatteryPercent);
+        }
+        mThrottleLowBatteryPercent = throttleLowBatteryPercent;
+    }
+
+    /**
+     * Longest the capture interval is stretched to, or 0 for four times the set interval.
+     */
+    public long getThrottleMaxCaptureIntervalMs() {
+        return mThrottleMaxCaptureIntervalMs;
+    }
+
+    public void setThrottleMaxCaptureIntervalMs(long throttleMaxCaptureIntervalMs) {
+        if (throttleMaxCaptureIntervalMs != 0 &&
+                (throttleMaxCaptureIntervalMs < MIN_CAPTURE_INTERVAL_MS ||
+                        throttleMaxCaptureIntervalMs > MAX_CAPTURE_INTERVAL_MS)) {
+            throw new IllegalArgumentException("Capture interval out of range: " +
+                    throttleMaxCaptureIntervalMs);
+        }
+        mThrottleMaxCaptureIntervalMs = throttleMaxCaptureIntervalMs;
+    }
+
+    /**
+     * Battery temperature, in degrees Celsius, at or above which the recording is stepped
+     * down. It's the one temperature every device reports, and follows the camera and
+     * encoder closely enough in an enclosure.
+     */
+    public int getThrottleMaxTemperatureC() {
+        return mThrottleMaxTemperatureC;
+    }
+
+    public void setThrottleMaxTemperatureC(int throttleMaxTemperatureC) {
+        mThrottleMaxTemperatureC = throttleMaxTemperatureC;
+    }
+
+    /**
+     * Lowest bitrate to step down to at full size, or 0 for a quarter of the usual one.
+     */
+    public int getThrottleMinBitRate() {
+        return mThrottleMinBitRate;
+    }
+
+    public void setThrottleMinBitRate(int throttleMinBitRate) {
+        if (throttleMinBitRate < 0) {
+            throw new IllegalArgumentException("Bitrate can't be negative");
+        }
+        mThrottleMinBitRate = throttleMinBitRate;
+    }
+
+    /**
+     * Smallest video height to step down to. Only sizes the camera streams at the same
+     * aspect ratio are used.
+     */
+    public int getThrottleMinVideoHeight() {
+        return mThrottleMinVideoHeight;
+    }
+
+    public void setThrottleMinVideoHeight(int throttleMinVideoHeight) {
+        if (throttleMinVideoHeight < 0) {
+            throw new IllegalArgumentException("Height can't be negative");
+        }
+        mThrottleMinVideoHeight = throttleMinVideoHeight;
+    }
+
+    /**
+     * Encoded bits per second of output video, or 0 to derive it from the camcorder profile.
+     */
+    public int getVideoBitRate() {
+        return mVideoBitRate;
+    }
+
+    public void setVideoBitRate(int videoBitRate) {
+        if (videoBitRate < 0) {
+            throw new IllegalArgumentException("Bitrate can't be negative");
+        }
+        mVideoBitRate = videoBitRate;
+    }
+
+    public static class ExtraOutput {
+        private final int mBitRate;
+        private final int mHeight;
+        private final long mIntervalMs;
+        private final int mWidth;
+
+        /**
+         * @param intervalMs capture time between frames of this output, 0 for every frame
+         * @param bitRate encoded bits per second, or 0 to scale the main output's by size
+         */
+        public ExtraOutput(long intervalMs, int width, int height, int bitRate) {
+            if (intervalMs < 0) {
+                throw new IllegalArgumentException("Interval can't be negative");
+            }
+            if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+                throw new IllegalArgumentException("Bad output size: " + width + "x" + height);
+            }
+            if (bitRate < 0) {
+                throw new IllegalArgumentException("Bitrate can't be negative");
+            }
+            mIntervalMs = intervalMs;
+            mWidth = width;
+            mHeight = height;
+            mBitRate = bitRate;
+        }
+
+        public int getBitRate() {
+            return mBitRate;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public long getIntervalMs() {
+            return mIntervalMs;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+    }
+}
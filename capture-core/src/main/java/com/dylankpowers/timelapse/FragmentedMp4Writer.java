@@ -0,0 +1,287 @@
+package com.dylankpowers.timelapse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.dylankpowers.timelapse.Mp4Boxes.beginBox;
+import static com.dylankpowers.timelapse.Mp4Boxes.beginFullBox;
+import static com.dylankpowers.timelapse.Mp4Boxes.beginVideoMediaInformation;
+import static com.dylankpowers.timelapse.Mp4Boxes.endBox;
+import static com.dylankpowers.timelapse.Mp4Boxes.findNalStart;
+import static com.dylankpowers.timelapse.Mp4Boxes.findStartCode;
+import static com.dylankpowers.timelapse.Mp4Boxes.putFileType;
+import static com.dylankpowers.timelapse.Mp4Boxes.putFourCc;
+import static com.dylankpowers.timelapse.Mp4Boxes.putMovieHeader;
+import static com.dylankpowers.timelapse.Mp4Boxes.putSampleDescription;
+import static com.dylankpowers.timelapse.Mp4Boxes.putTrackHeader;
+import static com.dylankpowers.timelapse.Mp4Boxes.putVideoMediaHeaders;
+import static com.dylankpowers.timelapse.Mp4Boxes.stripStartCode;
+import static com.dylankpowers.timelapse.Mp4Boxes.toTicks;
+
+/**
+ * Streams H.264 samples into a fragmented MP4. The movie header is written up front with
+ * empty sample tables and each fragment carries its own moof/mdat pair, so the file is
+ * playable up to the last complete fragment at all times and closing it is just a flush.
+ *
+ * Fragments are cut at key frames, or sooner once {@code maxSamplesPerFragment} samples are
+ * pending so sparse key frames can't hold back a large part of the recording.
+ */
+class FragmentedMp4Writer {
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int INITIAL_FRAGMENT_CAPACITY = 1024 * 1024;
+    // The file header with its parameter sets, or a fragment header less its sample entries
+    private static final int HEADER_CAPACITY = 8 * 1024;
+    private static final int TRUN_ENTRY_SIZE = 16;
+
+    private final FileChannel mChannel;
+    private long mDefaultSampleDurationUs;
+    private long mFragmentBaseTimeUs = -1;
+    private ByteBuffer mFragmentData = ByteBuffer.allocateDirect(INITIAL_FRAGMENT_CAPACITY);
+    private final ByteBuffer mHeader;
+    private final int mHeight;
+    private final int mMaxSamplesPerFragment;
+    private final int mRotation;
+    private int mSampleCount = 0;
+    private long[] mSampleDecodeTimesUs;
+    private boolean[] mSampleKeyFrames;
+    private long[] mSamplePresentationTimesUs;
+    private int[] mSampleSizes;
+    private int mSequenceNumber = 0;
+    private final int mWidth;
+    private final ByteBuffer[] mWriteBuffers = new ByteBuffer[2];
+    private long mWrittenBytes = 0;
+
+    FragmentedMp4Writer(File file, int width, int height, int rotation,
+                        int frameRate, int maxSamplesPerFragment) throws IOException {
+        mChannel = new FileOutputStream(file).getChannel();
+        mWidth = width;
+        mHeight = height;
+        mRotation = ((rotation % 360) + 360) % 360;
+        mDefaultSampleDurationUs = 1000000L / frameRate;
+        mMaxSamplesPerFragment = maxSamplesPerFragment;
+        // Every sample of a full fragment gets an entry in its track run
+        mHeader = ByteBuffer.allocate(HEADER_CAPACITY + maxSamplesPerFragment * TRUN_ENTRY_SIZE);
+        mSampleDecodeTimesUs = new long[maxSamplesPerFragment + 1];
+        mSampleKeyFrames = new boolean[maxSamplesPerFragment + 1];
+        mSamplePresentationTimesUs = new long[maxSamplesPerFragment + 1];
+        mSampleSizes = new int[maxSamplesPerFragment + 1];
+    }
+
+    void close() throws IOException {
+        try {
+            flushFragment(mDefaultSampleDurationUs);
+            mChannel.force(false);
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private void ensureFragmentCapacity(int additionalBytes) {
+        if (mFragmentData.remaining() >= additionalBytes) {
+            return;
+        }
+
+        int capacity = mFragmentData.capacity();
+        while (capacity - mFragmentData.position() < additionalBytes) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+        mFragmentData.flip();
+        grown.put(mFragmentData);
+        mFragmentData = grown;
+    }
+
+    /**
+     * Copies an Annex B access unit into the fragment, replacing start codes with the
+     * 4 byte NAL lengths MP4 expects. Returns the number of bytes written.
+     */
+    private int appendLengthPrefixed(ByteBuffer annexB) {
+        int start = annexB.position();
+        int end = annexB.limit();
+        ensureFragmentCapacity((end - start) + 64);
+
+        int written = 0;
+        int nalStart = findNalStart(annexB, start, end);
+        if (nalStart < 0) {
+            // Already length prefixed or a bare NAL, store it untouched
+            mFragmentData.putInt(end - start);
+            mFragmentData.put(annexB);
+            return end - start + 4;
+        }
+
+        while (nalStart >= 0) {
+            int nextStartCode = findStartCode(annexB, nalStart, end);
+            int nalEnd = nextStartCode < 0 ? end : nextStartCode;
+            int nalLength = nalEnd - nalStart;
+            ensureFragmentCapacity(nalLength + 4);
+            mFragmentData.putInt(nalLength);
+            annexB.limit(nalEnd);
+            annexB.position(nalStart);
+            mFragmentData.put(annexB);
+            annexB.limit(end);
+            written += nalLength + 4;
+            nalStart = nextStartCode < 0 ? -1 : findNalStart(annexB, nextStartCode, end);
+        }
+        return written;
+    }
+
+    private void flushFragment(long lastSampleDurationUs) throws IOException {
+        if (mSampleCount == 0) {
+            return;
+        }
+
+        // Decode order is the sorted presentation order inside a closed GOP
+        System.arraycopy(mSamplePresentationTimesUs, 0, mSampleDecodeTimesUs, 0, mSampleCount);
+        Arrays.sort(mSampleDecodeTimesUs, 0, mSampleCount);
+        long baseDecodeTimeUs = mFragmentBaseTimeUs < 0 ? mSampleDecodeTimesUs[0] : mFragmentBaseTimeUs;
+
+        ByteBuffer out = mHeader;
+        out.clear();
+        int moof = out.position();
+        beginBox(out, "moof");
+        int mfhd = out.position();
+        beginFullBox(out, "mfhd", 0, 0);
+        out.putInt(++mSequenceNumber);
+        endBox(out, mfhd);
+
+        int traf = out.position();
+        beginBox(out, "traf");
+        int tfhd = out.position();
+        // default-base-is-moof
+        beginFullBox(out, "tfhd", 0, 0x020000);
+        out.putInt(1);
+        endBox(out, tfhd);
+
+        int tfdt = out.position();
+        beginFullBox(out, "tfdt", 1, 0);
+        out.putLong(toTicks(baseDecodeTimeUs));
+        endBox(out, tfdt);
+
+        int trun = out.position();
+        // data-offset, sample-duration, sample-size, sample-flags, composition-time-offset
+        beginFullBox(out, "trun", 1, 0x000001 | 0x000100 | 0x000200 | 0x000400 | 0x000800);
+        out.putInt(mSampleCount);
+        int dataOffsetPosition = out.position();
+        out.putInt(0);
+        long decodeTimeUs = baseDecodeTimeUs;
+        for (int i = 0; i < mSampleCount; i++) {
+            long nextDecodeTimeUs = i + 1 < mSampleCount ?
+                    mSampleDecodeTimesUs[i + 1] : decodeTimeUs + lastSampleDurationUs;
+            out.putInt((int) (toTicks(nextDecodeTimeUs) - toTicks(decodeTimeUs)));
+            out.putInt(mSampleSizes[i]);
+            out.putInt(mSampleKeyFrames[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            out.putInt((int) (toTicks(mSamplePresentationTimesUs[i]) - toTicks(decodeTimeUs)));
+            decodeTimeUs = nextDecodeTimeUs;
+        }
+        endBox(out, trun);
+        endBox(out, traf);
+        endBox(out, moof);
+
+        int mdatSize = mFragmentData.position() + 8;
+        out.putInt(dataOffsetPosition, out.position() - moof + 8);
+        out.putInt(mdatSize);
+        putFourCc(out, "mdat");
+        out.flip();
+        mFragmentData.flip();
+
+        mWriteBuffers[0] = out;
+        mWriteBuffers[1] = mFragmentData;
+        while (out.hasRemaining() || mFragmentData.hasRemaining()) {
+            mWrittenBytes += mChannel.write(mWriteBuffers);
+        }
+
+        mFragmentData.clear();
+        mFragmentBaseTimeUs = decodeTimeUs;
+        mSampleCount = 0;
+    }
+
+    long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * Writes the file and movie headers. The SPS and PPS come from the encoder's
+     * csd-0 and csd-1 buffers and may still carry their start codes.
+     */
+    void writeHeader(ByteBuffer sps, ByteBuffer pps) throws IOException {
+        ByteBuffer out = mHeader;
+        out.clear();
+        putFileType(out);
+
+        int moov = out.position();
+        beginBox(out, "moov");
+        putMovieHeader(out, 0);
+        int trak = out.position();
+        beginBox(out, "trak");
+        putTrackHeader(out, mWidth, mHeight, mRotation, 0);
+        int mdia = out.position();
+        beginBox(out, "mdia");
+        putVideoMediaHeaders(out, 0);
+        int minf = beginVideoMediaInformation(out);
+
+        int stbl = out.position();
+        beginBox(out, "stbl");
+        putSampleDescription(out, mWidth, mHeight, stripStartCode(sps), stripStartCode(pps));
+        String[] emptyTables = {"stts", "stsc", "stco"};
+        for (String table : emptyTables) {
+            int box = out.position();
+            beginFullBox(out, table, 0, 0);
+            out.putInt(0);
+            endBox(out, box);
+        }
+        int stsz = out.position();
+        beginFullBox(out, "stsz", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        endBox(out, stsz);
+        endBox(out, stbl);
+        endBox(out, minf);
+        endBox(out, mdia);
+        endBox(out, trak);
+
+        int mvex = out.position();
+        beginBox(out, "mvex");
+        int trex = out.position();
+        beginFullBox(out, "trex", 0, 0);
+        out.putInt(1);
+        out.putInt(1);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        endBox(out, trex);
+        endBox(out, mvex);
+        endBox(out, moov);
+
+        out.flip();
+        while (out.hasRemaining()) {
+            mWrittenBytes += mChannel.write(out);
+        }
+    }
+
+    /**
+     * Adds one encoded access unit. Samples must arrive in decode order.
+     */
+    void writeSample(ByteBuffer data, long presentationTimeUs, boolean keyFrame) throws IOException {
+        if (mSampleCount > 0 && (keyFrame || mSampleCount >= mMaxSamplesPerFragment)) {
+            long lastDecodeTimeUs = mSamplePresentationTimesUs[0];
+            for (int i = 1; i < mSampleCount; i++) {
+                lastDecodeTimeUs = Math.max(lastDecodeTimeUs, mSamplePresentationTimesUs[i]);
+            }
+            long lastSampleDurationUs = presentationTimeUs - lastDecodeTimeUs;
+            if (lastSampleDurationUs > 0) {
+                mDefaultSampleDurationUs = lastSampleDurationUs;
+            }
+            flushFragment(mDefaultSampleDurationUs);
+        }
+
+        mSamplePresentationTimesUs[mSampleCount] = presentationTimeUs;
+        mSampleKeyFrames[mSampleCount] = keyFrame;
+        mSampleSizes[mSampleCount] = appendLengthPrefixed(data);
+        mSampleCount++;
+    }
+}
@@ -0,0 +1,173 @@
+package com.dylankpowers.timelapse;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed ring of direct buffers big enough for one YUV 4:2:0 frame each. Camera images are
+ * copied into a slot and closed right away, so the camera gets its buffer back no matter how
+ * far behind the encoder is, and nothing is allocated per frame once the pool exists.
+ *
+ * Slots are reference counted so more than one stage can look at a frame. When every slot
+ * is in use {@link #acquire()} fails, which is the signal for capture to back off.
+ */
+class FramePool {
+    private final BlockingQueue<Frame> mFree;
+    private final int mHeight;
+    private final int mSize;
+    private final int mWidth;
+
+    FramePool(int size, int width, int height) {
+        mSize = size;
+        mWidth = width;
+        mHeight = height;
+        mFree = new ArrayBlockingQueue<Frame>(size);
+        for (int i = 0; i < size; i++) {
+            mFree.add(new Frame(this, width, height));
+        }
+    }
+
+    /**
+     * Copies a plane between any two layouts, rows and pixels may be padded on either side.
+     * Leaves the position and limit of both buffers changed.
+     */
+    static void copyPlane(ByteBuffer src, int srcRowStride, int srcPixelStride,
+                          ByteBuffer dst, int dstRowStride, int dstPixelStride,
+                          int width, int height) {
+        if (srcPixelStride == dstPixelStride) {
+            int rowLength = (width - 1) * srcPixelStride + 1;
+            for (int row = 0; row < height; row++) {
+                src.limit(row * srcRowStride + rowLength);
+                src.position(row * srcRowStride);
+                dst.position(row * dstRowStride);
+                dst.put(src);
+            }
+        } else {
+            for (int row = 0; row < height; row++) {
+                int srcOffset = row * srcRowStride;
+                int dstOffset = row * dstRowStride;
+                for (int col = 0; col < width; col++) {
+                    dst.put(dstOffset + col * dstPixelStride,
+                            src.get(srcOffset + col * srcPixelStride));
+                }
+            }
+        }
+    }
+
+    /**
+     * A frame that doesn't belong to any pool, for scratch space. Releasing it does nothing.
+     */
+    static Frame allocate(int width, int height) {
+        return new Frame(null, width, height);
+    }
+
+    /**
+     * @return a free slot holding one reference, or null if every slot is in use
+     */
+    Frame acquire() {
+        Frame frame = mFree.poll();
+        if (frame != null) {
+            frame.mRefCount.set(1);
+        }
+        return frame;
+    }
+
+    /**
+     * Waits for a slot to come free, for producers that can afford to.
+     *
+     * @return a slot holding one reference, or null if none came free in time
+     */
+    Frame acquire(long timeoutMs) throws InterruptedException {
+        Frame frame = mFree.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (frame != null) {
+            frame.mRefCount.set(1);
+        }
+        return frame;
+    }
+
+    int getFreeCount() {
+        return mFree.size();
+    }
+
+    int getSize() {
+        return mSize;
+    }
+
+    boolean matches(int width, int height) {
+        return mWidth == width && mHeight == height;
+    }
+
+    private void recycle(Frame frame) {
+        mFree.offer(frame);
+    }
+
+    /**
+     * One planar YUV 4:2:0 frame. The planes are tightly packed slices of a single direct
+     * buffer.
+     */
+    static class Frame {
+        final int height;
+        final ByteBuffer[] planes = new ByteBuffer[3];
+        final int width;
+
+        private final FramePool mPool;
+        private final AtomicInteger mRefCount = new AtomicInteger();
+        private long mTimestampNs;
+
+        private Frame(FramePool pool, int width, int height) {
+            mPool = pool;
+            this.width = width;
+            this.height = height;
+
+            int lumaSize = width * height;
+            int chromaSize = (width / 2) * (height / 2);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(lumaSize + chromaSize * 2);
+            buffer.limit(lumaSize);
+            planes[0] = buffer.slice();
+            buffer.limit(lumaSize + chromaSize).position(lumaSize);
+            planes[1] = buffer.slice();
+            buffer.limit(lumaSize + chromaSize * 2).position(lumaSize + chromaSize);
+            planes[2] = buffer.slice();
+        }
+
+        /**
+         * Copies one plane of a camera image in, whatever its strides.
+         */
+        void fillPlane(int plane, ByteBuffer src, int rowStride, int pixelStride) {
+            int planeWidth = plane == 0 ? width : width / 2;
+            int planeHeight = plane == 0 ? height : height / 2;
+            src.clear();
+            planes[plane].clear();
+            copyPlane(src, rowStride, pixelStride, planes[plane], planeWidth, 1, planeWidth,
+                    planeHeight);
+        }
+
+        int getRowStride(int plane) {
+            return plane == 0 ? width : width / 2;
+        }
+
+        long getTimestampNs() {
+            return mTimestampNs;
+        }
+
+        void setTimestampNs(long timestampNs) {
+            mTimestampNs = timestampNs;
+        }
+
+        /**
+         * Hands the slot back to the pool once every reference is released.
+         */
+        void release() {
+            if (mRefCount.decrementAndGet() == 0 && mPool != null) {
+                mPool.recycle(this);
+            }
+        }
+
+        void retain() {
+            mRefCount.incrementAndGet();
+        }
+    }
+}
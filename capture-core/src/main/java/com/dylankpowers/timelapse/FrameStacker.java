@@ -0,0 +1,271 @@
+package com.dylankpowers.timelapse;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Averages runs of frames into one, for low light where every frame on its own is noisy.
+ * Sensor noise is independent from one frame to the next, so the mean of N frames has about
+ * 1/sqrt(N) of the noise, and the encoder spends fewer bits on it.
+ *
+ * Running sums are kept per sample in short arrays, which hold up to
+ * {@link CaptureSettings#MAX_STACK_FRAMES} frames of 255. Each frame is copied into a
+ * scratch array with one bulk read per plane, a pass over it is split into bands of rows
+ * run on a fork/join pool, and a finished mean goes back out with one bulk write. The bands
+ * only ever touch arrays, reading the frame a byte at a time from several threads cost
+ * more than the threads saved. The bands, the task that forks them, the scratch arrays and
+ * the output frame are all made up front and reused, nothing is allocated per frame.
+ *
+ * A stack is normally N frames in a row. A frame that comes more than the gap after the
+ * last one, or from before it, starts a new stack and the short one is let out as it is,
+ * so the shots of one interval are never mixed with the next.
+ *
+ * Only ever used from one thread at a time, which also owns the positions of the frames'
+ * planes, like the encoder does.
+ */
+class FrameStacker {
+    // A couple of bands a thread, so one slow band doesn't leave the others idle for long
+    private static final int BANDS_PER_THREAD = 2;
+
+    private static final int PASS_START = 0;
+    private static final int PASS_ADD = 1;
+    private static final int PASS_FINISH = 2;
+    private static final int PASS_RESTART = 3;
+    private static final int PASS_EMIT = 4;
+
+    private final Band[] mBands;
+    private int mCount = 0;
+    private final int mFrames;
+    private long mLastTimestampNs;
+    private final long mMaxGapNs;
+    private final FramePool.Frame mOutput;
+    // A frame's samples on their way in, and the mean on its way out
+    private final byte[][] mPixels = new byte[3][];
+    private final ForkJoinPool mPool;
+    private long mStackTimestampNs;
+    private final short[][] mSums = new short[3][];
+
+    // State of the pass under way, published to the bands by the pool
+    private int mPass;
+    private int mReciprocal;
+    private int mRounding;
+
+    private final RecursiveAction mPassTask = new RecursiveAction() {
+        @Override
+        protected void compute() {
+            invokeAll(mBands);
+        }
+    };
+
+    /**
+     * @param frames frames averaged into each one let out, 2 to
+     *               {@link CaptureSettings#MAX_STACK_FRAMES}
+     * @param maxGapNs longest time between frames of the same stack
+     * @param threads threads to spread each pass over, 1 runs passes on the calling thread
+     */
+    FrameStacker(int width, int height, int frames, long maxGapNs, int threads) {
+        if (frames < 2 || frames > CaptureSettings.MAX_STACK_FRAMES) {
+            throw new IllegalArgumentException("Stack size out of range: " + frames);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        mFrames = frames;
+        mMaxGapNs = maxGapNs;
+        mOutput = FramePool.allocate(width, height);
+        mSums[0] = new short[width * height];
+        mSums[1] = new short[(width / 2) * (height / 2)];
+        mSums[2] = new short[(width / 2) * (height / 2)];
+        for (int plane = 0; plane < 3; plane++) {
+            mPixels[plane] = new byte[mSums[plane].length];
+        }
+
+        // Bands are whole chroma rows, so each one covers matching luma and chroma rows
+        int chromaHeight = height / 2;
+        int bandCount = Math.max(1, Math.min(threads * BANDS_PER_THREAD, chromaHeight));
+        mBands = new Band[threads > 1 ? bandCount : 1];
+        for (int i = 0; i < mBands.length; i++) {
+            int firstChromaRow = chromaHeight * i / mBands.length;
+            int endChromaRow = chromaHeight * (i + 1) / mBands.length;
+            int endRow = i == mBands.length - 1 ? height : endChromaRow * 2;
+            mBands[i] = new Band(firstChromaRow * 2, endRow, firstChromaRow, endChromaRow,
+                    width);
+        }
+        mPool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Adds a frame to the stack. The frame isn't held on to.
+     *
+     * @return the stacked frame if this finished one, valid until the next call, or null
+     */
+    FramePool.Frame add(FramePool.Frame frame) {
+        long timestampNs = frame.getTimestampNs();
+        FramePool.Frame stacked = null;
+        if (mCount > 0 && (timestampNs < mLastTimestampNs ||
+                timestampNs - mLastTimestampNs > mMaxGapNs)) {
+            // The rest of the stack never came, let out what there is and start over
+            runPass(PASS_RESTART, frame, mCount);
+            stacked = finishStack();
+            mCount = 1;
+            mStackTimestampNs = timestampNs;
+        } else if (mCount == 0) {
+            runPass(PASS_START, frame, 1);
+            mCount = 1;
+            mStackTimestampNs = timestampNs;
+        } else if (mCount + 1 == mFrames) {
+            runPass(PASS_FINISH, frame, mFrames);
+            stacked = finishStack();
+        } else {
+            runPass(PASS_ADD, frame, 0);
+            mCount++;
+        }
+        mLastTimestampNs = timestampNs;
+        return stacked;
+    }
+
+    /**
+     * Lets out a stack that's still short, at the end of a recording.
+     *
+     * @return the stacked frame, valid until the next call, or null if there's no stack
+     */
+    FramePool.Frame flush() {
+        if (mCount == 0) {
+            return null;
+        }
+        runPass(PASS_EMIT, null, mCount);
+        return finishStack();
+    }
+
+    int getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * Stops the pool's threads, the stacker can't be used afterwards.
+     */
+    void release() {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+    }
+
+    private FramePool.Frame finishStack() {
+        mCount = 0;
+        mOutput.setTimestampNs(mStackTimestampNs);
+        return mOutput;
+    }
+
+    /**
+     * @param count frames the mean is over, for passes that let a frame out
+     */
+    private void runPass(int pass, FramePool.Frame source, int count) {
+        if (source != null) {
+            for (int plane = 0; plane < 3; plane++) {
+                ByteBuffer in = source.planes[plane];
+                in.clear();
+                in.get(mPixels[plane]);
+            }
+        }
+
+        mPass = pass;
+        // Exact for sums of up to 16 frames, see stackRows
+        mReciprocal = count > 0 ? (65536 + count - 1) / count : 0;
+        mRounding = count / 2;
+        if (mPool == null) {
+            mBands[0].stack();
+        } else {
+            mPassTask.reinitialize();
+            for (Band band : mBands) {
+                band.reinitialize();
+            }
+            mPool.invoke(mPassTask);
+        }
+
+        if (pass != PASS_START && pass != PASS_ADD) {
+            for (int plane = 0; plane < 3; plane++) {
+                ByteBuffer out = mOutput.planes[plane];
+                out.clear();
+                out.put(mPixels[plane]);
+            }
+        }
+    }
+
+    /**
+     * One pass over rows {@code firstRow} up to {@code endRow} of a tightly packed plane.
+     * Passes that let a frame out leave the mean in place of the samples read.
+     *
+     * Means are rounded and divided by multiplying with a 16 bit reciprocal, which comes
+     * out the same as dividing for every sum of up to 16 samples of 255.
+     */
+    private void stackRows(int plane, int firstRow, int endRow, int width) {
+        short[] sums = mSums[plane];
+        byte[] pixels = mPixels[plane];
+        int reciprocal = mReciprocal;
+        int half = mRounding;
+        int from = firstRow * width;
+        int to = endRow * width;
+        switch (mPass) {
+            case PASS_START:
+                for (int i = from; i < to; i++) {
+                    sums[i] = (short) (pixels[i] & 0xff);
+                }
+                break;
+            case PASS_ADD:
+                for (int i = from; i < to; i++) {
+                    sums[i] += pixels[i] & 0xff;
+                }
+                break;
+            case PASS_FINISH:
+                for (int i = from; i < to; i++) {
+                    int sum = sums[i] + (pixels[i] & 0xff) + half;
+                    pixels[i] = (byte) ((sum * reciprocal) >>> 16);
+                }
+                break;
+            case PASS_RESTART:
+                for (int i = from; i < to; i++) {
+                    int sum = sums[i] + half;
+                    sums[i] = (short) (pixels[i] & 0xff);
+                    pixels[i] = (byte) ((sum * reciprocal) >>> 16);
+                }
+                break;
+            case PASS_EMIT:
+                for (int i = from; i < to; i++) {
+                    pixels[i] = (byte) (((sums[i] + half) * reciprocal) >>> 16);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Matching rows of all three planes.
+     */
+    @SuppressWarnings("serial")
+    private class Band extends RecursiveAction {
+        private final int mEndChromaRow;
+        private final int mEndRow;
+        private final int mFirstChromaRow;
+        private final int mFirstRow;
+        private final int mWidth;
+
+        Band(int firstRow, int endRow, int firstChromaRow, int endChromaRow, int width) {
+            mFirstRow = firstRow;
+            mEndRow = endRow;
+            mFirstChromaRow = firstChromaRow;
+            mEndChromaRow = endChromaRow;
+            mWidth = width;
+        }
+
+        @Override
+        protected void compute() {
+            stack();
+        }
+
+        void stack() {
+            stackRows(0, mFirstRow, mEndRow, mWidth);
+            stackRows(1, mFirstChromaRow, mEndChromaRow, mWidth / 2);
+            stackRows(2, mFirstChromaRow, mEndChromaRow, mWidth / 2);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.dylankpowers.timelapse;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed power-of-two bucket histogram of microsecond durations. Bucket {@code i} holds values
+ * below {@code 2^i} ms, the last bucket everything above. Recording never allocates, so it's
+ * safe to call for every frame, and it can be read from any thread while being written.
+ */
+public class Histogram {
+    static final int BUCKET_COUNT = 18;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mMaxUs = new AtomicLong();
+    private final AtomicLong mSumUs = new AtomicLong();
+
+    static long bucketUpperBoundMs(int bucket) {
+        return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    private static int bucketFor(long valueUs) {
+        long valueMs = valueUs / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(valueMs);
+        return bucket < BUCKET_COUNT ? bucket : BUCKET_COUNT - 1;
+    }
+
+    void record(long valueUs) {
+        if (valueUs < 0) {
+            return;
+        }
+
+        mCounts.incrementAndGet(bucketFor(valueUs));
+        mSumUs.addAndGet(valueUs);
+        long max = mMaxUs.get();
+        while (valueUs > max && !mMaxUs.compareAndSet(max, valueUs)) {
+            max = mMaxUs.get();
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mMaxUs.set(0);
+        mSumUs.set(0);
+    }
+
+    Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, mSumUs.get(), mMaxUs.get());
+    }
+
+    public static class Snapshot {
+        public final long[] counts;
+        public final long count;
+        public final long maxUs;
+        public final long sumUs;
+
+        Snapshot(long[] counts, long count, long sumUs, long maxUs) {
+            this.counts = counts;
+            this.count = count;
+            this.sumUs = sumUs;
+            this.maxUs = maxUs;
+        }
+
+        public long meanUs() {
+            return count == 0 ? 0 : sumUs / count;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile, in ms.
+         */
+        public long percentileMs(double percentile) {
+            long threshold = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= threshold && seen > 0) {
+                    return Math.min(bucketUpperBoundMs(i), maxUs / 1000 + 1);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " mean=" + meanUs() / 1000 + "ms p50<" + percentileMs(50) +
+                    "ms p99<" + percentileMs(99) + "ms max=" + maxUs / 1000 + "ms";
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.dylankpowers.timelapse;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides whether a frame is different enough from the last one kept to be worth encoding.
+ * Each frame is boiled down to a small grid of average luma values and compared against the
+ * grid of the last kept frame, so sensor noise averages out while real movement or a change
+ * in light shows up.
+ *
+ * The signatures are two preallocated arrays that swap roles, nothing is allocated per frame.
+ */
+class MotionFilter {
+    static final int SIGNATURE_WIDTH = 32;
+    static final int SIGNATURE_HEIGHT = 18;
+    // Only every nth pixel of a cell in each direction is sampled, it's plenty for an average
+    private static final int SAMPLE_STEP = 4;
+
+    private int[] mCurrent = new int[SIGNATURE_WIDTH * SIGNATURE_HEIGHT];
+    private boolean mHasKeptFrame = false;
+    private int[] mKept = new int[SIGNATURE_WIDTH * SIGNATURE_HEIGHT];
+    private final int mMaxGapFrames;
+    private int mSkippedInARow = 0;
+    private final int mThreshold;
+
+    /**
+     * @param threshold mean difference in luma, out of 255, below which a frame is dropped
+     * @param maxGapFrames most frames dropped in a row before one is kept regardless
+     */
+    MotionFilter(int threshold, int maxGapFrames) {
+        mThreshold = threshold;
+        mMaxGapFrames = maxGapFrames;
+    }
+
+    /**
+     * Mean absolute difference between two signatures.
+     */
+    static int difference(int[] a, int[] b) {
+        long total = 0;
+        for (int i = 0; i < a.length; i++) {
+            total += Math.abs(a[i] - b[i]);
+        }
+        return (int) (total / a.length);
+    }
+
+    /**
+     * Averages a luma plane down to {@link #SIGNATURE_WIDTH} by {@link #SIGNATURE_HEIGHT}
+     * cells. Uses absolute reads, the buffer's position and limit are left alone.
+     */
+    static void signature(ByteBuffer luma, int width, int height, int rowStride, int[] out) {
+        int cellWidth = width / SIGNATURE_WIDTH;
+        int cellHeight = height / SIGNATURE_HEIGHT;
+        for (int cellY = 0; cellY < SIGNATURE_HEIGHT; cellY++) {
+            for (int cellX = 0; cellX < SIGNATURE_WIDTH; cellX++) {
+                int sum = 0;
+                int count = 0;
+                int top = cellY * cellHeight;
+                int left = cellX * cellWidth;
+                for (int y = top; y < top + cellHeight; y += SAMPLE_STEP) {
+                    int rowOffset = y * rowStride;
+                    for (int x = left; x < left + cellWidth; x += SAMPLE_STEP) {
+                        sum += luma.get(rowOffset + x) & 0xff;
+                        count++;
+                    }
+                }
+                out[cellY * SIGNATURE_WIDTH + cellX] = count > 0 ? sum / count : 0;
+            }
+        }
+    }
+
+    /**
+     * Forgets the last kept frame, so the next one is always kept.
+     */
+    void reset() {
+        mHasKeptFrame = false;
+        mSkippedInARow = 0;
+    }
+
+    boolean shouldKeep(ByteBuffer luma, int width, int height, int rowStride) {
+        signature(luma, width, height, rowStride, mCurrent);
+        if (mHasKeptFrame && mSkippedInARow < mMaxGapFrames &&
+                difference(mCurrent, mKept) < mThreshold) {
+            mSkippedInARow++;
+            return false;
+        }
+
+        int[] kept = mKept;
+        mKept = mCurrent;
+        mCurrent = kept;
+        mHasKeptFrame = true;
+        mSkippedInARow = 0;
+        return true;
+    }
+}
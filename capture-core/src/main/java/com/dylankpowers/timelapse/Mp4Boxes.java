@@ -0,0 +1,257 @@
+package com.dylankpowers.timelapse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The parts of an H.264 MP4 movie header that {@link FragmentedMp4Writer},
+ * {@link Mp4Repair} and {@link SegmentExporter} all write. Boxes are built in a buffer: begin one, fill it in, and end
+ * it to patch its size.
+ */
+final class Mp4Boxes {
+    static final int TIMESCALE = 90000;
+
+    private Mp4Boxes() { }
+
+    static void beginBox(ByteBuffer out, String type) {
+        out.putInt(0);
+        putFourCc(out, type);
+    }
+
+    static void beginFullBox(ByteBuffer out, String type, int version, int flags) {
+        beginBox(out, type);
+        out.putInt((version << 24) | flags);
+    }
+
+    static void endBox(ByteBuffer out, int boxStart) {
+        out.putInt(boxStart, out.position() - boxStart);
+    }
+
+    static int findNalStart(ByteBuffer data, int from, int end) {
+        int startCode = findStartCode(data, from, end);
+        if (startCode < 0) {
+            return -1;
+        }
+        return data.get(startCode + 2) == 1 ? startCode + 3 : startCode + 4;
+    }
+
+    static int findStartCode(ByteBuffer data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0) {
+                if (data.get(i + 2) == 1) {
+                    return i;
+                }
+                if (i + 3 < end && data.get(i + 2) == 0 && data.get(i + 3) == 1) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    static void putFileType(ByteBuffer out) {
+        int ftyp = out.position();
+        beginBox(out, "ftyp");
+        putFourCc(out, "isom");
+        out.putInt(0x200);
+        putFourCc(out, "isom");
+        putFourCc(out, "iso6");
+        putFourCc(out, "avc1");
+        putFourCc(out, "mp41");
+        endBox(out, ftyp);
+    }
+
+    static void putFourCc(ByteBuffer out, String fourCc) {
+        for (int i = 0; i < 4; i++) {
+            out.put((byte) fourCc.charAt(i));
+        }
+    }
+
+    /**
+     * The handler, video media header and data reference, everything in a video track's
+     * media box other than the sample tables.
+     */
+    static void putVideoMediaHeaders(ByteBuffer out, long durationTicks) {
+        int mdhd = out.position();
+        beginFullBox(out, "mdhd", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(TIMESCALE);
+        out.putInt((int) durationTicks);
+        // "und" packed as three 5 bit characters
+        out.putShort((short) 0x55C4);
+        out.putShort((short) 0);
+        endBox(out, mdhd);
+
+        int hdlr = out.position();
+        beginFullBox(out, "hdlr", 0, 0);
+        out.putInt(0);
+        putFourCc(out, "vide");
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.put("VideoHandle".getBytes(Charset.forName("US-ASCII")));
+        out.put((byte) 0);
+        endBox(out, hdlr);
+    }
+
+    /**
+     * Opens the media information box with its video and data information headers, the
+     * sample tables go in after.
+     *
+     * @return where the still open minf box starts
+     */
+    static int beginVideoMediaInformation(ByteBuffer out) {
+        int minf = out.position();
+        beginBox(out, "minf");
+        int vmhd = out.position();
+        beginFullBox(out, "vmhd", 0, 1);
+        out.putLong(0);
+        endBox(out, vmhd);
+
+        int dinf = out.position();
+        beginBox(out, "dinf");
+        int dref = out.position();
+        beginFullBox(out, "dref", 0, 0);
+        out.putInt(1);
+        int url = out.position();
+        // media data is in this file
+        beginFullBox(out, "url ", 0, 1);
+        endBox(out, url);
+        endBox(out, dref);
+        endBox(out, dinf);
+        return minf;
+    }
+
+    private static void putMatrix(ByteBuffer out, int rotation) {
+        int a = 0x10000, b = 0, c = 0, d = 0x10000;
+        if (rotation == 90) {
+            a = 0; b = 0x10000; c = -0x10000; d = 0;
+        } else if (rotation == 180) {
+            a = -0x10000; d = -0x10000;
+        } else if (rotation == 270) {
+            a = 0; b = -0x10000; c = 0x10000; d = 0;
+        }
+        out.putInt(a);
+        out.putInt(b);
+        out.putInt(0);
+        out.putInt(c);
+        out.putInt(d);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0x40000000);
+    }
+
+    static void putMovieHeader(ByteBuffer out, long durationTicks) {
+        int mvhd = out.position();
+        beginFullBox(out, "mvhd", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(TIMESCALE);
+        out.putInt((int) durationTicks);
+        out.putInt(0x00010000);
+        out.putShort((short) 0x0100);
+        out.putShort((short) 0);
+        out.putInt(0);
+        out.putInt(0);
+        putMatrix(out, 0);
+        for (int i = 0; i < 6; i++) {
+            out.putInt(0);
+        }
+        out.putInt(2);
+        endBox(out, mvhd);
+    }
+
+    /**
+     * @param sps the sequence parameter set without a start code
+     * @param pps the picture parameter set without a start code
+     */
+    static void putSampleDescription(ByteBuffer out, int width, int height,
+                                     byte[] sps, byte[] pps) {
+        int stsd = out.position();
+        beginFullBox(out, "stsd", 0, 0);
+        out.putInt(1);
+        int avc1 = out.position();
+        beginBox(out, "avc1");
+        out.putInt(0);
+        out.putShort((short) 0);
+        out.putShort((short) 1);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putShort((short) width);
+        out.putShort((short) height);
+        out.putInt(0x00480000);
+        out.putInt(0x00480000);
+        out.putInt(0);
+        out.putShort((short) 1);
+        out.put(new byte[32]);
+        out.putShort((short) 0x0018);
+        out.putShort((short) -1);
+
+        int avcC = out.position();
+        beginBox(out, "avcC");
+        out.put((byte) 1);
+        out.put(sps[1]);
+        out.put(sps[2]);
+        out.put(sps[3]);
+        // 4 byte NAL lengths
+        out.put((byte) 0xFF);
+        // one SPS
+        out.put((byte) 0xE1);
+        out.putShort((short) sps.length);
+        out.put(sps);
+        out.put((byte) 1);
+        out.putShort((short) pps.length);
+        out.put(pps);
+        endBox(out, avcC);
+        endBox(out, avc1);
+        endBox(out, stsd);
+    }
+
+    /**
+     * @param rotation clockwise degrees, a multiple of 90
+     */
+    static void putTrackHeader(ByteBuffer out, int width, int height, int rotation,
+                               long durationTicks) {
+        int tkhd = out.position();
+        // track enabled and in movie
+        beginFullBox(out, "tkhd", 0, 0x000003);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(1);
+        out.putInt(0);
+        out.putInt((int) durationTicks);
+        out.putInt(0);
+        out.putInt(0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        putMatrix(out, rotation);
+        out.putInt(width << 16);
+        out.putInt(height << 16);
+        endBox(out, tkhd);
+    }
+
+    /**
+     * Copies a parameter set out of an encoder's csd buffer, dropping any start code.
+     */
+    static byte[] stripStartCode(ByteBuffer nal) {
+        ByteBuffer data = nal.duplicate();
+        int nalStart = findNalStart(data, data.position(), data.limit());
+        if (nalStart >= 0) {
+            data.position(nalStart);
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    static long toTicks(long timeUs) {
+        return timeUs * TIMESCALE / 1000000L;
+    }
+}
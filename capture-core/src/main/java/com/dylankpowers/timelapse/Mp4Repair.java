@@ -0,0 +1,360 @@
+package com.dylankpowers.timelapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.dylankpowers.timelapse.Mp4Boxes.TIMESCALE;
+import static com.dylankpowers.timelapse.Mp4Boxes.beginBox;
+import static com.dylankpowers.timelapse.Mp4Boxes.beginFullBox;
+import static com.dylankpowers.timelapse.Mp4Boxes.beginVideoMediaInformation;
+import static com.dylankpowers.timelapse.Mp4Boxes.endBox;
+import static com.dylankpowers.timelapse.Mp4Boxes.putFourCc;
+import static com.dylankpowers.timelapse.Mp4Boxes.putMovieHeader;
+import static com.dylankpowers.timelapse.Mp4Boxes.putSampleDescription;
+import static com.dylankpowers.timelapse.Mp4Boxes.putTrackHeader;
+import static com.dylankpowers.timelapse.Mp4Boxes.putVideoMediaHeaders;
+
+/**
+ * Makes a regular MP4 that was cut off mid recording playable again. MediaMuxer only writes
+ * the movie header when it's stopped, so what's left is a file type box and a media data box
+ * of length prefixed H.264 NAL units with nothing saying where one sample ends and the next
+ * begins.
+ *
+ * Sample boundaries are found from the NAL unit headers alone: a few bytes are read per unit
+ * and the rest is skipped, so memory use doesn't depend on the size of the file. The walk is
+ * done once to count samples and once more for each table that lists them, which are
+ * streamed straight into a movie header appended after the last complete sample. All the
+ * samples go in one chunk, timed evenly at the recording's frame rate. Nothing says how
+ * far each one is displayed from where it's decoded, so a stream with B-frames would play
+ * out of order, and shouldn't be repaired this way.
+ */
+final class Mp4Repair {
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR_SLICE = 5;
+    // End of sequence, end of stream and filler data close out the access unit they're in
+    private static final int NAL_END_OF_SEQUENCE = 10;
+    private static final int NAL_FILLER_DATA = 12;
+    // Types 1 to 12 are the only ones an encoder puts in a stream, anything else is garbage
+    private static final int NAL_MAX_TYPE = 12;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel mChannel;
+    private long mDataEnd;
+    private long mDataStart;
+    private long mMdatStart;
+    private int mMdatHeaderSize;
+    private final ByteBuffer mNalHeader = ByteBuffer.allocate(6);
+    private final ByteBuffer mOut = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private long mOutPosition;
+    private int mSampleCount;
+    private long mScanEnd;
+    private int mSyncCount;
+
+    private Mp4Repair(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Repairs the file in place.
+     *
+     * @param sps the encoder's sequence parameter set, without a start code
+     * @param pps the encoder's picture parameter set, without a start code
+     * @return samples in the repaired file, 0 if there was nothing to save, or -1 if the file
+     *         already has a movie header
+     */
+    static int repair(File file, int width, int height, int rotation, int frameRate,
+                      byte[] sps, byte[] pps) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            Mp4Repair repair = new Mp4Repair(randomAccessFile.getChannel());
+            return repair.repair(width, height, ((rotation % 360) + 360) % 360, frameRate, sps, pps);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private int repair(int width, int height, int rotation, int frameRate,
+                       byte[] sps, byte[] pps) throws IOException {
+        if (!findMediaData()) {
+            return -1;
+        }
+
+        scan(new SampleVisitor() {
+            @Override
+            public void onSample(long offset, int size, boolean keyFrame) {
+                mSampleCount++;
+                if (keyFrame) {
+                    mSyncCount++;
+                }
+            }
+        });
+        if (mSampleCount == 0) {
+            return 0;
+        }
+        // The later passes stop where this one did, before the movie header that's written
+        // over whatever was cut off
+        mScanEnd = mDataEnd;
+
+        long durationTicks = (long) mSampleCount * (TIMESCALE / frameRate);
+        mOutPosition = mDataEnd;
+        ByteBuffer out = mOut;
+        out.clear();
+
+        int moov = out.position();
+        beginBox(out, "moov");
+        putMovieHeader(out, durationTicks);
+        int trak = out.position();
+        beginBox(out, "trak");
+        putTrackHeader(out, width, height, rotation, durationTicks);
+        int mdia = out.position();
+        beginBox(out, "mdia");
+        putVideoMediaHeaders(out, durationTicks);
+        int minf = beginVideoMediaInformation(out);
+        int stbl = out.position();
+        beginBox(out, "stbl");
+        putSampleDescription(out, width, height, sps, pps);
+
+        int stts = out.position();
+        beginFullBox(out, "stts", 0, 0);
+        out.putInt(1);
+        out.putInt(mSampleCount);
+        out.putInt(TIMESCALE / frameRate);
+        endBox(out, stts);
+
+        int stsc = out.position();
+        beginFullBox(out, "stsc", 0, 0);
+        out.putInt(1);
+        out.putInt(1);
+        out.putInt(mSampleCount);
+        out.putInt(1);
+        endBox(out, stsc);
+
+        int stco = out.position();
+        beginFullBox(out, "stco", 0, 0);
+        out.putInt(1);
+        out.putInt((int) mDataStart);
+        endBox(out, stco);
+
+        // The sample tables are too big to build in memory, their sizes are known up front
+        ensureRoom(20);
+        out.putInt(20 + 4 * mSampleCount);
+        putFourCc(out, "stsz");
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(mSampleCount);
+        scan(new SampleVisitor() {
+            @Override
+            public void onSample(long offset, int size, boolean keyFrame) throws IOException {
+                putStreamed(size);
+            }
+        });
+
+        // The streamed sizes can leave the buffer all but full
+        ensureRoom(16);
+        out.putInt(16 + 4 * mSyncCount);
+        putFourCc(out, "stss");
+        out.putInt(0);
+        out.putInt(mSyncCount);
+        mSampleCount = 0;
+        scan(new SampleVisitor() {
+            @Override
+            public void onSample(long offset, int size, boolean keyFrame) throws IOException {
+                mSampleCount++;
+                if (keyFrame) {
+                    putStreamed(mSampleCount);
+                }
+            }
+        });
+        flushOut();
+
+        // Every open box ends where the movie header does
+        long end = mOutPosition;
+        long base = mDataEnd;
+        int[] openBoxes = {moov, trak, mdia, minf, stbl};
+        for (int box : openBoxes) {
+            writeInt(base + box, (int) (end - base - box));
+        }
+        mChannel.truncate(end);
+        mChannel.force(true);
+
+        // Last, so a repair cut short is simply done again
+        if (mMdatHeaderSize == 16) {
+            ByteBuffer size = ByteBuffer.allocate(8);
+            size.putLong(mDataEnd - mMdatStart).flip();
+            writeFully(size, mMdatStart + 8);
+        } else if (mDataEnd - mMdatStart <= 0xFFFFFFFFL) {
+            writeInt(mMdatStart, (int) (mDataEnd - mMdatStart));
+        } else {
+            throw new IOException("Media data too big for its box header");
+        }
+        mChannel.force(true);
+        return mSampleCount;
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (mOut.remaining() < bytes) {
+            flushOut();
+        }
+    }
+
+    /**
+     * Walks the top level boxes to the media data. A size that's missing or runs past the
+     * end of the file is taken to mean the box runs to the end, and a header that's cut off
+     * is taken to be the end of the file.
+     *
+     * @return false if the file already has a movie header or has no media data
+     */
+    private boolean findMediaData() throws IOException {
+        long fileSize = mChannel.size();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        boolean found = false;
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            header.clear();
+            header.limit((int) Math.min(header.capacity(), fileSize - position));
+            readFully(header, position);
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.limit() < 16) {
+                    break;
+                }
+                size = header.getLong(8);
+                headerSize = 16;
+            }
+
+            if (type == fourCc("moov")) {
+                return false;
+            }
+            boolean runsToEnd = size < headerSize || position + size > fileSize;
+            if (type == fourCc("mdat") && !found) {
+                found = true;
+                mMdatStart = position;
+                mMdatHeaderSize = headerSize;
+                mDataStart = position + headerSize;
+                mScanEnd = runsToEnd ? fileSize : position + size;
+            }
+            if (runsToEnd) {
+                break;
+            }
+            position += size;
+        }
+        return found;
+    }
+
+    private void flushOut() throws IOException {
+        mOut.flip();
+        mOutPosition += writeFully(mOut, mOutPosition);
+        mOut.clear();
+    }
+
+    private static int fourCc(String fourCc) {
+        return (fourCc.charAt(0) << 24) | (fourCc.charAt(1) << 16) |
+                (fourCc.charAt(2) << 8) | fourCc.charAt(3);
+    }
+
+    /**
+     * A new access unit starts at a slice that begins a picture, or at a non-slice unit
+     * other than the ones that close out an access unit after the current one already has
+     * its slices.
+     */
+    private static boolean isNewAccessUnit(int type, int firstSliceByte, boolean hasSlice) {
+        if (!hasSlice || (type >= NAL_END_OF_SEQUENCE && type <= NAL_FILLER_DATA)) {
+            return false;
+        }
+        if (type == NAL_SLICE || type == NAL_IDR_SLICE) {
+            // first_mb_in_slice is 0 exactly when its exp-Golomb code is the single bit 1
+            return firstSliceByte >= 0 && (firstSliceByte & 0x80) != 0;
+        }
+        return true;
+    }
+
+    private void putStreamed(int value) throws IOException {
+        ensureRoom(4);
+        mOut.putInt(value);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Walks the NAL units from the start of the media data, handing complete samples to the
+     * visitor in order. Stops at the first unit that's cut off or isn't valid and leaves
+     * {@link #mDataEnd} at the end of the last complete sample. Units that aren't valid are
+     * taken to be space that was never written, so the sample before them is kept.
+     */
+    private void scan(SampleVisitor visitor) throws IOException {
+        long position = mDataStart;
+        long sampleStart = mDataStart;
+        boolean hasSlice = false;
+        boolean keyFrame = false;
+        mDataEnd = mDataStart;
+
+        while (position + 5 <= mScanEnd) {
+            mNalHeader.clear();
+            mNalHeader.limit((int) Math.min(mNalHeader.capacity(), mScanEnd - position));
+            readFully(mNalHeader, position);
+            long length = mNalHeader.getInt(0) & 0xFFFFFFFFL;
+            int header = mNalHeader.get(4) & 0xFF;
+            int type = header & 0x1F;
+            int firstSliceByte = mNalHeader.limit() > 5 ? mNalHeader.get(5) & 0xFF : -1;
+            if (length == 0 || (header & 0x80) != 0 || type == 0 || type > NAL_MAX_TYPE) {
+                break;
+            }
+
+            boolean newAccessUnit = isNewAccessUnit(type, firstSliceByte, hasSlice);
+            if (newAccessUnit) {
+                visitor.onSample(sampleStart, (int) (position - sampleStart), keyFrame);
+                mDataEnd = position;
+                sampleStart = position;
+                hasSlice = false;
+                keyFrame = false;
+            }
+
+            if (position + 4 + length > mScanEnd) {
+                // Cut off, whatever it belongs to is lost
+                return;
+            }
+
+            if (type == NAL_SLICE || type == NAL_IDR_SLICE) {
+                hasSlice = true;
+                keyFrame |= type == NAL_IDR_SLICE;
+            }
+            position += 4 + length;
+        }
+
+        if (hasSlice) {
+            visitor.onSample(sampleStart, (int) (position - sampleStart), keyFrame);
+            mDataEnd = position;
+        }
+    }
+
+    private void writeInt(long position, int value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(value).flip();
+        writeFully(buffer, position);
+    }
+
+    private int writeFully(ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += mChannel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private interface SampleVisitor {
+        void onSample(long offset, int size, boolean keyFrame) throws IOException;
+    }
+}
@@ -0,0 +1,211 @@
+package com.dylankpowers.timelapse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One step of the capture pipeline: a single worker thread fed through a bounded queue.
+ * Producers that can't afford to wait, like the camera thread, {@link #offer(Runnable)} and
+ * drop work when the stage is behind. Everyone else {@link #put(Runnable)} and is held back
+ * until there's room, so a slow stage pushes back on the one in front of it instead of
+ * piling up work without bound. A task that throws is logged and counted, and the worker
+ * carries on with the next one.
+ */
+class PipelineStage {
+    private static final Logger LOG = Logger.getLogger("PipelineStage");
+    private static final Runnable QUIT = new Runnable() {
+        @Override
+        public void run() { }
+    };
+
+    private final int mCapacity;
+    private final AtomicLong mDroppedTasks = new AtomicLong();
+    private final AtomicLong mFailedTasks = new AtomicLong();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final String mName;
+    private final BlockingQueue<Runnable> mQueue;
+    private final Thread mThread;
+
+    PipelineStage(String name, int capacity) {
+        mName = name;
+        mCapacity = capacity;
+        mQueue = new ArrayBlockingQueue<Runnable>(capacity);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        mThread.start();
+    }
+
+    private void loop() {
+        while (true) {
+            Runnable task;
+            try {
+                task = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (task == QUIT) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // The stage's only worker must outlive a bad task, or everyone waiting on it
+                // would wait forever
+                mFailedTasks.incrementAndGet();
+                LOG.log(Level.SEVERE, "Task failed on the " + mName + " stage", e);
+            }
+        }
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    long getDroppedTaskCount() {
+        return mDroppedTasks.get();
+    }
+
+    long getFailedTaskCount() {
+        return mFailedTasks.get();
+    }
+
+    int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    boolean isCurrentThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Queues a task without ever blocking.
+     *
+     * @return false if the stage is full and the task was dropped
+     */
+    boolean offer(Runnable task) {
+        if (!mQueue.offer(task)) {
+            mDroppedTasks.incrementAndGet();
+            return false;
+        }
+        recordDepth();
+        return true;
+    }
+
+    /**
+     * Queues a task, waiting for room if the stage is full.
+     */
+    void put(Runnable task) {
+        try {
+            mQueue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting on the " + mName + " stage.", e);
+        }
+        recordDepth();
+    }
+
+    private void recordDepth() {
+        int depth = mQueue.size();
+        int max = mMaxQueueDepth.get();
+        while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth)) {
+            max = mMaxQueueDepth.get();
+        }
+    }
+
+    /**
+     * Runs a task on the stage after everything already queued and waits for it. Exceptions
+     * thrown by the task are rethrown to the caller.
+     */
+    void runAndWait(final Runnable task) {
+        if (isCurrentThread()) {
+            task.run();
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final RuntimeException[] failure = new RuntimeException[1];
+        put(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    failure[0] = e;
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting on the " + mName + " stage.", e);
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Lets everything already queued finish, then stops the worker.
+     */
+    void shutdown() {
+        put(QUIT);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drops everything still queued and interrupts the task under way, then waits for the
+     * worker to stop. Interrupting only cuts short blocking I/O and waits, a long task that
+     * does neither has to be told to stop some other way first.
+     *
+     * @return the tasks that were dropped, in the order they were queued
+     */
+    List<Runnable> shutdownNow() {
+        List<Runnable> dropped = new ArrayList<Runnable>();
+        do {
+            mQueue.drainTo(dropped);
+        } while (!mQueue.offer(QUIT));
+        mDroppedTasks.addAndGet(dropped.size());
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        return mName + " queue=" + getQueueDepth() + "/" + getMaxQueueDepth() +
+                " of " + mCapacity + " dropped=" + getDroppedTaskCount() +
+                " failed=" + getFailedTaskCount();
+    }
+}
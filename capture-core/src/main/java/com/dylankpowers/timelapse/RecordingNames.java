@@ -0,0 +1,66 @@
+package com.dylankpowers.timelapse;
+
+import java.util.Calendar;
+
+/**
+ * File names for recordings and the files split off them. They're put together by hand
+ * rather than with String.format, which parses its pattern and boxes every field on each
+ * call, and whose digits follow the default locale.
+ */
+final class RecordingNames {
+    static final String EXTENSION = ".mp4";
+    private static final String PREFIX = "TimeLapse_";
+
+    private RecordingNames() { }
+
+    private static void appendPadded(StringBuilder out, int value, int digits) {
+        for (int bound = 10; digits > 1; digits--, bound *= 10) {
+            if (value < bound) {
+                out.append('0');
+            }
+        }
+        out.append(value);
+    }
+
+    /**
+     * @return the path without its extension, for names derived from it
+     */
+    static String basePath(String path) {
+        return path.substring(0, path.length() - EXTENSION.length());
+    }
+
+    /**
+     * Path of an extra output recorded alongside the main one, numbered from 1.
+     */
+    static String extraOutput(String basePath, int output, int width, int height) {
+        return new StringBuilder(basePath.length() + 24).append(basePath)
+                .append('_').append(output)
+                .append('_').append(width).append('x').append(height)
+                .append(EXTENSION).toString();
+    }
+
+    /**
+     * A new recording's name, TimeLapse_yyyyMMdd_HHmmss.mp4 for the given local time.
+     */
+    static String recording(Calendar date) {
+        StringBuilder name = new StringBuilder(PREFIX.length() + 19).append(PREFIX);
+        appendPadded(name, date.get(Calendar.YEAR), 4);
+        appendPadded(name, date.get(Calendar.MONTH) + 1, 2);
+        appendPadded(name, date.get(Calendar.DAY_OF_MONTH), 2);
+        name.append('_');
+        appendPadded(name, date.get(Calendar.HOUR_OF_DAY), 2);
+        appendPadded(name, date.get(Calendar.MINUTE), 2);
+        appendPadded(name, date.get(Calendar.SECOND), 2);
+        return name.append(EXTENSION).toString();
+    }
+
+    /**
+     * Path of the file a recording rolls over to, segments are numbered from 1.
+     */
+    static String segment(String basePath, int segmentIndex) {
+        StringBuilder path = new StringBuilder(basePath.length() + 9).append(basePath)
+                .append('_');
+        appendPadded(path, segmentIndex, 3);
+        return path.append(EXTENSION).toString();
+    }
+}
@@ -0,0 +1,18 @@
+package com.dylankpowers.timelapse;
+
+/**
+ * The parts of a {@link android.os.Handler} that timed work is scheduled through, so it can
+ * be run against a virtual clock.
+ */
+interface Scheduler {
+    boolean post(Runnable task);
+
+    /**
+     * @param uptimeMillis when to run, on the {@link Clock#uptimeMillis()} time base
+     */
+    boolean postAtTime(Runnable task, long uptimeMillis);
+
+    boolean postDelayed(Runnable task, long delayMillis);
+
+    void removeCallbacks(Runnable task);
+}
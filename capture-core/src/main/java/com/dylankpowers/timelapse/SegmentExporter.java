@@ -0,0 +1,759 @@
+package com.dylankpowers.timelapse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.dylankpowers.timelapse.Mp4Boxes.TIMESCALE;
+import static com.dylankpowers.timelapse.Mp4Boxes.beginBox;
+import static com.dylankpowers.timelapse.Mp4Boxes.beginVideoMediaInformation;
+import static com.dylankpowers.timelapse.Mp4Boxes.putFileType;
+import static com.dylankpowers.timelapse.Mp4Boxes.putFourCc;
+import static com.dylankpowers.timelapse.Mp4Boxes.putMovieHeader;
+import static com.dylankpowers.timelapse.Mp4Boxes.putTrackHeader;
+import static com.dylankpowers.timelapse.Mp4Boxes.putVideoMediaHeaders;
+
+/**
+ * Joins the segments of a recording into one MP4 without decoding anything. The media data
+ * of each segment is copied across with {@link FileChannel#transferTo}, so it never passes
+ * through the process, and only the sample tables are rewritten. Both regular and fragmented
+ * segments can be joined, as long as every one was encoded the same way.
+ *
+ * Like {@link Mp4Repair}, the tables are streamed: the segments' own tables are walked once
+ * to size the output and once more for each output table, so memory use doesn't depend on
+ * how long the recording is. Each chunk or track run of a segment becomes a chunk of the
+ * output.
+ */
+final class SegmentExporter {
+    private static final int TABLE_BUFFER_SIZE = 8 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int SAMPLE_IS_NON_SYNC = 0x00010000;
+
+    private final ByteBuffer mOut = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private FileChannel mOutput;
+    private long mOutPosition;
+    private final Segment[] mSegments;
+
+    // Output layout, worked out by the first walk
+    private int mChunkCount;
+    private int mCompositionRuns;
+    private boolean mHasCompositionOffsets;
+    private long mDurationTicks;
+    private int mDurationRuns;
+    private int mSampleCount;
+    private int mSamplesPerChunkRuns;
+    private int mSyncCount;
+
+    private SegmentExporter(Segment[] segments) {
+        mSegments = segments;
+    }
+
+    /**
+     * Writes the segments, in order, into {@code output} as one recording.
+     *
+     * @return the number of samples in the output
+     * @throws IOException if a segment can't be read or they weren't all encoded alike
+     */
+    static int export(List<File> segments, File output) throws IOException {
+        if (segments.isEmpty()) {
+            throw new IOException("Nothing to export");
+        }
+
+        Segment[] opened = new Segment[segments.size()];
+        FileOutputStream outputStream = null;
+        try {
+            for (int i = 0; i < opened.length; i++) {
+                opened[i] = new Segment(segments.get(i));
+                if (!Arrays.equals(opened[i].sampleDescription, opened[0].sampleDescription)) {
+                    throw new IOException(segments.get(i) + " was encoded differently from " +
+                            segments.get(0));
+                }
+            }
+
+            outputStream = new FileOutputStream(output);
+            SegmentExporter exporter = new SegmentExporter(opened);
+            exporter.mOutput = outputStream.getChannel();
+            return exporter.write();
+        } finally {
+            if (outputStream != null) {
+                outputStream.close();
+            }
+            for (Segment segment : opened) {
+                if (segment != null) {
+                    segment.close();
+                }
+            }
+        }
+    }
+
+    private void flushOut() throws IOException {
+        mOut.flip();
+        while (mOut.hasRemaining()) {
+            mOutPosition += mOutput.write(mOut, mOutPosition);
+        }
+        mOut.clear();
+    }
+
+    private void putStreamed(int value) throws IOException {
+        if (mOut.remaining() < 4) {
+            flushOut();
+        }
+        mOut.putInt(value);
+    }
+
+    private void putStreamed(long value) throws IOException {
+        if (mOut.remaining() < 8) {
+            flushOut();
+        }
+        mOut.putLong(value);
+    }
+
+    private void putTableHeader(String type, long size, int entryCount) throws IOException {
+        // Room for the stsz sample count that follows too
+        if (mOut.remaining() < 20) {
+            flushOut();
+        }
+        mOut.putInt((int) size);
+        putFourCc(mOut, type);
+        mOut.putInt(0);
+        mOut.putInt(entryCount);
+    }
+
+    /**
+     * First walk: counts everything the output tables need and where each segment's media
+     * data lies.
+     */
+    private void measure() throws IOException {
+        final RunCounter durations = new RunCounter();
+        final RunCounter compositionOffsets = new RunCounter();
+        final RunCounter samplesPerChunk = new RunCounter();
+        for (final Segment segment : mSegments) {
+            segment.dataStart = Long.MAX_VALUE;
+            segment.dataEnd = 0;
+            segment.walk(new SampleVisitor() {
+                private long mChunkEnd;
+
+                @Override
+                public void onChunk(long offset, int samples) {
+                    mChunkCount++;
+                    samplesPerChunk.add(samples);
+                    segment.dataStart = Math.min(segment.dataStart, offset);
+                    mChunkEnd = offset;
+                }
+
+                @Override
+                public void onSample(int size, long duration, int compositionOffset, boolean sync) {
+                    mSampleCount++;
+                    if (sync) {
+                        mSyncCount++;
+                    }
+                    long ticks = segment.toTicks(duration);
+                    mDurationTicks += ticks;
+                    durations.add(ticks);
+                    compositionOffsets.add(segment.toTicks(compositionOffset));
+                    mHasCompositionOffsets |= compositionOffset != 0;
+                    mChunkEnd += size;
+                    segment.dataEnd = Math.max(segment.dataEnd, mChunkEnd);
+                }
+            });
+        }
+        mDurationRuns = durations.runs;
+        mCompositionRuns = compositionOffsets.runs;
+        mSamplesPerChunkRuns = samplesPerChunk.runs;
+    }
+
+    private int write() throws IOException {
+        measure();
+        if (mSampleCount == 0) {
+            throw new IOException("The segments have no samples");
+        }
+
+        ByteBuffer out = mOut;
+        out.clear();
+        putFileType(out);
+        // Always the 64 bit form, the size is patched in once the data is copied
+        long mdatStart = out.position();
+        out.putInt(1);
+        putFourCc(out, "mdat");
+        out.putLong(0);
+        flushOut();
+
+        for (Segment segment : mSegments) {
+            segment.outputStart = mOutPosition;
+            long position = segment.dataStart;
+            while (position < segment.dataEnd) {
+                long copied = segment.channel.transferTo(position, segment.dataEnd - position,
+                        mOutput.position(mOutPosition));
+                if (copied <= 0) {
+                    throw new IOException("Unable to copy " + segment.file);
+                }
+                position += copied;
+                mOutPosition += copied;
+            }
+        }
+        long mdatEnd = mOutPosition;
+
+        writeMovieHeader();
+
+        ByteBuffer size = ByteBuffer.allocate(8);
+        size.putLong(mdatEnd - mdatStart).flip();
+        while (size.hasRemaining()) {
+            mOutput.write(size, mdatStart + 8 + size.position());
+        }
+        mOutput.force(true);
+        return mSampleCount;
+    }
+
+    private void writeMovieHeader() throws IOException {
+        final boolean largeOffsets = mOutPosition > 0xFFFFFFFFL;
+        long moovStart = mOutPosition;
+        Segment first = mSegments[0];
+        ByteBuffer out = mOut;
+
+        int moov = out.position();
+        beginBox(out, "moov");
+        putMovieHeader(out, mDurationTicks);
+        int trak = out.position();
+        beginBox(out, "trak");
+        putTrackHeader(out, first.width, first.height, first.rotation, mDurationTicks);
+        int mdia = out.position();
+        beginBox(out, "mdia");
+        putVideoMediaHeaders(out, mDurationTicks);
+        int minf = beginVideoMediaInformation(out);
+        int stbl = out.position();
+        beginBox(out, "stbl");
+        out.put(first.sampleDescription);
+
+        // Every table's size is known from the first walk, so they're streamed in whole
+        putTableHeader("stts", 16 + 8L * mDurationRuns, mDurationRuns);
+        final RunWriter durations = new RunWriter();
+        walkAll(new SampleAdapter() {
+            @Override
+            void onSample(Segment segment, int size, long duration, int offset, boolean sync)
+                    throws IOException {
+                durations.add(segment.toTicks(duration));
+            }
+        });
+        durations.finish();
+
+        if (mHasCompositionOffsets) {
+            putTableHeader("ctts", 16 + 8L * mCompositionRuns, mCompositionRuns);
+            final RunWriter compositionOffsets = new RunWriter();
+            walkAll(new SampleAdapter() {
+                @Override
+                void onSample(Segment segment, int size, long duration, int offset, boolean sync)
+                        throws IOException {
+                    compositionOffsets.add(segment.toTicks(offset));
+                }
+            });
+            compositionOffsets.finish();
+        }
+
+        putTableHeader("stss", 16 + 4L * mSyncCount, mSyncCount);
+        walkAll(new SampleAdapter() {
+            private int mSampleNumber = 0;
+
+            @Override
+            void onSample(Segment segment, int size, long duration, int offset, boolean sync)
+                    throws IOException {
+                mSampleNumber++;
+                if (sync) {
+                    putStreamed(mSampleNumber);
+                }
+            }
+        });
+
+        putTableHeader("stsz", 20 + 4L * mSampleCount, 0);
+        mOut.putInt(mSampleCount);
+        walkAll(new SampleAdapter() {
+            @Override
+            void onSample(Segment segment, int size, long duration, int offset, boolean sync)
+                    throws IOException {
+                putStreamed(size);
+            }
+        });
+
+        // stsc runs are first chunk and sample count, written as they change
+        putTableHeader("stsc", 16 + 12L * mSamplesPerChunkRuns, mSamplesPerChunkRuns);
+        walkAll(new SampleAdapter() {
+            private int mChunkNumber = 0;
+            private int mLastSamples = -1;
+
+            @Override
+            void onChunk(Segment segment, long offset, int samples) throws IOException {
+                mChunkNumber++;
+                if (samples != mLastSamples) {
+                    putStreamed(mChunkNumber);
+                    putStreamed(samples);
+                    putStreamed(1);
+                    mLastSamples = samples;
+                }
+            }
+        });
+
+        putTableHeader(largeOffsets ? "co64" : "stco",
+                16 + (largeOffsets ? 8L : 4L) * mChunkCount, mChunkCount);
+        walkAll(new SampleAdapter() {
+            @Override
+            void onChunk(Segment segment, long offset, int samples) throws IOException {
+                long outputOffset = offset - segment.dataStart + segment.outputStart;
+                if (largeOffsets) {
+                    putStreamed(outputOffset);
+                } else {
+                    putStreamed((int) outputOffset);
+                }
+            }
+        });
+        flushOut();
+
+        // Every open box ends where the movie header does
+        long end = mOutPosition;
+        int[] openBoxes = {moov, trak, mdia, minf, stbl};
+        ByteBuffer size = ByteBuffer.allocate(4);
+        for (int box : openBoxes) {
+            size.clear();
+            size.putInt((int) (end - moovStart - box)).flip();
+            while (size.hasRemaining()) {
+                mOutput.write(size, moovStart + box + size.position());
+            }
+        }
+    }
+
+    private void walkAll(final SampleAdapter adapter) throws IOException {
+        for (final Segment segment : mSegments) {
+            segment.walk(new SampleVisitor() {
+                @Override
+                public void onChunk(long offset, int samples) throws IOException {
+                    adapter.onChunk(segment, offset, samples);
+                }
+
+                @Override
+                public void onSample(int size, long duration, int compositionOffset,
+                                     boolean sync) throws IOException {
+                    adapter.onSample(segment, size, duration, compositionOffset, sync);
+                }
+            });
+        }
+    }
+
+    /**
+     * Counts how many entries a run length table of the values seen would have.
+     */
+    private static class RunCounter {
+        int runs = 0;
+        private boolean mStarted = false;
+        private long mValue;
+
+        void add(long value) {
+            if (!mStarted || value != mValue) {
+                runs++;
+                mStarted = true;
+                mValue = value;
+            }
+        }
+    }
+
+    /**
+     * Writes a run length table of sample count and value pairs.
+     */
+    private class RunWriter {
+        private int mCount = 0;
+        private long mValue;
+
+        void add(long value) throws IOException {
+            if (mCount > 0 && value != mValue) {
+                finish();
+            }
+            mValue = value;
+            mCount++;
+        }
+
+        void finish() throws IOException {
+            if (mCount > 0) {
+                putStreamed(mCount);
+                putStreamed((int) mValue);
+                mCount = 0;
+            }
+        }
+    }
+
+    private abstract static class SampleAdapter {
+        void onChunk(Segment segment, long offset, int samples) throws IOException { }
+
+        void onSample(Segment segment, int size, long duration, int compositionOffset,
+                      boolean sync) throws IOException { }
+    }
+
+    private interface SampleVisitor {
+        /**
+         * A run of samples stored back to back from {@code offset}, the samples follow.
+         */
+        void onChunk(long offset, int samples) throws IOException;
+
+        void onSample(int size, long duration, int compositionOffset, boolean sync)
+                throws IOException;
+    }
+
+    /**
+     * Reads big endian values one after another from part of a file, a window at a time.
+     */
+    private static class TableCursor {
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(TABLE_BUFFER_SIZE);
+        private final FileChannel mChannel;
+        private long mPosition;
+
+        TableCursor(FileChannel channel, long position) {
+            mChannel = channel;
+            mPosition = position;
+            mBuffer.limit(0);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (mBuffer.remaining() >= bytes) {
+                return;
+            }
+
+            mBuffer.compact();
+            while (mBuffer.position() < bytes) {
+                int read = mChannel.read(mBuffer, mPosition);
+                if (read < 0) {
+                    throw new IOException("Sample table runs past the end of the file");
+                }
+                mPosition += read;
+            }
+            mBuffer.flip();
+        }
+
+        int nextInt() throws IOException {
+            ensure(4);
+            return mBuffer.getInt();
+        }
+
+        long nextLong() throws IOException {
+            ensure(8);
+            return mBuffer.getLong();
+        }
+    }
+
+    /**
+     * One input file and where its video track's tables are.
+     */
+    private static class Segment {
+        final FileChannel channel;
+        final File file;
+        boolean fragmented;
+        int height;
+        int rotation;
+        byte[] sampleDescription;
+        long timescale;
+        int width;
+
+        // Filled in by the exporter
+        long dataEnd;
+        long dataStart;
+        long outputStart;
+
+        // Regular files only, positions of each table's first entry and its entry count
+        private long mChunkOffsets = -1;
+        private int mChunkCount;
+        private boolean mChunkOffsets64;
+        private long mCompositionOffsets = -1;
+        private int mCompositionRuns;
+        private long mDurations = -1;
+        private int mDurationRuns;
+        private int mSampleCount;
+        private long mSampleSizes = -1;
+        private int mSampleSize;
+        private long mSamplesPerChunk = -1;
+        private int mSamplesPerChunkRuns;
+        private long mSyncSamples = -1;
+        private int mSyncCount;
+
+        private final ByteBuffer mHeader = ByteBuffer.allocate(16);
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            channel = new FileInputStream(file).getChannel();
+            try {
+                parse();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * @return the payload start and end of the first child of {@code type}, or null
+         */
+        private long[] findBox(long from, long to, String type) throws IOException {
+            int wanted = fourCc(type);
+            long position = from;
+            while (position + 8 <= to) {
+                mHeader.clear();
+                mHeader.limit(16);
+                channel.read(mHeader, position);
+                long size = mHeader.getInt(0) & 0xFFFFFFFFL;
+                int headerSize = 8;
+                if (size == 1) {
+                    size = mHeader.getLong(8);
+                    headerSize = 16;
+                } else if (size == 0) {
+                    size = to - position;
+                }
+                if (size < headerSize || position + size > to) {
+                    throw new IOException("Damaged box in " + file);
+                }
+
+                if (mHeader.getInt(4) == wanted) {
+                    return new long[] {position + headerSize, position + size};
+                }
+                position += size;
+            }
+            return null;
+        }
+
+        private static int fourCc(String fourCc) {
+            return (fourCc.charAt(0) << 24) | (fourCc.charAt(1) << 16) |
+                    (fourCc.charAt(2) << 8) | fourCc.charAt(3);
+        }
+
+        private int readInt(long position) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+            return buffer.getInt(0);
+        }
+
+        private long[] requireBox(long[] parent, String type) throws IOException {
+            long[] box = findBox(parent[0], parent[1], type);
+            if (box == null) {
+                throw new IOException("No " + type + " box in " + file);
+            }
+            return box;
+        }
+
+        private void parse() throws IOException {
+            long[] moov = requireBox(new long[] {0, channel.size()}, "moov");
+            long[] trak = null;
+            long position = moov[0];
+            while (true) {
+                long[] candidate = findBox(position, moov[1], "trak");
+                if (candidate == null) {
+                    throw new IOException("No video track in " + file);
+                }
+                long[] hdlr = requireBox(requireBox(candidate, "mdia"), "hdlr");
+                if (readInt(hdlr[0] + 8) == fourCc("vide")) {
+                    trak = candidate;
+                    break;
+                }
+                position = candidate[1];
+            }
+
+            long[] tkhd = requireBox(trak, "tkhd");
+            // Version 1 has 64 bit times, 12 more bytes before the matrix
+            int matrix = (readInt(tkhd[0]) >>> 24) == 1 ? 52 : 40;
+            int a = readInt(tkhd[0] + matrix);
+            int b = readInt(tkhd[0] + matrix + 4);
+            rotation = a == 0 ? (b > 0 ? 90 : 270) : (a < 0 ? 180 : 0);
+            width = readInt(tkhd[0] + matrix + 36) >>> 16;
+            height = readInt(tkhd[0] + matrix + 40) >>> 16;
+
+            long[] mdia = requireBox(trak, "mdia");
+            long[] mdhd = requireBox(mdia, "mdhd");
+            timescale = readInt(mdhd[0] + ((readInt(mdhd[0]) >>> 24) == 1 ? 20 : 12)) & 0xFFFFFFFFL;
+
+            long[] stbl = requireBox(requireBox(mdia, "minf"), "stbl");
+            long[] stsd = requireBox(stbl, "stsd");
+            // Kept whole, header included, to compare segments and copy into the output
+            long stsdStart = stsd[0] - 8;
+            ByteBuffer description = ByteBuffer.allocate((int) (stsd[1] - stsdStart));
+            while (description.hasRemaining()) {
+                if (channel.read(description, stsdStart + description.position()) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+            sampleDescription = description.array();
+
+            fragmented = findBox(moov[0], moov[1], "mvex") != null;
+            if (fragmented) {
+                return;
+            }
+
+            long[] stsz = requireBox(stbl, "stsz");
+            mSampleSize = readInt(stsz[0] + 4);
+            mSampleCount = readInt(stsz[0] + 8);
+            mSampleSizes = stsz[0] + 12;
+
+            long[] stts = requireBox(stbl, "stts");
+            mDurationRuns = readInt(stts[0] + 4);
+            mDurations = stts[0] + 8;
+
+            long[] ctts = findBox(stbl[0], stbl[1], "ctts");
+            if (ctts != null) {
+                mCompositionRuns = readInt(ctts[0] + 4);
+                mCompositionOffsets = ctts[0] + 8;
+            }
+
+            long[] stss = findBox(stbl[0], stbl[1], "stss");
+            if (stss != null) {
+                mSyncCount = readInt(stss[0] + 4);
+                mSyncSamples = stss[0] + 8;
+            }
+
+            long[] stsc = requireBox(stbl, "stsc");
+            mSamplesPerChunkRuns = readInt(stsc[0] + 4);
+            mSamplesPerChunk = stsc[0] + 8;
+
+            long[] stco = findBox(stbl[0], stbl[1], "stco");
+            if (stco == null) {
+                stco = requireBox(stbl, "co64");
+                mChunkOffsets64 = true;
+            }
+            mChunkCount = readInt(stco[0] + 4);
+            mChunkOffsets = stco[0] + 8;
+        }
+
+        long toTicks(long duration) {
+            return timescale == TIMESCALE ? duration : (duration * TIMESCALE + timescale / 2) / timescale;
+        }
+
+        void walk(SampleVisitor visitor) throws IOException {
+            if (fragmented) {
+                walkFragments(visitor);
+            } else {
+                walkTables(visitor);
+            }
+        }
+
+        private void walkFragments(SampleVisitor visitor) throws IOException {
+            long fileSize = channel.size();
+            long position = 0;
+            while (true) {
+                long[] moof = findBox(position, fileSize, "moof");
+                if (moof == null) {
+                    return;
+                }
+                long moofStart = moof[0] - 8;
+                long[] traf = requireBox(moof, "traf");
+                long[] tfhd = requireBox(traf, "tfhd");
+
+                TableCursor header = new TableCursor(channel, tfhd[0]);
+                int flags = header.nextInt() & 0xFFFFFF;
+                header.nextInt();
+                long base = (flags & 0x01) != 0 ? header.nextLong() : moofStart;
+                if ((flags & 0x02) != 0) {
+                    header.nextInt();
+                }
+                int defaultDuration = (flags & 0x08) != 0 ? header.nextInt() : 0;
+                int defaultSize = (flags & 0x10) != 0 ? header.nextInt() : 0;
+                int defaultFlags = (flags & 0x20) != 0 ? header.nextInt() : 0;
+
+                long dataPosition = base;
+                long runPosition = traf[0];
+                long[] trun;
+                while ((trun = findBox(runPosition, traf[1], "trun")) != null) {
+                    TableCursor run = new TableCursor(channel, trun[0]);
+                    int runFlags = run.nextInt() & 0xFFFFFF;
+                    int samples = run.nextInt();
+                    if ((runFlags & 0x01) != 0) {
+                        dataPosition = base + run.nextInt();
+                    }
+                    int firstSampleFlags = (runFlags & 0x04) != 0 ? run.nextInt() : defaultFlags;
+
+                    visitor.onChunk(dataPosition, samples);
+                    for (int i = 0; i < samples; i++) {
+                        int duration = (runFlags & 0x100) != 0 ? run.nextInt() : defaultDuration;
+                        int size = (runFlags & 0x200) != 0 ? run.nextInt() : defaultSize;
+                        int sampleFlags = (runFlags & 0x400) != 0 ? run.nextInt() :
+                                (i == 0 ? firstSampleFlags : defaultFlags);
+                        int compositionOffset = (runFlags & 0x800) != 0 ? run.nextInt() : 0;
+                        visitor.onSample(size, duration & 0xFFFFFFFFL, compositionOffset,
+                                (sampleFlags & SAMPLE_IS_NON_SYNC) == 0);
+                        dataPosition += size;
+                    }
+                    runPosition = trun[1];
+                }
+                position = moof[1];
+            }
+        }
+
+        private void walkTables(SampleVisitor visitor) throws IOException {
+            if (mSampleCount == 0 || mChunkCount == 0) {
+                return;
+            }
+
+            TableCursor sizes = new TableCursor(channel, mSampleSizes);
+            TableCursor durations = new TableCursor(channel, mDurations);
+            TableCursor compositionOffsets = mCompositionOffsets >= 0 ?
+                    new TableCursor(channel, mCompositionOffsets) : null;
+            TableCursor syncSamples = mSyncSamples >= 0 ?
+                    new TableCursor(channel, mSyncSamples) : null;
+            TableCursor samplesPerChunk = new TableCursor(channel, mSamplesPerChunk);
+            TableCursor chunkOffsets = new TableCursor(channel, mChunkOffsets);
+
+            int durationLeft = 0;
+            long duration = 0;
+            int durationRuns = mDurationRuns;
+            int compositionLeft = 0;
+            int compositionOffset = 0;
+            int compositionRuns = mCompositionRuns;
+            int syncLeft = mSyncCount;
+            int nextSync = syncLeft > 0 ? syncSamples.nextInt() : -1;
+            int runsLeft = mSamplesPerChunkRuns - 1;
+            samplesPerChunk.nextInt();
+            int chunkSamples = samplesPerChunk.nextInt();
+            samplesPerChunk.nextInt();
+            int nextRunChunk = runsLeft > 0 ? samplesPerChunk.nextInt() : Integer.MAX_VALUE;
+
+            int sampleNumber = 0;
+            for (int chunk = 1; chunk <= mChunkCount && sampleNumber < mSampleCount; chunk++) {
+                if (chunk == nextRunChunk) {
+                    chunkSamples = samplesPerChunk.nextInt();
+                    samplesPerChunk.nextInt();
+                    runsLeft--;
+                    nextRunChunk = runsLeft > 0 ? samplesPerChunk.nextInt() : Integer.MAX_VALUE;
+                }
+                long offset = mChunkOffsets64 ? chunkOffsets.nextLong() :
+                        chunkOffsets.nextInt() & 0xFFFFFFFFL;
+                int samples = Math.min(chunkSamples, mSampleCount - sampleNumber);
+                visitor.onChunk(offset, samples);
+
+                for (int i = 0; i < samples; i++) {
+                    sampleNumber++;
+                    if (durationLeft == 0 && durationRuns > 0) {
+                        durationLeft = durations.nextInt();
+                        duration = durations.nextInt() & 0xFFFFFFFFL;
+                        durationRuns--;
+                    }
+                    durationLeft--;
+                    if (compositionOffsets != null && compositionLeft == 0 && compositionRuns > 0) {
+                        compositionLeft = compositionOffsets.nextInt();
+                        compositionOffset = compositionOffsets.nextInt();
+                        compositionRuns--;
+                    }
+                    compositionLeft--;
+
+                    boolean sync = syncSamples == null || sampleNumber == nextSync;
+                    if (syncSamples != null && sampleNumber == nextSync) {
+                        syncLeft--;
+                        nextSync = syncLeft > 0 ? syncSamples.nextInt() : -1;
+                    }
+                    visitor.onSample(mSampleSize != 0 ? mSampleSize : sizes.nextInt(),
+                            duration, compositionOffset, sync);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.dylankpowers.timelapse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The steps a recording can be taken down to spare a hot or flat device, cheapest first.
+ * Level 0 is the recording as set up. The bitrate comes down first, since the encoder takes
+ * it without a pause, then the capture interval gets longer, and last the video size drops
+ * through the smaller sizes the camera streams at the same aspect ratio, which means
+ * starting a new file.
+ *
+ * Every level keeps whatever the levels before it took away, so stepping back up retraces
+ * the same steps in reverse.
+ */
+final class ThrottleLadder {
+    private final int[] mBitRates;
+    private final int[] mHeights;
+    private final long[] mIntervalsMs;
+    private final int[] mWidths;
+
+    /**
+     * @param intervalMs the capture interval, or 0 if there's none to stretch
+     * @param sizes flattened [width, height] pairs the camera can stream
+     * @param minHeight smallest video height to go down to
+     */
+    ThrottleLadder(int bitRate, int minBitRate, long intervalMs, long maxIntervalMs,
+                   int width, int height, int[] sizes, int minHeight) {
+        // Each level is {bitrate, width, height, interval}
+        List<long[]> levels = new ArrayList<long[]>();
+        levels.add(new long[] { bitRate, width, height, intervalMs });
+
+        int lowered = bitRate;
+        while (lowered > minBitRate) {
+            lowered = Math.max(minBitRate, lowered * 3 / 4);
+            levels.add(new long[] { lowered, width, height, intervalMs });
+        }
+
+        long stretched = intervalMs;
+        while (stretched > 0 && stretched < maxIntervalMs) {
+            stretched = Math.min(maxIntervalMs, stretched * 3 / 2);
+            levels.add(new long[] { lowered, width, height, stretched });
+        }
+
+        for (int[] size : smallerSizes(width, height, sizes, minHeight)) {
+            levels.add(new long[] {
+                    VideoMath.scaleBitRateToSize(lowered, size[0], size[1], width, height),
+                    size[0], size[1], stretched });
+        }
+
+        mBitRates = new int[levels.size()];
+        mWidths = new int[levels.size()];
+        mHeights = new int[levels.size()];
+        mIntervalsMs = new long[levels.size()];
+        for (int i = 0; i < mBitRates.length; i++) {
+            long[] level = levels.get(i);
+            mBitRates[i] = (int) level[0];
+            mWidths[i] = (int) level[1];
+            mHeights[i] = (int) level[2];
+            mIntervalsMs[i] = level[3];
+        }
+    }
+
+    /**
+     * Sizes with the same aspect ratio as {@code width} by {@code height} but smaller, down
+     * to {@code minHeight}, largest first.
+     */
+    private static List<int[]> smallerSizes(int width, int height, int[] sizes, int minHeight) {
+        List<int[]> smaller = new ArrayList<int[]>();
+        for (int i = 0; i + 1 < sizes.length; i += 2) {
+            int w = sizes[i];
+            int h = sizes[i + 1];
+            if ((long) w * height != (long) h * width || h >= height || h < minHeight) {
+                continue;
+            }
+            boolean duplicate = false;
+            for (int[] size : smaller) {
+                duplicate |= size[1] == h;
+            }
+            if (!duplicate) {
+                smaller.add(new int[] { w, h });
+            }
+        }
+        Collections.sort(smaller, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return b[1] - a[1];
+            }
+        });
+        return smaller;
+    }
+
+    int getBitRate(int level) {
+        return mBitRates[clamp(level)];
+    }
+
+    int getHeight(int level) {
+        return mHeights[clamp(level)];
+    }
+
+    /**
+     * @return the capture interval, or 0 if the recording has none
+     */
+    long getIntervalMs(int level) {
+        return mIntervalsMs[clamp(level)];
+    }
+
+    int getLevelCount() {
+        return mBitRates.length;
+    }
+
+    int getWidth(int level) {
+        return mWidths[clamp(level)];
+    }
+
+    /**
+     * Whether going between two levels changes the video size, and so needs a new file.
+     */
+    boolean isResize(int fromLevel, int toLevel) {
+        return getWidth(fromLevel) != getWidth(toLevel) ||
+                getHeight(fromLevel) != getHeight(toLevel);
+    }
+
+    private int clamp(int level) {
+        return Math.max(0, Math.min(mBitRates.length - 1, level));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mBitRates.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(i).append(": ").append(mWidths[i]).append('x').append(mHeights[i])
+                    .append(' ').append(mBitRates[i] / 1000).append("kbps");
+            if (mIntervalsMs[i] > 0) {
+                builder.append(" every ").append(mIntervalsMs[i]).append("ms");
+            }
+        }
+        return builder.toString();
+    }
+}
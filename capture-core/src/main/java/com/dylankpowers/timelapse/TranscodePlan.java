@@ -0,0 +1,119 @@
+package com.dylankpowers.timelapse;
+
+/**
+ * Which frames of a real time video make up a time-lapse of it, and how they're shared out
+ * between decoders. Output frame {@code k} is the source frame shown at
+ * {@code k * speedUp / outputFrameRate} seconds, so most source frames are never needed.
+ *
+ * When the source has a key frame at least every half output frame, the nearest key frame
+ * is close enough and nothing else has to be decoded. Otherwise decoding runs on from a key
+ * frame, seeking over any stretch longer than the key frame interval.
+ *
+ * Output frames are dealt out to the decoders in chunks, round robin, so every decoder is
+ * busy at once and the encoder takes them back in order. A decoder seeks past the chunks
+ * the others are doing, which only pays off when they span more than a key frame interval.
+ * Chunks have to fit in a decoder's frame buffers, so when they'd be too long to pay off
+ * a single decoder does everything.
+ */
+final class TranscodePlan {
+    private final int mChunkFrames;
+    private final int mDecoderCount;
+    private final int mFrameCount;
+    private final long mFrameIntervalUs;
+    private final boolean mKeyFramesOnly;
+    private final long mSyncIntervalUs;
+
+    /**
+     * @param syncIntervalUs longest gap between the source's key frames, or 0 if unknown
+     * @param maxDecoders most decoders that may run at once
+     * @param maxChunkFrames most frames a decoder can hold on to for the encoder
+     */
+    TranscodePlan(long durationUs, int speedUp, int outputFrameRate, long syncIntervalUs,
+                  int maxDecoders, int maxChunkFrames) {
+        if (speedUp < 1 || outputFrameRate < 1 || maxDecoders < 1 || maxChunkFrames < 1) {
+            throw new IllegalArgumentException("Speed up, frame rate and limits must be positive");
+        }
+
+        mFrameIntervalUs = speedUp * 1000000L / outputFrameRate;
+        mFrameCount = durationUs > 0 ? (int) ((durationUs - 1) / mFrameIntervalUs) + 1 : 0;
+        mSyncIntervalUs = syncIntervalUs;
+        mKeyFramesOnly = syncIntervalUs > 0 && syncIntervalUs * 2 <= mFrameIntervalUs;
+
+        int chunkFrames;
+        if (mKeyFramesOnly) {
+            chunkFrames = 1;
+        } else if (syncIntervalUs > 0) {
+            // Two key frame intervals a chunk, at most half a group of pictures is wasted
+            chunkFrames = (int) ((syncIntervalUs * 2 + mFrameIntervalUs - 1) / mFrameIntervalUs);
+        } else {
+            chunkFrames = Integer.MAX_VALUE;
+        }
+
+        if (chunkFrames <= maxChunkFrames && mFrameCount > chunkFrames) {
+            mChunkFrames = chunkFrames;
+            mDecoderCount = Math.min(maxDecoders, (mFrameCount + chunkFrames - 1) / chunkFrames);
+        } else {
+            mChunkFrames = Math.max(1, mFrameCount);
+            mDecoderCount = 1;
+        }
+    }
+
+    /**
+     * Frames a decoder can be asked for before the encoder gets to any of them.
+     */
+    int getChunkFrames() {
+        return mChunkFrames;
+    }
+
+    int getDecoderCount() {
+        return mDecoderCount;
+    }
+
+    /**
+     * @return the decoder that produces output frame {@code frame}
+     */
+    int getDecoderFor(int frame) {
+        return (frame / mChunkFrames) % mDecoderCount;
+    }
+
+    int getFrameCount() {
+        return mFrameCount;
+    }
+
+    long getFrameIntervalUs() {
+        return mFrameIntervalUs;
+    }
+
+    /**
+     * @param previousFrame the decoder's last frame, or -1 for its first
+     * @return the decoder's next frame, or -1 once it's done
+     */
+    int getNextFrame(int decoder, int previousFrame) {
+        int frame;
+        if (previousFrame < 0) {
+            frame = decoder * mChunkFrames;
+        } else {
+            frame = previousFrame + 1;
+            if (frame % mChunkFrames == 0) {
+                frame += (mDecoderCount - 1) * mChunkFrames;
+            }
+        }
+        return frame < mFrameCount ? frame : -1;
+    }
+
+    long getSourceTimeUs(int frame) {
+        return frame * mFrameIntervalUs;
+    }
+
+    boolean isKeyFramesOnly() {
+        return mKeyFramesOnly;
+    }
+
+    /**
+     * Whether seeking from the last source sample read to the next one wanted skips a key
+     * frame, and so saves decoding at least a whole group of pictures.
+     */
+    boolean shouldSeek(long lastSampleTimeUs, long targetTimeUs) {
+        return mSyncIntervalUs > 0 && targetTimeUs - lastSampleTimeUs > mSyncIntervalUs;
+    }
+}
@@ -0,0 +1,11 @@
+package com.dylankpowers.timelapse;
+
+/**
+ * Where finished videos are announced so the rest of the device can see them.
+ */
+interface VideoIndexer {
+    /**
+     * Safe to call from any thread and never blocks.
+     */
+    void index(String filepath, int width, int height);
+}
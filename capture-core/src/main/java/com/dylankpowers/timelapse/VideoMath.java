@@ -0,0 +1,101 @@
+package com.dylankpowers.timelapse;
+
+/**
+ * Bitrate, level and orientation arithmetic for setting up an encoder.
+ */
+final class VideoMath {
+    // Bitrate goes up 1.5x for every doubling of the frame rate
+    private static final double FRAME_RATE_EXPONENT = Math.log(1.5) / Math.log(2);
+
+    // The H.264 levels from the bottom up, leaving out 1b: MediaCodecInfo.CodecProfileLevel's
+    // constant for it, then its macroblocks per second, macroblocks per frame and Baseline
+    // and Main profile kbit/s
+    private static final int[][] AVC_LEVELS = {
+            {0x01, 1485, 99, 64},
+            {0x04, 3000, 396, 192},
+            {0x08, 6000, 396, 384},
+            {0x10, 11880, 396, 768},
+            {0x20, 11880, 396, 2000},
+            {0x40, 19800, 792, 4000},
+            {0x80, 20250, 1620, 4000},
+            {0x100, 40500, 1620, 10000},
+            {0x200, 108000, 3600, 14000},
+            {0x400, 216000, 5120, 20000},
+            {0x800, 245760, 8192, 20000},
+            {0x1000, 245760, 8192, 50000},
+            {0x2000, 522240, 8704, 50000},
+            {0x4000, 589824, 22080, 135000},
+            {0x8000, 983040, 36864, 240000},
+            {0x10000, 2073600, 36864, 240000},
+    };
+
+    private VideoMath() { }
+
+    /**
+     * The lowest H.264 level a stream fits in, as a MediaCodecInfo.CodecProfileLevel
+     * constant. Asking for more than that would tell players the stream needs a more
+     * capable decoder than it does.
+     *
+     * @param high whether it's High profile, which is allowed a quarter more bitrate
+     * @return 0 if the stream is beyond every level
+     */
+    static int avcLevel(int width, int height, int frameRate, int bitRate, boolean high) {
+        long widthMbs = (width + 15) / 16;
+        long heightMbs = (height + 15) / 16;
+        long frameMbs = widthMbs * heightMbs;
+        for (int[] level : AVC_LEVELS) {
+            long maxFrameMbs = level[2];
+            long maxBitRate = level[3] * (high ? 1250L : 1000L);
+            // Neither side may be more than sqrt(8 * MaxFS) macroblocks either
+            if (frameMbs <= maxFrameMbs && widthMbs * widthMbs <= 8 * maxFrameMbs &&
+                    heightMbs * heightMbs <= 8 * maxFrameMbs &&
+                    frameMbs * frameRate <= level[1] && bitRate <= maxBitRate) {
+                return level[0];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Scales a camcorder profile's bitrate to another frame rate.
+     */
+    static int scaleBitRate(int profileBitRate, int profileFrameRate, int frameRate) {
+        if (frameRate == profileFrameRate) {
+            return profileBitRate;
+        }
+        double frameRateRatio = (double) frameRate / profileFrameRate;
+        return (int) (profileBitRate * Math.pow(frameRateRatio, FRAME_RATE_EXPONENT));
+    }
+
+    /**
+     * Scales a bitrate down for frames averaged over {@code stackFrames}. Noise falls to
+     * 1/sqrt(N) and takes a good share of a low light stream's bits, so the same quality
+     * needs about 1/N^(1/4) of the bitrate, half at 16 frames.
+     */
+    static int scaleBitRateForStack(int bitRate, int stackFrames) {
+        if (stackFrames <= 1) {
+            return bitRate;
+        }
+        return (int) (bitRate / Math.pow(stackFrames, 0.25));
+    }
+
+    /**
+     * Scales a bitrate by picture area, for the same content at another size.
+     */
+    static int scaleBitRateToSize(int bitRate, int width, int height,
+                                  int fromWidth, int fromHeight) {
+        return (int) ((long) bitRate * width * height / ((long) fromWidth * fromHeight));
+    }
+
+    /**
+     * Orientation hint for the video, from the sensor's mounting and whether the display is
+     * turned to reverse landscape.
+     */
+    static int videoOrientation(int sensorOrientation, boolean reverseLandscape) {
+        int videoOrientation = sensorOrientation - 90;
+        if (reverseLandscape) {
+            videoOrientation = (videoOrientation + 180) % 360;
+        }
+        return videoOrientation;
+    }
+}
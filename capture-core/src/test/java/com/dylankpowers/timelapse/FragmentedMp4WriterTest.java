@@ -0,0 +1,121 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4WriterTest {
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_US = 1000000L / FRAME_RATE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static FragmentedMp4Writer newWriter(File file, int maxSamplesPerFragment)
+            throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, 320, 240, 0, FRAME_RATE,
+                maxSamplesPerFragment);
+        writer.writeHeader(ByteBuffer.wrap(Mp4TestFiles.SPS), ByteBuffer.wrap(Mp4TestFiles.PPS));
+        return writer;
+    }
+
+    /**
+     * The sample count of each fragment's track run, in file order.
+     */
+    private static List<Integer> fragmentSampleCounts(ByteBuffer contents) {
+        List<Integer> counts = new ArrayList<Integer>();
+        int position = 0;
+        int[] moof;
+        while ((moof = Mp4TestFiles.findBox(contents, position, contents.limit(), "moof")) != null) {
+            int[] traf = Mp4TestFiles.findBox(contents, moof[0], moof[1], "traf");
+            int[] trun = Mp4TestFiles.findBox(contents, traf[0], traf[1], "trun");
+            counts.add(contents.getInt(trun[0] + 4));
+            position = moof[1];
+        }
+        return counts;
+    }
+
+    @Test
+    public void writesFullFragmentOfLongestAllowed() throws IOException {
+        File file = mFolder.newFile();
+        int samples = CaptureSettings.MAX_FRAGMENT_FRAMES;
+        FragmentedMp4Writer writer = newWriter(file, samples);
+        for (int i = 0; i < samples; i++) {
+            writer.writeSample(Mp4TestFiles.annexB(i == 0, 64, i), i * FRAME_US, i == 0);
+        }
+        writer.close();
+
+        ByteBuffer contents = Mp4TestFiles.read(file);
+        List<Integer> counts = fragmentSampleCounts(contents);
+        assertEquals(1, counts.size());
+        assertEquals(samples, (int) counts.get(0));
+        int[] mdat = Mp4TestFiles.findBox(contents, "mdat");
+        assertEquals(samples * (64 + 4), mdat[1] - mdat[0]);
+        assertEquals(file.length(), writer.getWrittenBytes());
+    }
+
+    @Test
+    public void cutsFragmentsAtKeyFramesAndLength() throws IOException {
+        File file = mFolder.newFile();
+        FragmentedMp4Writer writer = newWriter(file, 4);
+        boolean[] keyFrames = {true, false, false, false, false, false, true, false};
+        for (int i = 0; i < keyFrames.length; i++) {
+            writer.writeSample(Mp4TestFiles.annexB(keyFrames[i], 16, i), i * FRAME_US,
+                    keyFrames[i]);
+        }
+        writer.close();
+
+        List<Integer> counts = fragmentSampleCounts(Mp4TestFiles.read(file));
+        assertEquals("[4, 2, 2]", counts.toString());
+    }
+
+    @Test
+    public void replacesStartCodesWithLengths() throws IOException {
+        // A key frame with its parameter sets in front, the last one with a 3 byte start code
+        ByteBuffer sample = ByteBuffer.allocate(64);
+        sample.putInt(1).put(Mp4TestFiles.SPS);
+        sample.putInt(1).put(Mp4TestFiles.PPS);
+        sample.put((byte) 0).put((byte) 0).put((byte) 1);
+        ByteBuffer slice = Mp4TestFiles.annexB(true, 20, 1);
+        slice.position(4);
+        sample.put(slice);
+        sample.flip();
+
+        File file = mFolder.newFile();
+        FragmentedMp4Writer writer = newWriter(file, 30);
+        writer.writeSample(sample, 0, true);
+        writer.close();
+
+        ByteBuffer contents = Mp4TestFiles.read(file);
+        int[] mdat = Mp4TestFiles.findBox(contents, "mdat");
+        int position = mdat[0];
+        assertEquals(Mp4TestFiles.SPS.length, contents.getInt(position));
+        position += 4 + Mp4TestFiles.SPS.length;
+        assertEquals(Mp4TestFiles.PPS.length, contents.getInt(position));
+        position += 4 + Mp4TestFiles.PPS.length;
+        assertEquals(20, contents.getInt(position));
+        assertEquals(0x65, contents.get(position + 4));
+        assertEquals(mdat[1], position + 4 + 20);
+    }
+
+    @Test
+    public void headerDescribesTrack() throws IOException {
+        File file = mFolder.newFile();
+        newWriter(file, 30).close();
+
+        ByteBuffer contents = Mp4TestFiles.read(file);
+        assertNotNull(Mp4TestFiles.findBox(contents, "ftyp"));
+        assertNotNull(Mp4TestFiles.findBox(contents, "moov", "mvex", "trex"));
+        assertNotNull(Mp4TestFiles.findBox(contents, "moov", "trak", "mdia", "minf", "stbl",
+                "stsd"));
+        assertNull("No fragments without samples", Mp4TestFiles.findBox(contents, "moof"));
+    }
+}
@@ -0,0 +1,95 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FramePoolTest {
+    @Test
+    public void runsOutThenRecyclesReleasedFrames() throws InterruptedException {
+        FramePool pool = new FramePool(2, 64, 48);
+        FramePool.Frame first = pool.acquire();
+        FramePool.Frame second = pool.acquire();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(pool.acquire());
+        assertNull(pool.acquire(1));
+        assertEquals(0, pool.getFreeCount());
+
+        first.release();
+        assertEquals(1, pool.getFreeCount());
+        assertSame(first, pool.acquire());
+    }
+
+    @Test
+    public void frameReturnsOnceEveryReferenceIsReleased() {
+        FramePool pool = new FramePool(1, 64, 48);
+        FramePool.Frame frame = pool.acquire();
+        frame.retain();
+        frame.release();
+        assertEquals(0, pool.getFreeCount());
+        frame.release();
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    @Test
+    public void planesArePacked() {
+        FramePool.Frame frame = FramePool.allocate(64, 48);
+        assertEquals(64 * 48, frame.planes[0].capacity());
+        assertEquals(32 * 24, frame.planes[1].capacity());
+        assertEquals(32 * 24, frame.planes[2].capacity());
+        assertEquals(32, frame.getRowStride(2));
+        // Frames outside a pool can be released without harm
+        frame.release();
+    }
+
+    @Test
+    public void fillsFromInterleavedChroma() {
+        int width = 8;
+        int height = 4;
+        int rowStride = 16;
+        // Interleaved chroma, the way many cameras hand over a U plane
+        ByteBuffer src = ByteBuffer.allocateDirect(rowStride * (height / 2));
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                src.put(row * rowStride + col * 2, (byte) (row * 10 + col));
+                src.put(row * rowStride + col * 2 + 1, (byte) 99);
+            }
+        }
+
+        FramePool.Frame frame = FramePool.allocate(width, height);
+        frame.fillPlane(1, src, rowStride, 2);
+        ByteBuffer plane = frame.planes[1];
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                assertEquals(row * 10 + col, plane.get(row * (width / 2) + col));
+            }
+        }
+    }
+
+    @Test
+    public void copiesPaddedRows() {
+        ByteBuffer src = ByteBuffer.allocate(3 * 8);
+        for (int i = 0; i < src.capacity(); i++) {
+            src.put(i, (byte) i);
+        }
+        ByteBuffer dst = ByteBuffer.allocate(3 * 5);
+
+        FramePool.copyPlane(src, 8, 1, dst, 5, 1, 5, 3);
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 5; col++) {
+                assertEquals(row * 8 + col, dst.get(row * 5 + col));
+            }
+        }
+    }
+
+    @Test
+    public void matchesOnlyItsSize() {
+        FramePool pool = new FramePool(1, 64, 48);
+        assertTrue(pool.matches(64, 48));
+        assertFalse(pool.matches(48, 64));
+        assertEquals(1, pool.getSize());
+    }
+}
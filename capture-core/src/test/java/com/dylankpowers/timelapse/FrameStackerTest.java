@@ -0,0 +1,173 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameStackerTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 36;
+    private static final long FRAME_NS = 33000000L;
+
+    private static FramePool.Frame randomFrame(Random random, long timestampNs) {
+        FramePool.Frame frame = FramePool.allocate(WIDTH, HEIGHT);
+        for (ByteBuffer plane : frame.planes) {
+            for (int i = 0; i < plane.capacity(); i++) {
+                plane.put(i, (byte) random.nextInt(256));
+            }
+        }
+        frame.setTimestampNs(timestampNs);
+        return frame;
+    }
+
+    /**
+     * The rounded mean of every sample over the frames, done the slow way.
+     */
+    private static byte[][] mean(FramePool.Frame... frames) {
+        byte[][] mean = new byte[3][];
+        for (int plane = 0; plane < 3; plane++) {
+            mean[plane] = new byte[frames[0].planes[plane].capacity()];
+            for (int i = 0; i < mean[plane].length; i++) {
+                int sum = 0;
+                for (FramePool.Frame frame : frames) {
+                    sum += frame.planes[plane].get(i) & 0xff;
+                }
+                mean[plane][i] = (byte) ((sum + frames.length / 2) / frames.length);
+            }
+        }
+        return mean;
+    }
+
+    private static byte[][] copy(FramePool.Frame frame) {
+        byte[][] planes = new byte[3][];
+        for (int plane = 0; plane < 3; plane++) {
+            ByteBuffer source = frame.planes[plane].duplicate();
+            source.clear();
+            planes[plane] = new byte[source.remaining()];
+            source.get(planes[plane]);
+        }
+        return planes;
+    }
+
+    private static void assertFrame(byte[][] expected, FramePool.Frame actual) {
+        byte[][] planes = copy(actual);
+        for (int plane = 0; plane < 3; plane++) {
+            assertArrayEquals("Plane " + plane, expected[plane], planes[plane]);
+        }
+    }
+
+    @Test
+    public void averagesEachStack() {
+        Random random = new Random(1);
+        FrameStacker stacker = new FrameStacker(WIDTH, HEIGHT, 4, FRAME_NS * 2, 1);
+        FramePool.Frame[] frames = new FramePool.Frame[8];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = randomFrame(random, i * FRAME_NS);
+        }
+
+        for (int stack = 0; stack < 2; stack++) {
+            for (int i = 0; i < 3; i++) {
+                assertNull(stacker.add(frames[stack * 4 + i]));
+            }
+            FramePool.Frame stacked = stacker.add(frames[stack * 4 + 3]);
+            assertNotNull(stacked);
+            assertEquals(stack * 4 * FRAME_NS, stacked.getTimestampNs());
+            assertFrame(mean(frames[stack * 4], frames[stack * 4 + 1], frames[stack * 4 + 2],
+                    frames[stack * 4 + 3]), stacked);
+        }
+        assertNull(stacker.flush());
+        stacker.release();
+    }
+
+    @Test
+    public void largestStackOfBrightestFrames() {
+        int frames = CaptureSettings.MAX_STACK_FRAMES;
+        FrameStacker stacker = new FrameStacker(WIDTH, HEIGHT, frames, FRAME_NS * 2, 1);
+        FramePool.Frame white = FramePool.allocate(WIDTH, HEIGHT);
+        for (ByteBuffer plane : white.planes) {
+            for (int i = 0; i < plane.capacity(); i++) {
+                plane.put(i, (byte) 255);
+            }
+        }
+
+        FramePool.Frame stacked = null;
+        for (int i = 0; i < frames; i++) {
+            white.setTimestampNs(i * FRAME_NS);
+            stacked = stacker.add(white);
+        }
+        assertNotNull(stacked);
+        assertFrame(copy(white), stacked);
+        stacker.release();
+    }
+
+    @Test
+    public void threadsDontChangeTheResult() {
+        FrameStacker single = new FrameStacker(WIDTH, HEIGHT, 3, FRAME_NS * 2, 1);
+        FrameStacker parallel = new FrameStacker(WIDTH, HEIGHT, 3, FRAME_NS * 2, 3);
+        Random random = new Random(2);
+        try {
+            for (int i = 0; i < 9; i++) {
+                FramePool.Frame frame = randomFrame(random, i * FRAME_NS);
+                FramePool.Frame expected = single.add(frame);
+                FramePool.Frame actual = parallel.add(frame);
+                assertEquals(expected == null, actual == null);
+                if (expected != null) {
+                    assertFrame(copy(expected), actual);
+                }
+            }
+        } finally {
+            single.release();
+            parallel.release();
+        }
+    }
+
+    @Test
+    public void gapLetsShortStackOut() {
+        Random random = new Random(3);
+        FrameStacker stacker = new FrameStacker(WIDTH, HEIGHT, 4, FRAME_NS * 2, 1);
+        FramePool.Frame first = randomFrame(random, 0);
+        FramePool.Frame second = randomFrame(random, FRAME_NS);
+        FramePool.Frame late = randomFrame(random, FRAME_NS * 10);
+
+        assertNull(stacker.add(first));
+        assertNull(stacker.add(second));
+        FramePool.Frame stacked = stacker.add(late);
+        assertNotNull(stacked);
+        assertEquals(0, stacked.getTimestampNs());
+        assertFrame(mean(first, second), stacked);
+
+        // The late frame started the next stack
+        stacked = stacker.flush();
+        assertNotNull(stacked);
+        assertEquals(FRAME_NS * 10, stacked.getTimestampNs());
+        assertFrame(mean(late), stacked);
+        assertNull(stacker.flush());
+        stacker.release();
+    }
+
+    @Test
+    public void frameFromBeforeLastStartsOver() {
+        Random random = new Random(4);
+        FrameStacker stacker = new FrameStacker(WIDTH, HEIGHT, 4, FRAME_NS * 2, 1);
+        FramePool.Frame first = randomFrame(random, FRAME_NS * 5);
+
+        assertNull(stacker.add(first));
+        FramePool.Frame stacked = stacker.add(randomFrame(random, 0));
+        assertNotNull(stacked);
+        assertFrame(mean(first), stacked);
+        stacker.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStackOfOne() {
+        new FrameStacker(WIDTH, HEIGHT, 1, FRAME_NS, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStackTooLargeToSum() {
+        new FrameStacker(WIDTH, HEIGHT, CaptureSettings.MAX_STACK_FRAMES + 1, FRAME_NS, 1);
+    }
+}
@@ -0,0 +1,80 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class MotionFilterTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 180;
+    private static final int ROW_STRIDE = 384;
+
+    /**
+     * A padded luma plane of one level, with a bright square in one corner if asked.
+     */
+    private static ByteBuffer luma(int level, boolean square) {
+        ByteBuffer luma = ByteBuffer.allocateDirect(ROW_STRIDE * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < ROW_STRIDE; x++) {
+                boolean inSquare = square && x < WIDTH / 2 && y < HEIGHT / 2;
+                // Padding is never part of the picture
+                int value = x >= WIDTH ? 255 : inSquare ? 250 : level;
+                luma.put(y * ROW_STRIDE + x, (byte) value);
+            }
+        }
+        return luma;
+    }
+
+    @Test
+    public void signatureAveragesCells() {
+        int[] signature = new int[MotionFilter.SIGNATURE_WIDTH * MotionFilter.SIGNATURE_HEIGHT];
+        ByteBuffer plane = luma(40, true);
+        plane.position(7);
+        MotionFilter.signature(plane, WIDTH, HEIGHT, ROW_STRIDE, signature);
+
+        assertEquals(250, signature[0]);
+        assertEquals(40, signature[signature.length - 1]);
+        assertEquals(7, plane.position());
+    }
+
+    @Test
+    public void dropsFramesThatDidntChange() {
+        MotionFilter filter = new MotionFilter(4, 100);
+        assertTrue("First frame is always kept", filter.shouldKeep(luma(100, false), WIDTH,
+                HEIGHT, ROW_STRIDE));
+        assertFalse(filter.shouldKeep(luma(102, false), WIDTH, HEIGHT, ROW_STRIDE));
+        assertTrue(filter.shouldKeep(luma(100, true), WIDTH, HEIGHT, ROW_STRIDE));
+        assertFalse(filter.shouldKeep(luma(100, true), WIDTH, HEIGHT, ROW_STRIDE));
+    }
+
+    @Test
+    public void slowDriftIsMeasuredFromLastKept() {
+        MotionFilter filter = new MotionFilter(4, 100);
+        assertTrue(filter.shouldKeep(luma(100, false), WIDTH, HEIGHT, ROW_STRIDE));
+        assertFalse(filter.shouldKeep(luma(102, false), WIDTH, HEIGHT, ROW_STRIDE));
+        assertTrue(filter.shouldKeep(luma(104, false), WIDTH, HEIGHT, ROW_STRIDE));
+    }
+
+    @Test
+    public void keepsFrameAfterLongestGap() {
+        MotionFilter filter = new MotionFilter(4, 3);
+        ByteBuffer still = luma(100, false);
+        assertTrue(filter.shouldKeep(still, WIDTH, HEIGHT, ROW_STRIDE));
+        for (int i = 0; i < 3; i++) {
+            assertFalse(filter.shouldKeep(still, WIDTH, HEIGHT, ROW_STRIDE));
+        }
+        assertTrue(filter.shouldKeep(still, WIDTH, HEIGHT, ROW_STRIDE));
+        assertFalse(filter.shouldKeep(still, WIDTH, HEIGHT, ROW_STRIDE));
+    }
+
+    @Test
+    public void keepsFrameAfterReset() {
+        MotionFilter filter = new MotionFilter(4, 100);
+        ByteBuffer still = luma(100, false);
+        assertTrue(filter.shouldKeep(still, WIDTH, HEIGHT, ROW_STRIDE));
+        filter.reset();
+        assertTrue(filter.shouldKeep(still, WIDTH, HEIGHT, ROW_STRIDE));
+    }
+}
@@ -0,0 +1,75 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class Mp4BoxesTest {
+    private static ByteBuffer bytes(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length);
+        for (int value : values) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void findsThreeAndFourByteStartCodes() {
+        ByteBuffer data = bytes(0x12, 0, 0, 1, 0x65, 0x88, 0, 0, 0, 1, 0x41);
+        assertEquals(1, Mp4Boxes.findStartCode(data, 0, data.limit()));
+        assertEquals(4, Mp4Boxes.findNalStart(data, 0, data.limit()));
+        assertEquals(6, Mp4Boxes.findStartCode(data, 4, data.limit()));
+        assertEquals(10, Mp4Boxes.findNalStart(data, 4, data.limit()));
+    }
+
+    @Test
+    public void noStartCodeInLengthPrefixedData() {
+        ByteBuffer data = Mp4TestFiles.lengthPrefixed(true, 20, 3);
+        assertEquals(-1, Mp4Boxes.findStartCode(data, 0, data.limit()));
+        assertEquals(-1, Mp4Boxes.findNalStart(data, 0, data.limit()));
+    }
+
+    @Test
+    public void startCodeCutOffAtEndIsNotFound() {
+        ByteBuffer data = bytes(0x65, 0x88, 0, 0);
+        assertEquals(-1, Mp4Boxes.findStartCode(data, 0, data.limit()));
+    }
+
+    @Test
+    public void stripsStartCodeWithoutMovingBuffer() {
+        ByteBuffer sps = ByteBuffer.allocate(4 + Mp4TestFiles.SPS.length);
+        sps.putInt(1).put(Mp4TestFiles.SPS).flip();
+
+        assertArrayEquals(Mp4TestFiles.SPS, Mp4Boxes.stripStartCode(sps));
+        assertEquals(0, sps.position());
+        assertArrayEquals(Mp4TestFiles.PPS,
+                Mp4Boxes.stripStartCode(ByteBuffer.wrap(Mp4TestFiles.PPS)));
+    }
+
+    @Test
+    public void endBoxWritesSize() {
+        ByteBuffer out = ByteBuffer.allocate(64);
+        out.putInt(0xDEADBEEF);
+        int box = out.position();
+        Mp4Boxes.beginFullBox(out, "mfhd", 0, 0);
+        out.putInt(7);
+        Mp4Boxes.endBox(out, box);
+
+        assertEquals(16, out.getInt(box));
+        assertEquals("mfhd", Mp4TestFiles.fourCc(out, box + 4));
+        assertEquals(7, out.getInt(box + 12));
+    }
+
+    @Test
+    public void convertsToTimescale() {
+        assertEquals(Mp4Boxes.TIMESCALE, Mp4Boxes.toTicks(1000000L));
+        assertEquals(3000, Mp4Boxes.toTicks(100000L / 3 + 1));
+        // Rounds down
+        assertEquals(2999, Mp4Boxes.toTicks(100000L / 3));
+        // A day of microseconds doesn't overflow
+        assertEquals(86400L * Mp4Boxes.TIMESCALE, Mp4Boxes.toTicks(86400L * 1000000L));
+    }
+}
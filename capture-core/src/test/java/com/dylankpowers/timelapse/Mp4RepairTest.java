@@ -0,0 +1,191 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes recordings the way MediaMuxer leaves them when the app dies, cuts them off, repairs
+ * them and reads the result back.
+ */
+public class Mp4RepairTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_RATE = 30;
+    private static final int SAMPLE_SIZE = 40;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * A file type box and a media data box whose size was never filled in, with a key frame
+     * every {@code keyFrameInterval} samples.
+     *
+     * @param endOfSequence whether each sample ends with an end of sequence unit
+     * @return where the media data starts
+     */
+    private static long writeRecording(File file, int samples, int keyFrameInterval,
+                                       boolean largeHeader, boolean endOfSequence)
+            throws IOException {
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(64);
+            Mp4Boxes.putFileType(header);
+            if (largeHeader) {
+                header.putInt(1);
+                Mp4Boxes.putFourCc(header, "mdat");
+                header.putLong(0);
+            } else {
+                header.putInt(0);
+                Mp4Boxes.putFourCc(header, "mdat");
+            }
+            long dataStart = header.position();
+            header.flip();
+            channel.write(header);
+
+            for (int i = 0; i < samples; i++) {
+                channel.write(Mp4TestFiles.lengthPrefixed(i % keyFrameInterval == 0,
+                        SAMPLE_SIZE, i));
+                if (endOfSequence) {
+                    ByteBuffer end = ByteBuffer.allocate(5);
+                    end.putInt(1).put((byte) 0x0A).flip();
+                    channel.write(end);
+                }
+            }
+            return dataStart;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static int repair(File file) throws IOException {
+        return Mp4Repair.repair(file, WIDTH, HEIGHT, 90, FRAME_RATE, Mp4TestFiles.SPS,
+                Mp4TestFiles.PPS);
+    }
+
+    /**
+     * Checks the repaired file's tables against what was written, then has the exporter
+     * parse it as well.
+     */
+    private void assertRepaired(File file, long dataStart, int samples, int keyFrameInterval,
+                                int sampleBytes) throws IOException {
+        ByteBuffer contents = Mp4TestFiles.read(file);
+        int[] mdat = Mp4TestFiles.findBox(contents, "mdat");
+        assertEquals("Media data start", dataStart, mdat[0]);
+        assertEquals("Media data end", dataStart + (long) samples * sampleBytes, mdat[1]);
+
+        int[] sizes = Mp4TestFiles.sampleSizes(contents);
+        assertEquals(samples, sizes.length);
+        for (int size : sizes) {
+            assertEquals(sampleBytes, size);
+        }
+
+        int[] sync = Mp4TestFiles.syncSamples(contents);
+        assertEquals((samples + keyFrameInterval - 1) / keyFrameInterval, sync.length);
+        for (int i = 0; i < sync.length; i++) {
+            assertEquals(1 + i * keyFrameInterval, sync[i]);
+        }
+
+        int[] stco = Mp4TestFiles.findBox(contents, "moov", "trak", "mdia", "minf", "stbl",
+                "stco");
+        assertEquals(dataStart, contents.getInt(stco[0] + 8));
+        int[] moov = Mp4TestFiles.findBox(contents, "moov");
+        assertEquals("Movie header runs to the end", contents.limit(), moov[1]);
+
+        File exported = mFolder.newFile();
+        assertEquals(samples, SegmentExporter.export(Collections.singletonList(file), exported));
+    }
+
+    @Test
+    public void repairsRecordingCutOffMidSample() throws IOException {
+        File file = mFolder.newFile();
+        long dataStart = writeRecording(file, 100, 10, false, false);
+        truncate(file, file.length() - SAMPLE_SIZE / 2);
+
+        assertEquals(99, repair(file));
+        assertRepaired(file, dataStart, 99, 10, SAMPLE_SIZE + 4);
+    }
+
+    @Test
+    public void repairsLargeMediaDataHeader() throws IOException {
+        File file = mFolder.newFile();
+        long dataStart = writeRecording(file, 50, 5, true, false);
+        truncate(file, file.length() - 3);
+
+        assertEquals(49, repair(file));
+        assertRepaired(file, dataStart, 49, 5, SAMPLE_SIZE + 4);
+        ByteBuffer contents = Mp4TestFiles.read(file);
+        assertEquals("Large size patched", dataStart + 49 * (SAMPLE_SIZE + 4) - (dataStart - 16),
+                contents.getLong((int) dataStart - 8));
+    }
+
+    @Test
+    public void keepsSamplesBeforeSpaceNeverWritten() throws IOException {
+        File file = mFolder.newFile();
+        long dataStart = writeRecording(file, 30, 10, false, false);
+        // Preallocated space the recording never reached reads back as zeros
+        truncate(file, file.length() + 4096);
+
+        assertEquals(30, repair(file));
+        assertRepaired(file, dataStart, 30, 10, SAMPLE_SIZE + 4);
+    }
+
+    @Test
+    public void endOfSequenceStaysWithItsSample() throws IOException {
+        File file = mFolder.newFile();
+        long dataStart = writeRecording(file, 20, 4, false, true);
+
+        assertEquals(20, repair(file));
+        assertRepaired(file, dataStart, 20, 4, SAMPLE_SIZE + 4 + 5);
+    }
+
+    @Test
+    public void streamsTablesLargerThanItsBuffer() throws IOException {
+        // Enough sync samples that the sizes leave the write buffer all but full before them
+        File file = mFolder.newFile();
+        int samples = 16234;
+        long dataStart = writeRecording(file, samples, 1, false, false);
+
+        assertEquals(samples, repair(file));
+        assertRepaired(file, dataStart, samples, 1, SAMPLE_SIZE + 4);
+    }
+
+    @Test
+    public void leavesFinishedFileAlone() throws IOException {
+        File file = mFolder.newFile();
+        writeRecording(file, 10, 5, false, false);
+        assertEquals(10, repair(file));
+        long length = file.length();
+
+        assertEquals(-1, repair(file));
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void nothingToSaveFromFirstSampleCutOff() throws IOException {
+        File file = mFolder.newFile();
+        long dataStart = writeRecording(file, 1, 1, false, false);
+        truncate(file, dataStart + 10);
+
+        assertEquals(0, repair(file));
+    }
+}
@@ -0,0 +1,141 @@
+package com.dylankpowers.timelapse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Made up H.264 samples, and a reader for the boxes of the small MP4 files the tests write.
+ * Each sample is a single slice that starts its picture, filled with a byte that can't form
+ * a start code.
+ */
+final class Mp4TestFiles {
+    static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1E, (byte) 0xDA};
+    static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    private Mp4TestFiles() { }
+
+    /**
+     * A sample the way an encoder hands it over, with a start code in front.
+     *
+     * @param size the NAL unit's length, at least 2
+     */
+    static ByteBuffer annexB(boolean keyFrame, int size, int fill) {
+        ByteBuffer sample = ByteBuffer.allocate(4 + size);
+        sample.putInt(1);
+        putSlice(sample, keyFrame, size, fill);
+        sample.flip();
+        return sample;
+    }
+
+    /**
+     * A sample the way it's stored in an MP4, with its length in front.
+     *
+     * @param size the NAL unit's length, at least 2
+     */
+    static ByteBuffer lengthPrefixed(boolean keyFrame, int size, int fill) {
+        ByteBuffer sample = ByteBuffer.allocate(4 + size);
+        sample.putInt(size);
+        putSlice(sample, keyFrame, size, fill);
+        sample.flip();
+        return sample;
+    }
+
+    private static void putSlice(ByteBuffer out, boolean keyFrame, int size, int fill) {
+        out.put((byte) (keyFrame ? 0x65 : 0x41));
+        // first_mb_in_slice is 0, so the slice starts a new picture
+        out.put((byte) 0x88);
+        for (int i = 2; i < size; i++) {
+            out.put((byte) (fill | 0x10));
+        }
+    }
+
+    static ByteBuffer read(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer contents = ByteBuffer.allocate((int) channel.size());
+            while (contents.hasRemaining()) {
+                if (channel.read(contents) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+            contents.flip();
+            return contents;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Follows a path of boxes down from the top of the file, taking the first of each type.
+     *
+     * @return the payload start and end of the last box on the path, or null if it's missing
+     */
+    static int[] findBox(ByteBuffer file, String... path) {
+        int[] box = {0, file.limit()};
+        for (String type : path) {
+            box = findBox(file, box[0], box[1], type);
+            if (box == null) {
+                return null;
+            }
+        }
+        return box;
+    }
+
+    /**
+     * @return the payload start and end of the first box of {@code type} between two
+     *         positions, or null if there's none
+     */
+    static int[] findBox(ByteBuffer file, int from, int to, String type) {
+        int position = from;
+        while (position + 8 <= to) {
+            long size = file.getInt(position) & 0xFFFFFFFFL;
+            int headerSize = 8;
+            if (size == 1) {
+                size = file.getLong(position + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = to - position;
+            }
+            if (fourCc(file, position + 4).equals(type)) {
+                return new int[] {position + headerSize, (int) (position + size)};
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    static String fourCc(ByteBuffer file, int position) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) (file.get(position + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The sample numbers listed in the first track's sync sample table.
+     */
+    static int[] syncSamples(ByteBuffer file) {
+        int[] stss = findBox(file, "moov", "trak", "mdia", "minf", "stbl", "stss");
+        int[] samples = new int[file.getInt(stss[0] + 4)];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = file.getInt(stss[0] + 8 + 4 * i);
+        }
+        return samples;
+    }
+
+    /**
+     * The sample sizes listed in the first track's sample size table.
+     */
+    static int[] sampleSizes(ByteBuffer file) {
+        int[] stsz = findBox(file, "moov", "trak", "mdia", "minf", "stbl", "stsz");
+        int[] sizes = new int[file.getInt(stsz[0] + 8)];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = file.getInt(stsz[0] + 12 + 4 * i);
+        }
+        return sizes;
+    }
+}
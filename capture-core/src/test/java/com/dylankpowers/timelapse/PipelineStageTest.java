@@ -0,0 +1,85 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class PipelineStageTest {
+    @Test
+    public void shutdownNowDropsQueuedWorkAndInterruptsRunningTask() throws InterruptedException {
+        PipelineStage stage = new PipelineStage("test", 4);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        stage.put(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(60 * 1000);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+            }
+        });
+        Runnable queued = new Runnable() {
+            @Override
+            public void run() {
+                fail("Queued work ran after shutdown");
+            }
+        };
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        stage.put(queued);
+
+        List<Runnable> dropped = stage.shutdownNow();
+        assertTrue(interrupted.get());
+        assertEquals(1, dropped.size());
+        assertSame(queued, dropped.get(0));
+        assertEquals(1, stage.getDroppedTaskCount());
+    }
+
+    @Test
+    public void shutdownNowStopsWorkerThatSwallowedInterrupt() {
+        PipelineStage stage = new PipelineStage("test", 4);
+        stage.runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                Thread.currentThread().interrupt();
+                Thread.interrupted();
+            }
+        });
+        assertTrue(stage.shutdownNow().isEmpty());
+    }
+
+    @Test
+    public void offerDropsWorkWhenFull() throws InterruptedException {
+        PipelineStage stage = new PipelineStage("test", 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        stage.put(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() { }
+        };
+        assertTrue(stage.offer(nothing));
+        assertFalse(stage.offer(nothing));
+        assertEquals(1, stage.getDroppedTaskCount());
+        release.countDown();
+        stage.shutdown();
+    }
+}
@@ -0,0 +1,39 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import static org.junit.Assert.*;
+
+public class RecordingNamesTest {
+    @Test
+    public void recordingNamePadsEveryField() {
+        Calendar date = new GregorianCalendar(2016, Calendar.MARCH, 5, 7, 8, 9);
+        assertEquals("TimeLapse_20160305_070809.mp4", RecordingNames.recording(date));
+
+        date = new GregorianCalendar(2016, Calendar.DECEMBER, 31, 23, 59, 58);
+        assertEquals("TimeLapse_20161231_235958.mp4", RecordingNames.recording(date));
+    }
+
+    @Test
+    public void segmentsAreNumberedInThreeDigits() {
+        assertEquals("/sd/TimeLapse_001.mp4", RecordingNames.segment("/sd/TimeLapse", 1));
+        assertEquals("/sd/TimeLapse_042.mp4", RecordingNames.segment("/sd/TimeLapse", 42));
+        assertEquals("/sd/TimeLapse_100.mp4", RecordingNames.segment("/sd/TimeLapse", 100));
+        assertEquals("/sd/TimeLapse_1000.mp4", RecordingNames.segment("/sd/TimeLapse", 1000));
+    }
+
+    @Test
+    public void extraOutputNamesItsSize() {
+        assertEquals("/sd/TimeLapse_2_1280x720.mp4",
+                RecordingNames.extraOutput("/sd/TimeLapse", 2, 1280, 720));
+    }
+
+    @Test
+    public void basePathDropsExtension() {
+        assertEquals("/sd/TimeLapse_20160305_070809",
+                RecordingNames.basePath("/sd/TimeLapse_20160305_070809.mp4"));
+    }
+}
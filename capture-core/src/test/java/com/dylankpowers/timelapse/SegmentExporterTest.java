@@ -0,0 +1,160 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentExporterTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_RATE = 30;
+    private static final int SAMPLE_SIZE = 24;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * A fragmented segment, each sample filled with its number in the recording.
+     */
+    private File writeFragmented(int width, int firstSample, int samples, int keyFrameInterval)
+            throws IOException {
+        File file = mFolder.newFile();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, width, HEIGHT, 0, FRAME_RATE,
+                keyFrameInterval);
+        writer.writeHeader(ByteBuffer.wrap(Mp4TestFiles.SPS), ByteBuffer.wrap(Mp4TestFiles.PPS));
+        for (int i = 0; i < samples; i++) {
+            boolean keyFrame = i % keyFrameInterval == 0;
+            writer.writeSample(Mp4TestFiles.annexB(keyFrame, SAMPLE_SIZE, firstSample + i),
+                    i * 1000000L / FRAME_RATE, keyFrame);
+        }
+        writer.close();
+        return file;
+    }
+
+    /**
+     * A regular segment, the way a recording cut off and repaired ends up.
+     */
+    private File writeRepaired(int firstSample, int samples, int keyFrameInterval)
+            throws IOException {
+        File file = mFolder.newFile();
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(64);
+            Mp4Boxes.putFileType(header);
+            header.putInt(0);
+            Mp4Boxes.putFourCc(header, "mdat");
+            header.flip();
+            channel.write(header);
+            for (int i = 0; i < samples; i++) {
+                channel.write(Mp4TestFiles.lengthPrefixed(i % keyFrameInterval == 0, SAMPLE_SIZE,
+                        firstSample + i));
+            }
+        } finally {
+            channel.close();
+        }
+        assertEquals(samples, Mp4Repair.repair(file, WIDTH, HEIGHT, 0, FRAME_RATE,
+                Mp4TestFiles.SPS, Mp4TestFiles.PPS));
+        return file;
+    }
+
+    /**
+     * Checks every sample of the export is where its chunk says and holds what was written,
+     * in order.
+     */
+    private static void assertSamplesInOrder(ByteBuffer contents, int samples) {
+        int[] sizes = Mp4TestFiles.sampleSizes(contents);
+        assertEquals(samples, sizes.length);
+
+        int[] stbl = Mp4TestFiles.findBox(contents, "moov", "trak", "mdia", "minf", "stbl");
+        int[] stsc = Mp4TestFiles.findBox(contents, stbl[0], stbl[1], "stsc");
+        int[] stco = Mp4TestFiles.findBox(contents, stbl[0], stbl[1], "stco");
+        int runs = contents.getInt(stsc[0] + 4);
+        int chunks = contents.getInt(stco[0] + 4);
+        int sample = 0;
+        int run = 0;
+        int chunkSamples = 0;
+        for (int chunk = 1; chunk <= chunks; chunk++) {
+            if (run < runs && contents.getInt(stsc[0] + 8 + 12 * run) == chunk) {
+                chunkSamples = contents.getInt(stsc[0] + 12 + 12 * run);
+                run++;
+            }
+            int offset = contents.getInt(stco[0] + 8 + 4 * (chunk - 1));
+            for (int i = 0; i < chunkSamples; i++) {
+                assertEquals(SAMPLE_SIZE + 4, sizes[sample]);
+                assertEquals(SAMPLE_SIZE, contents.getInt(offset));
+                assertEquals("Sample " + sample, (byte) (sample | 0x10),
+                        contents.get(offset + 4 + SAMPLE_SIZE - 1));
+                offset += sizes[sample];
+                sample++;
+            }
+        }
+        assertEquals(samples, sample);
+    }
+
+    @Test
+    public void joinsFragmentedSegments() throws IOException {
+        List<File> segments = new ArrayList<File>();
+        for (int i = 0; i < 3; i++) {
+            segments.add(writeFragmented(WIDTH, i * 12, 12, 6));
+        }
+        File output = mFolder.newFile();
+
+        assertEquals(36, SegmentExporter.export(segments, output));
+        ByteBuffer contents = Mp4TestFiles.read(output);
+        assertSamplesInOrder(contents, 36);
+        int[] sync = Mp4TestFiles.syncSamples(contents);
+        assertEquals("[1, 7, 13, 19, 25, 31]", Arrays.toString(sync));
+    }
+
+    @Test
+    public void joinsRegularAndFragmentedSegments() throws IOException {
+        List<File> segments = Arrays.asList(writeRepaired(0, 10, 5),
+                writeFragmented(WIDTH, 10, 8, 4));
+        File output = mFolder.newFile();
+
+        assertEquals(18, SegmentExporter.export(segments, output));
+        ByteBuffer contents = Mp4TestFiles.read(output);
+        assertSamplesInOrder(contents, 18);
+        assertEquals("[1, 6, 11, 15]", Arrays.toString(Mp4TestFiles.syncSamples(contents)));
+    }
+
+    @Test
+    public void exportCanBeExportedAgain() throws IOException {
+        File first = mFolder.newFile();
+        SegmentExporter.export(Arrays.asList(writeFragmented(WIDTH, 0, 20, 10),
+                writeFragmented(WIDTH, 20, 20, 10)), first);
+        File second = mFolder.newFile();
+
+        assertEquals(40, SegmentExporter.export(Collections.singletonList(first), second));
+        assertSamplesInOrder(Mp4TestFiles.read(second), 40);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsSegmentsEncodedDifferently() throws IOException {
+        SegmentExporter.export(Arrays.asList(writeFragmented(WIDTH, 0, 4, 2),
+                writeFragmented(WIDTH * 2, 4, 4, 2)), mFolder.newFile());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNothingToExport() throws IOException {
+        SegmentExporter.export(Collections.<File>emptyList(), mFolder.newFile());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsSegmentsWithoutSamples() throws IOException {
+        SegmentExporter.export(Collections.singletonList(writeFragmented(WIDTH, 0, 0, 2)),
+                mFolder.newFile());
+    }
+}
@@ -0,0 +1,65 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ThrottleLadderTest {
+    private static final int[] SIZES = {1920, 1080, 1280, 720, 640, 480, 960, 540, 1280, 720};
+
+    private static ThrottleLadder newLadder(long intervalMs) {
+        return new ThrottleLadder(8000000, 2000000, intervalMs, 40000, 1920, 1080, SIZES, 540);
+    }
+
+    @Test
+    public void lowersBitRateThenIntervalThenSize() {
+        ThrottleLadder ladder = newLadder(10000);
+        int[] bitRates = {8000000, 6000000, 4500000, 3375000, 2531250, 2000000,
+                2000000, 2000000, 2000000, 2000000, 888888, 500000};
+        long[] intervalsMs = {10000, 10000, 10000, 10000, 10000, 10000,
+                15000, 22500, 33750, 40000, 40000, 40000};
+        int[] heights = {1080, 1080, 1080, 1080, 1080, 1080,
+                1080, 1080, 1080, 1080, 720, 540};
+
+        assertEquals(bitRates.length, ladder.getLevelCount());
+        for (int level = 0; level < bitRates.length; level++) {
+            assertEquals("Level " + level, bitRates[level], ladder.getBitRate(level));
+            assertEquals("Level " + level, intervalsMs[level], ladder.getIntervalMs(level));
+            assertEquals("Level " + level, heights[level], ladder.getHeight(level));
+            assertEquals("Level " + level, heights[level] * 16 / 9, ladder.getWidth(level));
+        }
+    }
+
+    @Test
+    public void noIntervalToStretch() {
+        ThrottleLadder ladder = newLadder(0);
+        assertEquals(8, ladder.getLevelCount());
+        for (int level = 0; level < ladder.getLevelCount(); level++) {
+            assertEquals(0, ladder.getIntervalMs(level));
+        }
+    }
+
+    @Test
+    public void resizeOnlyBetweenSizes() {
+        ThrottleLadder ladder = newLadder(10000);
+        assertFalse(ladder.isResize(0, 9));
+        assertTrue(ladder.isResize(9, 10));
+        assertTrue(ladder.isResize(11, 0));
+        assertFalse(ladder.isResize(11, 20));
+    }
+
+    @Test
+    public void levelsOutOfRangeAreClamped() {
+        ThrottleLadder ladder = newLadder(10000);
+        assertEquals(ladder.getBitRate(0), ladder.getBitRate(-1));
+        assertEquals(ladder.getHeight(ladder.getLevelCount() - 1), ladder.getHeight(100));
+    }
+
+    @Test
+    public void nothingToTakeAway() {
+        ThrottleLadder ladder = new ThrottleLadder(2000000, 2000000, 0, 0, 640, 480,
+                new int[] {640, 480}, 480);
+        assertEquals(1, ladder.getLevelCount());
+        assertEquals(2000000, ladder.getBitRate(1));
+    }
+}
@@ -0,0 +1,93 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TranscodePlanTest {
+    private static final long SECOND_US = 1000000L;
+
+    /**
+     * Walks every decoder through its frames and checks each output frame comes up exactly
+     * once, from the decoder the plan says.
+     */
+    private static void assertCoversEveryFrame(TranscodePlan plan) {
+        int[] seen = new int[plan.getFrameCount()];
+        for (int decoder = 0; decoder < plan.getDecoderCount(); decoder++) {
+            int previous = -1;
+            int frame;
+            while ((frame = plan.getNextFrame(decoder, previous)) >= 0) {
+                assertTrue("Frames go forward", frame > previous);
+                assertEquals(decoder, plan.getDecoderFor(frame));
+                seen[frame]++;
+                previous = frame;
+            }
+        }
+        for (int i = 0; i < seen.length; i++) {
+            assertEquals("Frame " + i, 1, seen[i]);
+        }
+    }
+
+    @Test
+    public void keyFramesOnlyWhenCloseEnough() {
+        // 60x at 30fps is two seconds of source per output frame
+        TranscodePlan plan = new TranscodePlan(600 * SECOND_US, 60, 30, SECOND_US, 4, 8);
+        assertEquals(2 * SECOND_US, plan.getFrameIntervalUs());
+        assertEquals(300, plan.getFrameCount());
+        assertTrue(plan.isKeyFramesOnly());
+        assertEquals(1, plan.getChunkFrames());
+        assertEquals(4, plan.getDecoderCount());
+        assertCoversEveryFrame(plan);
+
+        plan = new TranscodePlan(600 * SECOND_US, 60, 30, SECOND_US + 1, 4, 8);
+        assertFalse(plan.isKeyFramesOnly());
+    }
+
+    @Test
+    public void chunksSpanTwoKeyFrameIntervals() {
+        // Half a second of source per output frame, key frames every two seconds
+        TranscodePlan plan = new TranscodePlan(100 * SECOND_US, 15, 30, 2 * SECOND_US, 3, 16);
+        assertFalse(plan.isKeyFramesOnly());
+        assertEquals(200, plan.getFrameCount());
+        assertEquals(8, plan.getChunkFrames());
+        assertEquals(3, plan.getDecoderCount());
+        assertCoversEveryFrame(plan);
+    }
+
+    @Test
+    public void singleDecoderWhenChunksWontFit() {
+        TranscodePlan plan = new TranscodePlan(100 * SECOND_US, 15, 30, 2 * SECOND_US, 3, 4);
+        assertEquals(1, plan.getDecoderCount());
+        assertEquals(plan.getFrameCount(), plan.getChunkFrames());
+        assertCoversEveryFrame(plan);
+    }
+
+    @Test
+    public void singleDecoderWhenKeyFramesUnknown() {
+        TranscodePlan plan = new TranscodePlan(100 * SECOND_US, 15, 30, 0, 4, 64);
+        assertFalse(plan.isKeyFramesOnly());
+        assertEquals(1, plan.getDecoderCount());
+        assertCoversEveryFrame(plan);
+        assertFalse(plan.shouldSeek(0, 50 * SECOND_US));
+    }
+
+    @Test
+    public void lastFrameCoversEndOfSource() {
+        TranscodePlan plan = new TranscodePlan(2 * SECOND_US + 1, 30, 30, 0, 1, 1);
+        assertEquals(3, plan.getFrameCount());
+        assertEquals(2 * SECOND_US, plan.getSourceTimeUs(2));
+        assertEquals(0, new TranscodePlan(0, 30, 30, 0, 1, 1).getFrameCount());
+    }
+
+    @Test
+    public void seeksOnlyPastKeyFrameInterval() {
+        TranscodePlan plan = new TranscodePlan(100 * SECOND_US, 15, 30, 2 * SECOND_US, 3, 16);
+        assertFalse(plan.shouldSeek(SECOND_US, 3 * SECOND_US));
+        assertTrue(plan.shouldSeek(SECOND_US, 3 * SECOND_US + 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoDecoders() {
+        new TranscodePlan(SECOND_US, 30, 30, 0, 0, 1);
+    }
+}
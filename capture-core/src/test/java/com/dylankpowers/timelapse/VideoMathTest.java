@@ -0,0 +1,53 @@
+package com.dylankpowers.timelapse;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VideoMathTest {
+    @Test
+    public void doublingFrameRateAddsHalfTheBitRate() {
+        assertEquals(15000000, VideoMath.scaleBitRate(10000000, 30, 60), 1);
+        assertEquals(10000000, VideoMath.scaleBitRate(15000000, 60, 30), 1);
+        assertEquals(10000000, VideoMath.scaleBitRate(10000000, 30, 30));
+    }
+
+    @Test
+    public void stackOfSixteenHalvesTheBitRate() {
+        assertEquals(5000000, VideoMath.scaleBitRateForStack(10000000, 16), 1);
+        assertEquals(10000000, VideoMath.scaleBitRateForStack(10000000, 1));
+    }
+
+    @Test
+    public void bitRateFollowsArea() {
+        assertEquals(4000000, VideoMath.scaleBitRateToSize(16000000, 1920, 1080, 3840, 2160));
+        // Large enough to overflow an int along the way
+        assertEquals(40000000, VideoMath.scaleBitRateToSize(40000000, 3840, 2160, 3840, 2160));
+    }
+
+    @Test
+    public void lowestLevelThatFits() {
+        assertEquals(0x200, VideoMath.avcLevel(1280, 720, 30, 8000000, false));
+        assertEquals(0x800, VideoMath.avcLevel(1920, 1080, 30, 17000000, false));
+        // Only High profile gets the extra bitrate
+        assertEquals(0x1000, VideoMath.avcLevel(1920, 1080, 30, 22000000, false));
+        assertEquals(0x800, VideoMath.avcLevel(1920, 1080, 30, 22000000, true));
+        assertEquals(0x2000, VideoMath.avcLevel(1920, 1080, 60, 17000000, false));
+        assertEquals(0x8000, VideoMath.avcLevel(3840, 2160, 30, 40000000, false));
+        assertEquals(0, VideoMath.avcLevel(7680, 4320, 30, 40000000, false));
+    }
+
+    @Test
+    public void levelLimitsEachSide() {
+        // Few enough macroblocks for level 1, but far too wide for it
+        assertEquals(0x80, VideoMath.avcLevel(1584, 16, 1, 64000, false));
+    }
+
+    @Test
+    public void orientationFromSensorMounting() {
+        assertEquals(0, VideoMath.videoOrientation(90, false));
+        assertEquals(180, VideoMath.videoOrientation(90, true));
+        assertEquals(180, VideoMath.videoOrientation(270, false));
+        assertEquals(0, VideoMath.videoOrientation(270, true));
+    }
+}